@@ -62,6 +62,7 @@ public class PoolManager {
   public static final String EXPLICIT_POOL_PROPERTY = "mapred.fairscheduler.pool";
 
   private final FairScheduler scheduler;
+  private final Configuration conf; // used when there is no scheduler
   
   // Map and reduce minimum allocations for each pool
   private Map<String, Integer> mapAllocs = new HashMap<String, Integer>();
@@ -73,6 +74,10 @@ public class PoolManager {
 
   // Sharing weights for each pool
   private Map<String, Double> poolWeights = new HashMap<String, Double>();
+
+  // Scheduling modes of the pools that set one
+  private Map<String, SchedulingMode> poolModes =
+    new HashMap<String, SchedulingMode>();
   
   // Max concurrent running jobs for each pool and for each user; in addition,
   // for users that have no max specified, we use the userMaxJobsDefault.
@@ -109,11 +114,23 @@ public class PoolManager {
 
   public PoolManager(FairScheduler scheduler) {
     this.scheduler = scheduler;
+    this.conf = null;
+  }
+
+  /**
+   * Create a PoolManager that only reads the allocations, for schedulers
+   * other than the FairScheduler that use its allocation file. It creates
+   * no pools, so {@link #getPool(String)} must not be called on it; use
+   * {@link #getSchedulingMode(String)} for the mode of a pool.
+   */
+  public PoolManager(Configuration conf) {
+    this.scheduler = null;
+    this.conf = conf;
   }
   
   public void initialize() throws IOException, SAXException,
       AllocationConfigurationException, ParserConfigurationException {
-    Configuration conf = scheduler.getConf();
+    Configuration conf = (scheduler != null ? scheduler.getConf() : this.conf);
     this.poolNameProperty = conf.get(
         "mapred.fairscheduler.poolnameproperty", "user.name");
     this.allocFile = conf.get("mapred.fairscheduler.allocation.file");
@@ -125,7 +142,9 @@ public class PoolManager {
     lastSuccessfulReload = System.currentTimeMillis();
     lastReloadAttempt = System.currentTimeMillis();
     // Create the default pool so that it shows up in the web UI
-    getPool(Pool.DEFAULT_POOL_NAME);
+    if (scheduler != null) {
+      getPool(Pool.DEFAULT_POOL_NAME);
+    }
   }
   
   /**
@@ -341,6 +360,10 @@ public class PoolManager {
       this.fairSharePreemptionTimeout = fairSharePreemptionTimeout;
       this.defaultMinSharePreemptionTimeout = defaultMinSharePreemptionTimeout;
       this.defaultSchedulingMode = defaultSchedulingMode;
+      this.poolModes = poolModes;
+      if (scheduler == null) {
+        return;
+      }
       for (String name: poolNamesInAllocFile) {
         Pool pool = getPool(name);
         if (poolModes.containsKey(name)) {
@@ -479,6 +502,15 @@ public class PoolManager {
     }
   }
 
+  /**
+   * Get the scheduling mode of a pool, as set in the allocation file or the
+   * default one.
+   */
+  public synchronized SchedulingMode getSchedulingMode(String pool) {
+    SchedulingMode mode = poolModes.get(pool);
+    return (mode == null ? defaultSchedulingMode : mode);
+  }
+
   public double getPoolWeight(String pool) {
     if (poolWeights.containsKey(pool)) {
       return poolWeights.get(pool);
@@ -0,0 +1,250 @@
+package org.apache.hadoop.mapred;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.TaskType;
+
+/**
+ * A {@link JobSelectionPolicy} that shares slots between pools and jobs as
+ * the fair scheduler does, reading the pools, their minimum and maximum
+ * shares, weights and internal scheduling modes from the fair scheduler's
+ * allocation file (mapred.fairscheduler.allocation.file) and assigning jobs
+ * to pools in the same way (mapred.fairscheduler.pool or
+ * mapred.fairscheduler.poolnameproperty).
+ *
+ * Pools are ordered by the fair scheduler's FairShareComparator, so pools
+ * below their min share come first, and the jobs within each pool by the
+ * comparator for the pool's scheduling mode. A job's running
+ * tasks count the slots launched for it in the current offer, so that one
+ * offer spreads its slots fairly. Pools at their maximum share are left out,
+ * and jobs in pools below their min share are reported as starved so that
+ * they accept slots without waiting for locality.
+ */
+class FairShareJobSelectionPolicy extends JobSelectionPolicy {
+  private PoolManager poolMgr;
+
+  // Shares of the current jobs, by task type
+  private Map<TaskType, TypeState> states =
+    new LinkedHashMap<TaskType, TypeState>();
+
+  /**
+   * The pools and jobs of one task type.
+   */
+  private class TypeState {
+    final Map<String, PoolShare> pools = new LinkedHashMap<String, PoolShare>();
+    final Map<JobInProgress, JobShare> jobs =
+      new IdentityHashMap<JobInProgress, JobShare>();
+  }
+
+  /**
+   * The demand and running slots of a job or pool for one task type, as a
+   * {@link Schedulable} for the fair scheduler's comparators. The demand is
+   * computed in {@link #update(List)}, and the slots are launched by the
+   * Mesos scheduler, so a share neither updates its demand, distributes a
+   * fair share nor assigns tasks itself.
+   */
+  private static abstract class Share extends Schedulable {
+    int demand = 0;
+    int running = 0;
+
+    public int getDemand() {
+      return demand;
+    }
+
+    public int getRunningTasks() {
+      return running;
+    }
+
+    public void updateDemand() {
+    }
+
+    public void redistributeShare() {
+    }
+
+    public Task assignTask(TaskTrackerStatus tts, long currentTime,
+        Collection<JobInProgress> visited) throws IOException {
+      throw new UnsupportedOperationException(
+          "Slots are assigned by the Mesos scheduler");
+    }
+  }
+
+  private class JobShare extends Share {
+    final JobInProgress job;
+    final PoolShare pool;
+
+    JobShare(JobInProgress job, TaskType type, PoolShare pool) {
+      this.job = job;
+      this.pool = pool;
+      if (type == TaskType.MAP) {
+        running = job.runningMaps();
+        demand = running + demandIndex.getMapDemand(job);
+      } else {
+        running = job.runningReduces();
+        demand = running + demandIndex.getReduceDemand(job);
+      }
+    }
+
+    public String getName() {
+      return job.getJobID().toString();
+    }
+
+    public int getMinShare() {
+      return 0;
+    }
+
+    public double getWeight() {
+      return getPriorityFactor(job.getPriority());
+    }
+
+    public JobPriority getPriority() {
+      return job.getPriority();
+    }
+
+    public long getStartTime() {
+      return job.getStartTime();
+    }
+  }
+
+  private class PoolShare extends Share {
+    final String name;
+    final TaskType type;
+    final List<JobShare> jobs = new ArrayList<JobShare>();
+
+    PoolShare(String name, TaskType type) {
+      this.name = name;
+      this.type = type;
+    }
+
+    void addJob(JobShare job) {
+      jobs.add(job);
+      demand = Math.min(demand + job.demand, getMaxShare());
+      running += job.running;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public int getMinShare() {
+      return poolMgr.getAllocation(name, type);
+    }
+
+    public double getWeight() {
+      return poolMgr.getPoolWeight(name);
+    }
+
+    public JobPriority getPriority() {
+      return JobPriority.NORMAL;
+    }
+
+    public long getStartTime() {
+      return 0;
+    }
+
+    int getMaxShare() {
+      return poolMgr.getMaxSlots(name, type);
+    }
+
+    boolean isBelowMinShare() {
+      return running < Math.min(getMinShare(), demand);
+    }
+  }
+
+  @Override
+  public void setConf(Configuration conf) {
+    super.setConf(conf);
+    poolMgr = new PoolManager(conf);
+    try {
+      poolMgr.initialize();
+    } catch (Exception e) {
+      throw new RuntimeException("Failed to load fair scheduler allocations",
+          e);
+    }
+  }
+
+  @Override
+  public synchronized void update(List<JobInProgress> runningJobs) {
+    poolMgr.reloadAllocsIfNecessary();
+    states.clear();
+    for (TaskType type: new TaskType[] {TaskType.MAP, TaskType.REDUCE}) {
+      TypeState state = new TypeState();
+      for (JobInProgress job: runningJobs) {
+        String poolName = poolMgr.getPoolName(job);
+        PoolShare pool = state.pools.get(poolName);
+        if (pool == null) {
+          pool = new PoolShare(poolName, type);
+          state.pools.put(poolName, pool);
+        }
+        JobShare share = new JobShare(job, type, pool);
+        pool.addJob(share);
+        state.jobs.put(job, share);
+      }
+      states.put(type, state);
+    }
+  }
+
+  @Override
+  public synchronized List<JobInProgress> getJobs(TaskType type) {
+    TypeState state = states.get(type);
+    if (state == null) {
+      return Collections.emptyList();
+    }
+    List<PoolShare> pools = new ArrayList<PoolShare>(state.pools.values());
+    Collections.sort(pools, new SchedulingAlgorithms.FairShareComparator());
+    List<JobInProgress> result = new ArrayList<JobInProgress>();
+    for (PoolShare pool: pools) {
+      if (pool.running >= pool.getMaxShare()) {
+        continue;
+      }
+      Comparator<Schedulable> comparator;
+      if (poolMgr.getSchedulingMode(pool.name) == SchedulingMode.FIFO) {
+        comparator = new SchedulingAlgorithms.FifoComparator();
+      } else {
+        comparator = new SchedulingAlgorithms.FairShareComparator();
+      }
+      List<JobShare> jobs = new ArrayList<JobShare>(pool.jobs);
+      Collections.sort(jobs, comparator);
+      for (JobShare share: jobs) {
+        result.add(share.job);
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public synchronized void slotLaunched(JobInProgress job, TaskType type) {
+    TypeState state = states.get(type);
+    JobShare share = (state == null ? null : state.jobs.get(job));
+    if (share != null) {
+      share.running++;
+      share.pool.running++;
+    }
+  }
+
+  @Override
+  public synchronized boolean isStarved(JobInProgress job, TaskType type) {
+    TypeState state = states.get(type);
+    JobShare share = (state == null ? null : state.jobs.get(job));
+    return share != null && share.pool.isBelowMinShare();
+  }
+
+  // The same weights for job priorities as in the fair scheduler
+  private static double getPriorityFactor(JobPriority priority) {
+    switch (priority) {
+    case VERY_HIGH: return 4.0;
+    case HIGH:      return 2.0;
+    case NORMAL:    return 1.0;
+    case LOW:       return 0.5;
+    default:        return 0.25; // priority = VERY_LOW
+    }
+  }
+}
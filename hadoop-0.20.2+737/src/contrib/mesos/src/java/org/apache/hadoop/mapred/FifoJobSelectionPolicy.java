@@ -0,0 +1,28 @@
+package org.apache.hadoop.mapred;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.mapreduce.TaskType;
+
+/**
+ * A {@link JobSelectionPolicy} that gives every slot to the first job that
+ * can use it, ordering jobs by priority and then by start time as in the
+ * default scheduler in Hadoop.
+ */
+class FifoJobSelectionPolicy extends JobSelectionPolicy {
+  private List<JobInProgress> jobs = Collections.emptyList();
+
+  @Override
+  public synchronized void update(List<JobInProgress> runningJobs) {
+    List<JobInProgress> sorted = new ArrayList<JobInProgress>(runningJobs);
+    Collections.sort(sorted, new FifoJobComparator());
+    jobs = Collections.unmodifiableList(sorted);
+  }
+
+  @Override
+  public synchronized List<JobInProgress> getJobs(TaskType type) {
+    return jobs;
+  }
+}
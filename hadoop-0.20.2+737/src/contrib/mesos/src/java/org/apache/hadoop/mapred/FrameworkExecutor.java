@@ -1,8 +1,11 @@
 package org.apache.hadoop.mapred;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Map.Entry;
@@ -31,12 +34,25 @@ public class FrameworkExecutor extends Executor {
   public static final Log LOG =
     LogFactory.getLog(FrameworkExecutor.class);
   
+  // Argument of Mesos tasks that stay alive as reusable slots of our
+  // TaskTracker when their Hadoop task finishes, until the FrameworkScheduler
+  // asks us to report them done
+  static final String REUSABLE_TASK_ARG = "reusable";
+  
   private ExecutorDriver driver;
   private String slaveId;
   private JobConf conf;
   private TaskTracker taskTracker;
 
-  private Set<Integer> activeMesosTasks = new HashSet<Integer>();
+  private Set<Integer> activeMesosTasks =
+    Collections.synchronizedSet(new HashSet<Integer>());
+  private Set<Integer> reusableMesosTasks =
+    Collections.synchronizedSet(new HashSet<Integer>());
+  
+  // Kill requests from Mesos waiting to be sent to the FrameworkScheduler,
+  // which we batch over mapred.mesos.message.batch.interval milliseconds
+  private List<Integer> pendingKillRequests = new ArrayList<Integer>();
+  private long messageBatchInterval;
 
   @Override
   public void init(ExecutorDriver d, ExecutorArgs args) {
@@ -65,6 +81,21 @@ public class FrameworkExecutor extends Executor {
       // Get hostname from Mesos to make sure we match what it reports to the JT
       conf.set("slave.host.name", args.getHost());
       
+      messageBatchInterval = conf.getLong(
+          "mapred.mesos.message.batch.interval", 100);
+      Thread sender = new Thread("Framework message sender") {
+        @Override
+        public void run() {
+          while (true) {
+            try { Thread.sleep(messageBatchInterval); }
+            catch (InterruptedException e) { return; }
+            sendKillRequests();
+          }
+        }
+      };
+      sender.setDaemon(true);
+      sender.start();
+      
       taskTracker = new TaskTracker(conf);
       new Thread("TaskTracker run thread") {
         @Override
@@ -82,24 +113,62 @@ public class FrameworkExecutor extends Executor {
   public void launchTask(ExecutorDriver d, TaskDescription task) {
     LOG.info("Asked to launch Mesos task " + task.getTaskId());
     activeMesosTasks.add(task.getTaskId());
+    if (REUSABLE_TASK_ARG.equals(new String(task.getArg()))) {
+      reusableMesosTasks.add(task.getTaskId());
+    }
   }
   
   @Override
   public void killTask(ExecutorDriver d, int taskId) {
     LOG.info("Asked to kill Mesos task " + taskId);
-    // TODO: Tell the JobTracker about this using an E2S_KILL_REQUEST message!
+    synchronized (pendingKillRequests) {
+      pendingKillRequests.add(taskId);
+    }
+  }
+  
+  // Send the pending kill requests to the scheduler in one framework message
+  private void sendKillRequests() {
+    HadoopFrameworkMessageBatch batch = new HadoopFrameworkMessageBatch();
+    int firstTaskId;
+    synchronized (pendingKillRequests) {
+      if (pendingKillRequests.isEmpty()) {
+        return;
+      }
+      firstTaskId = pendingKillRequests.get(0);
+      for (int taskId: pendingKillRequests) {
+        batch.addKillRequest(taskId);
+      }
+      pendingKillRequests.clear();
+    }
+    try {
+      LOG.info("Sending " + batch.size() + " kill requests to the scheduler");
+      driver.sendFrameworkMessage(
+          new FrameworkMessage(slaveId, firstTaskId, batch.serialize()));
+    } catch (IOException e) {
+      LOG.fatal("Failed to serialize HadoopFrameworkMessageBatch", e);
+      System.exit(1);
+    }
   }
   
   @Override
   public void frameworkMessage(ExecutorDriver d, FrameworkMessage msg) {
     try {
+      if (HadoopFrameworkMessageBatch.isBatch(msg.getData())) {
+        HadoopFrameworkMessageBatch batch =
+          new HadoopFrameworkMessageBatch(msg.getData());
+        for (HadoopFrameworkMessageBatch.Entry entry: batch.getEntries()) {
+          if (entry.type ==
+              HadoopFrameworkMessage.Type.S2E_SEND_STATUS_UPDATE) {
+            sendStatusUpdate(d, entry.mesosId, entry.state);
+          }
+        }
+        return;
+      }
       int mesosId = msg.getTaskId();
       HadoopFrameworkMessage hfm = new HadoopFrameworkMessage(msg.getData());
       switch (hfm.type) {
         case S2E_SEND_STATUS_UPDATE: {
-          TaskState s = TaskState.valueOf(hfm.arg1);
-          LOG.info("Sending status update: " + mesosId + " is " + s);
-          d.sendStatusUpdate(new mesos.TaskStatus(mesosId, s, new byte[0]));
+          sendStatusUpdate(d, mesosId, TaskState.valueOf(hfm.arg1));
           break;
         }
         case S2E_SHUTDOWN_EXECUTOR: {
@@ -113,13 +182,21 @@ public class FrameworkExecutor extends Executor {
     }
   }
   
+  private void sendStatusUpdate(ExecutorDriver d, int mesosId, TaskState s) {
+    LOG.info("Sending status update: " + mesosId + " is " + s);
+    d.sendStatusUpdate(new mesos.TaskStatus(mesosId, s, new byte[0]));
+    activeMesosTasks.remove(mesosId);
+    reusableMesosTasks.remove(mesosId);
+  }
+  
   public void statusUpdate(Task task, TaskStatus status) {
     LOG.info("Status update: " + task.getTaskID() + " is " + 
         status.getRunState());
     if (!task.extraData.equals("")) {
       // Parse Mesos ID from extraData
       int mesosId = Integer.parseInt(task.extraData);
-      if (activeMesosTasks.contains(mesosId)) {
+      if (activeMesosTasks.contains(mesosId) &&
+          !reusableMesosTasks.contains(mesosId)) {
         // Check whether the task has finished (either successfully or not),
         // and report to Mesos if it has
         State state = status.getRunState();
@@ -3,14 +3,18 @@ package org.apache.hadoop.mapred;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
@@ -18,8 +22,9 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.mapred.TaskStatus.State;
 import org.apache.hadoop.mapred.TaskTrackerStatus;
+import org.apache.hadoop.mapreduce.TaskType;
 import org.apache.hadoop.mapreduce.server.jobtracker.TaskTracker;
-import org.apache.hadoop.net.Node;
+import org.apache.hadoop.util.ReflectionUtils;
 
 import mesos.ExecutorInfo;
 import mesos.FrameworkMessage;
@@ -33,20 +38,40 @@ public class FrameworkScheduler extends Scheduler {
   public static final Log LOG =
     LogFactory.getLog(FrameworkScheduler.class);
   public static final long KILL_UNLAUNCHED_TASKS_SLEEP_TIME = 2000;
+  public static final long UNLAUNCHED_TASK_TIMEOUT = 20000;
 
   private static class MesosTask {
     final boolean isMap;
     final int mesosId;
     final String host;
+    final String slaveId;
+    final int cpus;
+    final int mem;
     final long creationTime;
+    // Job the task was planned for, if any, and the highest cache level it
+    // may take a map from (see LocalityLevel.toCacheLevelCap)
+    JobInProgress job;
+    int maxCacheLevel;
+    // Locality level of the best map the job had on the host when the task
+    // was planned, recorded in the job's delay scheduling state on launch
+    LocalityLevel plannedLevel;
     
     TaskAttemptID hadoopId;
+    long idleSince;         // When the task last became unassigned
+    int hadoopTasksRun = 0; // Hadoop tasks that ran in this slot, if reused
     
-    MesosTask(boolean isMap, int mesosId, String host) {
+    MesosTask(boolean isMap, int mesosId, String host, String slaveId,
+        int cpus, int mem, JobInProgress job, int maxCacheLevel) {
       this.isMap = isMap;
       this.mesosId = mesosId;
       this.host = host;
+      this.slaveId = slaveId;
+      this.cpus = cpus;
+      this.mem = mem;
+      this.job = job;
+      this.maxCacheLevel = maxCacheLevel;
       this.creationTime = System.currentTimeMillis();
+      this.idleSince = creationTime;
     }
 
     boolean isAssigned() {
@@ -56,6 +81,17 @@ public class FrameworkScheduler extends Scheduler {
     void assign(Task task) {
       hadoopId = task.getTaskID();
     }
+    
+    // Make the slot available for another Hadoop task. It is no longer tied
+    // to the job it was planned for, and only takes node-local maps until it
+    // has been idle for the locality wait.
+    void release() {
+      hadoopId = null;
+      job = null;
+      maxCacheLevel = LocalityLevel.NODE.toCacheLevelCap();
+      idleSince = System.currentTimeMillis();
+      hadoopTasksRun++;
+    }
   }
   
   private static class TaskTrackerInfo {
@@ -84,11 +120,121 @@ public class FrameworkScheduler extends Scheduler {
     }
   }
   
+  /**
+   * Copy of the slot usage of a TaskTracker, taken when a resource offer
+   * arrives so that the offer can be evaluated without holding our lock.
+   */
+  private static class SlotCounts {
+    int maps;
+    int reduces;
+    int maxMaps;
+    int maxReduces;
+    
+    SlotCounts(TaskTrackerInfo ttInfo) {
+      maps = ttInfo.maps.size();
+      reduces = ttInfo.reduces.size();
+      maxMaps = ttInfo.maxMaps;
+      maxReduces = ttInfo.maxReduces;
+    }
+  }
+  
+  /**
+   * The part of our state that a resource offer is evaluated against, copied
+   * under our lock and then updated as Mesos tasks are planned.
+   */
+  private static class OfferSnapshot {
+    Map<String, SlotCounts> slots = new HashMap<String, SlotCounts>();
+    int unassignedMaps;
+    int unassignedReduces;
+    int totalMesosTasks;
+    List<JobInProgress> runningJobs;
+    // Jobs with maps or reduces to launch, in the job policy's order, or
+    // null when they need to be recomputed (see getCandidateJobs)
+    List<JobInProgress> mapJobs;
+    List<JobInProgress> reduceJobs;
+  }
+  
+  /**
+   * The CPUs and memory that the maps and reduces of a job need, read from
+   * its configuration once rather than for every slave offered.
+   */
+  private static class TaskResources {
+    final int mapCpus;
+    final int mapMem;
+    final int reduceCpus;
+    final int reduceMem;
+    
+    TaskResources(int mapCpus, int mapMem, int reduceCpus, int reduceMem) {
+      this.mapCpus = mapCpus;
+      this.mapMem = mapMem;
+      this.reduceCpus = reduceCpus;
+      this.reduceMem = reduceMem;
+    }
+  }
+  
+  /**
+   * Delay scheduling state of a job, as kept by the fair scheduler: the
+   * locality level of the last map we launched for it, and how long it has
+   * been skipped because it had no map to launch at that level.
+   */
+  private static class JobLocalityInfo {
+    LocalityLevel lastMapLocalityLevel = LocalityLevel.NODE;
+    long timeWaitedForLocalMap = 0;
+    boolean skippedAtLastOffer = false;
+  }
+  
+  /**
+   * A job chosen to launch a map on some host, with the locality level it is
+   * allowed to launch at and the level of the best map it has there.
+   */
+  private static class MapChoice {
+    final JobInProgress job;
+    final LocalityLevel allowedLevel;
+    final LocalityLevel level;
+    
+    MapChoice(JobInProgress job, LocalityLevel allowedLevel,
+        LocalityLevel level) {
+      this.job = job;
+      this.allowedLevel = allowedLevel;
+      this.level = level;
+    }
+  }
+  
+  /**
+   * Revives offers as soon as a job is submitted or starts running, in case
+   * we have been refusing them for a long time for lack of demand.
+   */
+  private class JobSubmissionListener extends JobInProgressListener {
+    @Override
+    public void jobAdded(JobInProgress job) {
+      reviveOffers();
+    }
+
+    @Override
+    public void jobRemoved(JobInProgress job) {
+    }
+
+    @Override
+    public void jobUpdated(JobChangeEvent event) {
+      if (event instanceof JobStatusChangeEvent &&
+          ((JobStatusChangeEvent) event).getNewStatus().getRunState()
+              == JobStatus.RUNNING) {
+        reviveOffers();
+      }
+    }
+  }
+  
   private class KillTimedOutTasksThread extends Thread {
     @Override
     public void run() {
       while (running) {
+        demandIndex.refresh();
+        // Only zero matters, so read the host count, which takes no lock
+        numTrackers = jobTracker.getNumberOfUniqueHosts();
         killTimedOutTasks();
+        if (hasUnmetDemand()) {
+          reviveOffers();
+        }
         try { Thread.sleep(KILL_UNLAUNCHED_TASKS_SLEEP_TIME); }
         catch (Exception e) {}
       }
@@ -96,16 +242,49 @@ public class FrameworkScheduler extends Scheduler {
   }
   
   private MesosScheduler mesosSched;
-  private SchedulerDriver driver;
+  private volatile SchedulerDriver driver;
   private String frameworkId;
   private Configuration conf;
   private JobTracker jobTracker;
+  private MesosDemandIndex demandIndex;
+  private MesosSchedulerMetrics metrics;
   private boolean running;
+  private JobInProgressListener jobListener = new JobSubmissionListener();
   private AtomicInteger nextMesosTaskId = new AtomicInteger(0);
   
   private int cpusPerTask;
   private int memPerTask;
-  private long localityWait;
+  private long nodeLocalityWait;
+  private long rackLocalityWait;
+  
+  // If positive, Mesos tasks are kept as reusable slots of their TaskTracker
+  // after their Hadoop task finishes, and are only released back to Mesos
+  // once they have been idle for this many milliseconds.
+  private long slotLinger;
+  
+  // Whether resource offers and the timeout thread hold the JobTracker lock
+  // while they run, as they used to. By default they only take this
+  // FrameworkScheduler's lock, which guards ttInfos, the two task maps and
+  // the task counts below, and which heartbeats acquire in assignTasks while
+  // holding the JobTracker's. Status updates never lock anything.
+  private boolean lockJobTracker;
+  
+  // How long Mesos should hold back the resources we refuse in an offer, in
+  // seconds: long when we have no demand that the resources could meet, and
+  // short when we are leaving them unused only for now (e.g. to wait for a
+  // local slot). Whether the last refusal was a long one is remembered so
+  // that new demand can revive offers.
+  private int idleRefuseTimeout;
+  private int busyRefuseTimeout;
+  private volatile boolean offersFiltered = false;
+  
+  // Decides which jobs get the slots we accept, and in what order jobs are
+  // tried when a Mesos task's planned job no longer needs it
+  private JobSelectionPolicy jobPolicy;
+  
+  // Number of TaskTrackers in the cluster, refreshed by heartbeats and by the
+  // timeout thread so that offers need not lock the JobTracker to read it
+  private volatile int numTrackers = 0;
   
   private Map<String, TaskTrackerInfo> ttInfos =
     new HashMap<String, TaskTrackerInfo>();
@@ -115,6 +294,11 @@ public class FrameworkScheduler extends Scheduler {
   private Map<Integer, MesosTask> mesosIdToMesosTask =
     new HashMap<Integer, MesosTask>();
   
+  // Mesos tasks reported done by Mesos, queued by statusUpdate without any
+  // locking and removed in bulk the next time our lock is taken
+  private Queue<Integer> finishedMesosTasks =
+    new ConcurrentLinkedQueue<Integer>();
+  
   // Counts of various kinds of Mesos tasks
   // TODO: Figure out a better way to keep track of these
   int unassignedMaps = 0;
@@ -122,18 +306,37 @@ public class FrameworkScheduler extends Scheduler {
   int assignedMaps = 0;
   int assignedReduces = 0;
   
-  // Variables used for delay scheduling
-  boolean lastMapWasLocal = true;
-  long timeWaitedForLocalMap = 0;
-  long lastCanLaunchMapTime = -1;
+  // Variables used for delay scheduling, only accessed by resourceOffer
+  private Map<JobInProgress, JobLocalityInfo> localityInfos =
+    new HashMap<JobInProgress, JobLocalityInfo>();
+  
+  // Resources needed by the tasks of each running job, read both by offers
+  // and by heartbeats
+  private Map<JobInProgress, TaskResources> taskResources =
+    new ConcurrentHashMap<JobInProgress, TaskResources>();
+  private long lastOfferTime = -1;
   
   public FrameworkScheduler(MesosScheduler mesosSched) {
     this.mesosSched = mesosSched;
     this.conf = mesosSched.getConf();
     this.jobTracker = mesosSched.jobTracker;
+    this.demandIndex = mesosSched.demandIndex;
     cpusPerTask = conf.getInt("mapred.mesos.task.cpus", 1);
     memPerTask = conf.getInt("mapred.mesos.task.mem", 1024);
-    localityWait = conf.getLong("mapred.mesos.localitywait", 5000);
+    nodeLocalityWait = conf.getLong("mapred.mesos.localitywait", 5000);
+    rackLocalityWait = conf.getLong("mapred.mesos.localitywait.rack",
+        nodeLocalityWait);
+    lockJobTracker = conf.getBoolean("mapred.mesos.lock.jobtracker", false);
+    slotLinger = conf.getLong("mapred.mesos.slot.linger", 0);
+    idleRefuseTimeout = conf.getInt("mapred.mesos.offer.refuse.idle.seconds",
+        30);
+    busyRefuseTimeout = conf.getInt("mapred.mesos.offer.refuse.busy.seconds",
+        1);
+    jobPolicy = ReflectionUtils.newInstance(conf.getClass(
+        "mapred.mesos.job.policy", FifoJobSelectionPolicy.class,
+        JobSelectionPolicy.class), conf);
+    jobPolicy.setDemandIndex(demandIndex);
+    metrics = new MesosSchedulerMetrics(conf);
   }
 
   @Override
@@ -149,60 +352,209 @@ public class FrameworkScheduler extends Scheduler {
     running = false;
   }
   
+  JobInProgressListener getJobListener() {
+    return jobListener;
+  }
+  
+  // Whether the jobs need more slots than the Mesos tasks we hold provide
+  private synchronized boolean hasUnmetDemand() {
+    return demandIndex.getMapDemand() > unassignedMaps ||
+        demandIndex.getReduceDemand() > unassignedReduces;
+  }
+  
+  // Ask Mesos to offer us the resources we have refused with a long timeout
+  private void reviveOffers() {
+    if (offersFiltered && driver != null) {
+      offersFiltered = false;
+      LOG.info("Reviving resource offers");
+      driver.reviveOffers();
+    }
+  }
+  
   @Override
   public void resourceOffer(SchedulerDriver d, String oid,
       List<SlaveOffer> offers) {
+    long startTime = System.currentTimeMillis();
     try {
-      synchronized(jobTracker) {
-        LOG.info("Got resource offer " + oid);
-        List<TaskDescription> tasks = new ArrayList<TaskDescription>();
-        
-        int numOffers = (int) offers.size();
-        int[] cpus = new int[numOffers];
-        int[] mem = new int[numOffers];
+      List<TaskDescription> tasks;
+      if (lockJobTracker) {
+        synchronized (jobTracker) {
+          long lockTime = System.currentTimeMillis();
+          metrics.offerLockWaitTime.inc(lockTime - startTime);
+          tasks = handleOffer(oid, offers);
+          metrics.offerLockHoldTime.inc(System.currentTimeMillis() - lockTime);
+        }
+      } else {
+        tasks = handleOffer(oid, offers);
+      }
+      boolean hasDemand = hasUnmetDemand();
+      offersFiltered = !hasDemand;
+      Map<String, String> params = new HashMap<String, String>();
+      params.put("timeout",
+          "" + (hasDemand ? busyRefuseTimeout : idleRefuseTimeout));
+      d.replyToOffer(oid, tasks, params);
+      metrics.slaveOffers.inc(offers.size());
+      metrics.mesosTasksLaunched.inc(tasks.size());
+    } catch(Exception e) {
+      LOG.error("Error in resourceOffer", e);
+    }
+    metrics.offerProcessingTime.inc(System.currentTimeMillis() - startTime);
+  }
+  
+  /**
+   * Choose the Mesos tasks to launch for a resource offer. Our state is
+   * copied into an OfferSnapshot under our lock, and the offer is evaluated
+   * against that copy and the demand index without holding the lock. Each
+   * planned task is then launched under the lock, after re-checking the
+   * TaskTracker's capacity: heartbeats, status updates and the timeout
+   * thread can only assign Mesos tasks or free slots in the meantime, but a
+   * TaskTracker may have lowered its slot counts. Only launched tasks count
+   * towards the job policy's shares and the jobs' delay scheduling state.
+   */
+  private List<TaskDescription> handleOffer(String oid,
+      List<SlaveOffer> offers) {
+    LOG.info("Got resource offer " + oid);
+    List<TaskDescription> tasks = new ArrayList<TaskDescription>();
+    
+    int numOffers = offers.size();
+    final int[] cpus = new int[numOffers];
+    final int[] mem = new int[numOffers];
 
-        // Count up the amount of free CPUs and memory on each node 
-        for (int i = 0; i < numOffers; i++) {
-          SlaveOffer offer = offers.get(i);
-          cpus[i] = Integer.parseInt(offer.getParams().get("cpus"));
-          mem[i] = Integer.parseInt(offer.getParams().get("mem"));
+    // Count up the amount of free CPUs and memory on each node 
+    for (int i = 0; i < numOffers; i++) {
+      SlaveOffer offer = offers.get(i);
+      cpus[i] = Integer.parseInt(offer.getParams().get("cpus"));
+      mem[i] = Integer.parseInt(offer.getParams().get("mem"));
+    }
+    
+    updateLocalityWaitTimes();
+    
+    // Take a snapshot of the offered TaskTrackers and of our task counts
+    OfferSnapshot snapshot = new OfferSnapshot();
+    snapshot.runningJobs = demandIndex.getRunningJobs();
+    Set<JobInProgress> runningJobSet =
+      new HashSet<JobInProgress>(snapshot.runningJobs);
+    localityInfos.keySet().retainAll(runningJobSet);
+    taskResources.keySet().retainAll(runningJobSet);
+    jobPolicy.update(snapshot.runningJobs);
+    long lockStart = System.currentTimeMillis();
+    synchronized (this) {
+      long lockTime = System.currentTimeMillis();
+      removeFinishedTasks();
+      for (SlaveOffer offer: offers) {
+        TaskTrackerInfo ttInfo =
+          getTaskTrackerInfo(offer.getHost(), offer.getSlaveId());
+        snapshot.slots.put(offer.getHost(), new SlotCounts(ttInfo));
+      }
+      snapshot.unassignedMaps = unassignedMaps;
+      snapshot.unassignedReduces = unassignedReduces;
+      snapshot.totalMesosTasks = totalMesosTasks();
+      recordLockTimes(lockStart, lockTime);
+    }
+    
+    // Pack tasks into the offers using a best-fit heuristic: each task goes
+    // to the offer with the least free memory that can still fit a task,
+    // so that large offers stay free for jobs with large tasks.
+    // We do this by keeping a list of indices of nodes for which we are
+    // still considering assigning tasks, sorted by free memory. Whenever we
+    // can't find a new task for a node, we remove it from the list, since
+    // its resources and our demand only shrink. When the list is empty, no
+    // further assignments can be made.
+    List<Integer> indices = new ArrayList<Integer>();
+    for (int i = 0; i < numOffers; i++) {
+      indices.add(i);
+    }
+    Collections.shuffle(indices); // Break ties between equal offers randomly
+    Comparator<Integer> byFreeResources = new Comparator<Integer>() {
+      public int compare(Integer i1, Integer i2) {
+        if (mem[i1] != mem[i2]) {
+          return mem[i1] < mem[i2] ? -1 : 1;
         }
-        
-        // Assign tasks to the nodes in a round-robin manner, and stop when we
-        // are unable to assign a task to any node.
-        // We do this by keeping a linked list of indices of nodes for which
-        // we are still considering assigning tasks. Whenever we can't find a
-        // new task for a node, we remove it from the list. When the list is
-        // empty, no further assignments can be made. This algorithm was chosen
-        // because it minimizing the amount of scanning we need to do if we
-        // get a large set of offered nodes.
-        List<Integer> indices = new LinkedList<Integer>();
-        for (int i = 0; i < numOffers; i++) {
-          indices.add(i);
+        return cpus[i1] < cpus[i2] ? -1 : (cpus[i1] == cpus[i2] ? 0 : 1);
+      }
+    };
+    while (indices.size() > 0) {
+      Collections.sort(indices, byFreeResources);
+      for (Iterator<Integer> it = indices.iterator(); it.hasNext();) {
+        int i = it.next();
+        SlaveOffer offer = offers.get(i);
+        MesosTask nt = findTask(snapshot,
+            offer.getSlaveId(), offer.getHost(), cpus[i], mem[i]);
+        if (nt != null) {
+          if (launchTask(snapshot, nt)) {
+            cpus[i] -= nt.cpus;
+            mem[i] -= nt.mem;
+            tasks.add(createTaskDescription(nt));
+          }
+          break;
+        } else {
+          it.remove();
         }
-        Collections.shuffle(indices);
-        while (indices.size() > 0) {
-          for (Iterator<Integer> it = indices.iterator(); it.hasNext();) {
-            int i = it.next();
-            SlaveOffer offer = offers.get(i);
-            TaskDescription task = findTask(
-                offer.getSlaveId(), offer.getHost(), cpus[i], mem[i]);
-            if (task != null) {
-              cpus[i] -= Integer.parseInt(task.getParams().get("cpus"));
-              mem[i] -= Integer.parseInt(task.getParams().get("mem"));
-              tasks.add(task);
-            } else {
-              it.remove();
-            }
+      }
+    }
+    return tasks;
+  }
+  
+  /**
+   * Record a planned Mesos task as launched, unless its TaskTracker's slots
+   * of that type are now full, in which case the snapshot is corrected so
+   * that no more tasks of the type are planned there. Only a launched task
+   * is counted towards its job's share and delay scheduling state.
+   */
+  private boolean launchTask(OfferSnapshot snapshot, MesosTask nt) {
+    long lockStart = System.currentTimeMillis();
+    synchronized (this) {
+      long lockTime = System.currentTimeMillis();
+      try {
+        TaskTrackerInfo ttInfo = ttInfos.get(nt.host);
+        if (nt.isMap ? ttInfo.maps.size() >= ttInfo.maxMaps
+                     : ttInfo.reduces.size() >= ttInfo.maxReduces) {
+          LOG.info("Not launching Mesos task " + nt.mesosId + " on " +
+              nt.host + " because the TaskTracker's slots are now full");
+          snapshot.slots.put(nt.host, new SlotCounts(ttInfo));
+          if (nt.isMap) {
+            snapshot.unassignedMaps--;
+          } else {
+            snapshot.unassignedReduces--;
           }
+          snapshot.totalMesosTasks--;
+          return false;
         }
-        
-        Map<String, String> params = new HashMap<String, String>();
-        params.put("timeout", "1");
-        d.replyToOffer(oid, tasks, params);
+        if (nt.isMap) {
+          unassignedMaps++;
+        } else {
+          unassignedReduces++;
+        }
+        mesosIdToMesosTask.put(nt.mesosId, nt);
+        ttInfo.add(nt);
+      } finally {
+        recordLockTimes(lockStart, lockTime);
       }
-    } catch(Exception e) {
-      LOG.error("Error in resourceOffer", e);
+    }
+    if (nt.job != null) {
+      jobPolicy.slotLaunched(nt.job, nt.isMap ? TaskType.MAP : TaskType.REDUCE);
+      // The launch may have changed the policy's order of the jobs
+      if (nt.isMap) {
+        snapshot.mapJobs = null;
+        JobLocalityInfo info = getLocalityInfo(nt.job);
+        info.lastMapLocalityLevel = nt.plannedLevel;
+        info.timeWaitedForLocalMap = 0;
+        info.skippedAtLastOffer = false;
+      } else {
+        snapshot.reduceJobs = null;
+      }
+    }
+    return true;
+  }
+  
+  /**
+   * Record the time a Mesos callback waited for and held our lock, unless it
+   * is already holding the JobTracker lock, whose times are recorded instead.
+   */
+  private void recordLockTimes(long lockStart, long lockTime) {
+    if (!Thread.holdsLock(jobTracker)) {
+      metrics.offerLockWaitTime.inc(lockTime - lockStart);
+      metrics.offerLockHoldTime.inc(System.currentTimeMillis() - lockTime);
     }
   }
   
@@ -216,19 +568,19 @@ public class FrameworkScheduler extends Scheduler {
     }
   }
   
-  // Find a single task for a given node. Assumes JobTracker is locked.
-  private TaskDescription findTask(
+  // Find a single task for a given node that fits in the given resources,
+  // updating the snapshot to account for it. Does not need any locks, and
+  // leaves the job policy and delay scheduling state to launchTask.
+  private MesosTask findTask(OfferSnapshot snapshot,
       String slaveId, String host, int cpus, int mem) {
-    if (cpus < cpusPerTask || mem < memPerTask) {
-      return null; // Too few resources are left on the node
-    }
-    
-    TaskTrackerInfo ttInfo = getTaskTrackerInfo(host, slaveId);
+    SlotCounts slots = snapshot.slots.get(host);
 
     // Pick whether to launch a map or a reduce based on available tasks
     String taskType = null;
-    boolean haveMaps = canLaunchMap(host);
-    boolean haveReduces = canLaunchReduce(host);
+    MapChoice mapChoice = findMapToLaunch(snapshot, host, cpus, mem);
+    JobInProgress reduceJob = findReduceToLaunch(snapshot, host, cpus, mem);
+    boolean haveMaps = (mapChoice != null);
+    boolean haveReduces = (reduceJob != null);
     //LOG.info("Looking at " + host + ": haveMaps=" + haveMaps + 
     //    ", haveReduces=" + haveReduces);
     if (!haveMaps && !haveReduces) {
@@ -239,7 +591,7 @@ public class FrameworkScheduler extends Scheduler {
       taskType = "reduce";
     } else {
       float mapToReduceRatio = 1;
-      if (ttInfo.reduces.size() < ttInfo.maps.size() / mapToReduceRatio)
+      if (slots.reduces < slots.maps / mapToReduceRatio)
         taskType = "reduce";
       else
         taskType = "map";
@@ -249,25 +601,131 @@ public class FrameworkScheduler extends Scheduler {
     // Get a Mesos task ID for the new task
     int mesosId = newMesosTaskId();
     
-    // Remember that it is launched
+    // Account for it in the snapshot
     boolean isMap = taskType.equals("map");
     if (isMap) {
-      unassignedMaps++;
+      snapshot.unassignedMaps++;
+      slots.maps++;
     } else {
-      unassignedReduces++;
+      snapshot.unassignedReduces++;
+      slots.reduces++;
     }
-    MesosTask nt = new MesosTask(isMap, mesosId, host);
-    mesosIdToMesosTask.put(mesosId, nt);
-    ttInfo.add(nt);
-
-    LOG.info("Launching Mesos task " + mesosId + " as " + taskType + " on " + host);
+    snapshot.totalMesosTasks++;
+    if (isMap && mapChoice.job != null) {
+      MesosTask nt = new MesosTask(true, mesosId, host, slaveId,
+          getCpusPerTask(mapChoice.job, true),
+          getMemPerTask(mapChoice.job, true), mapChoice.job,
+          mapChoice.allowedLevel.toCacheLevelCap());
+      nt.plannedLevel = mapChoice.level;
+      return nt;
+    } else if (isMap) {
+      return new MesosTask(true, mesosId, host, slaveId, cpusPerTask,
+          memPerTask, null, Integer.MAX_VALUE);
+    } else {
+      return new MesosTask(false, mesosId, host, slaveId,
+          getCpusPerTask(reduceJob, false), getMemPerTask(reduceJob, false),
+          reduceJob, Integer.MAX_VALUE);
+    }
+  }
+  
+  /**
+   * Get the CPUs to reserve for a map or reduce of the given job, from its
+   * mapred.mesos.map.cpus or mapred.mesos.reduce.cpus if set, or else
+   * mapred.mesos.task.cpus.
+   */
+  private int getCpusPerTask(JobInProgress job, boolean isMap) {
+    TaskResources res = getTaskResources(job);
+    return isMap ? res.mapCpus : res.reduceCpus;
+  }
+  
+  /**
+   * Get the memory in MB to reserve for a map or reduce of the given job,
+   * from its mapred.job.map.memory.mb or mapred.job.reduce.memory.mb if set
+   * (as used for memory-based scheduling in the capacity scheduler), or else
+   * mapred.mesos.task.mem.
+   */
+  private int getMemPerTask(JobInProgress job, boolean isMap) {
+    TaskResources res = getTaskResources(job);
+    return isMap ? res.mapMem : res.reduceMem;
+  }
+  
+  private TaskResources getTaskResources(JobInProgress job) {
+    TaskResources res = taskResources.get(job);
+    if (res == null) {
+      JobConf jobConf = job.getJobConf();
+      res = new TaskResources(
+          jobConf.getInt("mapred.mesos.map.cpus", cpusPerTask),
+          toMemPerTask(job.getMemoryForMapTask()),
+          jobConf.getInt("mapred.mesos.reduce.cpus", cpusPerTask),
+          toMemPerTask(job.getMemoryForReduceTask()));
+      taskResources.put(job, res);
+    }
+    return res;
+  }
+  
+  private int toMemPerTask(long mem) {
+    if (mem == JobConf.DISABLED_MEMORY_LIMIT) {
+      return memPerTask;
+    }
+    return (int) Math.min(mem, Integer.MAX_VALUE);
+  }
+  
+  /**
+   * Get the jobs that have maps (or reduces) to launch, in the job policy's
+   * order. They are looked up in the demand index once per offer, and again
+   * only after a slot is launched, rather than for every slave offered.
+   */
+  private List<JobInProgress> getCandidateJobs(OfferSnapshot snapshot,
+      boolean isMap) {
+    List<JobInProgress> jobs = (isMap ? snapshot.mapJobs
+                                      : snapshot.reduceJobs);
+    if (jobs == null) {
+      Set<JobInProgress> withTasks = (isMap
+          ? demandIndex.getJobsWithMapsToLaunch()
+          : demandIndex.getJobsWithReducesToLaunch());
+      jobs = new ArrayList<JobInProgress>(withTasks.size());
+      if (!withTasks.isEmpty()) {
+        for (JobInProgress job:
+            jobPolicy.getJobs(isMap ? TaskType.MAP : TaskType.REDUCE)) {
+          if (withTasks.contains(job)) {
+            jobs.add(job);
+          }
+        }
+      }
+      if (isMap) {
+        snapshot.mapJobs = jobs;
+      } else {
+        snapshot.reduceJobs = jobs;
+      }
+    }
+    return jobs;
+  }
+  
+  // Whether a task of the given job fits in the given resources
+  private boolean fits(JobInProgress job, boolean isMap, int cpus, int mem) {
+    return getCpusPerTask(job, isMap) <= cpus &&
+        getMemPerTask(job, isMap) <= mem;
+  }
+  
+  private TaskDescription createTaskDescription(MesosTask nt) {
+    String taskType = nt.isMap ? "map" : "reduce";
+    LOG.info("Launching Mesos task " + nt.mesosId + " as " + taskType +
+        " on " + nt.host);
     
     // Create a task description to pass back to Mesos
-    String name = "task " + mesosId + " (" + taskType + ")";
+    String name = "task " + nt.mesosId + " (" + taskType + ")";
     Map<String, String> params = new HashMap<String, String>();
-    params.put("cpus", "" + cpusPerTask);
-    params.put("mem", "" + memPerTask);
-    return new TaskDescription(mesosId, slaveId, name, params, new byte[0]);
+    params.put("cpus", "" + nt.cpus);
+    params.put("mem", "" + nt.mem);
+    byte[] arg = new byte[0];
+    if (slotLinger > 0) {
+      try {
+        arg = FrameworkExecutor.REUSABLE_TASK_ARG.getBytes("US-ASCII");
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+    return new TaskDescription(nt.mesosId, nt.slaveId, name, params, arg);
   }
 
   private int newMesosTaskId() {
@@ -297,119 +755,156 @@ public class FrameworkScheduler extends Scheduler {
     }
   }
   
-  // TODO: Make this return a count instead of a boolean?
-  // TODO: Cache result for some time so we don't iterate through all jobs
-  // and tasks every time we get a resource offer?
-  private boolean canLaunchMap(String host) {
+  /**
+   * Find a job to launch a map for on the given host, or return null if we
+   * should not launch a map there. This uses delay scheduling as in the fair
+   * scheduler: jobs are considered in the order given by the job policy, and
+   * each may only launch maps at the locality level given by
+   * getAllowedLocalityLevel, unless the policy reports it as starved. Jobs
+   * that have maps to launch but none at their allowed level on this host
+   * are marked as skipped, and accumulate time waited for a local map until
+   * they can launch at a less local level. Jobs whose tasks do not fit in
+   * the given resources are ignored.
+   */
+  private MapChoice findMapToLaunch(OfferSnapshot snapshot, String host,
+      int cpus, int mem) {
     // Check whether the TT is saturated on maps
-    TaskTrackerInfo ttInfo = ttInfos.get(host);
-    if (ttInfo == null) {
-      LOG.error("No TaskTrackerInfo for " + host + "! This shouldn't happen.");
-      return false;
-    }
-    if (ttInfo.maps.size() >= ttInfo.maxMaps) {
-      return false;
+    SlotCounts slots = snapshot.slots.get(host);
+    if (slots.maps >= slots.maxMaps) {
+      return null;
     }
     
-    // Compute the total demand for maps to make sure we don't exceed it
-    Collection<JobInProgress> jobs = jobTracker.jobs.values();
-    int neededMaps = 0;
-    for (JobInProgress job : jobs) {
-      if (job.getStatus().getRunState() == JobStatus.RUNNING) {
-        neededMaps += job.pendingMaps();
-      }
-    }
-    // TODO (!!!): Count speculatable tasks and add them to neededMaps
-    // For now, we just add 1
-    if (jobs.size() > 0)
-      neededMaps += 1;
+    // Compute the total demand for maps, including speculatable maps and
+    // setup / cleanup tasks, to make sure we don't exceed it
+    int numJobs = demandIndex.getNumJobs();
+    int neededMaps = demandIndex.getMapDemand();
     
-    if (unassignedMaps < neededMaps) {
-      /*
-      // Figure out what locality level to allow using delay scheduling
-      long now = System.currentTimeMillis();
-      if (lastCanLaunchMapTime == -1)
-        lastCanLaunchMapTime = now;
-      int maxLevel; // Cache level to search for maps in
-      if (lastMapWasLocal) {
-        timeWaitedForLocalMap += now - lastCanLaunchMapTime;
-        if (timeWaitedForLocalMap >= localityWait) {
-          maxLevel = Integer.MAX_VALUE;
-        } else {
-          maxLevel = 1;
+    // Look for a job with a map at its allowed level, if any job has a map
+    // for this host at all
+    if (snapshot.unassignedMaps < neededMaps &&
+        demandIndex.getMapLevel(host, Integer.MAX_VALUE) != -1) {
+      for (JobInProgress job: getCandidateJobs(snapshot, true)) {
+        if (!fits(job, true, cpus, mem)) {
+          continue;
         }
-      } else {
-        maxLevel = Integer.MAX_VALUE;
-      }
-      lastCanLaunchMapTime = now;
-      */
-      int maxLevel = Integer.MAX_VALUE;
-      // Look for a map with the required level
-      for (JobInProgress job: jobs) {
-        int state = job.getStatus().getRunState();
-        if (state == JobStatus.RUNNING) {
-          int availLevel = availableMapLevel(job, host, maxLevel);
-          if (availLevel != -1) {
-            lastMapWasLocal = (availLevel == 0);
-            return true;
-          }
+        JobLocalityInfo info = getLocalityInfo(job);
+        LocalityLevel allowedLevel = LocalityLevel.ANY;
+        if (!jobPolicy.isStarved(job, TaskType.MAP)) {
+          allowedLevel = getAllowedLocalityLevel(info);
+        }
+        int availLevel = demandIndex.getMapLevel(job, host,
+            allowedLevel.toCacheLevelCap());
+        if (availLevel != -1) {
+          return new MapChoice(job, allowedLevel, toLocalityLevel(availLevel));
         }
+        info.skippedAtLastOffer = true;
       }
     }
     
     // If we didn't launch any tasks, but there are pending jobs in the queue,
     // ensure that at least one TaskTracker is running to execute setup tasks
-    int numTrackers = jobTracker.getClusterStatus().getTaskTrackers();
-    if (jobs.size() > 0 && numTrackers == 0 && totalMesosTasks() == 0) {
+    if (numJobs > 0 && numTrackers == 0 && snapshot.totalMesosTasks == 0 &&
+        cpus >= cpusPerTask && mem >= memPerTask) {
       LOG.info("Going to launch map task for setup / cleanup");
-      return true;
+      return new MapChoice(null, LocalityLevel.ANY, LocalityLevel.ANY);
     }
     
-    return false;
+    return null;
+  }
+  
+  private JobLocalityInfo getLocalityInfo(JobInProgress job) {
+    JobLocalityInfo info = localityInfos.get(job);
+    if (info == null) {
+      info = new JobLocalityInfo();
+      localityInfos.put(job, info);
+    }
+    return info;
+  }
+  
+  /**
+   * Add the time since the last resource offer to the wait of each job that
+   * was skipped for locality during that offer.
+   */
+  private void updateLocalityWaitTimes() {
+    long now = System.currentTimeMillis();
+    long timeSinceLastOffer = (lastOfferTime == -1 ? 0 : now - lastOfferTime);
+    lastOfferTime = now;
+    for (JobLocalityInfo info: localityInfos.values()) {
+      if (info.skippedAtLastOffer) {
+        info.timeWaitedForLocalMap += timeSinceLastOffer;
+        info.skippedAtLastOffer = false;
+      }
+    }
+  }
+  
+  /**
+   * Get the locality level at which a job may launch maps: a job that last
+   * launched a node-local map may go rack-local after waiting
+   * mapred.mesos.localitywait milliseconds and off-switch after waiting a
+   * further mapred.mesos.localitywait.rack, while one that last launched a
+   * rack-local map may go off-switch after mapred.mesos.localitywait.rack.
+   */
+  private LocalityLevel getAllowedLocalityLevel(JobLocalityInfo info) {
+    long waited = info.timeWaitedForLocalMap;
+    switch (info.lastMapLocalityLevel) {
+    case NODE:
+      if (waited >= nodeLocalityWait + rackLocalityWait) {
+        return LocalityLevel.ANY;
+      } else if (waited >= nodeLocalityWait) {
+        return LocalityLevel.RACK;
+      } else {
+        return LocalityLevel.NODE;
+      }
+    case RACK:
+      if (waited >= rackLocalityWait) {
+        return LocalityLevel.ANY;
+      } else {
+        return LocalityLevel.RACK;
+      }
+    default:
+      return LocalityLevel.ANY;
+    }
+  }
+  
+  private static LocalityLevel toLocalityLevel(int cacheLevel) {
+    switch (cacheLevel) {
+    case 0: return LocalityLevel.NODE;
+    case 1: return LocalityLevel.RACK;
+    default: return LocalityLevel.ANY;
+    }
   }
   
   private int totalMesosTasks() {
     return unassignedMaps + unassignedReduces + assignedMaps + assignedReduces;
   }
 
-  // TODO: Make this return a count instead of a boolean?
-  // TODO: Cache result for some time so we don't iterate through all jobs
-  // and tasks every time we get a resource offer?
-  private boolean canLaunchReduce(String host) {
+  /**
+   * Find the first job, in the order given by the job policy, with a reduce
+   * to launch whose tasks fit in the given resources, or return null if we
+   * should not launch a reduce on the host.
+   */
+  private JobInProgress findReduceToLaunch(OfferSnapshot snapshot,
+      String host, int cpus, int mem) {
     // Check whether the TT is saturated on reduces
-    TaskTrackerInfo ttInfo = ttInfos.get(host);
-    if (ttInfo == null) {
-      LOG.error("No TaskTrackerInfo for " + host + "! This shouldn't happen.");
-      return false;
-    }
-    if (ttInfo.reduces.size() >= ttInfo.maxReduces) {
-      return false;
+    SlotCounts slots = snapshot.slots.get(host);
+    if (slots.reduces >= slots.maxReduces) {
+      return null;
     }
     
-    // Compute total demand for reduces, to make sure we don't exceed it
-    Collection<JobInProgress> jobs = jobTracker.jobs.values();
-    int neededReduces = 0;
-    for (JobInProgress job : jobs) {
-      if (job.getStatus().getRunState() == JobStatus.RUNNING) {
-        neededReduces += job.pendingReduces();
-      }
-    }
-    // TODO (!!!): Count speculatable tasks and add them to neededReduces
-    // For now, we just add 1
-    if (jobs.size() > 0)
-      neededReduces += 1;
+    // Compute total demand for reduces, including speculatable reduces, to
+    // make sure we don't exceed it
+    int neededReduces = demandIndex.getReduceDemand();
     
-    if (neededReduces > unassignedReduces) {
-      // Find a reduce to launch
-      for (JobInProgress job: jobs) {
-        int state = job.getStatus().getRunState();
-        if (state == JobStatus.RUNNING && hasReduceToLaunch(job)) {
-          return true;
-        }
+    if (neededReduces <= snapshot.unassignedReduces ||
+        !demandIndex.hasReduceToLaunch()) {
+      return null;
+    }
+    for (JobInProgress job: getCandidateJobs(snapshot, false)) {
+      if (fits(job, false, cpus, mem)) {
+        return job;
       }
     }
-    
-    return false;
+    return null;
   }
   
   @Override
@@ -418,12 +913,18 @@ public class FrameworkScheduler extends Scheduler {
     LOG.info("Task " + status.getTaskId() + " is " + state);
     if (state == TaskState.TASK_FINISHED || state == TaskState.TASK_FAILED ||
         state == TaskState.TASK_KILLED || state == TaskState.TASK_LOST) {
-      synchronized (jobTracker) {
-        int mesosId = status.getTaskId();
-        MesosTask nt = mesosIdToMesosTask.get(mesosId);
-        if (nt != null) {
-          removeTask(nt);
-        }
+      finishedMesosTasks.add(status.getTaskId());
+    }
+  }
+  
+  // Forget about the Mesos tasks that statusUpdate has queued as done.
+  // Assumes this FrameworkScheduler is locked.
+  private void removeFinishedTasks() {
+    Integer mesosId;
+    while ((mesosId = finishedMesosTasks.poll()) != null) {
+      MesosTask nt = mesosIdToMesosTask.get(mesosId);
+      if (nt != null) {
+        removeTask(nt);
       }
     }
   }
@@ -436,362 +937,366 @@ public class FrameworkScheduler extends Scheduler {
    * launch TaskTrackers everywhere
    */
   public List<Task> assignTasks(TaskTracker tt) {
-    synchronized (jobTracker) {      
-      try {
-        Collection<JobInProgress> jobs = jobTracker.jobs.values();
+    synchronized (jobTracker) {
+      long lockStart = System.currentTimeMillis();
+      synchronized (this) {
+        metrics.heartbeatLockWaitTime.inc(
+            System.currentTimeMillis() - lockStart);
+        return assignTasks(tt.getStatus());
+      }
+    }
+  }
+  
+  // Assumes both the JobTracker and this FrameworkScheduler are locked.
+  private List<Task> assignTasks(TaskTrackerStatus tts) {
+    try {
+      removeFinishedTasks();
 
-        TaskTrackerStatus tts = tt.getStatus();
-        String host = tts.getHost();
-        LOG.info("In FrameworkScheduler.assignTasks for " + host);
-        
-        TaskTrackerInfo ttInfo = ttInfos.get(host);
-        if (ttInfo == null) {
-          LOG.error("No TaskTrackerInfo for " + host + "! This shouldn't happen.");
-          return null;
+      String host = tts.getHost();
+      LOG.info("In FrameworkScheduler.assignTasks for " + host);
+      
+      TaskTrackerInfo ttInfo = ttInfos.get(host);
+      if (ttInfo == null) {
+        LOG.error("No TaskTrackerInfo for " + host + "! This shouldn't happen.");
+        return null;
+      }
+      ttInfo.maxMaps = tts.getMaxMapSlots();
+      ttInfo.maxReduces = tts.getMaxReduceSlots();
+      
+      if (slotLinger > 0) {
+        releaseFinishedTasks(ttInfo, tts);
+      }
+      
+      int clusterSize = jobTracker.getClusterStatus().getTaskTrackers();
+      numTrackers = clusterSize;
+      int numHosts = jobTracker.getNumberOfUniqueHosts();
+      
+      // Assigned tasks
+      List<Task> assignedTasks = new ArrayList<Task>();
+      
+      // Identify unassigned maps and reduces on this TT
+      List<MesosTask> assignableMaps = new ArrayList<MesosTask>();
+      List<MesosTask> assignableReduces = new ArrayList<MesosTask>();
+      for (MesosTask nt: ttInfo.maps)
+        if (!nt.isAssigned())
+          assignableMaps.add(nt);
+      for (MesosTask nt: ttInfo.reduces)
+        if (!nt.isAssigned())
+          assignableReduces.add(nt);
+      
+      // Launch maps from the job each Mesos task was planned for, at the
+      // locality level delay scheduling allowed it, or failing that from any
+      // job, in the job policy's order, at that level
+      long now = System.currentTimeMillis();
+      for (MesosTask nt: assignableMaps) {
+        JobInProgress job = nt.job;
+        int maxCacheLevel = nt.maxCacheLevel;
+        if (nt.hadoopTasksRun > 0 && now - nt.idleSince >= nodeLocalityWait) {
+          maxCacheLevel = Integer.MAX_VALUE;
         }
-        ttInfo.maxMaps = tts.getMaxMapSlots();
-        ttInfo.maxReduces = tts.getMaxReduceSlots();
-        
-        int clusterSize = jobTracker.getClusterStatus().getTaskTrackers();
-        int numHosts = jobTracker.getNumberOfUniqueHosts();
-        
-        // Assigned tasks
-        List<Task> assignedTasks = new ArrayList<Task>();
-        
-        // Identify unassigned maps and reduces on this TT
-        List<MesosTask> assignableMaps = new ArrayList<MesosTask>();
-        List<MesosTask> assignableReduces = new ArrayList<MesosTask>();
-        for (MesosTask nt: ttInfo.maps)
-          if (!nt.isAssigned())
-            assignableMaps.add(nt);
-        for (MesosTask nt: ttInfo.reduces)
-          if (!nt.isAssigned())
-            assignableReduces.add(nt);
-        
-        // Get some iterators for the unassigned tasks
-        Iterator<MesosTask> mapIter = assignableMaps.iterator();
-        Iterator<MesosTask> reduceIter = assignableReduces.iterator();
-        
-        // Go through jobs in FIFO order and look for tasks to launch
-        for (JobInProgress job: jobs) {
-          if (job.getStatus().getRunState() == JobStatus.RUNNING) {
-            // If the node has unassigned maps, try to launch map tasks
-            while (mapIter.hasNext()) {
-              Task task = job.obtainNewMapTask(tts, clusterSize, numHosts);
-              if (task != null) {
-                MesosTask nt = mapIter.next();
-                nt.assign(task);
-                unassignedMaps--;
-                assignedMaps++;
-                hadoopIdToMesosTask.put(task.getTaskID(), nt);
-                assignedTasks.add(task);
-                task.extraData = "" + nt.mesosId;
-              } else {
-                break;
-              }
-            }
-            // If the node has unassigned reduces, try to launch reduce tasks
-            while (reduceIter.hasNext()) {
-              Task task = job.obtainNewReduceTask(tts, clusterSize, numHosts);
-              if (task != null) {
-                MesosTask nt = reduceIter.next();
-                nt.assign(task);
-                unassignedReduces--;
-                assignedReduces++;
-                hadoopIdToMesosTask.put(task.getTaskID(), nt);
-                assignedTasks.add(task);
-                task.extraData = "" + nt.mesosId;
-              } else {
-                break;
-              }
-            }
+        Task task = null;
+        if (job != null && job.getStatus().getRunState() == JobStatus.RUNNING) {
+          task = job.obtainNewMapTask(tts, clusterSize, numHosts,
+              maxCacheLevel);
+          // The demand index counts maps without split locations as
+          // node-local, but JobInProgress only hands them out past the
+          // locality levels
+          if (task == null && demandIndex.hasNonLocalMapToLaunch(job)) {
+            task = job.obtainNewNonLocalMapTask(tts, clusterSize, numHosts);
           }
         }
-        
-        return assignedTasks;
-      } catch (IOException e) {
-        LOG.error("IOException in assignTasks", e);
-        return null;
+        for (Iterator<JobInProgress> it =
+            jobPolicy.getJobs(TaskType.MAP).iterator();
+            task == null && it.hasNext();) {
+          job = it.next();
+          if (job != nt.job &&
+              job.getStatus().getRunState() == JobStatus.RUNNING &&
+              fits(job, true, nt.cpus, nt.mem)) {
+            task = job.obtainNewMapTask(tts, clusterSize, numHosts,
+                maxCacheLevel);
+          }
+        }
+        if (task != null) {
+          nt.assign(task);
+          demandIndex.taskLaunched(job, task);
+          metrics.mapLaunched(LocalityLevel.fromTask(job, task, tts));
+          if (nt.hadoopTasksRun > 0) {
+            metrics.slotsReused.inc();
+          }
+          unassignedMaps--;
+          assignedMaps++;
+          hadoopIdToMesosTask.put(task.getTaskID(), nt);
+          assignedTasks.add(task);
+          task.extraData = "" + nt.mesosId;
+        }
+      }
+      
+      // Launch reduces from the job each Mesos task was planned for, or
+      // failing that from any job, in the job policy's order, whose reduces
+      // fit in it
+      for (MesosTask nt: assignableReduces) {
+        JobInProgress job = nt.job;
+        Task task = null;
+        if (job != null && job.getStatus().getRunState() == JobStatus.RUNNING) {
+          task = job.obtainNewReduceTask(tts, clusterSize, numHosts);
+        }
+        for (Iterator<JobInProgress> it =
+            jobPolicy.getJobs(TaskType.REDUCE).iterator();
+            task == null && it.hasNext();) {
+          job = it.next();
+          if (job != nt.job &&
+              job.getStatus().getRunState() == JobStatus.RUNNING &&
+              fits(job, false, nt.cpus, nt.mem)) {
+            task = job.obtainNewReduceTask(tts, clusterSize, numHosts);
+          }
+        }
+        if (task != null) {
+          nt.assign(task);
+          demandIndex.taskLaunched(job, task);
+          if (nt.hadoopTasksRun > 0) {
+            metrics.slotsReused.inc();
+          }
+          unassignedReduces--;
+          assignedReduces++;
+          hadoopIdToMesosTask.put(task.getTaskID(), nt);
+          assignedTasks.add(task);
+          task.extraData = "" + nt.mesosId;
+        }
       }
+      
+      return assignedTasks;
+    } catch (IOException e) {
+      LOG.error("IOException in assignTasks", e);
+      return null;
     }
   }
 
-  private void removeTask(MesosTask nt) {
-    synchronized (jobTracker) {
-      mesosIdToMesosTask.remove(nt.mesosId);
-      if (nt.hadoopId != null) {
+  /**
+   * Release the Mesos tasks on a TaskTracker whose Hadoop tasks have
+   * finished (or that the TaskTracker no longer reports), so that they can
+   * be given new Hadoop tasks. Assumes this FrameworkScheduler is locked.
+   */
+  private void releaseFinishedTasks(TaskTrackerInfo ttInfo,
+      TaskTrackerStatus tts) {
+    Map<TaskAttemptID, State> states = new HashMap<TaskAttemptID, State>();
+    for (TaskStatus report: tts.getTaskReports()) {
+      states.put(report.getTaskID(), report.getRunState());
+    }
+    for (MesosTask nt: ttInfo.maps) {
+      if (nt.isAssigned() && isFinished(states.get(nt.hadoopId))) {
         hadoopIdToMesosTask.remove(nt.hadoopId);
+        nt.release();
+        assignedMaps--;
+        unassignedMaps++;
       }
-      TaskTrackerInfo ttInfo = ttInfos.get(nt.host);
-      if (ttInfo != null) {
-        ttInfo.remove(nt);
-      }
-      if (nt.isMap) {
-        if (nt.isAssigned())
-          assignedMaps--;
-        else
-          unassignedMaps--;
-      } else {
-        if (nt.isAssigned())
-          assignedReduces--;
-        else
-          unassignedReduces--;
+    }
+    for (MesosTask nt: ttInfo.reduces) {
+      if (nt.isAssigned() && isFinished(states.get(nt.hadoopId))) {
+        hadoopIdToMesosTask.remove(nt.hadoopId);
+        nt.release();
+        assignedReduces--;
+        unassignedReduces++;
       }
     }
   }
+  
+  // Whether a Hadoop task no longer needs its slot; the same states for
+  // which FrameworkExecutor reports a non-reusable Mesos task as done
+  private static boolean isFinished(State state) {
+    return state == null || state == State.SUCCEEDED ||
+        state == State.COMMIT_PENDING || state == State.FAILED ||
+        state == State.FAILED_UNCLEAN || state == State.KILLED ||
+        state == State.KILLED_UNCLEAN;
+  }
 
-  private void askExecutorToUpdateStatus(MesosTask nt, TaskState state) {
+  // Assumes this FrameworkScheduler is locked.
+  private void removeTask(MesosTask nt) {
+    mesosIdToMesosTask.remove(nt.mesosId);
+    if (nt.hadoopId != null) {
+      hadoopIdToMesosTask.remove(nt.hadoopId);
+    }
     TaskTrackerInfo ttInfo = ttInfos.get(nt.host);
     if (ttInfo != null) {
-      HadoopFrameworkMessage message = new HadoopFrameworkMessage(
-          HadoopFrameworkMessage.Type.S2E_SEND_STATUS_UPDATE, state.toString());
+      ttInfo.remove(nt);
+    }
+    if (nt.isMap) {
+      if (nt.isAssigned())
+        assignedMaps--;
+      else
+        unassignedMaps--;
+    } else {
+      if (nt.isAssigned())
+        assignedReduces--;
+      else
+        unassignedReduces--;
+    }
+  }
+
+  /**
+   * Ask the executors running the given Mesos tasks to send Mesos status
+   * updates for them, with one framework message per slave.
+   */
+  private void askExecutorsToUpdateStatus(List<MesosTask> tasks,
+      List<TaskState> states) {
+    Map<String, HadoopFrameworkMessageBatch> batches =
+      new HashMap<String, HadoopFrameworkMessageBatch>();
+    Map<String, Integer> firstTaskIds = new HashMap<String, Integer>();
+    for (int i = 0; i < tasks.size(); i++) {
+      MesosTask nt = tasks.get(i);
+      HadoopFrameworkMessageBatch batch = batches.get(nt.slaveId);
+      if (batch == null) {
+        batch = new HadoopFrameworkMessageBatch();
+        batches.put(nt.slaveId, batch);
+        firstTaskIds.put(nt.slaveId, nt.mesosId);
+      }
+      batch.addStatusUpdateRequest(nt.mesosId, states.get(i));
+    }
+    for (Map.Entry<String, HadoopFrameworkMessageBatch> entry:
+        batches.entrySet()) {
+      String slaveId = entry.getKey();
+      HadoopFrameworkMessageBatch batch = entry.getValue();
       try {
-        LOG.info("Asking slave " + ttInfo.mesosSlaveId + " to update status");
+        LOG.info("Asking slave " + slaveId + " to update the status of " +
+            batch.size() + " tasks");
         driver.sendFrameworkMessage(new FrameworkMessage(
-            ttInfo.mesosSlaveId, nt.mesosId, message.serialize()));
+            slaveId, firstTaskIds.get(slaveId), batch.serialize()));
+        metrics.frameworkMessagesSent.inc();
+        metrics.frameworkMessageEntriesSent.inc(batch.size());
       } catch (IOException e) {
         // This exception would only get thrown if we couldn't serialize the
-        // HadoopFrameworkMessage, which is a serious problem; crash the JT
-        LOG.fatal("Failed to serialize HadoopFrameworkMessage", e);
+        // message batch, which is a serious problem; crash the JT
+        LOG.fatal("Failed to serialize HadoopFrameworkMessageBatch", e);
         throw new RuntimeException(
-            "Failed to serialize HadoopFrameworkMessage", e);
+            "Failed to serialize HadoopFrameworkMessageBatch", e);
       }
     }
   }
 
   // Kill any unlaunched tasks that have timed out
   public void killTimedOutTasks() {
-    synchronized (jobTracker) {
+    List<MesosTask> timedOut;
+    long lockStart = System.currentTimeMillis();
+    if (lockJobTracker) {
+      synchronized (jobTracker) {
+        long lockTime = System.currentTimeMillis();
+        timedOut = removeTimedOutTasks();
+        metrics.offerLockWaitTime.inc(lockTime - lockStart);
+        metrics.offerLockHoldTime.inc(System.currentTimeMillis() - lockTime);
+      }
+    } else {
+      timedOut = removeTimedOutTasks();
+    }
+    List<TaskState> states = new ArrayList<TaskState>();
+    for (MesosTask nt: timedOut) {
+      if (nt.hadoopTasksRun > 0) {
+        // An idle reusable slot; give its resources back to Mesos
+        metrics.slotsReleased.inc();
+        states.add(TaskState.TASK_FINISHED);
+      } else {
+        states.add(TaskState.TASK_KILLED);
+      }
+    }
+    askExecutorsToUpdateStatus(timedOut, states);
+  }
+  
+  // Forget about unlaunched tasks that have timed out, and about reusable
+  // slots that have lingered idle for too long, returning them
+  private List<MesosTask> removeTimedOutTasks() {
+    List<MesosTask> toRemove = new ArrayList<MesosTask>();
+    long lockStart = System.currentTimeMillis();
+    synchronized (this) {
+      long lockTime = System.currentTimeMillis();
       long curTime = System.currentTimeMillis();
-      long timeout = 20000;
+      removeFinishedTasks();
       for (TaskTrackerInfo tt: ttInfos.values()) {
-        killTimedOutTasks(tt.maps, curTime - timeout);
-        killTimedOutTasks(tt.reduces, curTime - timeout);
+        findTimedOutTasks(tt.maps, curTime, toRemove);
+        findTimedOutTasks(tt.reduces, curTime, toRemove);
       }
-      driver.reviveOffers();
+      for (MesosTask nt: toRemove) {
+        removeTask(nt);
+      }
+      recordLockTimes(lockStart, lockTime);
     }
+    return toRemove;
   }
     
-  private void killTimedOutTasks(List<MesosTask> tasks, long minCreationTime) {
-    List<MesosTask> toRemove = new ArrayList<MesosTask>();
+  private void findTimedOutTasks(List<MesosTask> tasks, long curTime,
+      List<MesosTask> timedOut) {
     for (MesosTask nt: tasks) {
-      if (!nt.isAssigned() && nt.creationTime < minCreationTime) {
-        toRemove.add(nt);
+      long timeout = (nt.hadoopTasksRun > 0 ? slotLinger
+                                            : UNLAUNCHED_TASK_TIMEOUT);
+      if (!nt.isAssigned() && nt.idleSince < curTime - timeout) {
+        timedOut.add(nt);
       }
     }
-    for (MesosTask nt: toRemove) {
-      askExecutorToUpdateStatus(nt, TaskState.TASK_KILLED);
-      removeTask(nt);
-    }
-  }
-  
-  @Override
-  public void frameworkMessage(SchedulerDriver d, FrameworkMessage message) {
-    // TODO: Respond to E2S_KILL_REQUEST message by killing a task
   }
   
-  // Methods to check whether a job has runnable tasks
-  
   /**
-   * Check whether the job can launch a map task on a given node, with a given
-   * level of locality (maximum cache level). Also includes job setup and
-   * cleanup tasks, as well as map cleanup tasks. Returns the locality level of
-   * the launchable map if one exists, or -1 otherwise.
-   * 
-   * This is currently fairly long because it replicates a lot of the logic
-   * in findNewMapTask. Unfortunately, it's not easy to just use findNewMapTask
-   * directly, because that requires a TaskTracker. One way to avoid requiring
-   * this method would be to just launch TaskTrackers on every node, without
-   * first checking for locality.
+   * Handle kill requests that executors received from Mesos, which they send
+   * us in batches. The Mesos tasks are forgotten and their Hadoop tasks, if
+   * any, killed, taking our lock and then the JobTracker's once per batch.
    */
-  int availableMapLevel(JobInProgress job, String host, int maxCacheLevel) {
-    synchronized (job) {
-      // For scheduling a map task, we have two caches and a list (optional)
-      //  I)   one for non-running task
-      //  II)  one for running task (this is for handling speculation)
-      //  III) a list of TIPs that have empty locations (e.g., dummy splits),
-      //       the list is empty if all TIPs have associated locations
-  
-      // First a look up is done on the non-running cache and on a miss, a look 
-      // up is done on the running cache. The order for lookup within the cache:
-      //   1. from local node to root [bottom up]
-      //   2. breadth wise for all the parent nodes at max level
-  
-      //if (canLaunchJobCleanupTask()) return true;
-      //if (canLaunchSetupTask()) return true;
-      if (!job.mapCleanupTasks.isEmpty()) return 0;
-      
-      // Return false right away if the task cache isn't ready, either because
-      // we are still initializing or because we are cleaning up
-      if (job.nonRunningMapCache == null) return -1;
-      
-      // We fall to linear scan of the list (III above) if we have misses in the 
-      // above caches
-  
-      Node node = jobTracker.getNode(host);
-
-      int maxLevel = job.getMaxCacheLevel();
-      
-      //
-      // I) Non-running TIP :
-      // 
-  
-      // 1. check from local node to the root [bottom up cache lookup]
-      //    i.e if the cache is available and the host has been resolved
-      //    (node!=null)
-      if (node != null) {
-        Node key = node;
-        int level = 0;
-        // maxCacheLevel might be greater than this.maxLevel if findNewMapTask is
-        // called to schedule any task (local, rack-local, off-switch or speculative)
-        // tasks or it might be NON_LOCAL_CACHE_LEVEL (i.e. -1) if findNewMapTask is
-        //  (i.e. -1) if findNewMapTask is to only schedule off-switch/speculative
-        // tasks
-        int maxLevelToSchedule = Math.min(maxCacheLevel, maxLevel);
-        for (level = 0;level < maxLevelToSchedule; ++level) {
-          List <TaskInProgress> cacheForLevel = job.nonRunningMapCache.get(key);
-          if (hasUnlaunchedTask(cacheForLevel)) {
-            return level;
+  @Override
+  public void frameworkMessage(SchedulerDriver d, FrameworkMessage message) {
+    List<Integer> killRequests = new ArrayList<Integer>();
+    try {
+      byte[] data = message.getData();
+      if (HadoopFrameworkMessageBatch.isBatch(data)) {
+        for (HadoopFrameworkMessageBatch.Entry entry:
+            new HadoopFrameworkMessageBatch(data).getEntries()) {
+          if (entry.type == HadoopFrameworkMessage.Type.E2S_KILL_REQUEST) {
+            killRequests.add(entry.mesosId);
           }
-          key = key.getParent();
-        }
-        
-        // Check if we need to only schedule a local task (node-local/rack-local)
-        if (level == maxCacheLevel) {
-          return -1;
-        }
-      }
-  
-      //2. Search breadth-wise across parents at max level for non-running 
-      //   TIP if
-      //     - cache exists and there is a cache miss 
-      //     - node information for the tracker is missing (tracker's topology
-      //       info not obtained yet)
-  
-      // collection of node at max level in the cache structure
-      Collection<Node> nodesAtMaxLevel = jobTracker.getNodesAtMaxLevel();
-  
-      // get the node parent at max level
-      Node nodeParentAtMaxLevel = 
-        (node == null) ? null : JobTracker.getParentNode(node, maxLevel - 1);
-      
-      for (Node parent : nodesAtMaxLevel) {
-  
-        // skip the parent that has already been scanned
-        if (parent == nodeParentAtMaxLevel) {
-          continue;
         }
-  
-        List<TaskInProgress> cache = job.nonRunningMapCache.get(parent);
-        if (hasUnlaunchedTask(cache)) {
-          return maxLevel-1;
+      } else {
+        HadoopFrameworkMessage hfm = new HadoopFrameworkMessage(data);
+        if (hfm.type == HadoopFrameworkMessage.Type.E2S_KILL_REQUEST) {
+          killRequests.add(message.getTaskId());
         }
       }
-  
-      // 3. Search non-local tips for a new task
-      if (hasUnlaunchedTask(job.nonLocalMaps))
-        return 0;
-      
-      //
-      // II) Running TIP :
-      // 
-   
-      if (job.getMapSpeculativeExecution()) {
-        long time = System.currentTimeMillis();
-        float avgProg = job.status.mapProgress();
-  
-        // 1. Check bottom up for speculative tasks from the running cache
-        if (node != null) {
-          Node key = node;
-          for (int level = 0; level < maxLevel; ++level) {
-            Set<TaskInProgress> cacheForLevel = job.runningMapCache.get(key);
-            if (cacheForLevel != null) {
-              for (TaskInProgress tip: cacheForLevel) {
-                if (tip.isRunning() && tip.hasSpeculativeTask(time, avgProg)) {
-                  return level;
-                }
-              }
-            }
-            key = key.getParent();
-          }
-        }
-  
-        // 2. Check breadth-wise for speculative tasks
-        
-        for (Node parent : nodesAtMaxLevel) {
-          // ignore the parent which is already scanned
-          if (parent == nodeParentAtMaxLevel) {
-            continue;
-          }
-  
-          Set<TaskInProgress> cache = job.runningMapCache.get(parent);
-          if (cache != null) {
-            for (TaskInProgress tip: cache) {
-              if (tip.isRunning() && tip.hasSpeculativeTask(time, avgProg)) {
-                return maxLevel-1;
-              }
-            }
-          }
-        }
-  
-        // 3. Check non-local tips for speculation
-        for (TaskInProgress tip: job.nonLocalRunningMaps) {
-          if (tip.isRunning() && tip.hasSpeculativeTask(time, avgProg)) {
-            return 0;
+    } catch (IOException e) {
+      LOG.error("Failed to deserialize framework message from slave " +
+          message.getSlaveId(), e);
+      return;
+    }
+    if (killRequests.isEmpty()) {
+      return;
+    }
+    
+    List<MesosTask> killed = new ArrayList<MesosTask>();
+    List<TaskAttemptID> hadoopTasks = new ArrayList<TaskAttemptID>();
+    long lockStart = System.currentTimeMillis();
+    synchronized (this) {
+      long lockTime = System.currentTimeMillis();
+      removeFinishedTasks();
+      for (int mesosId: killRequests) {
+        MesosTask nt = mesosIdToMesosTask.get(mesosId);
+        if (nt != null) {
+          if (nt.isAssigned()) {
+            hadoopTasks.add(nt.hadoopId);
           }
+          removeTask(nt);
+          killed.add(nt);
         }
       }
-      
-      return -1;
+      recordLockTimes(lockStart, lockTime);
     }
-  }
-  
-  /**
-   * Check whether a task list (from the non-running map cache) contains any
-   * unlaunched tasks.
-   */
-  boolean hasUnlaunchedTask(Collection<TaskInProgress> cache) {
-    if (cache != null)
-      for (TaskInProgress tip: cache)
-        if (tip.isRunnable() && !tip.isRunning())
-          return true;
-    return false;
-  }
-  
-  /**
-   * Check whether a job can launch a reduce task. Also includes reduce
-   * cleanup tasks.
-   * 
-   * As with hasMapToLaunch, this duplicates the logic inside
-   * findNewReduceTask. Please see the comment there for an explanation.
-   */
-  boolean hasReduceToLaunch(JobInProgress job) {
-    synchronized (job) {
-      // Return false if not enough maps have finished to launch reduces
-      if (!job.scheduleReduces()) return false;
-      
-      // Check for a reduce cleanup task
-      if (!job.reduceCleanupTasks.isEmpty()) return true;
-      
-      // Return false right away if the task cache isn't ready, either because
-      // we are still initializing or because we are cleaning up
-      if (job.nonRunningReduces == null) return false;
-      
-      // Check for an unlaunched reduce
-      if (job.nonRunningReduces.size() > 0) return true;
-      
-      // Check for a reduce to be speculated
-      if (job.getReduceSpeculativeExecution()) {
-        long time = System.currentTimeMillis();
-        float avgProg = job.status.reduceProgress();
-        for (TaskInProgress tip: job.runningReduces) {
-          if (tip.isRunning() && tip.hasSpeculativeTask(time, avgProg)) {
-            return true;
+    if (!hadoopTasks.isEmpty()) {
+      synchronized (jobTracker) {
+        for (TaskAttemptID hadoopId: hadoopTasks) {
+          LOG.info("Killing " + hadoopId + " at the request of Mesos");
+          try {
+            jobTracker.killTask(hadoopId, false);
+          } catch (IOException e) {
+            LOG.warn("Failed to kill " + hadoopId, e);
           }
         }
       }
-      
-      return false;
     }
+    List<TaskState> states = new ArrayList<TaskState>();
+    for (int i = 0; i < killed.size(); i++) {
+      states.add(TaskState.TASK_KILLED);
+    }
+    askExecutorsToUpdateStatus(killed, states);
   }
 }
@@ -0,0 +1,112 @@
+package org.apache.hadoop.mapred;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapred.HadoopFrameworkMessage.Type;
+
+import mesos.TaskState;
+
+/**
+ * A batch of per-task messages between the FrameworkScheduler and the
+ * FrameworkExecutor on one slave, sent as a single Mesos framework message
+ * instead of one HadoopFrameworkMessage per task.
+ *
+ * The frame starts with a magic byte, which can never start a serialized
+ * HadoopFrameworkMessage (whose type string is short enough for the first
+ * byte of its length to be zero), followed by the number of entries as a
+ * vint. Each entry is the ordinal of its Type as a byte, the Mesos task ID
+ * as a vint and, for S2E_SEND_STATUS_UPDATE, the ordinal of the TaskState
+ * to report as a byte.
+ */
+class HadoopFrameworkMessageBatch {
+  static final byte MAGIC = (byte) 0xB7;
+
+  static class Entry {
+    final Type type;
+    final int mesosId;
+    final TaskState state; // For S2E_SEND_STATUS_UPDATE only
+
+    Entry(Type type, int mesosId, TaskState state) {
+      this.type = type;
+      this.mesosId = mesosId;
+      this.state = state;
+    }
+  }
+
+  private final List<Entry> entries = new ArrayList<Entry>();
+
+  HadoopFrameworkMessageBatch() {
+  }
+
+  HadoopFrameworkMessageBatch(byte[] bytes) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+    if (in.readByte() != MAGIC) {
+      throw new IOException("Not a HadoopFrameworkMessageBatch");
+    }
+    int count = WritableUtils.readVInt(in);
+    Type[] types = Type.values();
+    TaskState[] states = TaskState.values();
+    for (int i = 0; i < count; i++) {
+      int type = in.readByte();
+      if (type < 0 || type >= types.length) {
+        throw new IOException("Unknown message type: " + type);
+      }
+      int mesosId = WritableUtils.readVInt(in);
+      TaskState state = null;
+      if (types[type] == Type.S2E_SEND_STATUS_UPDATE) {
+        int s = in.readByte();
+        if (s < 0 || s >= states.length) {
+          throw new IOException("Unknown task state: " + s);
+        }
+        state = states[s];
+      }
+      entries.add(new Entry(types[type], mesosId, state));
+    }
+  }
+
+  /**
+   * Check whether a framework message holds a batch rather than a single
+   * HadoopFrameworkMessage.
+   */
+  static boolean isBatch(byte[] bytes) {
+    return bytes.length > 0 && bytes[0] == MAGIC;
+  }
+
+  void addStatusUpdateRequest(int mesosId, TaskState state) {
+    entries.add(new Entry(Type.S2E_SEND_STATUS_UPDATE, mesosId, state));
+  }
+
+  void addKillRequest(int mesosId) {
+    entries.add(new Entry(Type.E2S_KILL_REQUEST, mesosId, null));
+  }
+
+  List<Entry> getEntries() {
+    return entries;
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  byte[] serialize() throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    DataOutputStream dos = new DataOutputStream(bos);
+    dos.writeByte(MAGIC);
+    WritableUtils.writeVInt(dos, entries.size());
+    for (Entry entry: entries) {
+      dos.writeByte(entry.type.ordinal());
+      WritableUtils.writeVInt(dos, entry.mesosId);
+      if (entry.type == Type.S2E_SEND_STATUS_UPDATE) {
+        dos.writeByte(entry.state.ordinal());
+      }
+    }
+    return bos.toByteArray();
+  }
+}
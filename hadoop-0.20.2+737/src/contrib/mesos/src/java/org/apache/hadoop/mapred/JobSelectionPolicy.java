@@ -0,0 +1,68 @@
+package org.apache.hadoop.mapred;
+
+import java.util.List;
+
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.TaskType;
+
+/**
+ * A pluggable policy for deciding which job the {@link FrameworkScheduler}
+ * plans each Mesos task for when it accepts a resource offer, and which jobs
+ * a Mesos task may run instead when its planned job no longer needs it.
+ * The policy is chosen with mapred.mesos.job.policy.
+ *
+ * The policy keeps an order of the running jobs for each task type, which
+ * {@link #update(List)} recomputes before each resource offer and
+ * {@link #slotLaunched(JobInProgress, TaskType)} adjusts as slots are launched
+ * during the offer. It is called both from the Mesos callbacks and from
+ * heartbeats, so implementations must be thread safe. They may lock the
+ * demand index and jobs, but nothing else.
+ */
+abstract class JobSelectionPolicy implements Configurable {
+  protected Configuration conf;
+  protected MesosDemandIndex demandIndex;
+
+  public Configuration getConf() {
+    return conf;
+  }
+
+  public void setConf(Configuration conf) {
+    this.conf = conf;
+  }
+
+  /**
+   * Set the index from which the policy can read the demand of each job.
+   */
+  public void setDemandIndex(MesosDemandIndex demandIndex) {
+    this.demandIndex = demandIndex;
+  }
+
+  /**
+   * Recompute the order of the given jobs, which are those currently running.
+   */
+  public abstract void update(List<JobInProgress> runningJobs);
+
+  /**
+   * Get the jobs in the order in which they should be offered a slot of the
+   * given type (TaskType.MAP or TaskType.REDUCE). Jobs that should not get
+   * any more slots of that type may be left out.
+   */
+  public abstract List<JobInProgress> getJobs(TaskType type);
+
+  /**
+   * Record that a Mesos task has been launched as a slot of the given type
+   * for a job, before the job has started a Hadoop task in it.
+   */
+  public void slotLaunched(JobInProgress job, TaskType type) {
+  }
+
+  /**
+   * Check whether a job should get slots of the given type as soon as
+   * possible, without waiting for local data, for example because it is
+   * below a guaranteed minimum share.
+   */
+  public boolean isStarved(JobInProgress job, TaskType type) {
+    return false;
+  }
+}
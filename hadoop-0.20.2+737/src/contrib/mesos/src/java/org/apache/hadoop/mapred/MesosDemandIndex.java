@@ -0,0 +1,624 @@
+package org.apache.hadoop.mapred;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapred.JobStatusChangeEvent.EventType;
+import org.apache.hadoop.net.Node;
+
+/**
+ * An incrementally maintained index of the tasks that the jobs in the
+ * JobTracker still need to launch, used by {@link FrameworkScheduler} to
+ * decide whether to accept Mesos resource offers without scanning every job
+ * (and every level of its task cache) for every slave offered.
+ *
+ * For each running job we keep the set of pending (runnable but not running)
+ * TIPs and, like JobInProgress.nonRunningMapCache, the number of pending maps
+ * under each node of the network topology up to the number of task cache
+ * levels. The same counts are also summed over all jobs, so that asking
+ * whether any job has a node-local or rack-local map for a host is a couple
+ * of map lookups.
+ *
+ * A job's demand is indexed when it starts running (through the
+ * {@link JobInProgressListener} events) and is then updated as the scheduler
+ * launches its tasks through {@link #taskLaunched(JobInProgress, Task)}. TIPs
+ * can also become pending again without the scheduler noticing (for example
+ * when an attempt fails or is killed), so {@link #refresh()}, which is called
+ * periodically off the offer path, re-checks the TIPs that we know to be
+ * running, and every job is re-indexed from scratch once every
+ * mapred.mesos.demand.resync.interval milliseconds to pick up rarer changes
+ * such as completed maps being re-executed after a TaskTracker is lost.
+ *
+ * Lock ordering: the index is locked before any JobInProgress, and must not
+ * be held while calling into the JobTracker or the FrameworkScheduler.
+ */
+class MesosDemandIndex extends JobInProgressListener {
+  public static final Log LOG =
+    LogFactory.getLog(MesosDemandIndex.class);
+  public static final long DEFAULT_RESYNC_INTERVAL = 30000;
+
+  /**
+   * Counts of launchable tasks, kept both per job and summed over all jobs.
+   */
+  static class Demand {
+    // Pending maps under each node of the topology (hosts, racks, ...)
+    final Map<Node, Integer> pendingMapsByNode =
+      new IdentityHashMap<Node, Integer>();
+    int pendingMaps = 0;
+    int pendingNonLocalMaps = 0;  // Maps without split locations
+    int speculativeMaps = 0;      // Running maps that can be speculated
+    int mapCleanupTasks = 0;
+    int pendingReduces = 0;       // In the totals, only for jobs that can
+    int speculativeReduces = 0;   // already launch reduces
+    int reduceCleanupTasks = 0;
+    int setupCleanupTasks = 0;    // Jobs waiting for a setup or cleanup task
+
+    int getPendingMaps(Node node) {
+      Integer count = pendingMapsByNode.get(node);
+      return count == null ? 0 : count;
+    }
+
+    void addPendingMaps(Node node, int delta) {
+      int count = getPendingMaps(node) + delta;
+      if (count == 0) {
+        pendingMapsByNode.remove(node);
+      } else {
+        pendingMapsByNode.put(node, count);
+      }
+    }
+  }
+
+  /**
+   * Demand of a single job, along with the TIPs that make it up.
+   */
+  static class JobDemand extends Demand {
+    final JobInProgress job;
+    final Set<TaskInProgress> pendingMapTips = newTipSet();
+    final Set<TaskInProgress> pendingReduceTips = newTipSet();
+    final Set<TaskInProgress> runningMapTips = newTipSet();
+    final Set<TaskInProgress> runningReduceTips = newTipSet();
+    final Set<TaskInProgress> speculativeMapTips = newTipSet();
+    final Set<TaskInProgress> speculativeReduceTips = newTipSet();
+    boolean indexed = false;      // Job is running and its TIPs are indexed
+    boolean reducesReady = false; // Enough maps have finished for reduces
+
+    JobDemand(JobInProgress job) {
+      this.job = job;
+    }
+  }
+
+  private final JobTracker jobTracker;
+  private final long resyncInterval;
+  private long lastResyncTime;
+
+  // Jobs that have been added but have not finished yet, in JobID order
+  private final Map<JobID, JobDemand> jobs = new TreeMap<JobID, JobDemand>();
+
+  // Demand summed over all indexed jobs
+  private final Demand total = new Demand();
+
+  public MesosDemandIndex(JobTracker jobTracker, Configuration conf) {
+    this.jobTracker = jobTracker;
+    this.resyncInterval = conf.getLong("mapred.mesos.demand.resync.interval",
+        DEFAULT_RESYNC_INTERVAL);
+    this.lastResyncTime = System.currentTimeMillis();
+  }
+
+  private static Set<TaskInProgress> newTipSet() {
+    return Collections.newSetFromMap(
+        new IdentityHashMap<TaskInProgress, Boolean>());
+  }
+
+  private static Set<JobInProgress> newJobSet() {
+    return Collections.newSetFromMap(
+        new IdentityHashMap<JobInProgress, Boolean>());
+  }
+
+  // JobInProgressListener methods; called with the JobTracker locked
+
+  @Override
+  public synchronized void jobAdded(JobInProgress job) {
+    JobDemand jd = new JobDemand(job);
+    jobs.put(job.getJobID(), jd);
+    if (job.getStatus().getRunState() == JobStatus.RUNNING) {
+      indexJob(jd);
+    }
+    if (!jd.indexed) {
+      setSetupCleanupTasks(jd, 1);
+    }
+  }
+
+  @Override
+  public synchronized void jobRemoved(JobInProgress job) {
+    JobDemand jd = jobs.remove(job.getJobID());
+    if (jd != null) {
+      unindexJob(jd);
+    }
+  }
+
+  @Override
+  public synchronized void jobUpdated(JobChangeEvent event) {
+    if (!(event instanceof JobStatusChangeEvent)) {
+      return;
+    }
+    JobStatusChangeEvent statusEvent = (JobStatusChangeEvent) event;
+    if (statusEvent.getEventType() != EventType.RUN_STATE_CHANGED) {
+      return;
+    }
+    JobInProgress job = event.getJobInProgress();
+    JobDemand jd = jobs.get(job.getJobID());
+    if (jd == null) {
+      return;
+    }
+    int state = statusEvent.getNewStatus().getRunState();
+    if (state == JobStatus.RUNNING) {
+      if (!jd.indexed) {
+        indexJob(jd);
+      }
+    } else if (state == JobStatus.SUCCEEDED || state == JobStatus.FAILED ||
+        state == JobStatus.KILLED) {
+      jobs.remove(job.getJobID());
+      unindexJob(jd);
+    }
+  }
+
+  /**
+   * Record that the scheduler launched the given task of a job.
+   */
+  public synchronized void taskLaunched(JobInProgress job, Task task) {
+    JobDemand jd = jobs.get(job.getJobID());
+    if (jd == null || !jd.indexed) {
+      return;
+    }
+    TaskInProgress tip = job.getTaskInProgress(task.getTaskID().getTaskID());
+    if (tip == null || tip.isJobSetupTask() || tip.isJobCleanupTask()) {
+      return;
+    }
+    if (tip.isMapTask()) {
+      removePendingMap(jd, tip);
+      jd.runningMapTips.add(tip);
+      if (jd.speculativeMapTips.remove(tip)) {
+        setSpeculativeMaps(jd, jd.speculativeMapTips.size());
+      }
+    } else {
+      removePendingReduce(jd, tip);
+      jd.runningReduceTips.add(tip);
+      if (jd.speculativeReduceTips.remove(tip)) {
+        setSpeculativeReduces(jd, jd.speculativeReduceTips.size());
+      }
+    }
+  }
+
+  /**
+   * Re-check the TIPs we believe are running and update the per-job flags
+   * (cleanup tasks, speculation, whether reduces can start), re-indexing all
+   * jobs if the resync interval has passed. This costs time proportional to
+   * the number of running tasks and jobs, so it is meant to be called
+   * periodically rather than on every offer.
+   */
+  public synchronized void refresh() {
+    long now = System.currentTimeMillis();
+    boolean resync = (now - lastResyncTime >= resyncInterval);
+    for (JobDemand jd: jobs.values()) {
+      if (!jd.indexed) {
+        continue;
+      }
+      if (resync) {
+        unindexJob(jd);
+        indexJob(jd);
+      } else {
+        synchronized (jd.job) {
+          for (TaskInProgress tip: new ArrayList<TaskInProgress>(
+              jd.runningMapTips)) {
+            if (!tip.isRunning()) {
+              jd.runningMapTips.remove(tip);
+              if (isPending(tip)) {
+                addPendingMap(jd, tip);
+              }
+            }
+          }
+          for (TaskInProgress tip: new ArrayList<TaskInProgress>(
+              jd.runningReduceTips)) {
+            if (!tip.isRunning()) {
+              jd.runningReduceTips.remove(tip);
+              if (isPending(tip)) {
+                addPendingReduce(jd, tip);
+              }
+            }
+          }
+          updateJobFlags(jd, now);
+        }
+      }
+    }
+    if (resync) {
+      lastResyncTime = now;
+    }
+  }
+
+  // Queries used by the scheduler
+
+  /** Number of jobs that have been submitted and have not finished. */
+  public synchronized int getNumJobs() {
+    return jobs.size();
+  }
+
+  /** Running jobs whose demand is indexed, in JobID order. */
+  public synchronized List<JobInProgress> getRunningJobs() {
+    List<JobInProgress> runningJobs = new ArrayList<JobInProgress>();
+    for (JobDemand jd: jobs.values()) {
+      if (jd.indexed) {
+        runningJobs.add(jd.job);
+      }
+    }
+    return runningJobs;
+  }
+
+  /**
+   * Number of map slots that the jobs could use right now: pending and
+   * speculatable maps, task cleanup attempts, and one for each job waiting
+   * to launch its setup or cleanup task, which the JobTracker gives out
+   * before anything else on a heartbeat.
+   */
+  public synchronized int getMapDemand() {
+    return total.pendingMaps + total.speculativeMaps + total.mapCleanupTasks +
+        total.setupCleanupTasks;
+  }
+
+  /**
+   * Number of reduce slots that the jobs could use right now: pending and
+   * speculatable reduces of jobs that can launch reduces, and task cleanup
+   * attempts.
+   */
+  public synchronized int getReduceDemand() {
+    return total.pendingReduces + total.speculativeReduces +
+        total.reduceCleanupTasks;
+  }
+
+  /**
+   * Number of map slots that the given job could use right now, counted as
+   * in {@link #getMapDemand()}.
+   */
+  public synchronized int getMapDemand(JobInProgress job) {
+    JobDemand jd = jobs.get(job.getJobID());
+    if (jd == null) {
+      return 0;
+    }
+    return jd.pendingMaps + jd.speculativeMaps + jd.mapCleanupTasks +
+        jd.setupCleanupTasks;
+  }
+
+  /**
+   * Number of reduce slots that the given job could use right now, counted
+   * as in {@link #getReduceDemand()}.
+   */
+  public synchronized int getReduceDemand(JobInProgress job) {
+    JobDemand jd = jobs.get(job.getJobID());
+    if (jd == null || !jd.indexed) {
+      return 0;
+    }
+    int demand = jd.reduceCleanupTasks;
+    if (jd.reducesReady) {
+      demand += jd.pendingReduces + jd.speculativeReduces;
+    }
+    return demand;
+  }
+
+  /**
+   * Return the lowest cache level (0 being node-local) at which some running
+   * job has a map to launch on the given host, looking only at cache levels
+   * below maxCacheLevel, or -1 if there is none. Maps that can only run
+   * off-switch, including speculative maps, are reported at the number of
+   * cache levels, while map cleanup tasks and maps with no locality
+   * information are reported as node-local.
+   */
+  public synchronized int getMapLevel(String host, int maxCacheLevel) {
+    return findMapLevel(total, jobTracker.getNode(host), maxCacheLevel);
+  }
+
+  /**
+   * Return the lowest cache level at which the given job has a map to launch
+   * on the given host, as in {@link #getMapLevel(String, int)}.
+   */
+  public synchronized int getMapLevel(JobInProgress job, String host,
+      int maxCacheLevel) {
+    JobDemand jd = jobs.get(job.getJobID());
+    if (jd == null || !jd.indexed) {
+      return -1;
+    }
+    return findMapLevel(jd, jobTracker.getNode(host), maxCacheLevel);
+  }
+
+  /**
+   * Check whether the given job has any map to launch, at any locality level.
+   */
+  public synchronized boolean hasMapToLaunch(JobInProgress job) {
+    JobDemand jd = jobs.get(job.getJobID());
+    return jd != null && (jd.pendingMaps > 0 || jd.speculativeMaps > 0 ||
+        jd.mapCleanupTasks > 0);
+  }
+
+  /**
+   * Check whether the given job has a map without split locations left to
+   * launch. {@link #getMapLevel(JobInProgress, String, int)} counts these as
+   * node-local on any host.
+   */
+  public synchronized boolean hasNonLocalMapToLaunch(JobInProgress job) {
+    JobDemand jd = jobs.get(job.getJobID());
+    return jd != null && jd.pendingNonLocalMaps > 0;
+  }
+
+  /**
+   * Running jobs that have a map to launch, as in
+   * {@link #hasMapToLaunch(JobInProgress)}, so that callers need not check
+   * every job.
+   */
+  public synchronized Set<JobInProgress> getJobsWithMapsToLaunch() {
+    Set<JobInProgress> result = newJobSet();
+    for (JobDemand jd: jobs.values()) {
+      if (jd.pendingMaps > 0 || jd.speculativeMaps > 0 ||
+          jd.mapCleanupTasks > 0) {
+        result.add(jd.job);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Running jobs that have a reduce to launch, as in
+   * {@link #hasReduceToLaunch(JobInProgress)}.
+   */
+  public synchronized Set<JobInProgress> getJobsWithReducesToLaunch() {
+    Set<JobInProgress> result = newJobSet();
+    for (JobDemand jd: jobs.values()) {
+      if (jd.indexed && (jd.reduceCleanupTasks > 0 || (jd.reducesReady &&
+          (jd.pendingReduces > 0 || jd.speculativeReduces > 0)))) {
+        result.add(jd.job);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Check whether any running job can launch a reduce task, including reduce
+   * cleanup tasks and speculative reduces.
+   */
+  public synchronized boolean hasReduceToLaunch() {
+    return total.reduceCleanupTasks > 0 || total.pendingReduces > 0 ||
+        total.speculativeReduces > 0;
+  }
+
+  /**
+   * Check whether the given job has a reduce, or reduce cleanup task, that
+   * can be launched now.
+   */
+  public synchronized boolean hasReduceToLaunch(JobInProgress job) {
+    JobDemand jd = jobs.get(job.getJobID());
+    if (jd == null || !jd.indexed) {
+      return false;
+    }
+    return jd.reduceCleanupTasks > 0 || (jd.reducesReady &&
+        (jd.pendingReduces > 0 || jd.speculativeReduces > 0));
+  }
+
+  private int findMapLevel(Demand demand, Node node, int maxCacheLevel) {
+    if (demand.mapCleanupTasks > 0 || demand.pendingNonLocalMaps > 0) {
+      return 0;
+    }
+    int maxLevel = jobTracker.getNumTaskCacheLevels();
+    if (node != null) {
+      Node key = node;
+      int maxLevelToSchedule = Math.min(maxCacheLevel, maxLevel);
+      for (int level = 0; level < maxLevelToSchedule && key != null; ++level) {
+        if (demand.getPendingMaps(key) > 0) {
+          return level;
+        }
+        key = key.getParent();
+      }
+    }
+    // Check if we need to only schedule a local task (node-local/rack-local)
+    if (maxCacheLevel <= maxLevel) {
+      return -1;
+    }
+    if (demand.pendingMaps > 0 || demand.speculativeMaps > 0) {
+      return maxLevel;
+    }
+    return -1;
+  }
+
+  // Maintenance of the per-job and total counts
+
+  private static boolean isPending(TaskInProgress tip) {
+    return tip.isRunnable() && !tip.isRunning();
+  }
+
+  private void indexJob(JobDemand jd) {
+    JobInProgress job = jd.job;
+    synchronized (job) {
+      // The TIP arrays are only filled in once the job is initialized
+      if (!job.inited()) {
+        return;
+      }
+      jd.indexed = true;
+      jd.reducesReady = job.scheduleReduces();
+      for (TaskInProgress tip: job.maps) {
+        if (isPending(tip)) {
+          addPendingMap(jd, tip);
+        } else if (tip.isRunning()) {
+          jd.runningMapTips.add(tip);
+        }
+      }
+      for (TaskInProgress tip: job.reduces) {
+        if (isPending(tip)) {
+          addPendingReduce(jd, tip);
+        } else if (tip.isRunning()) {
+          jd.runningReduceTips.add(tip);
+        }
+      }
+      updateJobFlags(jd, System.currentTimeMillis());
+    }
+  }
+
+  private void unindexJob(JobDemand jd) {
+    for (TaskInProgress tip: new ArrayList<TaskInProgress>(jd.pendingMapTips)) {
+      removePendingMap(jd, tip);
+    }
+    for (TaskInProgress tip:
+        new ArrayList<TaskInProgress>(jd.pendingReduceTips)) {
+      removePendingReduce(jd, tip);
+    }
+    jd.runningMapTips.clear();
+    jd.runningReduceTips.clear();
+    jd.speculativeMapTips.clear();
+    jd.speculativeReduceTips.clear();
+    setSpeculativeMaps(jd, 0);
+    setSpeculativeReduces(jd, 0);
+    setMapCleanupTasks(jd, 0);
+    setReduceCleanupTasks(jd, 0);
+    setSetupCleanupTasks(jd, 0);
+    jd.reducesReady = false;
+    jd.indexed = false;
+  }
+
+  /**
+   * Update the counts of a job that are cheap to read from the
+   * JobInProgress, and look for speculatable tasks among its running TIPs.
+   * Assumes the job is locked.
+   */
+  private void updateJobFlags(JobDemand jd, long now) {
+    JobInProgress job = jd.job;
+    setMapCleanupTasks(jd, job.mapCleanupTasks.size());
+    setReduceCleanupTasks(jd, job.reduceCleanupTasks.size());
+    if (!jd.reducesReady && job.scheduleReduces()) {
+      jd.reducesReady = true;
+      total.pendingReduces += jd.pendingReduces;
+      total.speculativeReduces += jd.speculativeReduces;
+    }
+    // A job needs a slot for its cleanup task once all its tasks are done
+    boolean needsCleanup = (job.finishedMaps() == job.desiredMaps() &&
+        job.finishedReduces() == job.desiredReduces());
+    setSetupCleanupTasks(jd, needsCleanup ? 1 : 0);
+    jd.speculativeMapTips.clear();
+    if (job.getMapSpeculativeExecution()) {
+      float avgProg = job.getStatus().mapProgress();
+      for (TaskInProgress tip: jd.runningMapTips) {
+        if (tip.isRunning() && tip.hasSpeculativeTask(now, avgProg)) {
+          jd.speculativeMapTips.add(tip);
+        }
+      }
+    }
+    setSpeculativeMaps(jd, jd.speculativeMapTips.size());
+    jd.speculativeReduceTips.clear();
+    if (job.getReduceSpeculativeExecution()) {
+      float avgProg = job.getStatus().reduceProgress();
+      for (TaskInProgress tip: jd.runningReduceTips) {
+        if (tip.isRunning() && tip.hasSpeculativeTask(now, avgProg)) {
+          jd.speculativeReduceTips.add(tip);
+        }
+      }
+    }
+    setSpeculativeReduces(jd, jd.speculativeReduceTips.size());
+  }
+
+  private void addPendingMap(JobDemand jd, TaskInProgress tip) {
+    if (jd.pendingMapTips.add(tip)) {
+      updatePendingMap(jd, tip, 1);
+    }
+  }
+
+  private void removePendingMap(JobDemand jd, TaskInProgress tip) {
+    if (jd.pendingMapTips.remove(tip)) {
+      updatePendingMap(jd, tip, -1);
+    }
+  }
+
+  private void updatePendingMap(JobDemand jd, TaskInProgress tip, int delta) {
+    jd.pendingMaps += delta;
+    total.pendingMaps += delta;
+    Collection<Node> nodes = getCacheNodes(tip);
+    if (nodes.isEmpty()) {
+      jd.pendingNonLocalMaps += delta;
+      total.pendingNonLocalMaps += delta;
+    } else {
+      for (Node node: nodes) {
+        jd.addPendingMaps(node, delta);
+        total.addPendingMaps(node, delta);
+      }
+    }
+  }
+
+  private void addPendingReduce(JobDemand jd, TaskInProgress tip) {
+    if (jd.pendingReduceTips.add(tip)) {
+      jd.pendingReduces++;
+      if (jd.reducesReady) {
+        total.pendingReduces++;
+      }
+    }
+  }
+
+  private void removePendingReduce(JobDemand jd, TaskInProgress tip) {
+    if (jd.pendingReduceTips.remove(tip)) {
+      jd.pendingReduces--;
+      if (jd.reducesReady) {
+        total.pendingReduces--;
+      }
+    }
+  }
+
+  private void setSpeculativeMaps(JobDemand jd, int count) {
+    total.speculativeMaps += count - jd.speculativeMaps;
+    jd.speculativeMaps = count;
+  }
+
+  private void setSpeculativeReduces(JobDemand jd, int count) {
+    if (jd.reducesReady) {
+      total.speculativeReduces += count - jd.speculativeReduces;
+    }
+    jd.speculativeReduces = count;
+  }
+
+  private void setMapCleanupTasks(JobDemand jd, int count) {
+    total.mapCleanupTasks += count - jd.mapCleanupTasks;
+    jd.mapCleanupTasks = count;
+  }
+
+  private void setReduceCleanupTasks(JobDemand jd, int count) {
+    total.reduceCleanupTasks += count - jd.reduceCleanupTasks;
+    jd.reduceCleanupTasks = count;
+  }
+
+  private void setSetupCleanupTasks(JobDemand jd, int count) {
+    total.setupCleanupTasks += count - jd.setupCleanupTasks;
+    jd.setupCleanupTasks = count;
+  }
+
+  /**
+   * Get the distinct topology nodes, from the hosts up to the number of task
+   * cache levels, that a map's split is local to. This mirrors the way
+   * JobInProgress.createCache files TIPs in the nonRunningMapCache.
+   */
+  private Collection<Node> getCacheNodes(TaskInProgress tip) {
+    Set<Node> nodes =
+      Collections.newSetFromMap(new IdentityHashMap<Node, Boolean>());
+    String[] splitLocations = tip.getSplitLocations();
+    if (splitLocations != null) {
+      int maxLevel = jobTracker.getNumTaskCacheLevels();
+      for (String host: splitLocations) {
+        Node node = jobTracker.getNode(host);
+        for (int level = 0; level < maxLevel && node != null; level++) {
+          nodes.add(node);
+          node = node.getParent();
+        }
+      }
+    }
+    return nodes;
+  }
+}
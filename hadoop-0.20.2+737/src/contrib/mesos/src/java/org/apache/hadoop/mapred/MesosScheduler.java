@@ -25,6 +25,7 @@ public class MesosScheduler extends TaskScheduler {
   private FrameworkScheduler frameworkScheduler;
   private SchedulerDriver driver;
   JobTracker jobTracker;
+  MesosDemandIndex demandIndex;
 
   private EagerTaskInitializationListener eagerInitListener;
 
@@ -45,7 +46,12 @@ public class MesosScheduler extends TaskScheduler {
       eagerInitListener.start();
       taskTrackerManager.addJobInProgressListener(eagerInitListener);
       
+      demandIndex = new MesosDemandIndex(jobTracker, conf);
+      taskTrackerManager.addJobInProgressListener(demandIndex);
+      
       frameworkScheduler = new FrameworkScheduler(this); 
+      taskTrackerManager.addJobInProgressListener(
+          frameworkScheduler.getJobListener());
       driver = new MesosSchedulerDriver(frameworkScheduler, master);
       
       driver.start();
@@ -69,6 +75,13 @@ public class MesosScheduler extends TaskScheduler {
       if (eagerInitListener != null) {
         taskTrackerManager.removeJobInProgressListener(eagerInitListener);
       }
+      if (demandIndex != null) {
+        taskTrackerManager.removeJobInProgressListener(demandIndex);
+      }
+      if (frameworkScheduler != null) {
+        taskTrackerManager.removeJobInProgressListener(
+            frameworkScheduler.getJobListener());
+      }
     } catch (Exception e) {
       e.printStackTrace();
     }
@@ -0,0 +1,81 @@
+package org.apache.hadoop.mapred;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.metrics.MetricsContext;
+import org.apache.hadoop.metrics.MetricsRecord;
+import org.apache.hadoop.metrics.MetricsUtil;
+import org.apache.hadoop.metrics.Updater;
+import org.apache.hadoop.metrics.util.MetricsBase;
+import org.apache.hadoop.metrics.util.MetricsRegistry;
+import org.apache.hadoop.metrics.util.MetricsTimeVaryingInt;
+import org.apache.hadoop.metrics.util.MetricsTimeVaryingRate;
+
+/**
+ * Metrics for the {@link FrameworkScheduler}, published in the "mapred"
+ * context under the "mesosScheduler" record. Times are in milliseconds.
+ */
+class MesosSchedulerMetrics implements Updater {
+  private final MetricsRecord metricsRecord;
+  private final MetricsRegistry registry = new MetricsRegistry();
+
+  // Time spent processing a whole resource offer
+  final MetricsTimeVaryingRate offerProcessingTime =
+    new MetricsTimeVaryingRate("offer_processing_time", registry);
+  // Time the offer, status update and timeout paths waited for the lock
+  // protecting the scheduler's state (the JobTracker lock in the legacy mode)
+  final MetricsTimeVaryingRate offerLockWaitTime =
+    new MetricsTimeVaryingRate("offer_lock_wait_time", registry);
+  // Time those paths held the lock
+  final MetricsTimeVaryingRate offerLockHoldTime =
+    new MetricsTimeVaryingRate("offer_lock_hold_time", registry);
+  // Time heartbeats, which already hold the JobTracker lock, waited for the
+  // scheduler's lock in assignTasks
+  final MetricsTimeVaryingRate heartbeatLockWaitTime =
+    new MetricsTimeVaryingRate("heartbeat_lock_wait_time", registry);
+  final MetricsTimeVaryingInt slaveOffers =
+    new MetricsTimeVaryingInt("slave_offers", registry);
+  final MetricsTimeVaryingInt mesosTasksLaunched =
+    new MetricsTimeVaryingInt("mesos_tasks_launched", registry);
+  // Maps launched at each locality level, to tune the delay scheduling waits
+  final MetricsTimeVaryingInt nodeLocalMapsLaunched =
+    new MetricsTimeVaryingInt("node_local_maps_launched", registry);
+  final MetricsTimeVaryingInt rackLocalMapsLaunched =
+    new MetricsTimeVaryingInt("rack_local_maps_launched", registry);
+  final MetricsTimeVaryingInt offSwitchMapsLaunched =
+    new MetricsTimeVaryingInt("off_switch_maps_launched", registry);
+  // Hadoop tasks launched in reused slots, and idle slots given back to Mesos
+  final MetricsTimeVaryingInt slotsReused =
+    new MetricsTimeVaryingInt("slots_reused", registry);
+  final MetricsTimeVaryingInt slotsReleased =
+    new MetricsTimeVaryingInt("slots_released", registry);
+  // Batched framework messages sent to executors, and the per-task requests
+  // they carried
+  final MetricsTimeVaryingInt frameworkMessagesSent =
+    new MetricsTimeVaryingInt("framework_messages_sent", registry);
+  final MetricsTimeVaryingInt frameworkMessageEntriesSent =
+    new MetricsTimeVaryingInt("framework_message_entries_sent", registry);
+
+  MesosSchedulerMetrics(Configuration conf) {
+    MetricsContext context = MetricsUtil.getContext("mapred");
+    metricsRecord = MetricsUtil.createRecord(context, "mesosScheduler");
+    metricsRecord.setTag("sessionId", conf.get("session.id", ""));
+    context.registerUpdater(this);
+  }
+
+  void mapLaunched(LocalityLevel level) {
+    switch (level) {
+    case NODE: nodeLocalMapsLaunched.inc(); break;
+    case RACK: rackLocalMapsLaunched.inc(); break;
+    default: offSwitchMapsLaunched.inc(); break;
+    }
+  }
+
+  public void doUpdates(MetricsContext unused) {
+    synchronized (this) {
+      for (MetricsBase m : registry.getMetricsList()) {
+        m.pushMetric(metricsRecord);
+      }
+    }
+    metricsRecord.update();
+  }
+}
@@ -0,0 +1,840 @@
+package org.apache.hadoop.mapred;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.TaskStatus.Phase;
+import org.apache.hadoop.mapred.TaskStatus.State;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.TaskType;
+import org.apache.hadoop.mapreduce.server.jobtracker.TaskTracker;
+import org.apache.hadoop.mapreduce.split.JobSplit;
+import org.apache.hadoop.mapreduce.split.JobSplit.TaskSplitMetaInfo;
+import org.apache.hadoop.net.DNSToSwitchMapping;
+import org.apache.hadoop.net.Node;
+import org.apache.hadoop.tools.rumen.JobStory;
+import org.apache.hadoop.tools.rumen.MachineNode;
+import org.apache.hadoop.tools.rumen.ZombieCluster;
+import org.apache.hadoop.tools.rumen.ZombieJobProducer;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+import mesos.FrameworkMessage;
+import mesos.SchedulerDriver;
+import mesos.SlaveOffer;
+import mesos.TaskDescription;
+import mesos.TaskState;
+
+/**
+ * Replays a rumen job trace against the {@link FrameworkScheduler} to
+ * measure how it handles resource offers, without a Mesos master or real
+ * TaskTrackers. A simulated master offers the free resources of a set of
+ * slaves (from a rumen topology, or synthetic ones), honouring the refusal
+ * timeouts and offer revivals of the scheduler; simulated TaskTrackers
+ * heartbeat into the scheduler, run the Hadoop tasks they are given for
+ * their traced runtimes (divided by a speedup factor) and report the Mesos
+ * tasks holding them as finished the way FrameworkExecutor does. The jobs
+ * are real JobInProgress objects in an in-process JobTracker, so the
+ * scheduler sees the same job state and locality caches as in production.
+ *
+ * When all jobs have finished, or the duration limit is reached, it prints
+ * the offers processed per second, offer processing time percentiles, the
+ * delay from launching a Mesos task to assigning it a Hadoop task, the
+ * locality of the maps launched and the utilization of the slots held.
+ *
+ * FrameworkScheduler and the Mesos API classes are JNI wrappers, so this
+ * still needs the Mesos native library on java.library.path.
+ */
+public class MesosSchedulerSimulator extends Configured implements Tool {
+  public static final Log LOG =
+    LogFactory.getLog(MesosSchedulerSimulator.class);
+
+  private static final String USAGE =
+    "MesosSchedulerSimulator -trace <rumen trace>\n" +
+    "    [-topology <rumen topology>] [-slaves <n>] [-racks <n>]\n" +
+    "    [-cpus <cpus per slave>] [-mem <MB per slave>] [-jobs <n>]\n" +
+    "    [-speedup <factor>] [-offerInterval <ms>]\n" +
+    "    [-heartbeatInterval <ms>] [-duration <seconds>]";
+
+  // Simulation parameters
+  private Path tracePath;
+  private Path topologyPath;
+  private int numSlaves = 20;
+  private int numRacks = 2;
+  private int cpusPerSlave = 8;
+  private int memPerSlave = 16384;
+  private int maxJobs = Integer.MAX_VALUE;
+  private double speedup = 10;
+  private long offerInterval = 100;
+  private long heartbeatInterval = 300;
+  private long duration = 600;
+
+  private JobTracker jobTracker;
+  private FrameworkScheduler scheduler;
+  private List<JobInProgressListener> listeners =
+    new ArrayList<JobInProgressListener>();
+  private SimulatedDriver driver = new SimulatedDriver();
+
+  private Map<String, SimulatedSlave> slaves =
+    new LinkedHashMap<String, SimulatedSlave>();
+  private LinkedList<SimulatedJob> pendingJobs = new LinkedList<SimulatedJob>();
+  private List<SimulatedJob> runningJobs = new ArrayList<SimulatedJob>();
+  private long startTime;
+  private int nextOfferId = 0;
+
+  // Results
+  private int offers = 0;
+  private int slaveOffers = 0;
+  private int revives = 0;
+  private int mesosTasksLaunched = 0;
+  private int jobsCompleted = 0;
+  private List<Long> offerTimes = new ArrayList<Long>();
+  private List<Long> assignmentDelays = new ArrayList<Long>();
+  private int[] mapsLaunched = new int[LocalityLevel.values().length];
+  private int reducesLaunched = 0;
+  private long heldSlotTime = 0;
+  private long busySlotTime = 0;
+  private long usedCpuTime = 0;
+  private long totalCpuTime = 0;
+
+  /**
+   * Rack mapping for the simulated slaves, filled in before the JobTracker
+   * is created.
+   */
+  public static class SimulatedTopology implements DNSToSwitchMapping {
+    private static Map<String, String> racks =
+      new ConcurrentHashMap<String, String>();
+
+    static void addHost(String host, String rack) {
+      racks.put(host, rack);
+    }
+
+    public List<String> resolve(List<String> names) {
+      List<String> result = new ArrayList<String>(names.size());
+      for (String name: names) {
+        String rack = racks.get(name);
+        result.add(rack != null ? rack : "/default-rack");
+      }
+      return result;
+    }
+  }
+
+  /**
+   * A job from the trace, whose tasks are created from the trace's input
+   * splits rather than read from a job submission directory.
+   */
+  static class SimulatedJob extends JobInProgress {
+    final JobStory story;
+    final long submitTime;
+
+    SimulatedJob(JobID jobId, JobConf conf, JobTracker jobTracker,
+        JobStory story, long submitTime) {
+      super(jobId, conf, jobTracker);
+      this.story = story;
+      this.submitTime = submitTime;
+    }
+
+    @Override
+    public synchronized void initTasks() throws IOException {
+      if (tasksInited.get()) {
+        return;
+      }
+      InputSplit[] splits = story.getInputSplits();
+      numMapTasks = splits.length;
+      maps = new TaskInProgress[numMapTasks];
+      nonRunningMapCache = new IdentityHashMap<Node, List<TaskInProgress>>();
+      for (int i = 0; i < numMapTasks; i++) {
+        String[] hosts;
+        try {
+          hosts = splits[i].getLocations();
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+        maps[i] = new TaskInProgress(getJobID(), jobFile,
+            new TaskSplitMetaInfo(hosts, 0, 0), jobtracker, getJobConf(),
+            this, i, 1);
+        if (hosts.length == 0) {
+          nonLocalMaps.add(maps[i]);
+        }
+        for (String host: hosts) {
+          Node node = jobtracker.resolveAndAddToTopology(host);
+          for (int level = 0; level < getMaxCacheLevel() && node != null;
+              level++) {
+            List<TaskInProgress> cached = nonRunningMapCache.get(node);
+            if (cached == null) {
+              cached = new ArrayList<TaskInProgress>();
+              nonRunningMapCache.put(node, cached);
+            }
+            if (!cached.contains(maps[i])) {
+              cached.add(maps[i]);
+            }
+            node = node.getParent();
+          }
+        }
+      }
+      reduces = new TaskInProgress[numReduceTasks];
+      for (int i = 0; i < numReduceTasks; i++) {
+        reduces[i] = new TaskInProgress(getJobID(), jobFile, numMapTasks, i,
+            jobtracker, getJobConf(), this, 1);
+        nonRunningReduces.add(reduces[i]);
+      }
+      completedMapsForReduceSlowstart = (int) Math.ceil(
+          getJobConf().getFloat("mapred.reduce.slowstart.completed.maps",
+              0.05f) *
+          numMapTasks);
+
+      // Setup and cleanup TIPs are never run, as the simulated jobs start
+      // RUNNING and are finished by the simulator, but they must exist
+      cleanup = new TaskInProgress[2];
+      cleanup[0] = new TaskInProgress(getJobID(), jobFile,
+          JobSplit.EMPTY_TASK_SPLIT, jobtracker, getJobConf(), this,
+          numMapTasks, 1);
+      cleanup[0].setJobCleanupTask();
+      cleanup[1] = new TaskInProgress(getJobID(), jobFile, numMapTasks,
+          numReduceTasks, jobtracker, getJobConf(), this, 1);
+      cleanup[1].setJobCleanupTask();
+      setup = new TaskInProgress[2];
+      setup[0] = new TaskInProgress(getJobID(), jobFile,
+          JobSplit.EMPTY_TASK_SPLIT, jobtracker, getJobConf(), this,
+          numMapTasks + 1, 1);
+      setup[0].setJobSetupTask();
+      setup[1] = new TaskInProgress(getJobID(), jobFile, numMapTasks,
+          numReduceTasks + 1, jobtracker, getJobConf(), this, 1);
+      setup[1].setJobSetupTask();
+
+      launchTime = System.currentTimeMillis();
+      tasksInited.set(true);
+    }
+
+    boolean isDone() {
+      return finishedMaps() == desiredMaps() &&
+          finishedReduces() == desiredReduces();
+    }
+  }
+
+  /**
+   * A Mesos task launched on a simulated slave, and the Hadoop task it is
+   * running, if any.
+   */
+  static class SimulatedMesosTask {
+    final int mesosId;
+    final boolean isMap;
+    final double cpus;
+    final double mem;
+    final boolean reusable;
+    long idleSince;
+    Task hadoopTask;
+    SimulatedJob job;
+    long finishTime;
+
+    SimulatedMesosTask(int mesosId, boolean isMap, double cpus, double mem,
+        boolean reusable, long now) {
+      this.mesosId = mesosId;
+      this.isMap = isMap;
+      this.cpus = cpus;
+      this.mem = mem;
+      this.reusable = reusable;
+      this.idleSince = now;
+    }
+  }
+
+  static class SimulatedSlave {
+    final String slaveId;
+    final String host;
+    final String trackerName;
+    final double totalCpus;
+    final double totalMem;
+    double usedCpus = 0;
+    double usedMem = 0;
+    long filteredUntil = 0;
+    long nextHeartbeat;
+    boolean initialContact = true;
+    short responseId = 0;
+    Map<Integer, SimulatedMesosTask> tasks =
+      new LinkedHashMap<Integer, SimulatedMesosTask>();
+
+    SimulatedSlave(String slaveId, String host, double cpus, double mem) {
+      this.slaveId = slaveId;
+      this.host = host;
+      this.trackerName = "tracker_" + host;
+      this.totalCpus = cpus;
+      this.totalMem = mem;
+    }
+
+    boolean hasFreeResources() {
+      return usedCpus < totalCpus && usedMem < totalMem;
+    }
+
+    void remove(SimulatedMesosTask task) {
+      if (tasks.remove(task.mesosId) != null) {
+        usedCpus -= task.cpus;
+        usedMem -= task.mem;
+      }
+    }
+  }
+
+  /**
+   * Stands in for the Mesos master and the FrameworkExecutors on the
+   * slaves, calling back into the scheduler synchronously.
+   */
+  class SimulatedDriver extends SchedulerDriver {
+    private Map<String, List<SimulatedSlave>> outstandingOffers =
+      new HashMap<String, List<SimulatedSlave>>();
+
+    @Override
+    public int start() {
+      return 0;
+    }
+
+    @Override
+    public int stop() {
+      return 0;
+    }
+
+    @Override
+    public int join() {
+      return 0;
+    }
+
+    @Override
+    public int run() {
+      return 0;
+    }
+
+    @Override
+    public int replyToOffer(String oid, List<TaskDescription> tasks,
+        Map<String, String> params) {
+      synchronized (MesosSchedulerSimulator.this) {
+        long now = System.currentTimeMillis();
+        List<SimulatedSlave> offered = outstandingOffers.remove(oid);
+        if (offered == null) {
+          return -1;
+        }
+        List<SimulatedSlave> used = new ArrayList<SimulatedSlave>();
+        for (TaskDescription td: tasks) {
+          SimulatedSlave slave = slaves.get(td.getSlaveId());
+          Map<String, String> taskParams = td.getParams();
+          boolean reusable = FrameworkExecutor.REUSABLE_TASK_ARG.equals(
+              new String(td.getArg()));
+          SimulatedMesosTask task = new SimulatedMesosTask(td.getTaskId(),
+              td.getName().endsWith("(map)"),
+              Double.parseDouble(taskParams.get("cpus")),
+              Double.parseDouble(taskParams.get("mem")), reusable, now);
+          slave.tasks.put(task.mesosId, task);
+          slave.usedCpus += task.cpus;
+          slave.usedMem += task.mem;
+          if (slave.nextHeartbeat == 0) {
+            slave.nextHeartbeat = now;
+          }
+          used.add(slave);
+          mesosTasksLaunched++;
+        }
+        // Slaves the scheduler took nothing from are filtered for the
+        // refusal timeout it asked for, as the master would
+        int timeout = -1;
+        if (params != null && params.containsKey("timeout")) {
+          timeout = Integer.parseInt(params.get("timeout"));
+        }
+        if (timeout > 0) {
+          for (SimulatedSlave slave: offered) {
+            if (!used.contains(slave)) {
+              slave.filteredUntil = now + timeout * 1000L;
+            }
+          }
+        }
+        return 0;
+      }
+    }
+
+    @Override
+    public int reviveOffers() {
+      synchronized (MesosSchedulerSimulator.this) {
+        revives++;
+        for (SimulatedSlave slave: slaves.values()) {
+          slave.filteredUntil = 0;
+        }
+        return 0;
+      }
+    }
+
+    @Override
+    public int sendFrameworkMessage(FrameworkMessage message) {
+      // The executor reports the requested states for its Mesos tasks
+      List<Integer> finished = new ArrayList<Integer>();
+      List<TaskState> states = new ArrayList<TaskState>();
+      synchronized (MesosSchedulerSimulator.this) {
+        SimulatedSlave slave = slaves.get(message.getSlaveId());
+        try {
+          byte[] data = message.getData();
+          if (HadoopFrameworkMessageBatch.isBatch(data)) {
+            for (HadoopFrameworkMessageBatch.Entry entry:
+                new HadoopFrameworkMessageBatch(data).getEntries()) {
+              if (entry.type ==
+                  HadoopFrameworkMessage.Type.S2E_SEND_STATUS_UPDATE) {
+                finished.add(entry.mesosId);
+                states.add(entry.state);
+              }
+            }
+          } else {
+            HadoopFrameworkMessage hfm = new HadoopFrameworkMessage(data);
+            if (hfm.type ==
+                HadoopFrameworkMessage.Type.S2E_SEND_STATUS_UPDATE) {
+              finished.add(message.getTaskId());
+              states.add(TaskState.valueOf(hfm.arg1));
+            }
+          }
+        } catch (IOException e) {
+          LOG.error("Failed to parse framework message", e);
+          return -1;
+        }
+        for (int id: finished) {
+          SimulatedMesosTask task = slave.tasks.get(id);
+          if (task != null) {
+            slave.remove(task);
+          }
+        }
+      }
+      for (int i = 0; i < finished.size(); i++) {
+        scheduler.statusUpdate(this,
+            new mesos.TaskStatus(finished.get(i), states.get(i), new byte[0]));
+      }
+      return 0;
+    }
+
+    @Override
+    public int killTask(int tid) {
+      return 0;
+    }
+
+    @Override
+    public int sendHints(Map<String, String> hints) {
+      return 0;
+    }
+
+    String makeOffer(List<SimulatedSlave> offered) {
+      synchronized (MesosSchedulerSimulator.this) {
+        String oid = "offer-" + (nextOfferId++);
+        outstandingOffers.put(oid, offered);
+        return oid;
+      }
+    }
+  }
+
+  public int run(String[] args) throws Exception {
+    for (int i = 0; i < args.length; i++) {
+      if (i == args.length - 1) {
+        System.err.println(USAGE);
+        return -1;
+      }
+      if (args[i].equals("-trace")) {
+        tracePath = new Path(args[++i]);
+      } else if (args[i].equals("-topology")) {
+        topologyPath = new Path(args[++i]);
+      } else if (args[i].equals("-slaves")) {
+        numSlaves = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-racks")) {
+        numRacks = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-cpus")) {
+        cpusPerSlave = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-mem")) {
+        memPerSlave = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-jobs")) {
+        maxJobs = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-speedup")) {
+        speedup = Double.parseDouble(args[++i]);
+      } else if (args[i].equals("-offerInterval")) {
+        offerInterval = Long.parseLong(args[++i]);
+      } else if (args[i].equals("-heartbeatInterval")) {
+        heartbeatInterval = Long.parseLong(args[++i]);
+      } else if (args[i].equals("-duration")) {
+        duration = Long.parseLong(args[++i]);
+      } else {
+        System.err.println(USAGE);
+        return -1;
+      }
+    }
+    if (tracePath == null) {
+      System.err.println(USAGE);
+      return -1;
+    }
+
+    JobConf conf = new JobConf(getConf());
+    ZombieCluster cluster = createSlaves(conf);
+    startJobTracker(conf);
+    loadJobs(conf, cluster);
+    simulate();
+    printResults();
+    // The JobTracker's servers are left to exit with the JVM, as it was
+    // never started as a whole
+    scheduler.cleanUp();
+    return 0;
+  }
+
+  private ZombieCluster createSlaves(JobConf conf) throws IOException {
+    ZombieCluster cluster = null;
+    List<String> hosts = new ArrayList<String>();
+    if (topologyPath != null) {
+      cluster = new ZombieCluster(topologyPath, null, conf);
+      for (MachineNode node: cluster.getMachines()) {
+        String rack = node.getRackNode().getName();
+        SimulatedTopology.addHost(node.getName(),
+            rack.startsWith("/") ? rack : "/" + rack);
+        hosts.add(node.getName());
+      }
+      Collections.sort(hosts);
+    } else {
+      for (int i = 0; i < numSlaves; i++) {
+        String host = "host" + i + ".rack" + (i % numRacks);
+        SimulatedTopology.addHost(host, "/rack" + (i % numRacks));
+        hosts.add(host);
+      }
+    }
+    for (int i = 0; i < hosts.size(); i++) {
+      String slaveId = "slave-" + i;
+      slaves.put(slaveId, new SimulatedSlave(slaveId, hosts.get(i),
+          cpusPerSlave, memPerSlave));
+    }
+    return cluster;
+  }
+
+  private void startJobTracker(JobConf conf) throws Exception {
+    conf.set("mapred.job.tracker", "localhost:0");
+    conf.set("mapred.job.tracker.http.address", "0.0.0.0:0");
+    conf.setClass("topology.node.switch.mapping.impl",
+        SimulatedTopology.class, DNSToSwitchMapping.class);
+    jobTracker = new JobTracker(conf);
+
+    // Wire up the MesosScheduler's components the way its start() does,
+    // minus the eager task initialization and the Mesos driver
+    MesosScheduler mesosSched = new MesosScheduler();
+    mesosSched.setConf(conf);
+    mesosSched.setTaskTrackerManager(jobTracker);
+    mesosSched.jobTracker = jobTracker;
+    mesosSched.demandIndex = new MesosDemandIndex(jobTracker, conf);
+    scheduler = new FrameworkScheduler(mesosSched);
+    listeners.add(mesosSched.demandIndex);
+    listeners.add(scheduler.getJobListener());
+    scheduler.registered(driver, "simulated-framework");
+  }
+
+  private void loadJobs(JobConf conf, ZombieCluster cluster)
+      throws IOException {
+    ZombieJobProducer producer = new ZombieJobProducer(tracePath, cluster,
+        conf);
+    try {
+      long firstSubmit = -1;
+      JobStory story;
+      int jobNum = 0;
+      while (jobNum < maxJobs && (story = producer.getNextJob()) != null) {
+        if (story.getNumberMaps() <= 0) {
+          continue;
+        }
+        if (firstSubmit < 0) {
+          firstSubmit = story.getSubmissionTime();
+        }
+        JobConf jobConf = new JobConf(conf);
+        jobConf.setJobName(story.getName());
+        jobConf.setNumMapTasks(story.getNumberMaps());
+        jobConf.setNumReduceTasks(Math.max(story.getNumberReduces(), 0));
+        JobID jobId = new JobID("simulated", ++jobNum);
+        long submitTime = (long)
+            ((story.getSubmissionTime() - firstSubmit) / speedup);
+        pendingJobs.add(new SimulatedJob(jobId, jobConf, jobTracker, story,
+            submitTime));
+      }
+    } finally {
+      producer.close();
+    }
+    LOG.info("Loaded " + pendingJobs.size() + " jobs from " + tracePath);
+  }
+
+  private void simulate() throws Exception {
+    startTime = System.currentTimeMillis();
+    long endTime = startTime + duration * 1000;
+    long nextOffer = startTime;
+    long lastSample = startTime;
+    while ((!pendingJobs.isEmpty() || !runningJobs.isEmpty()) &&
+        System.currentTimeMillis() < endTime) {
+      long now = System.currentTimeMillis();
+      submitJobs(now);
+      if (now >= nextOffer) {
+        makeOffer(now);
+        nextOffer = now + offerInterval;
+      }
+      for (SimulatedSlave slave: slaves.values()) {
+        if (slave.nextHeartbeat != 0 && now >= slave.nextHeartbeat) {
+          heartbeat(slave, now);
+          slave.nextHeartbeat = now + heartbeatInterval;
+        }
+      }
+      completeJobs();
+      sampleUtilization(now - lastSample);
+      lastSample = now;
+      Thread.sleep(5);
+    }
+  }
+
+  private void submitJobs(long now) throws IOException {
+    while (!pendingJobs.isEmpty() &&
+        pendingJobs.getFirst().submitTime <= now - startTime) {
+      SimulatedJob job = pendingJobs.removeFirst();
+      job.initTasks();
+      synchronized (jobTracker) {
+        jobTracker.jobs.put(job.getJobID(), job);
+        for (JobInProgressListener listener: listeners) {
+          listener.jobAdded(job);
+        }
+        JobStatus oldStatus = (JobStatus) job.getStatus().clone();
+        job.getStatus().setRunState(JobStatus.RUNNING);
+        fireJobUpdated(job, oldStatus);
+      }
+      runningJobs.add(job);
+    }
+  }
+
+  private void completeJobs() throws IOException {
+    for (Iterator<SimulatedJob> it = runningJobs.iterator(); it.hasNext();) {
+      SimulatedJob job = it.next();
+      if (job.isDone()) {
+        synchronized (jobTracker) {
+          JobStatus oldStatus = (JobStatus) job.getStatus().clone();
+          job.getStatus().setRunState(JobStatus.SUCCEEDED);
+          fireJobUpdated(job, oldStatus);
+          jobTracker.jobs.remove(job.getJobID());
+          for (JobInProgressListener listener: listeners) {
+            listener.jobRemoved(job);
+          }
+        }
+        it.remove();
+        jobsCompleted++;
+      }
+    }
+  }
+
+  private void fireJobUpdated(JobInProgress job, JobStatus oldStatus) {
+    JobStatusChangeEvent event = new JobStatusChangeEvent(job,
+        JobStatusChangeEvent.EventType.RUN_STATE_CHANGED, oldStatus,
+        (JobStatus) job.getStatus().clone());
+    for (JobInProgressListener listener: listeners) {
+      listener.jobUpdated(event);
+    }
+  }
+
+  // Offer the free resources of all unfiltered slaves in one offer
+  private void makeOffer(long now) {
+    List<SimulatedSlave> offered = new ArrayList<SimulatedSlave>();
+    List<SlaveOffer> slaveOfferList = new ArrayList<SlaveOffer>();
+    synchronized (this) {
+      for (SimulatedSlave slave: slaves.values()) {
+        if (slave.hasFreeResources() && now >= slave.filteredUntil) {
+          Map<String, String> params = new HashMap<String, String>();
+          params.put("cpus", "" + (int) (slave.totalCpus - slave.usedCpus));
+          params.put("mem", "" + (int) (slave.totalMem - slave.usedMem));
+          slaveOfferList.add(new SlaveOffer(slave.slaveId, slave.host,
+              params));
+          offered.add(slave);
+        }
+      }
+    }
+    if (offered.isEmpty()) {
+      return;
+    }
+    String oid = driver.makeOffer(offered);
+    long start = System.nanoTime();
+    scheduler.resourceOffer(driver, oid, slaveOfferList);
+    offerTimes.add((System.nanoTime() - start) / 1000);
+    offers++;
+    slaveOffers += offered.size();
+  }
+
+  /**
+   * Heartbeat from the TaskTracker on a slave: report the Hadoop tasks whose
+   * runtimes have elapsed as finished to the JobTracker, report the Mesos
+   * tasks that held them as done (unless they are reusable), and start the
+   * tasks the scheduler assigns.
+   */
+  private void heartbeat(SimulatedSlave slave, long now) throws IOException {
+    List<TaskStatus> reports = new ArrayList<TaskStatus>();
+    List<Integer> finished = new ArrayList<Integer>();
+    int maps = 0;
+    int reduces = 0;
+    synchronized (this) {
+      for (SimulatedMesosTask task: slave.tasks.values()) {
+        if (task.isMap) {
+          maps++;
+        } else {
+          reduces++;
+        }
+        if (task.hadoopTask == null) {
+          continue;
+        }
+        if (task.finishTime <= now) {
+          TaskStatus status = createStatus(slave, task, State.SUCCEEDED, 1.0f);
+          status.setFinishTime(now);
+          reports.add(status);
+          task.hadoopTask = null;
+          task.job = null;
+          task.idleSince = now;
+          if (!task.reusable) {
+            finished.add(task.mesosId);
+          }
+        } else {
+          reports.add(createStatus(slave, task, State.RUNNING, 0.5f));
+        }
+      }
+      for (int id: finished) {
+        slave.remove(slave.tasks.get(id));
+      }
+    }
+
+    // The JobTracker registers the tracker and records the finished tasks;
+    // we never let it launch tasks itself, as it would not use Mesos slots
+    TaskTrackerStatus tts = new TaskTrackerStatus(slave.trackerName,
+        slave.host, 0, reports, 0, maps, reduces);
+    tts.getResourceStatus().setAvailableSpace(Long.MAX_VALUE);
+    HeartbeatResponse response = jobTracker.heartbeat(tts, false,
+        slave.initialContact, false, slave.responseId);
+    slave.initialContact = false;
+    slave.responseId = response.getResponseId();
+    for (int id: finished) {
+      scheduler.statusUpdate(driver,
+          new mesos.TaskStatus(id, TaskState.TASK_FINISHED, new byte[0]));
+    }
+    if (maps + reduces == finished.size()) {
+      return;
+    }
+
+    List<Task> assigned =
+      scheduler.assignTasks(jobTracker.getTaskTracker(slave.trackerName));
+    if (assigned == null) {
+      return;
+    }
+    synchronized (this) {
+      for (Task hadoopTask: assigned) {
+        SimulatedMesosTask task =
+          slave.tasks.get(Integer.parseInt(hadoopTask.extraData));
+        if (task == null) {
+          LOG.warn("Task " + hadoopTask.getTaskID() + " assigned to unknown " +
+              "Mesos task " + hadoopTask.extraData);
+          continue;
+        }
+        SimulatedJob job = null;
+        for (SimulatedJob j: runningJobs) {
+          if (j.getJobID().equals(hadoopTask.getJobID())) {
+            job = j;
+          }
+        }
+        assignmentDelays.add(now - task.idleSince);
+        task.hadoopTask = hadoopTask;
+        task.job = job;
+        task.finishTime = now + (long) (getRuntime(job, hadoopTask, tts) /
+            speedup);
+      }
+    }
+  }
+
+  private TaskStatus createStatus(SimulatedSlave slave, SimulatedMesosTask task,
+      State state, float progress) {
+    Task hadoopTask = task.hadoopTask;
+    TaskStatus status = TaskStatus.createTaskStatus(hadoopTask.isMapTask(),
+        hadoopTask.getTaskID(), progress, 1, state, "", "",
+        slave.trackerName, hadoopTask.isMapTask() ?
+            Phase.MAP : Phase.REDUCE, new Counters());
+    status.setStartTime(task.idleSince);
+    return status;
+  }
+
+  // The traced runtime of a task, for maps adjusted to the locality it got
+  private long getRuntime(SimulatedJob job, Task task, TaskTrackerStatus tts) {
+    int partition = task.getTaskID().getTaskID().getId();
+    long runtime;
+    if (task.isMapTask()) {
+      LocalityLevel level = LocalityLevel.fromTask(job, task, tts);
+      mapsLaunched[level.ordinal()]++;
+      runtime = job.story.getMapTaskAttemptInfoAdjusted(partition, 0,
+          level.ordinal()).getRuntime();
+    } else {
+      reducesLaunched++;
+      runtime = job.story.getTaskAttemptInfo(TaskType.REDUCE, partition, 0)
+          .getRuntime();
+    }
+    return Math.max(runtime, 1);
+  }
+
+  private synchronized void sampleUtilization(long elapsed) {
+    for (SimulatedSlave slave: slaves.values()) {
+      for (SimulatedMesosTask task: slave.tasks.values()) {
+        heldSlotTime += elapsed;
+        if (task.hadoopTask != null) {
+          busySlotTime += elapsed;
+        }
+      }
+      usedCpuTime += (long) (slave.usedCpus * elapsed);
+      totalCpuTime += (long) (slave.totalCpus * elapsed);
+    }
+  }
+
+  private void printResults() {
+    double seconds = (System.currentTimeMillis() - startTime) / 1000.0;
+    int totalMaps = 0;
+    for (int count: mapsLaunched) {
+      totalMaps += count;
+    }
+    System.out.println("Simulated " + slaves.size() + " slaves for " +
+        String.format("%.1f", seconds) + " s; " + jobsCompleted + " jobs " +
+        "completed, " + (runningJobs.size() + pendingJobs.size()) + " not");
+    System.out.println(String.format("Offers: %d (%.1f/s), slave offers: %d " +
+        "(%.1f/s), revives: %d, Mesos tasks launched: %d", offers,
+        offers / seconds, slaveOffers, slaveOffers / seconds, revives,
+        mesosTasksLaunched));
+    printPercentiles("Offer processing time (us)", offerTimes);
+    printPercentiles("Mesos task launch/release to Hadoop task (ms)",
+        assignmentDelays);
+    for (LocalityLevel level: LocalityLevel.values()) {
+      System.out.println(String.format("%s-local maps: %d (%.1f%%)", level,
+          mapsLaunched[level.ordinal()],
+          100.0 * mapsLaunched[level.ordinal()] / Math.max(totalMaps, 1)));
+    }
+    System.out.println("Reduces: " + reducesLaunched);
+    System.out.println(String.format("Held slots busy: %.1f%%, " +
+        "cluster CPUs held: %.1f%%",
+        100.0 * busySlotTime / Math.max(heldSlotTime, 1),
+        100.0 * usedCpuTime / Math.max(totalCpuTime, 1)));
+  }
+
+  private static void printPercentiles(String name, List<Long> values) {
+    if (values.isEmpty()) {
+      System.out.println(name + ": no samples");
+      return;
+    }
+    List<Long> sorted = new ArrayList<Long>(values);
+    Collections.sort(sorted);
+    StringBuilder sb = new StringBuilder(name + ":");
+    double[] percentiles = {50, 90, 99, 100};
+    for (double p: percentiles) {
+      int index = (int) Math.ceil(p / 100 * sorted.size()) - 1;
+      sb.append(String.format(" p%.0f=%d", p,
+          sorted.get(Math.max(index, 0))));
+    }
+    System.out.println(sb);
+  }
+
+  public static void main(String[] args) throws Exception {
+    System.exit(ToolRunner.run(new Configuration(),
+        new MesosSchedulerSimulator(), args));
+  }
+}
@@ -0,0 +1,138 @@
+package org.apache.hadoop.mapred;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import org.apache.hadoop.mapreduce.split.JobSplit;
+import org.apache.hadoop.mapreduce.split.JobSplit.TaskSplitMetaInfo;
+import org.apache.hadoop.net.Node;
+
+/**
+ * A job for the Mesos scheduler tests whose maps read splits on the given
+ * hosts, with its TIPs created as in {@link MesosSchedulerSimulator} rather
+ * than from a job submission directory.
+ */
+class FakeMesosJob extends JobInProgress {
+  private static int jobCounter = 0;
+
+  private final String[][] mapHosts;
+
+  /**
+   * Create a job with one map for each entry of mapHosts, which lists the
+   * hosts of the map's split (none for a map without locality), and
+   * mapred.reduce.tasks reduces.
+   */
+  FakeMesosJob(JobConf conf, JobTracker jobTracker, String[][] mapHosts)
+      throws IOException {
+    super(new JobID("test", ++jobCounter), conf, jobTracker);
+    this.mapHosts = mapHosts;
+    initTasks();
+  }
+
+  @Override
+  public synchronized void initTasks() throws IOException {
+    if (tasksInited.get()) {
+      return;
+    }
+    numMapTasks = mapHosts.length;
+    maps = new TaskInProgress[numMapTasks];
+    nonRunningMapCache = new IdentityHashMap<Node, List<TaskInProgress>>();
+    for (int i = 0; i < numMapTasks; i++) {
+      String[] hosts = mapHosts[i];
+      maps[i] = new TaskInProgress(getJobID(), jobFile,
+          new TaskSplitMetaInfo(hosts, 0, 0), jobtracker, getJobConf(),
+          this, i, 1);
+      if (hosts.length == 0) {
+        nonLocalMaps.add(maps[i]);
+      }
+      for (String host: hosts) {
+        Node node = jobtracker.resolveAndAddToTopology(host);
+        for (int level = 0; level < getMaxCacheLevel() && node != null;
+            level++) {
+          List<TaskInProgress> cached = nonRunningMapCache.get(node);
+          if (cached == null) {
+            cached = new ArrayList<TaskInProgress>();
+            nonRunningMapCache.put(node, cached);
+          }
+          if (!cached.contains(maps[i])) {
+            cached.add(maps[i]);
+          }
+          node = node.getParent();
+        }
+      }
+    }
+    reduces = new TaskInProgress[numReduceTasks];
+    for (int i = 0; i < numReduceTasks; i++) {
+      reduces[i] = new TaskInProgress(getJobID(), jobFile, numMapTasks, i,
+          jobtracker, getJobConf(), this, 1);
+      nonRunningReduces.add(reduces[i]);
+    }
+    completedMapsForReduceSlowstart = (int) Math.ceil(
+        getJobConf().getFloat("mapred.reduce.slowstart.completed.maps",
+            0.05f) *
+        numMapTasks);
+
+    // The jobs are started RUNNING by the tests, so their setup and cleanup
+    // TIPs are never run, but they must exist
+    cleanup = new TaskInProgress[2];
+    cleanup[0] = new TaskInProgress(getJobID(), jobFile,
+        JobSplit.EMPTY_TASK_SPLIT, jobtracker, getJobConf(), this,
+        numMapTasks, 1);
+    cleanup[0].setJobCleanupTask();
+    cleanup[1] = new TaskInProgress(getJobID(), jobFile, numMapTasks,
+        numReduceTasks, jobtracker, getJobConf(), this, 1);
+    cleanup[1].setJobCleanupTask();
+    setup = new TaskInProgress[2];
+    setup[0] = new TaskInProgress(getJobID(), jobFile,
+        JobSplit.EMPTY_TASK_SPLIT, jobtracker, getJobConf(), this,
+        numMapTasks + 1, 1);
+    setup[0].setJobSetupTask();
+    setup[1] = new TaskInProgress(getJobID(), jobFile, numMapTasks,
+        numReduceTasks + 1, jobtracker, getJobConf(), this, 1);
+    setup[1].setJobSetupTask();
+
+    launchTime = System.currentTimeMillis();
+    tasksInited.set(true);
+  }
+
+  /**
+   * Add the job to the JobTracker and mark it RUNNING, notifying the given
+   * listeners as the JobTracker would.
+   */
+  void start(List<JobInProgressListener> listeners) throws IOException {
+    synchronized (jobtracker) {
+      jobtracker.jobs.put(getJobID(), this);
+      for (JobInProgressListener listener: listeners) {
+        listener.jobAdded(this);
+      }
+      setRunState(JobStatus.RUNNING, listeners);
+    }
+  }
+
+  /**
+   * Mark the job SUCCEEDED and remove it from the JobTracker, notifying the
+   * given listeners.
+   */
+  void finish(List<JobInProgressListener> listeners) throws IOException {
+    synchronized (jobtracker) {
+      setRunState(JobStatus.SUCCEEDED, listeners);
+      jobtracker.jobs.remove(getJobID());
+      for (JobInProgressListener listener: listeners) {
+        listener.jobRemoved(this);
+      }
+    }
+  }
+
+  private void setRunState(int state, List<JobInProgressListener> listeners) {
+    JobStatus oldStatus = (JobStatus) getStatus().clone();
+    getStatus().setRunState(state);
+    JobStatusChangeEvent event = new JobStatusChangeEvent(this,
+        JobStatusChangeEvent.EventType.RUN_STATE_CHANGED, oldStatus,
+        (JobStatus) getStatus().clone());
+    for (JobInProgressListener listener: listeners) {
+      listener.jobUpdated(event);
+    }
+  }
+}
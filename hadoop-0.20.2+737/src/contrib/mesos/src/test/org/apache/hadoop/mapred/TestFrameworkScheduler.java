@@ -0,0 +1,328 @@
+package org.apache.hadoop.mapred;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.mapred.TaskStatus.Phase;
+import org.apache.hadoop.mapred.TaskStatus.State;
+import org.apache.hadoop.net.DNSToSwitchMapping;
+
+import mesos.FrameworkMessage;
+import mesos.SchedulerDriver;
+import mesos.SlaveOffer;
+import mesos.TaskDescription;
+import mesos.TaskState;
+
+/**
+ * Tests the decisions the {@link FrameworkScheduler} makes on resource
+ * offers and heartbeats: the refusal timeouts, delay scheduling, best-fit
+ * packing of tasks into offers and the reuse of lingering slots. The jobs
+ * are FakeMesosJobs in an in-process JobTracker that is never started.
+ *
+ * FrameworkScheduler and the Mesos API classes are JNI wrappers, so this
+ * needs the Mesos native library on java.library.path.
+ */
+public class TestFrameworkScheduler extends TestCase {
+  // host1 and host2 share /rack1, host3 is on /rack2
+  private static final String HOST1 = "host1.rack1";
+  private static final String HOST2 = "host2.rack1";
+  private static final String HOST3 = "host3.rack2";
+
+  private static final int IDLE_REFUSE_TIMEOUT = 60;
+  private static final int BUSY_REFUSE_TIMEOUT = 2;
+  private static final long LOCALITY_WAIT = 1000;
+
+  private JobConf conf;
+  private JobTracker jobTracker;
+  private FrameworkScheduler scheduler;
+  private FakeDriver driver;
+  private List<JobInProgressListener> listeners;
+  private int nextOfferId = 0;
+  private Map<String, Short> responseIds = new HashMap<String, Short>();
+
+  /**
+   * Records what the scheduler sends to Mesos instead of talking to a
+   * master.
+   */
+  static class FakeDriver extends SchedulerDriver {
+    List<TaskDescription> lastTasks;
+    Map<String, String> lastParams;
+    int revives = 0;
+    List<FrameworkMessage> messages = new ArrayList<FrameworkMessage>();
+
+    @Override
+    public int replyToOffer(String oid, List<TaskDescription> tasks,
+        Map<String, String> params) {
+      lastTasks = tasks;
+      lastParams = params;
+      return 0;
+    }
+
+    @Override
+    public int reviveOffers() {
+      revives++;
+      return 0;
+    }
+
+    @Override
+    public int sendFrameworkMessage(FrameworkMessage message) {
+      messages.add(message);
+      return 0;
+    }
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    setUp(0);
+  }
+
+  private void setUp(long slotLinger) throws Exception {
+    MesosSchedulerSimulator.SimulatedTopology.addHost(HOST1, "/rack1");
+    MesosSchedulerSimulator.SimulatedTopology.addHost(HOST2, "/rack1");
+    MesosSchedulerSimulator.SimulatedTopology.addHost(HOST3, "/rack2");
+    conf = new JobConf();
+    conf.set("mapred.job.tracker", "localhost:0");
+    conf.set("mapred.job.tracker.http.address", "0.0.0.0:0");
+    conf.setClass("topology.node.switch.mapping.impl",
+        MesosSchedulerSimulator.SimulatedTopology.class,
+        DNSToSwitchMapping.class);
+    conf.setInt("mapred.mesos.offer.refuse.idle.seconds", IDLE_REFUSE_TIMEOUT);
+    conf.setInt("mapred.mesos.offer.refuse.busy.seconds", BUSY_REFUSE_TIMEOUT);
+    conf.setLong("mapred.mesos.localitywait", LOCALITY_WAIT);
+    conf.setLong("mapred.mesos.localitywait.rack", LOCALITY_WAIT);
+    conf.setLong("mapred.mesos.slot.linger", slotLinger);
+    // The JobTracker is never started, only used for its topology, jobs and
+    // trackers, so it is left to exit with the JVM as in UtilsForTests
+    jobTracker = new JobTracker(conf);
+    for (String host: new String[] {HOST1, HOST2, HOST3}) {
+      jobTracker.resolveAndAddToTopology(host);
+    }
+
+    // Wire up the MesosScheduler's components as MesosSchedulerSimulator
+    // does. The timeout thread that registering starts is stopped at once,
+    // so that the tests decide when timed out tasks are looked for.
+    MesosScheduler mesosSched = new MesosScheduler();
+    mesosSched.setConf(conf);
+    mesosSched.setTaskTrackerManager(jobTracker);
+    mesosSched.jobTracker = jobTracker;
+    mesosSched.demandIndex = new MesosDemandIndex(jobTracker, conf);
+    scheduler = new FrameworkScheduler(mesosSched);
+    driver = new FakeDriver();
+    scheduler.registered(driver, "test-framework");
+    scheduler.cleanUp();
+    listeners = new ArrayList<JobInProgressListener>();
+    listeners.add(mesosSched.demandIndex);
+    listeners.add(scheduler.getJobListener());
+  }
+
+  private FakeMesosJob submitJob(String[][] mapHosts, int mapMemory)
+      throws Exception {
+    JobConf jobConf = new JobConf(conf);
+    jobConf.setNumReduceTasks(0);
+    if (mapMemory > 0) {
+      jobConf.setMemoryForMapTask(mapMemory);
+    }
+    FakeMesosJob job = new FakeMesosJob(jobConf, jobTracker, mapHosts);
+    job.start(listeners);
+    return job;
+  }
+
+  private static SlaveOffer slave(String host, int cpus, int mem) {
+    Map<String, String> params = new HashMap<String, String>();
+    params.put("cpus", "" + cpus);
+    params.put("mem", "" + mem);
+    return new SlaveOffer("slave-" + host, host, params);
+  }
+
+  // Offer the given slaves and return the Mesos tasks the scheduler launched
+  private List<TaskDescription> offer(SlaveOffer... slaves) {
+    driver.lastTasks = null;
+    scheduler.resourceOffer(driver, "offer-" + (nextOfferId++),
+        Arrays.asList(slaves));
+    assertNotNull("No reply to the offer", driver.lastTasks);
+    return driver.lastTasks;
+  }
+
+  // Offer one slave with room for one task of the default size
+  private List<TaskDescription> offer(String host) {
+    return offer(slave(host, 1, 1024));
+  }
+
+  private int getRefuseTimeout() {
+    return Integer.parseInt(driver.lastParams.get("timeout"));
+  }
+
+  /**
+   * Send a heartbeat from the TaskTracker on a host to the JobTracker,
+   * reporting the given tasks as finished and any other tasks as running,
+   * and return the tasks the scheduler assigns to it.
+   */
+  private List<Task> heartbeat(String host, List<Task> running,
+      List<Task> finished) throws Exception {
+    String trackerName = "tracker_" + host;
+    List<TaskStatus> reports = new ArrayList<TaskStatus>();
+    for (Task task: running) {
+      State state = finished.contains(task) ? State.SUCCEEDED : State.RUNNING;
+      TaskStatus status = TaskStatus.createTaskStatus(task.isMapTask(),
+          task.getTaskID(), state == State.SUCCEEDED ? 1.0f : 0.5f, 1, state,
+          "", "", trackerName, Phase.MAP, new Counters());
+      if (state == State.SUCCEEDED) {
+        status.setFinishTime(System.currentTimeMillis());
+      }
+      reports.add(status);
+    }
+    TaskTrackerStatus tts = new TaskTrackerStatus(trackerName, host, 0,
+        reports, 0, 1, 1);
+    tts.getResourceStatus().setAvailableSpace(Long.MAX_VALUE);
+    Short responseId = responseIds.get(host);
+    HeartbeatResponse response = jobTracker.heartbeat(tts, false,
+        responseId == null, false,
+        responseId == null ? 0 : responseId.shortValue());
+    responseIds.put(host, response.getResponseId());
+    List<Task> assigned =
+      scheduler.assignTasks(jobTracker.getTaskTracker(trackerName));
+    return assigned == null ? new ArrayList<Task>() : assigned;
+  }
+
+  private static void assertMapOn(String host, TaskDescription task) {
+    assertEquals("slave-" + host, task.getSlaveId());
+    assertTrue(task.getName().endsWith("(map)"));
+  }
+
+  /**
+   * Offers are refused for long when there is no demand, offers are revived
+   * when a job arrives, and are refused for short while demand is unmet.
+   */
+  public void testRefuseTimeouts() throws Exception {
+    assertTrue(offer(HOST1).isEmpty());
+    assertEquals(IDLE_REFUSE_TIMEOUT, getRefuseTimeout());
+    assertEquals(0, driver.revives);
+
+    submitJob(new String[][] {{}, {}}, 0);
+    assertEquals(1, driver.revives);
+
+    List<TaskDescription> tasks = offer(HOST1);
+    assertEquals(1, tasks.size());
+    assertMapOn(HOST1, tasks.get(0));
+    assertEquals(BUSY_REFUSE_TIMEOUT, getRefuseTimeout());
+
+    // Both maps now have a Mesos task, so there is no unmet demand left
+    assertEquals(1, offer(HOST2).size());
+    assertEquals(IDLE_REFUSE_TIMEOUT, getRefuseTimeout());
+    assertTrue(offer(HOST3).isEmpty());
+    assertEquals(IDLE_REFUSE_TIMEOUT, getRefuseTimeout());
+    assertEquals(1, driver.revives);
+  }
+
+  /**
+   * A job only takes a rack-local slot after waiting for a node-local one,
+   * and an off-switch slot after waiting for a rack-local one.
+   */
+  public void testDelayScheduling() throws Exception {
+    submitJob(new String[][] {{HOST1}, {HOST1}, {HOST1}, {HOST1}}, 0);
+
+    // Node-local maps are launched at once
+    List<TaskDescription> tasks = offer(HOST1);
+    assertEquals(1, tasks.size());
+    assertMapOn(HOST1, tasks.get(0));
+
+    // Other slots are refused until the job has waited for a local one
+    assertTrue(offer(HOST3).isEmpty());
+    assertEquals(BUSY_REFUSE_TIMEOUT, getRefuseTimeout());
+    assertTrue(offer(HOST2).isEmpty());
+    Thread.sleep(LOCALITY_WAIT + 100);
+    tasks = offer(HOST2);
+    assertEquals(1, tasks.size());
+    assertMapOn(HOST2, tasks.get(0));
+
+    // Having launched a rack-local map, the job waits again before going
+    // off-switch
+    assertTrue(offer(HOST3).isEmpty());
+    Thread.sleep(LOCALITY_WAIT + 100);
+    tasks = offer(HOST3);
+    assertEquals(1, tasks.size());
+    assertMapOn(HOST3, tasks.get(0));
+  }
+
+  /**
+   * A task goes to the offered slave with the least free memory that fits
+   * it, and not to slaves that are too small for it.
+   */
+  public void testBestFitPacking() throws Exception {
+    // host3 is too small even for the default task size, which the
+    // scheduler would use for a setup task on a slave that fits no map
+    submitJob(new String[][] {{}}, 2048);
+    List<TaskDescription> tasks = offer(slave(HOST1, 4, 8192),
+        slave(HOST2, 4, 2048), slave(HOST3, 4, 512));
+    assertEquals(1, tasks.size());
+    assertMapOn(HOST2, tasks.get(0));
+    assertEquals("2048", tasks.get(0).getParams().get("mem"));
+    // Give the slot its map, so the next offers are only for the next job
+    assertEquals(1,
+        heartbeat(HOST2, new ArrayList<Task>(), new ArrayList<Task>()).size());
+
+    submitJob(new String[][] {{}}, 4096);
+    tasks = offer(slave(HOST2, 4, 2048), slave(HOST3, 4, 512));
+    assertTrue(tasks.isEmpty());
+    tasks = offer(slave(HOST1, 4, 8192));
+    assertEquals(1, tasks.size());
+    assertEquals("4096", tasks.get(0).getParams().get("mem"));
+  }
+
+  /**
+   * With mapred.mesos.slot.linger set, a Mesos task runs one Hadoop task
+   * after another without a new offer, and is only given back to Mesos once
+   * it has been idle for the linger time.
+   */
+  public void testSlotReuse() throws Exception {
+    setUp(LOCALITY_WAIT);
+    submitJob(new String[][] {{HOST1}, {HOST1}}, 0);
+    List<TaskDescription> tasks = offer(HOST1);
+    assertEquals(1, tasks.size());
+    TaskDescription slot = tasks.get(0);
+    assertEquals(FrameworkExecutor.REUSABLE_TASK_ARG,
+        new String(slot.getArg(), "US-ASCII"));
+    String mesosId = "" + slot.getTaskId();
+
+    List<Task> running = new ArrayList<Task>();
+    List<Task> none = new ArrayList<Task>();
+    List<Task> assigned = heartbeat(HOST1, running, none);
+    assertEquals(1, assigned.size());
+    Task first = assigned.get(0);
+    assertEquals(mesosId, first.extraData);
+    running.add(first);
+    assertTrue(heartbeat(HOST1, running, none).isEmpty());
+
+    // The finished map's slot is reused for the other map
+    assigned = heartbeat(HOST1, running, running);
+    assertEquals(1, assigned.size());
+    Task second = assigned.get(0);
+    assertEquals(mesosId, second.extraData);
+    assertFalse(first.getTaskID().equals(second.getTaskID()));
+    running.clear();
+    running.add(second);
+    assertTrue(heartbeat(HOST1, running, running).isEmpty());
+
+    // The idle slot lingers, then is released by asking the executor to
+    // report it finished
+    scheduler.killTimedOutTasks();
+    assertTrue(driver.messages.isEmpty());
+    Thread.sleep(LOCALITY_WAIT + 100);
+    scheduler.killTimedOutTasks();
+    assertEquals(1, driver.messages.size());
+    FrameworkMessage message = driver.messages.get(0);
+    assertEquals("slave-" + HOST1, message.getSlaveId());
+    List<HadoopFrameworkMessageBatch.Entry> entries =
+      new HadoopFrameworkMessageBatch(message.getData()).getEntries();
+    assertEquals(1, entries.size());
+    assertEquals(HadoopFrameworkMessage.Type.S2E_SEND_STATUS_UPDATE,
+        entries.get(0).type);
+    assertEquals(slot.getTaskId(), entries.get(0).mesosId);
+    assertEquals(TaskState.TASK_FINISHED, entries.get(0).state);
+  }
+}
@@ -0,0 +1,160 @@
+package org.apache.hadoop.mapred;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.net.DNSToSwitchMapping;
+
+public class TestMesosDemandIndex extends TestCase {
+  // host1 and host2 share /rack1, host3 is on /rack2
+  private static final String HOST1 = "host1.rack1";
+  private static final String HOST2 = "host2.rack1";
+  private static final String HOST3 = "host3.rack2";
+
+  private JobConf conf;
+  private JobTracker jobTracker;
+  private MesosDemandIndex index;
+  private List<JobInProgressListener> listeners;
+
+  @Override
+  protected void setUp() throws Exception {
+    MesosSchedulerSimulator.SimulatedTopology.addHost(HOST1, "/rack1");
+    MesosSchedulerSimulator.SimulatedTopology.addHost(HOST2, "/rack1");
+    MesosSchedulerSimulator.SimulatedTopology.addHost(HOST3, "/rack2");
+    conf = new JobConf();
+    conf.set("mapred.job.tracker", "localhost:0");
+    conf.set("mapred.job.tracker.http.address", "0.0.0.0:0");
+    conf.setClass("topology.node.switch.mapping.impl",
+        MesosSchedulerSimulator.SimulatedTopology.class,
+        DNSToSwitchMapping.class);
+    // The JobTracker is never started, only used for its topology and job
+    // map, so it is left to exit with the JVM as in UtilsForTests
+    jobTracker = new JobTracker(conf);
+    for (String host: new String[] {HOST1, HOST2, HOST3}) {
+      jobTracker.resolveAndAddToTopology(host);
+    }
+    index = new MesosDemandIndex(jobTracker, conf);
+    listeners = Collections.<JobInProgressListener>singletonList(index);
+  }
+
+  private FakeMesosJob submitJob(String[][] mapHosts, int reduces,
+      float slowstart) throws Exception {
+    JobConf jobConf = new JobConf(conf);
+    jobConf.setNumReduceTasks(reduces);
+    jobConf.setFloat("mapred.reduce.slowstart.completed.maps", slowstart);
+    FakeMesosJob job = new FakeMesosJob(jobConf, jobTracker, mapHosts);
+    job.start(listeners);
+    return job;
+  }
+
+  private Task launchMap(JobInProgress job, String host) throws Exception {
+    TaskTrackerStatus tts = new TaskTrackerStatus("tracker_" + host, host,
+        0, new ArrayList<TaskStatus>(), 0, 1, 1);
+    tts.getResourceStatus().setAvailableSpace(Long.MAX_VALUE);
+    Task task = job.obtainNewMapTask(tts, 3, 3, Integer.MAX_VALUE);
+    assertNotNull(task);
+    index.taskLaunched(job, task);
+    return task;
+  }
+
+  /**
+   * Maps are found at the lowest cache level that has one for the host, and
+   * only below the cache level cap asked for.
+   */
+  public void testMapLevels() throws Exception {
+    FakeMesosJob job = submitJob(new String[][] {{HOST1}, {HOST1}}, 0, 1.0f);
+    assertEquals(1, index.getNumJobs());
+    assertEquals(2, index.getMapDemand());
+    assertEquals(2, index.getMapDemand(job));
+    assertTrue(index.hasMapToLaunch(job));
+    assertTrue(index.getJobsWithMapsToLaunch().contains(job));
+
+    int anyLevel = jobTracker.getNumTaskCacheLevels();
+    assertEquals(0, index.getMapLevel(HOST1, Integer.MAX_VALUE));
+    assertEquals(1, index.getMapLevel(HOST2, Integer.MAX_VALUE));
+    assertEquals(anyLevel, index.getMapLevel(HOST3, Integer.MAX_VALUE));
+    assertEquals(0, index.getMapLevel(job, HOST1, 1));
+    assertEquals(-1, index.getMapLevel(job, HOST2, 1));
+    assertEquals(1, index.getMapLevel(job, HOST2, 2));
+    assertEquals(-1, index.getMapLevel(job, HOST3, 2));
+  }
+
+  /**
+   * Maps without split locations can be launched node-locally anywhere.
+   */
+  public void testNonLocalMaps() throws Exception {
+    FakeMesosJob job = submitJob(new String[][] {{}}, 0, 1.0f);
+    assertEquals(1, index.getMapDemand(job));
+    assertEquals(0, index.getMapLevel(job, HOST3, 1));
+  }
+
+  /**
+   * Launched maps no longer count as demand, and a job without maps left is
+   * no longer a candidate for a map slot.
+   */
+  public void testTaskLaunched() throws Exception {
+    FakeMesosJob job = submitJob(new String[][] {{HOST1}, {HOST2}}, 0, 1.0f);
+    launchMap(job, HOST1);
+    assertEquals(1, index.getMapDemand());
+    assertEquals(-1, index.getMapLevel(HOST1, 1));
+    assertEquals(0, index.getMapLevel(HOST2, 1));
+    index.refresh();
+    assertEquals(1, index.getMapDemand());
+
+    launchMap(job, HOST2);
+    assertEquals(0, index.getMapDemand());
+    assertFalse(index.hasMapToLaunch(job));
+    assertTrue(index.getJobsWithMapsToLaunch().isEmpty());
+    assertEquals(-1, index.getMapLevel(HOST3, Integer.MAX_VALUE));
+  }
+
+  /**
+   * Reduces are only demanded once enough of the job's maps have finished.
+   */
+  public void testReduceSlowstart() throws Exception {
+    FakeMesosJob waiting = submitJob(new String[][] {{HOST1}}, 2, 1.0f);
+    assertEquals(0, index.getReduceDemand());
+    assertFalse(index.hasReduceToLaunch());
+    assertFalse(index.hasReduceToLaunch(waiting));
+
+    FakeMesosJob ready = submitJob(new String[][] {{HOST1}}, 3, 0.0f);
+    assertEquals(3, index.getReduceDemand());
+    assertEquals(3, index.getReduceDemand(ready));
+    assertEquals(0, index.getReduceDemand(waiting));
+    assertTrue(index.hasReduceToLaunch());
+    assertEquals(Collections.singleton(ready),
+        index.getJobsWithReducesToLaunch());
+  }
+
+  /**
+   * A job that has been added but is not running yet asks for one slot for
+   * its setup task, and a finished job's demand is removed.
+   */
+  public void testJobLifecycle() throws Exception {
+    JobConf jobConf = new JobConf(conf);
+    jobConf.setNumReduceTasks(1);
+    jobConf.setFloat("mapred.reduce.slowstart.completed.maps", 0.0f);
+    FakeMesosJob job = new FakeMesosJob(jobConf, jobTracker,
+        new String[][] {{HOST1}, {HOST2}});
+    index.jobAdded(job);
+    assertEquals(1, index.getNumJobs());
+    assertEquals(1, index.getMapDemand());
+    assertEquals(0, index.getReduceDemand());
+    assertTrue(index.getRunningJobs().isEmpty());
+    index.jobRemoved(job);
+
+    job.start(listeners);
+    assertEquals(Collections.singletonList(job), index.getRunningJobs());
+    assertEquals(2, index.getMapDemand());
+    assertEquals(1, index.getReduceDemand());
+
+    job.finish(listeners);
+    assertEquals(0, index.getNumJobs());
+    assertEquals(0, index.getMapDemand());
+    assertEquals(0, index.getReduceDemand());
+    assertEquals(-1, index.getMapLevel(HOST1, Integer.MAX_VALUE));
+  }
+}
@@ -45,9 +45,24 @@ public class NativeIO {
   public static final int O_FSYNC = O_SYNC;
   public static final int O_NDELAY = O_NONBLOCK;
 
+  // Flags for posix_fadvise() from bits/fcntl.h
+  /* No further special treatment.  */
+  public static final int POSIX_FADV_NORMAL = 0;
+  /* Expect random page references.  */
+  public static final int POSIX_FADV_RANDOM = 1;
+  /* Expect sequential page references.  */
+  public static final int POSIX_FADV_SEQUENTIAL = 2;
+  /* Will need these pages.  */
+  public static final int POSIX_FADV_WILLNEED = 3;
+  /* Don't need these pages.  */
+  public static final int POSIX_FADV_DONTNEED = 4;
+  /* Data will be accessed once.  */
+  public static final int POSIX_FADV_NOREUSE = 5;
+
   private static final Log LOG = LogFactory.getLog(NativeIO.class);
 
   private static boolean nativeLoaded = false;
+  private static volatile boolean fadvisePossible = true;
 
   static {
     if (NativeCodeLoader.isNativeCodeLoaded()) {
@@ -76,6 +91,30 @@ public class NativeIO {
   public static native Stat fstat(FileDescriptor fd) throws IOException;
   /** Initialize the JNI method ID and class ID cache */
   private static native void initNative();
+  /** Wrapper around posix_fadvise(2) */
+  static native void posix_fadvise(FileDescriptor fd, long offset, long len,
+                                   int flags) throws NativeIOException;
+
+  /**
+   * Call posix_fadvise on the given file descriptor if the native library
+   * supports it. If the platform lacks posix_fadvise, later calls do
+   * nothing at all.
+   *
+   * @throws NativeIOException if the call itself fails
+   */
+  public static void posixFadviseIfPossible(FileDescriptor fd, long offset,
+      long len, int flags) throws NativeIOException {
+    if (nativeLoaded && fadvisePossible) {
+      try {
+        posix_fadvise(fd, offset, len, flags);
+      } catch (UnsupportedOperationException uoe) {
+        fadvisePossible = false;
+      } catch (UnsatisfiedLinkError ule) {
+        // an older libhadoop.so without the call
+        fadvisePossible = false;
+      }
+    }
+  }
 
 
   /**
@@ -0,0 +1,644 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapred.JobHistory.Keys;
+import org.apache.hadoop.mapred.JobHistory.Listener;
+import org.apache.hadoop.mapred.JobHistory.RecordTypes;
+
+/**
+ * The binary format of the job history files, written instead of the text
+ * format when mapred.job.history.format is "binary". It holds the same
+ * records, read back through the same {@link Listener}s.
+ *
+ * A file is made of a header, the events of the job, a summary of the job,
+ * an index of the events of each task and a trailer:
+ *
+ *   header:  'H' 'J' 'B' version flags
+ *   events:  block* where a block is (recordType #values (key value)*)*
+ *            followed by 255, or by 0 for the last block
+ *   summary: the records of the job, its tasks and their attempts, in the
+ *            same form but without the counters, splits and state strings
+ *            of the tasks and attempts, followed by 0
+ *   index:   #blocks blockOffset* #entries (taskId block)*
+ *   trailer: summaryOffset indexOffset 'H' 'J' 'B' version
+ *
+ * Record types and keys are written as their ordinal plus one. A value is
+ * a number, a string, or for keys with few distinct values such as hosts
+ * and task states, the index of a string written before in the same block.
+ * When compressed, each block of events and the summary are separate
+ * deflate streams, so that a block can be read on its own.
+ *
+ * The summary is what the history web pages need to show a job and its
+ * tasks, without reading the counters of every task attempt. The index
+ * lists the blocks holding the records of each task, so that the page of
+ * one task only reads those. Both are kept in memory until the file is
+ * closed, so they are given up, and the file written without a trailer,
+ * once they grow past a limit. Files with no trailer, of running jobs, of a
+ * JobTracker that was lost or with too large a summary, are read from their
+ * events as far as they go. Files of version 1 have their events in a
+ * single block, and neither index nor index offset.
+ */
+class BinaryJobHistory {
+
+  static final byte VERSION = 2;
+  // the version without blocks and index
+  private static final byte UNINDEXED_VERSION = 1;
+  private static final byte[] MAGIC = {'H', 'J', 'B'};
+  private static final int COMPRESSED = 1;
+  private static final int HEADER_LENGTH = MAGIC.length + 2;
+  private static final int UNINDEXED_TRAILER_LENGTH = 8 + MAGIC.length + 1;
+  private static final int TRAILER_LENGTH = 8 + UNINDEXED_TRAILER_LENGTH;
+
+  // the ends of the blocks of records
+  private static final int END = 0;
+  private static final int BLOCK_END = 255;
+
+  // the bytes of events after which a new block is started
+  private static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+  // value tags, the indexes of the strings written before follow them
+  private static final int STRING = 0;
+  private static final int NUMBER = 1;
+  private static final int SHARED_STRING = 2;
+
+  // keys whose values are shared, as they take only a few distinct values
+  private static final Set<Keys> SHARED_KEYS =
+    EnumSet.of(Keys.JOBID, Keys.JOBTRACKERID, Keys.USER, Keys.JOB_QUEUE,
+               Keys.TASK_TYPE, Keys.TASK_STATUS, Keys.JOB_STATUS,
+               Keys.HOSTNAME, Keys.TRACKER_NAME, Keys.HTTP_PORT);
+
+  // values of tasks and attempts left out of the summary
+  private static final Set<Keys> DETAIL_KEYS =
+    EnumSet.of(Keys.COUNTERS, Keys.SPLITS, Keys.STATE_STRING);
+
+  private BinaryJobHistory() {
+  }
+
+  /**
+   * Whether a value goes in the summary of the job.
+   */
+  private static boolean inSummary(RecordTypes recordType, Keys key) {
+    switch (recordType) {
+    case Meta:
+      return false;
+    case Job:
+    case Jobtracker:
+      return true;
+    default:
+      return !DETAIL_KEYS.contains(key);
+    }
+  }
+
+  /**
+   * Whether a value is a number that reads back as the same string.
+   */
+  private static boolean isNumber(String value) {
+    int length = value.length();
+    int start = (length > 0 && value.charAt(0) == '-') ? 1 : 0;
+    // no empty strings, leading zeros, "-0" or more digits than a long has
+    if (length == start || length - start > 18 ||
+        (value.charAt(start) == '0' && (length > start + 1 || start > 0))) {
+      return false;
+    }
+    for (int i = start; i < length; ++i) {
+      char c = value.charAt(i);
+      if (c < '0' || c > '9') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Writes records to a stream, sharing the values of the shared keys.
+   */
+  private static class RecordEncoder {
+    private final DataOutputStream out;
+    private final Map<String, Integer> sharedStrings =
+      new HashMap<String, Integer>();
+    private final boolean summary;
+
+    RecordEncoder(OutputStream out, boolean summary) {
+      this.out = new DataOutputStream(out);
+      this.summary = summary;
+    }
+
+    void write(RecordTypes recordType, Keys[] keys, String[] values)
+    throws IOException {
+      int count = 0;
+      for (Keys key : keys) {
+        if (!summary || inSummary(recordType, key)) {
+          ++count;
+        }
+      }
+      if (count == 0) {
+        return;
+      }
+      out.writeByte(recordType.ordinal() + 1);
+      WritableUtils.writeVInt(out, count);
+      for (int i = 0; i < keys.length; ++i) {
+        if (!summary || inSummary(recordType, keys[i])) {
+          out.writeByte(keys[i].ordinal() + 1);
+          writeValue(keys[i], String.valueOf(values[i]));
+        }
+      }
+    }
+
+    private void writeValue(Keys key, String value) throws IOException {
+      if (SHARED_KEYS.contains(key)) {
+        Integer index = sharedStrings.get(value);
+        if (index != null) {
+          WritableUtils.writeVInt(out, SHARED_STRING + index);
+          return;
+        }
+        sharedStrings.put(value, sharedStrings.size());
+      } else if (isNumber(value)) {
+        WritableUtils.writeVInt(out, NUMBER);
+        WritableUtils.writeVLong(out, Long.parseLong(value));
+        return;
+      }
+      WritableUtils.writeVInt(out, STRING);
+      Text.writeString(out, value);
+    }
+
+    /** The number of bytes written. */
+    int size() {
+      return out.size();
+    }
+
+    /**
+     * Marks the end of the records, or of a block of them.
+     * @param end {@link #END} or {@link #BLOCK_END}
+     */
+    void close(int end) throws IOException {
+      out.writeByte(end);
+      out.flush();
+    }
+  }
+
+  /**
+   * A history file writer in the binary format. It only writes the records
+   * logged through {@link JobHistory#log(java.util.ArrayList, RecordTypes,
+   * Keys[], String[])}, and writes the summary and the trailer on close.
+   * Like a PrintWriter, it does not throw: errors are seen through
+   * {@link #checkError()}.
+   */
+  static class Writer extends PrintWriter {
+    private final FSDataOutputStream out;
+    private final Deflater eventsDeflater;
+    private final Deflater summaryDeflater;
+    private DeflaterOutputStream eventsOut;
+    private final DeflaterOutputStream summaryOut;
+    private RecordEncoder events;
+    // the summary and the index are kept aside, the summary compressed if
+    // the file is, until the end; null once they were given up for growing
+    // past summaryLimit
+    private DataOutputBuffer summaryBuffer = new DataOutputBuffer();
+    private final RecordEncoder summary;
+    private DataOutputBuffer blockOffsets = new DataOutputBuffer();
+    private DataOutputBuffer indexEntries = new DataOutputBuffer();
+    private int numBlocks = 0;
+    private int numIndexEntries = 0;
+    // the tasks with records in the current block
+    private final Set<String> blockTasks = new HashSet<String>();
+    private final int summaryLimit;
+    private final int blockSize;
+    private boolean closed = false;
+
+    /**
+     * @param out the history file
+     * @param compress whether to deflate the records
+     * @param summaryLimit the most bytes of summary and index to keep in
+     *                     memory
+     */
+    Writer(FSDataOutputStream out, boolean compress, int summaryLimit)
+    throws IOException {
+      this(out, compress, summaryLimit, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * @param out the history file
+     * @param compress whether to deflate the records
+     * @param summaryLimit the most bytes of summary and index to keep in
+     *                     memory
+     * @param blockSize the bytes of events after which a block ends
+     */
+    Writer(FSDataOutputStream out, boolean compress, int summaryLimit,
+           int blockSize) throws IOException {
+      super(out);
+      this.out = out;
+      this.summaryLimit = summaryLimit;
+      this.blockSize = blockSize;
+      out.write(MAGIC);
+      out.writeByte(VERSION);
+      out.writeByte(compress ? COMPRESSED : 0);
+      if (compress) {
+        eventsDeflater = new Deflater();
+        summaryDeflater = new Deflater();
+        summaryOut = new DeflaterOutputStream(summaryBuffer, summaryDeflater);
+        summary = new RecordEncoder(summaryOut, true);
+      } else {
+        eventsDeflater = summaryDeflater = null;
+        summaryOut = null;
+        summary = new RecordEncoder(summaryBuffer, true);
+      }
+      startBlock();
+    }
+
+    /**
+     * Start a block of events, with shared strings of its own and, when
+     * compressed, in a deflate stream of its own.
+     */
+    private void startBlock() throws IOException {
+      if (summaryBuffer != null) {
+        WritableUtils.writeVLong(blockOffsets, out.getPos());
+      }
+      ++numBlocks;
+      blockTasks.clear();
+      if (eventsDeflater != null) {
+        eventsDeflater.reset();
+        eventsOut = new DeflaterOutputStream(out, eventsDeflater);
+        events = new RecordEncoder(eventsOut, false);
+      } else {
+        events = new RecordEncoder(out, false);
+      }
+    }
+
+    private void endBlock(int end) throws IOException {
+      events.close(end);
+      if (eventsOut != null) {
+        eventsOut.finish();
+      }
+    }
+
+    /**
+     * Add the current block to the index of a task, unless it is there.
+     */
+    private void indexTask(Keys[] keys, String[] values) throws IOException {
+      for (int i = 0; i < keys.length; ++i) {
+        if (keys[i] == Keys.TASKID) {
+          if (values[i] != null && blockTasks.add(values[i])) {
+            Text.writeString(indexEntries, values[i]);
+            WritableUtils.writeVInt(indexEntries, numBlocks - 1);
+            ++numIndexEntries;
+          }
+          return;
+        }
+      }
+    }
+
+    /**
+     * Write a record of the given keys and values, which are not escaped.
+     */
+    void log(RecordTypes recordType, Keys[] keys, String[] values) {
+      synchronized (lock) {
+        if (closed) {
+          return;
+        }
+        try {
+          if (events.size() >= blockSize) {
+            endBlock(BLOCK_END);
+            startBlock();
+          }
+          events.write(recordType, keys, values);
+          if (summaryBuffer != null) {
+            summary.write(recordType, keys, values);
+            indexTask(keys, values);
+            if (summaryBuffer.getLength() + blockOffsets.getLength() +
+                indexEntries.getLength() > summaryLimit) {
+              dropSummary();
+            }
+          }
+        } catch (IOException e) {
+          setError();
+        }
+      }
+    }
+
+    private void dropSummary() {
+      summaryBuffer = null;
+      blockOffsets = null;
+      indexEntries = null;
+      if (summaryDeflater != null) {
+        summaryDeflater.end();
+      }
+    }
+
+    @Override
+    public void flush() {
+      synchronized (lock) {
+        if (closed) {
+          return;
+        }
+        try {
+          if (eventsOut != null) {
+            eventsOut.flush();
+          }
+          out.flush();
+        } catch (IOException e) {
+          setError();
+        }
+      }
+    }
+
+    @Override
+    public void close() {
+      synchronized (lock) {
+        if (closed) {
+          return;
+        }
+        closed = true;
+        try {
+          endBlock(END);
+          if (summaryBuffer != null) {
+            summary.close(END);
+            if (summaryOut != null) {
+              summaryOut.finish();
+            }
+            long summaryOffset = out.getPos();
+            out.write(summaryBuffer.getData(), 0, summaryBuffer.getLength());
+            long indexOffset = out.getPos();
+            WritableUtils.writeVInt(out, numBlocks);
+            out.write(blockOffsets.getData(), 0, blockOffsets.getLength());
+            WritableUtils.writeVInt(out, numIndexEntries);
+            out.write(indexEntries.getData(), 0, indexEntries.getLength());
+            out.writeLong(summaryOffset);
+            out.writeLong(indexOffset);
+            out.write(MAGIC);
+            out.writeByte(VERSION);
+          }
+        } catch (IOException e) {
+          setError();
+        } finally {
+          if (eventsDeflater != null) {
+            eventsDeflater.end();
+          }
+          if (summaryBuffer != null) {
+            dropSummary();
+          }
+        }
+        super.close();
+      }
+    }
+  }
+
+  /**
+   * Whether a history file is in the binary format. The stream is left at
+   * the start of the file.
+   */
+  static boolean isBinary(FSDataInputStream in) throws IOException {
+    byte[] header = new byte[MAGIC.length];
+    int read = 0;
+    while (read < header.length) {
+      int n = in.read(header, read, header.length - read);
+      if (n < 0) {
+        break;
+      }
+      read += n;
+    }
+    in.seek(0);
+    return read == header.length && Arrays.equals(header, MAGIC);
+  }
+
+  /**
+   * Passes each event of a binary history file to the listener.
+   * @param in the history file, at its start
+   * @param l the listener for the events
+   */
+  static void parse(FSDataInputStream in, Listener l) throws IOException {
+    readHeader(in);
+    int flags = in.readByte();
+    while (decode(in, flags, l)) {
+      // on to the next block
+    }
+  }
+
+  /**
+   * Passes the summary of the job in a binary history file to the listener,
+   * or each of its events if the file was not closed.
+   * @param in the history file, at its start
+   * @param length the length of the file
+   * @param l the listener for the records
+   */
+  static void parseSummary(FSDataInputStream in, long length, Listener l)
+  throws IOException {
+    byte version = readHeader(in);
+    int flags = in.readByte();
+    int trailerLength = (version == UNINDEXED_VERSION)
+      ? UNINDEXED_TRAILER_LENGTH : TRAILER_LENGTH;
+    if (readTrailer(in, length, version, trailerLength)) {
+      in.seek(in.readLong());
+      decode(in, flags, l);
+      return;
+    }
+    in.seek(HEADER_LENGTH);
+    while (decode(in, flags, l)) {
+      // on to the next block
+    }
+  }
+
+  /**
+   * Passes the records of the blocks that hold the records of a task to
+   * the listener, which sees the records of other tasks in those blocks
+   * too.
+   * @param in the history file, at its start
+   * @param length the length of the file
+   * @param taskId the task
+   * @param l the listener for the records
+   * @return false, having passed nothing, if the file has no index
+   */
+  static boolean parseTask(FSDataInputStream in, long length, String taskId,
+                           Listener l) throws IOException {
+    byte version = readHeader(in);
+    int flags = in.readByte();
+    if (version == UNINDEXED_VERSION ||
+        !readTrailer(in, length, version, TRAILER_LENGTH)) {
+      return false;
+    }
+    in.readLong();
+    in.seek(in.readLong());
+    long[] blockOffsets = new long[WritableUtils.readVInt(in)];
+    for (int i = 0; i < blockOffsets.length; ++i) {
+      blockOffsets[i] = WritableUtils.readVLong(in);
+    }
+    List<Long> taskBlocks = new ArrayList<Long>();
+    int numEntries = WritableUtils.readVInt(in);
+    for (int i = 0; i < numEntries; ++i) {
+      String id = Text.readString(in);
+      int block = WritableUtils.readVInt(in);
+      if (id.equals(taskId)) {
+        if (block < 0 || block >= blockOffsets.length) {
+          throw new IOException("Bad job history index entry for " + taskId);
+        }
+        taskBlocks.add(blockOffsets[block]);
+      }
+    }
+    for (long offset : taskBlocks) {
+      in.seek(offset);
+      decode(in, flags, l);
+    }
+    return true;
+  }
+
+  /**
+   * Checks that a file ends with a trailer, and leaves the stream at the
+   * start of it.
+   */
+  private static boolean readTrailer(FSDataInputStream in, long length,
+                                     byte version, int trailerLength)
+  throws IOException {
+    if (length < HEADER_LENGTH + trailerLength) {
+      return false;
+    }
+    in.seek(length - MAGIC.length - 1);
+    byte[] magic = new byte[MAGIC.length];
+    in.readFully(magic);
+    if (!Arrays.equals(magic, MAGIC) || in.readByte() != version) {
+      return false;
+    }
+    in.seek(length - trailerLength);
+    return true;
+  }
+
+  /**
+   * Checks the header of a file, up to its flags.
+   * @return the version of the file
+   */
+  private static byte readHeader(FSDataInputStream in) throws IOException {
+    byte[] magic = new byte[MAGIC.length];
+    in.readFully(magic);
+    byte version = in.readByte();
+    if (!Arrays.equals(magic, MAGIC) ||
+        (version != VERSION && version != UNINDEXED_VERSION)) {
+      throw new IOException("Unknown job history format version " + version);
+    }
+    return version;
+  }
+
+  /**
+   * Reads a block of records up to its end, or to the end of the stream for
+   * files that were not closed, and passes them to the listener. The
+   * stream is left at the start of the next block, if any.
+   * @return whether another block follows
+   */
+  private static boolean decode(FSDataInputStream file, int flags,
+                                Listener l) throws IOException {
+    Inflater inflater = null;
+    DataInputStream in = file;
+    if ((flags & COMPRESSED) != 0) {
+      inflater = new Inflater();
+      in = new DataInputStream(new InflaterInputStream(file, inflater));
+    }
+    RecordTypes[] recordTypes = RecordTypes.values();
+    Keys[] keys = Keys.values();
+    List<String> sharedStrings = new ArrayList<String>();
+    Map<Keys, String> values = new HashMap<Keys, String>();
+    try {
+      while (true) {
+        RecordTypes recordType;
+        try {
+          int type = in.readUnsignedByte();
+          if (type == END) {
+            return false;
+          }
+          if (type == BLOCK_END) {
+            if (inflater != null) {
+              // the deflate stream ends after the records; leave the file
+              // at the first byte it did not use
+              while (in.read() >= 0) {
+                // only the end of the stream is left
+              }
+              file.seek(file.getPos() - inflater.getRemaining());
+            }
+            return true;
+          }
+          if (type > recordTypes.length) {
+            throw new IOException("Unknown job history record type " + type);
+          }
+          recordType = recordTypes[type - 1];
+          int count = WritableUtils.readVInt(in);
+          for (int i = 0; i < count; ++i) {
+            int keyIndex = in.readUnsignedByte();
+            if (keyIndex < 1 || keyIndex > keys.length) {
+              throw new IOException("Unknown job history key " + keyIndex +
+                                    " in a " + recordType + " record");
+            }
+            Keys key = keys[keyIndex - 1];
+            values.put(key, readValue(in, key, sharedStrings));
+          }
+        } catch (EOFException e) {
+          // the file was not closed, the last record may be incomplete
+          return false;
+        }
+        l.handle(recordType, values);
+        values.clear();
+      }
+    } finally {
+      if (inflater != null) {
+        inflater.end();
+      }
+    }
+  }
+
+  private static String readValue(DataInputStream in, Keys key,
+                                  List<String> sharedStrings)
+  throws IOException {
+    int tag = WritableUtils.readVInt(in);
+    switch (tag) {
+    case STRING:
+      String value = Text.readString(in);
+      if (SHARED_KEYS.contains(key)) {
+        sharedStrings.add(value);
+      }
+      return value;
+    case NUMBER:
+      return Long.toString(WritableUtils.readVLong(in));
+    default:
+      int index = tag - SHARED_STRING;
+      if (index < 0 || index >= sharedStrings.size()) {
+        throw new IOException("Bad job history value for " + key);
+      }
+      return sharedStrings.get(index);
+    }
+  }
+}
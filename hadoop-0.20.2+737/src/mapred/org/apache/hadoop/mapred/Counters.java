@@ -63,6 +63,195 @@ public class Counters implements Writable, Iterable<Counters.Group> {
                                           UNIT_OPEN, UNIT_CLOSE};
   
   //private static Log log = LogFactory.getLog("Counters.class");
+
+  /**
+   * What all the groups of a name share: the localized names and, for the
+   * groups of the framework, the numbers the group and its counters are 
+   * written by instead of their names. Only the groups of the framework
+   * share one instance; every group of another name has its own, so that
+   * user counter names do not outlive their jobs.
+   */
+  private static class GroupInfo {
+    final String name;
+    final int id;
+    final ResourceBundle bundle;
+    final String displayName;
+    private final String[] counterNames;
+    private final String[] counterDisplayNames;
+    private final Map<String, Integer> counterIds = 
+      new HashMap<String, Integer>();
+    // localized names of the other counters, for a group that is not
+    // shared; guarded by the lock of the group
+    private final Map<String, String> otherDisplayNames;
+
+    /**
+     * @param name the group name
+     * @param id the number of the group on the wire, 0 to write its name
+     * @param counters the counters written by number, the first as 1
+     */
+    GroupInfo(String name, int id, Enum<?>... counters) {
+      this.name = name;
+      this.id = id;
+      ResourceBundle bundle = null;
+      try {
+        bundle = getResourceBundle(name);
+      }
+      catch (MissingResourceException neverMind) {
+      }
+      this.bundle = bundle;
+      this.displayName = localize("CounterGroupName", name);
+      counterNames = new String[counters.length];
+      counterDisplayNames = new String[counters.length];
+      for (int i = 0; i < counters.length; ++i) {
+        counterNames[i] = counters[i].toString();
+        counterDisplayNames[i] = 
+          localize(counterNames[i] + ".name", counterNames[i]);
+        counterIds.put(counterNames[i], i + 1);
+      }
+      otherDisplayNames = (id == 0) ? new HashMap<String, String>() : null;
+    }
+
+    /**
+     * Returns the specified resource bundle, or throws an exception.
+     * @throws MissingResourceException if the bundle isn't found
+     */
+    private static ResourceBundle getResourceBundle(String enumClassName) {
+      String bundleName = enumClassName.replace('$','_');
+      return ResourceBundle.getBundle(bundleName);
+    }
+
+    /**
+     * Looks up key in the ResourceBundle and returns the corresponding value.
+     * If the bundle or the key doesn't exist, returns the default value.
+     */
+    private String localize(String key, String defaultValue) {
+      String result = defaultValue;
+      if (bundle != null) {
+        try {
+          result = bundle.getString(key);
+        }
+        catch (MissingResourceException mre) {
+        }
+      }
+      return result;
+    }
+
+    /** The shared instance of a counter name of this group, if it has one. */
+    String getCounterName(String counterName) {
+      int id = getCounterId(counterName);
+      return (id == 0) ? counterName : counterNames[id - 1];
+    }
+
+    /** The counter written as the given number. */
+    String getCounterName(int counterId) throws IOException {
+      if (counterId < 1 || counterId > counterNames.length) {
+        throw new IOException("Unknown counter " + counterId + 
+                              " in group " + name);
+      }
+      return counterNames[counterId - 1];
+    }
+
+    /** The number the counter is written as, 0 to write its name. */
+    int getCounterId(String counterName) {
+      Integer id = counterIds.get(counterName);
+      return (id == null) ? 0 : id;
+    }
+
+    /** The localized name of a counter of this group. */
+    String getCounterDisplayName(String counterName) {
+      int id = getCounterId(counterName);
+      if (id != 0) {
+        return counterDisplayNames[id - 1];
+      }
+      if (otherDisplayNames == null) {
+        return localize(counterName + ".name", counterName);
+      }
+      String result = otherDisplayNames.get(counterName);
+      if (result == null) {
+        result = localize(counterName + ".name", counterName);
+        otherDisplayNames.put(counterName, result);
+      }
+      return result;
+    }
+  }
+
+  /**
+   * The groups of the framework, by their numbers on the wire. The numbers
+   * of the groups and of their counters are positions in these tables and
+   * part of the wire format, so counters may only be added at the end;
+   * counters missing from a table are written by name.
+   */
+  private static final GroupInfo[] knownGroups = {
+    new GroupInfo(Task.Counter.class.getName(), 1,
+                  Task.Counter.MAP_INPUT_RECORDS,
+                  Task.Counter.MAP_OUTPUT_RECORDS,
+                  Task.Counter.MAP_SKIPPED_RECORDS,
+                  Task.Counter.MAP_INPUT_BYTES,
+                  Task.Counter.MAP_OUTPUT_BYTES,
+                  Task.Counter.COMBINE_INPUT_RECORDS,
+                  Task.Counter.COMBINE_OUTPUT_RECORDS,
+                  Task.Counter.REDUCE_INPUT_GROUPS,
+                  Task.Counter.REDUCE_SHUFFLE_BYTES,
+                  Task.Counter.REDUCE_INPUT_RECORDS,
+                  Task.Counter.REDUCE_OUTPUT_RECORDS,
+                  Task.Counter.REDUCE_SKIPPED_GROUPS,
+                  Task.Counter.REDUCE_SKIPPED_RECORDS,
+                  Task.Counter.SPILLED_RECORDS,
+                  Task.Counter.SPLIT_RAW_BYTES,
+                  Task.Counter.REDUCE_PUSHED_OUTPUTS),
+    new GroupInfo(JobInProgress.Counter.class.getName(), 2,
+                  JobInProgress.Counter.NUM_FAILED_MAPS,
+                  JobInProgress.Counter.NUM_FAILED_REDUCES,
+                  JobInProgress.Counter.TOTAL_LAUNCHED_MAPS,
+                  JobInProgress.Counter.TOTAL_LAUNCHED_REDUCES,
+                  JobInProgress.Counter.OTHER_LOCAL_MAPS,
+                  JobInProgress.Counter.DATA_LOCAL_MAPS,
+                  JobInProgress.Counter.RACK_LOCAL_MAPS,
+                  JobInProgress.Counter.SLOTS_MILLIS_MAPS,
+                  JobInProgress.Counter.SLOTS_MILLIS_REDUCES,
+                  JobInProgress.Counter.FALLOW_SLOTS_MILLIS_MAPS,
+                  JobInProgress.Counter.FALLOW_SLOTS_MILLIS_REDUCES),
+    new GroupInfo(Task.FILESYSTEM_COUNTER_GROUP, 3)
+  };
+
+  // read only once the class is initialized
+  private static final Map<String, GroupInfo> knownGroupInfos = 
+    new HashMap<String, GroupInfo>();
+  static {
+    for (GroupInfo info : knownGroups) {
+      knownGroupInfos.put(info.name, info);
+    }
+  }
+
+  private static GroupInfo getGroupInfo(String groupName) {
+    GroupInfo result = knownGroupInfos.get(groupName);
+    return (result == null) ? new GroupInfo(groupName, 0) : result;
+  }
+
+  private static GroupInfo getGroupInfo(int groupId) throws IOException {
+    if (groupId < 1 || groupId > knownGroups.length) {
+      throw new IOException("Unknown counter group " + groupId);
+    }
+    return knownGroups[groupId - 1];
+  }
+
+  /**
+   * Write a display name, or only that it is the default one.
+   */
+  private static void writeDisplayName(DataOutput out, String displayName,
+                                       String defaultName) 
+  throws IOException {
+    boolean distinctDisplayName = !displayName.equals(defaultName);
+    out.writeBoolean(distinctDisplayName);
+    if (distinctDisplayName) {
+      Text.writeString(out, displayName);
+    }
+  }
+
+  private static String readDisplayName(DataInput in, String defaultName) 
+  throws IOException {
+    return in.readBoolean() ? Text.readString(in) : defaultName;
+  }
   
   /**
    * A counter record, comprising its name and value. 
@@ -128,7 +317,7 @@ public class Counters implements Writable, Iterable<Counters.Group> {
      * What is the current value of this counter?
      * @return the current value
      */
-    public synchronized long getCounter() {
+    public long getCounter() {
       return getValue();
     }
     
@@ -142,36 +331,22 @@ public class Counters implements Writable, Iterable<Counters.Group> {
    *  counter names.</p>
    */
   public static class Group implements Writable, Iterable<Counter> {
+    // Localization and wire numbers of the group and counter names
+    private final GroupInfo info;
     private String groupName;
     private String displayName;
     private Map<String, Counter> subcounters = new HashMap<String, Counter>();
     
-    // Optional ResourceBundle for localization of group and counter names.
-    private ResourceBundle bundle = null;    
-    
     Group(String groupName) {
-      try {
-        bundle = getResourceBundle(groupName);
-      }
-      catch (MissingResourceException neverMind) {
-      }
-      this.groupName = groupName;
-      this.displayName = localize("CounterGroupName", groupName);
+      this.info = getGroupInfo(groupName);
+      this.groupName = info.name;
+      this.displayName = info.displayName;
       if (LOG.isDebugEnabled()) {
         LOG.debug("Creating group " + groupName + " with " +
-               (bundle == null ? "nothing" : "bundle"));
+               (info.bundle == null ? "nothing" : "bundle"));
       }
     }
     
-    /**
-     * Returns the specified resource bundle, or throws an exception.
-     * @throws MissingResourceException if the bundle isn't found
-     */
-    private static ResourceBundle getResourceBundle(String enumClassName) {
-      String bundleName = enumClassName.replace('$','_');
-      return ResourceBundle.getBundle(bundleName);
-    }
-    
     /**
      * Returns raw name of the group.  This is the name of the enum class
      * for this group of counters.
@@ -303,7 +478,8 @@ public class Counters implements Writable, Iterable<Counters.Group> {
         if (LOG.isDebugEnabled()) {
           LOG.debug("Adding " + name);
         }
-        result = new Counter(name, localize(name + ".name", name), 0L);
+        name = info.getCounterName(name);
+        result = new Counter(name, info.getCounterDisplayName(name), 0L);
         subcounters.put(name, result);
       }
       return result;
@@ -317,37 +493,37 @@ public class Counters implements Writable, Iterable<Counters.Group> {
     }
     
     /**
-     * Looks up key in the ResourceBundle and returns the corresponding value.
-     * If the bundle or the key doesn't exist, returns the default value.
+     * Write the group. The counters of the framework are written by number,
+     * and display names only when they are not the localized ones.
      */
-    private String localize(String key, String defaultValue) {
-      String result = defaultValue;
-      if (bundle != null) {
-        try {
-          result = bundle.getString(key);
-        }
-        catch (MissingResourceException mre) {
-        }
-      }
-      return result;
-    }
-    
     public synchronized void write(DataOutput out) throws IOException {
-      Text.writeString(out, displayName);
+      writeDisplayName(out, displayName, info.displayName);
       WritableUtils.writeVInt(out, subcounters.size());
       for(Counter counter: subcounters.values()) {
-        counter.write(out);
+        String name = counter.getName();
+        int id = info.getCounterId(name);
+        WritableUtils.writeVInt(out, id);
+        if (id == 0) {
+          Text.writeString(out, name);
+        }
+        writeDisplayName(out, counter.getDisplayName(), 
+                         info.getCounterDisplayName(name));
+        WritableUtils.writeVLong(out, counter.getValue());
       }
     }
     
     public synchronized void readFields(DataInput in) throws IOException {
-      displayName = Text.readString(in);
+      displayName = readDisplayName(in, info.displayName);
       subcounters.clear();
       int size = WritableUtils.readVInt(in);
       for(int i=0; i < size; i++) {
-        Counter counter = new Counter();
-        counter.readFields(in);
-        subcounters.put(counter.getName(), counter);
+        int id = WritableUtils.readVInt(in);
+        String name = (id == 0) ? info.getCounterName(Text.readString(in))
+                                : info.getCounterName(id);
+        String counterDisplayName = 
+          readDisplayName(in, info.getCounterDisplayName(name));
+        long value = WritableUtils.readVLong(in);
+        subcounters.put(name, new Counter(name, counterDisplayName, value));
       }
     }
 
@@ -436,7 +612,7 @@ public class Counters implements Writable, Iterable<Counters.Group> {
    * @param key identifies a counter
    * @param amount amount by which counter is to be incremented
    */
-  public synchronized void incrCounter(Enum key, long amount) {
+  public void incrCounter(Enum key, long amount) {
     findCounter(key).increment(amount);
   }
   
@@ -455,7 +631,7 @@ public class Counters implements Writable, Iterable<Counters.Group> {
    * Returns current value of the specified counter, or 0 if the counter
    * does not exist.
    */
-  public synchronized long getCounter(Enum key) {
+  public long getCounter(Enum key) {
     return findCounter(key).getValue();
   }
   
@@ -476,6 +652,90 @@ public class Counters implements Writable, Iterable<Counters.Group> {
     }
   }
 
+  /**
+   * Decrements multiple counters by their amounts in another Counters 
+   * instance, undoing an earlier {@link #incrAllCounters(Counters)}.
+   * @param other the other Counters instance
+   */
+  synchronized void decrAllCounters(Counters other) {
+    for (Group otherGroup: other) {
+      Group group = getGroup(otherGroup.getName());
+      for (Counter otherCounter : otherGroup) {
+        group.getCounterForName(otherCounter.getName()).increment(
+            -otherCounter.getValue());
+      }
+    }
+  }
+
+  /**
+   * Whether this instance has every counter of another one, which then 
+   * does not change the counters and display names of this instance when
+   * it is added or taken off.
+   * @param other the other Counters instance
+   */
+  synchronized boolean containsAll(Counters other) {
+    for (Group otherGroup: other) {
+      Group group = counters.get(otherGroup.getName());
+      if (group == null || 
+          !group.displayName.equals(otherGroup.displayName)) {
+        return false;
+      }
+      for (Counter otherCounter : otherGroup) {
+        Counter counter = group.subcounters.get(otherCounter.getName());
+        if (counter == null || 
+            !counter.getDisplayName().equals(otherCounter.getDisplayName())) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Sets multiple counters to their values in another Counters instance,
+   * leaving the counters it does not have as they are.
+   * @param other the other Counters instance
+   */
+  synchronized void setAllCounters(Counters other) {
+    for (Group otherGroup: other) {
+      Group group = getGroup(otherGroup.getName());
+      group.displayName = otherGroup.displayName;
+      for (Counter otherCounter : otherGroup) {
+        Counter counter = group.getCounterForName(otherCounter.getName());
+        counter.setDisplayName(otherCounter.getDisplayName());
+        counter.increment(otherCounter.getValue() - counter.getValue());
+      }
+    }
+  }
+
+  /**
+   * Returns the counters whose values differ from those in an earlier
+   * instance, including the counters the earlier one did not have.
+   * {@link #setAllCounters(Counters)} applies them back onto the earlier 
+   * instance.
+   * @param previous the earlier Counters instance
+   */
+  synchronized Counters getChangedCounters(Counters previous) {
+    Counters changed = new Counters();
+    for (Group group : this) {
+      Group previousGroup = previous.counters.get(group.getName());
+      for (Counter counter : group) {
+        Counter previousCounter = (previousGroup == null) ? null :
+          previousGroup.subcounters.get(counter.getName());
+        if (previousCounter == null ||
+            previousCounter.getValue() != counter.getValue()) {
+          Group changedGroup = changed.getGroup(group.getName());
+          changedGroup.displayName = group.displayName;
+          Counter changedCounter = 
+            changedGroup.getCounterForName(counter.getName());
+          changedCounter.setDisplayName(counter.getDisplayName());
+          changedCounter.increment(counter.getValue());
+        }
+      }
+    }
+    return changed;
+  }
+
   /**
    * Convenience method for computing the sum of two sets of counters.
    */
@@ -501,21 +761,25 @@ public class Counters implements Writable, Iterable<Counters.Group> {
   /**
    * Write the set of groups.
    * The external format is:
-   *     #groups (groupName group)*
+   *     #groups (groupId [groupName] group)*
    *
    * i.e. the number of groups followed by 0 or more groups, where each 
    * group is of the form:
    *
-   *     groupDisplayName #counters (false | true counter)*
+   *     (false | true groupDisplayName) #counters (counterId [name] 
+   *       (false | true displayName) value)*
    *
-   * where each counter is of the form:
-   *
-   *     name (false | true displayName) value
+   * The groups and counters of the framework are written by number, the 
+   * others as id 0 followed by their name, and the display names only when
+   * they are not the localized ones.
    */
   public synchronized void write(DataOutput out) throws IOException {
-    out.writeInt(counters.size());
+    WritableUtils.writeVInt(out, counters.size());
     for (Group group: counters.values()) {
-      Text.writeString(out, group.getName());
+      WritableUtils.writeVInt(out, group.info.id);
+      if (group.info.id == 0) {
+        Text.writeString(out, group.getName());
+      }
       group.write(out);
     }
   }
@@ -524,13 +788,16 @@ public class Counters implements Writable, Iterable<Counters.Group> {
    * Read a set of groups.
    */
   public synchronized void readFields(DataInput in) throws IOException {
-    int numClasses = in.readInt();
+    int numClasses = WritableUtils.readVInt(in);
     counters.clear();
+    cache.clear();
     while (numClasses-- > 0) {
-      String groupName = Text.readString(in);
+      int groupId = WritableUtils.readVInt(in);
+      String groupName = (groupId == 0) ? Text.readString(in)
+                                        : getGroupInfo(groupId).name;
       Group group = new Group(groupName);
       group.readFields(in);
-      counters.put(groupName, group);
+      counters.put(group.getName(), group);
     }
   }
   
@@ -50,6 +50,50 @@ public class DefaultJobHistoryParser {
     JobHistory.parseHistoryFromFS(jobHistoryFile, 
                             new JobTasksParseListener(job), fs);
   }
+
+  /**
+   * Populates a JobInfo object from the summary of the job in its history
+   * log file, which leaves out the counters, splits and state strings of
+   * the tasks and their attempts when the file has one. 
+   * @param jobHistoryFile history file for this job. 
+   * @param job a precreated JobInfo object, should be non-null. 
+   * @param fs FileSystem where historyFile is present. 
+   * @throws IOException
+   */
+  public static void parseJobTasksSummary(String jobHistoryFile, 
+                       JobHistory.JobInfo job, FileSystem fs)
+    throws IOException {
+    JobHistory.parseHistorySummaryFromFS(jobHistoryFile, 
+                            new JobTasksParseListener(job), fs);
+  }
+
+  /**
+   * Reads one task of a job, with all the details of its attempts, from the
+   * job's history log file, seeking to the records of the task when the file
+   * has an index of them. 
+   * @param jobHistoryFile history file for this job. 
+   * @param jobId the job of the task. 
+   * @param taskId the task to read. 
+   * @param fs FileSystem where historyFile is present. 
+   * @return the task, or null if the history has no such task
+   * @throws IOException
+   */
+  public static JobHistory.Task parseTask(String jobHistoryFile, 
+                       String jobId, final String taskId, FileSystem fs)
+    throws IOException {
+    JobHistory.JobInfo job = new JobHistory.JobInfo(jobId);
+    final JobTasksParseListener tasks = new JobTasksParseListener(job);
+    JobHistory.parseTaskHistoryFromFS(jobHistoryFile, taskId, 
+        new JobHistory.Listener() {
+      public void handle(JobHistory.RecordTypes recType, 
+                         Map<Keys, String> values) throws IOException {
+        if (taskId.equals(values.get(Keys.TASKID))) {
+          tasks.handle(recType, values);
+        }
+      }
+    }, fs);
+    return job.getAllTasks().get(taskId);
+  }
   
   /**
    * Listener for Job's history log file, it populates JobHistory.JobInfo 
@@ -42,6 +42,7 @@ class HeartbeatResponse implements Writable, Configurable {
   int heartbeatInterval;
   TaskTrackerAction[] actions;
   Set<JobID> recoveredJobs = new HashSet<JobID>();
+  boolean fullStatusRequired = false;
 
   HeartbeatResponse() {}
   
@@ -90,6 +91,18 @@ class HeartbeatResponse implements Writable, Configurable {
   public int getHeartbeatInterval() {
     return heartbeatInterval;
   }
+
+  /**
+   * Ask the {@link TaskTracker} to resend its status in full, because the
+   * {@link JobTracker} could not apply the changes it sent.
+   */
+  public void setFullStatusRequired(boolean required) {
+    this.fullStatusRequired = required;
+  }
+
+  public boolean isFullStatusRequired() {
+    return fullStatusRequired;
+  }
   
   public void write(DataOutput out) throws IOException {
     out.writeShort(responseId);
@@ -108,6 +121,7 @@ class HeartbeatResponse implements Writable, Configurable {
     for (JobID id : recoveredJobs) {
       id.write(out);
     }
+    out.writeBoolean(fullStatusRequired);
   }
   
   public void readFields(DataInput in) throws IOException {
@@ -132,5 +146,6 @@ class HeartbeatResponse implements Writable, Configurable {
       id.readFields(in);
       recoveredJobs.add(id);
     }
+    fullStatusRequired = in.readBoolean();
   }
 }
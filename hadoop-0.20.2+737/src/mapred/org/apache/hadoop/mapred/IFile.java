@@ -17,6 +17,7 @@
  */
 package org.apache.hadoop.mapred;
 
+import java.io.ByteArrayInputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileOutputStream;
@@ -24,7 +25,6 @@ import java.io.IOException;
 import java.io.InputStream;
 
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
@@ -287,7 +287,7 @@ class IFile {
      * @param readsCounter Counter for records read from disk
      * @throws IOException
      */
-    public Reader(Configuration conf, FSDataInputStream in, long length, 
+    public Reader(Configuration conf, InputStream in, long length, 
                   CompressionCodec codec,
                   Counters.Counter readsCounter) throws IOException {
       readRecordsCounter = readsCounter;
@@ -564,4 +564,52 @@ class IFile {
       ramManager.unreserve(bufferSize);
     }
   }
+
+  /**
+   * <code>IFile.CompressedInMemoryReader</code> to read map-outputs held
+   * in memory as they were fetched, with their checksum, decompressing them
+   * as they are read. The memory reserved for such a map-output includes
+   * that of the buffers used to decompress it, see
+   * {@link #getMemoryOverhead(Configuration)}, and all of it is returned to
+   * the RamManager when the reader is closed.
+   */
+  public static class CompressedInMemoryReader<K, V> extends Reader<K, V> {
+    // the compressed and decompressed buffers of a pooled decompressor,
+    // such as the zlib one
+    private static final int DECOMPRESSOR_BUFFER_SIZE = 2 * 64 * 1024;
+
+    private final RamManager ramManager;
+    private final int reserved;
+
+    public CompressedInMemoryReader(Configuration conf, RamManager ramManager,
+                                    byte[] data, int reserved,
+                                    CompressionCodec codec)
+                                    throws IOException {
+      super(conf, new ByteArrayInputStream(data), data.length, codec, null);
+      this.ramManager = ramManager;
+      this.reserved = reserved;
+    }
+
+    /**
+     * Get the memory a reader needs besides the map-output it reads: its
+     * record buffer, the buffer of the decompressing stream and those of
+     * the decompressor. A record larger than io.file.buffer.size grows the
+     * record buffer beyond this.
+     */
+    public static int getMemoryOverhead(Configuration conf) {
+      return 2 * conf.getInt("io.file.buffer.size",
+                             Reader.DEFAULT_BUFFER_SIZE) +
+        DECOMPRESSOR_BUFFER_SIZE;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        // Inform the RamManager
+        ramManager.unreserve(reserved);
+      }
+    }
+  }
 }
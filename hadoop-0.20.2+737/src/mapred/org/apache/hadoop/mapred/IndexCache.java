@@ -18,34 +18,68 @@
 package org.apache.hadoop.mapred;
 
 import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.TaskTracker.ShuffleServerMetrics;
 
+/**
+ * Caches the index files of the map outputs on a tracker.
+ *
+ * Entries are evicted in least recently used order once the cache holds
+ * more than mapred.tasktracker.indexcache.mb. An entry that has been read
+ * as many times as its map has partitions has likely been read by every
+ * reduce, so such entries are evicted before all others. The index of a
+ * finished map may be loaded ahead of the first request for it, see
+ * {@link #prefetchIndexInformation(String, Path, String)}.
+ */
 class IndexCache {
 
   private final JobConf conf;
   private final int totalMemoryAllowed;
-  private AtomicInteger totalMemoryUsed = new AtomicInteger();
   private static final Log LOG = LogFactory.getLog(IndexCache.class);
 
   private final ConcurrentHashMap<String,IndexInformation> cache =
     new ConcurrentHashMap<String,IndexInformation>();
-  
-  private final LinkedBlockingQueue<String> queue = 
-    new LinkedBlockingQueue<String>();
+
+  // the loaded entries in access order, and the memory they take;
+  // guarded by this
+  private final LinkedHashMap<String,IndexInformation> active =
+    new LinkedHashMap<String,IndexInformation>(16, 0.75f, true);
+  private final LinkedHashMap<String,IndexInformation> spent =
+    new LinkedHashMap<String,IndexInformation>(16, 0.75f, true);
+  private int totalMemoryUsed = 0;
+
+  private final boolean prefetch;
+  private ExecutorService prefetcher = null;
+  private volatile ShuffleServerMetrics metrics = null;
 
   public IndexCache(JobConf conf) {
     this.conf = conf;
     totalMemoryAllowed =
       conf.getInt("mapred.tasktracker.indexcache.mb", 10) * 1024 * 1024;
+    prefetch = conf.getBoolean("mapred.tasktracker.indexcache.prefetch", true);
     LOG.info("IndexCache created with max memory = " + totalMemoryAllowed);
   }
 
+  /**
+   * Report hits, misses, evictions and prefetches to the given metrics.
+   */
+  void setMetrics(ShuffleServerMetrics metrics) {
+    this.metrics = metrics;
+  }
+
   /**
    * This method gets the index information for the given mapId and reduce.
    * It reads the index file into cache if it is not already present.
@@ -63,18 +97,11 @@ class IndexCache {
     IndexInformation info = cache.get(mapId);
 
     if (info == null) {
-      info = readIndexFileToCache(fileName, mapId, expectedIndexOwner);
+      info = readIndexFileToCache(fileName, mapId, expectedIndexOwner, false);
     } else {
-      synchronized (info) {
-        while (null == info.mapSpillRecord) {
-          try {
-            info.wait();
-          } catch (InterruptedException e) {
-            throw new IOException("Interrupted waiting for construction", e);
-          }
-        }
-      }
+      waitForConstruction(info);
       LOG.debug("IndexCache HIT: MapId " + mapId + " found");
+      hit(mapId, info);
     }
 
     if (info.mapSpillRecord.size() == 0 ||
@@ -86,24 +113,122 @@ class IndexCache {
     return info.mapSpillRecord.getIndex(reduce);
   }
 
+  /**
+   * Load the index of a map output into the cache, if it is not there
+   * already, ahead of the first request for it. The index is read by a
+   * background thread; errors are only logged, as a later request reads
+   * the index again.
+   * @param mapId
+   * @param fileName The file to read the index information from
+   * @param expectedIndexOwner The expected owner of the index file
+   */
+  public void prefetchIndexInformation(final String mapId,
+      final Path fileName, final String expectedIndexOwner) {
+    if (!prefetch || cache.containsKey(mapId)) {
+      return;
+    }
+    try {
+      getPrefetcher().execute(new Runnable() {
+        public void run() {
+          if (cache.containsKey(mapId)) {
+            return;
+          }
+          try {
+            readIndexFileToCache(fileName, mapId, expectedIndexOwner, true);
+          } catch (IOException e) {
+            LOG.warn("Failed to prefetch the index of " + mapId + ": " + e);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      LOG.debug("Not prefetching the index of " + mapId + ", cache closed");
+    }
+  }
+
+  private synchronized ExecutorService getPrefetcher() {
+    if (prefetcher == null) {
+      prefetcher = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+          new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+              Thread t = new Thread(r, "IndexCache prefetcher");
+              t.setDaemon(true);
+              return t;
+            }
+          });
+    }
+    return prefetcher;
+  }
+
+  /**
+   * Stop prefetching. Indices already cached are still served.
+   */
+  public synchronized void close() {
+    if (prefetcher != null) {
+      prefetcher.shutdownNow();
+    }
+  }
+
+  /**
+   * Whether the index of the given map has been loaded; for testing.
+   */
+  boolean isCached(String mapId) {
+    IndexInformation info = cache.get(mapId);
+    if (info == null) {
+      return false;
+    }
+    synchronized (info) {
+      return info.mapSpillRecord != null;
+    }
+  }
+
+  private static void waitForConstruction(IndexInformation info)
+      throws IOException {
+    synchronized (info) {
+      while (null == info.mapSpillRecord) {
+        try {
+          info.wait();
+        } catch (InterruptedException e) {
+          throw new IOException("Interrupted waiting for construction", e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Note a read of a cached index, moving it to the back of the eviction
+   * order it is in.
+   */
+  private synchronized void hit(String mapId, IndexInformation info) {
+    ShuffleServerMetrics m = metrics;
+    if (m != null) {
+      m.indexCacheHit();
+    }
+    ++info.reads;
+    if (active.get(mapId) == info) {
+      if (info.reads >= info.mapSpillRecord.size()) {
+        active.remove(mapId);
+        spent.put(mapId, info);
+      }
+    } else {
+      spent.get(mapId);
+    }
+  }
+
   private IndexInformation readIndexFileToCache(Path indexFileName,
-      String mapId, String expectedIndexOwner) throws IOException {
+      String mapId, String expectedIndexOwner, boolean prefetched)
+      throws IOException {
     IndexInformation info;
     IndexInformation newInd = new IndexInformation();
     if ((info = cache.putIfAbsent(mapId, newInd)) != null) {
-      synchronized (info) {
-        while (null == info.mapSpillRecord) {
-          try {
-            info.wait();
-          } catch (InterruptedException e) {
-            throw new IOException("Interrupted waiting for construction", e);
-          }
-        }
+      waitForConstruction(info);
+      if (!prefetched) {
+        LOG.debug("IndexCache HIT: MapId " + mapId + " found");
+        hit(mapId, info);
       }
-      LOG.debug("IndexCache HIT: MapId " + mapId + " found");
       return info;
     }
-    LOG.debug("IndexCache MISS: MapId " + mapId + " not found") ;
+    LOG.debug("IndexCache " + (prefetched ? "PREFETCH" : "MISS") +
+              ": MapId " + mapId + " not found") ;
     SpillRecord tmp = null;
     try { 
       tmp = new SpillRecord(indexFileName, conf, expectedIndexOwner);
@@ -117,25 +242,50 @@ class IndexCache {
         newInd.notifyAll();
       } 
     } 
-    queue.add(mapId);
-    
-    if (totalMemoryUsed.addAndGet(newInd.getSize()) > totalMemoryAllowed) {
-      freeIndexInformation();
-    }
+    added(mapId, newInd, prefetched);
     return newInd;
   }
 
+  /**
+   * Account for a newly read index, and bring memory usage back below
+   * totalMemoryAllowed.
+   */
+  private synchronized void added(String mapId, IndexInformation info,
+                                  boolean prefetched) {
+    ShuffleServerMetrics m = metrics;
+    if (m != null) {
+      if (prefetched) {
+        m.indexCachePrefetch();
+      } else {
+        m.indexCacheMiss();
+      }
+    }
+    if (cache.get(mapId) != info) {
+      return;  // removed while it was read
+    }
+    // Hits that waited for the read have been counted already
+    if (!prefetched) {
+      ++info.reads;
+    }
+    if (info.reads >= info.mapSpillRecord.size()) {
+      spent.put(mapId, info);
+    } else {
+      active.put(mapId, info);
+    }
+    totalMemoryUsed += info.getSize();
+    freeIndexInformation();
+  }
+
   /**
    * This method removes the map from the cache. It should be called when
    * a map output on this tracker is discarded.
    * @param mapId The taskID of this map.
    */
-  public void removeMap(String mapId) {
+  public synchronized void removeMap(String mapId) {
     IndexInformation info = cache.remove(mapId);
     if (info != null) {
-      totalMemoryUsed.addAndGet(-info.getSize());
-      if (!queue.remove(mapId)) {
-        LOG.warn("Map ID" + mapId + " not found in queue!!");
+      if (active.remove(mapId) == info || spent.remove(mapId) == info) {
+        totalMemoryUsed -= info.getSize();
       }
     } else {
       LOG.info("Map ID " + mapId + " not found in cache");
@@ -143,20 +293,33 @@ class IndexCache {
   }
 
   /**
-   * Bring memory usage below totalMemoryAllowed.
+   * Bring memory usage below totalMemoryAllowed, evicting the entries
+   * that were read by all reduces first.
    */
   private synchronized void freeIndexInformation() {
-    while (totalMemoryUsed.get() > totalMemoryAllowed) {
-      String s = queue.remove();
-      IndexInformation info = cache.remove(s);
-      if (info != null) {
-        totalMemoryUsed.addAndGet(-info.getSize());
+    while (totalMemoryUsed > totalMemoryAllowed) {
+      LinkedHashMap<String,IndexInformation> victims =
+        spent.isEmpty() ? active : spent;
+      if (victims.isEmpty()) {
+        break;
+      }
+      Iterator<Map.Entry<String,IndexInformation>> eldest =
+        victims.entrySet().iterator();
+      Map.Entry<String,IndexInformation> e = eldest.next();
+      eldest.remove();
+      cache.remove(e.getKey(), e.getValue());
+      totalMemoryUsed -= e.getValue().getSize();
+      ShuffleServerMetrics m = metrics;
+      if (m != null) {
+        m.indexCacheEviction();
       }
     }
   }
 
   private static class IndexInformation {
     SpillRecord mapSpillRecord;
+    // reads since the index was loaded; guarded by the IndexCache
+    int reads;
 
     int getSize() {
       return mapSpillRecord == null
@@ -69,8 +69,13 @@ interface InterTrackerProtocol extends VersionedProtocol {
    * Version 26: Added numRequiredSlots to TaskStatus for MAPREDUCE-516
    * Version 27: Adding node health status to TaskStatus for MAPREDUCE-211
    * Version 28: Adding user name to the serialized Task for use by TT.
+   * Version 29: Added getReduceLocations for pushing map outputs to reduces
+   * Version 30: Heartbeats carry only the task statuses and counters that
+   *             changed since the last acknowledged heartbeat
+   * Version 31: Counters are written with numbers for the framework's
+   *             groups and counters
    */
-  public static final long versionID = 28L;
+  public static final long versionID = 31L;
   
   public final static int TRACKERS_OK = 0;
   public final static int UNKNOWN_TASKTRACKER = 1;
@@ -134,6 +139,17 @@ interface InterTrackerProtocol extends VersionedProtocol {
   TaskCompletionEvent[] getTaskCompletionEvents(JobID jobid, int fromEventId
       , int maxEvents) throws IOException;
 
+  /**
+   * Get the http addresses of the task trackers running the reduces of a
+   * job, so that its maps can push their outputs to them.
+   * @param jobid job id
+   * @return the http address of the task tracker running each reduce,
+   *         indexed by partition; an entry is null if the reduce is not
+   *         running
+   * @throws IOException
+   */
+  String[] getReduceLocations(JobID jobid) throws IOException;
+
   /**
    * Grab the jobtracker system directory path where job-specific files are to be placed.
    * 
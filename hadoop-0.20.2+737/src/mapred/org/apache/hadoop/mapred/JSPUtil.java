@@ -55,6 +55,10 @@ class JSPUtil {
   private static final Map<String, JobInfo> jobHistoryCache = 
     new LinkedHashMap<String, JobInfo>(); 
 
+  // tasks read with all their details, by history file and task id
+  private static final Map<String, JobHistory.Task> taskHistoryCache = 
+    new LinkedHashMap<String, JobHistory.Task>(); 
+
   private static final Log LOG = LogFactory.getLog(JSPUtil.class);
 
   /**
@@ -455,6 +459,10 @@ class JSPUtil {
   /**
    * Read a job-history log file and construct the corresponding {@link JobInfo}
    * . Also cache the {@link JobInfo} for quick serving further requests.
+   * The counters, splits and state strings of the tasks and their attempts 
+   * are left out when the file has a summary of the job, see 
+   * {@link #getTaskInfo(String, String, String, FileSystem, JobTracker)} 
+   * for those.
    * 
    * @param logFile
    * @param fs
@@ -472,8 +480,8 @@ class JSPUtil {
         jobInfo = new JobHistory.JobInfo(jobid);
         LOG.info("Loading Job History file "+jobid + ".   Cache size is " +
             jobHistoryCache.size());
-        DefaultJobHistoryParser.parseJobTasks(logFile.toUri().getPath(),
-            jobInfo, fs);
+        DefaultJobHistoryParser.parseJobTasksSummary(
+            logFile.toUri().getPath(), jobInfo, fs);
       }
       jobHistoryCache.put(jobid, jobInfo);
       int CACHE_SIZE = 
@@ -502,6 +510,41 @@ class JSPUtil {
     return jobInfo;
   }
 
+  /**
+   * Read one task of a job, with the counters, splits and state strings of
+   * the task and its attempts, from the job-history log file. Only the
+   * blocks holding the records of the task are read when the file has an
+   * index of them, and the whole file otherwise, so the tasks last read are
+   * cached, as many as the jobs kept by 
+   * {@link #getJobInfo(Path, FileSystem, JobTracker, String)}. The access to
+   * the job must have been checked already.
+   * 
+   * @return the task, or null if the job has no such task
+   */
+  static JobHistory.Task getTaskInfo(String logFile, String jobid,
+      String tipid, FileSystem fs, JobTracker jobTracker) throws IOException {
+    String key = logFile + "#" + tipid;
+    synchronized(taskHistoryCache) {
+      JobHistory.Task task = taskHistoryCache.remove(key);
+      if (task == null) {
+        task = DefaultJobHistoryParser.parseTask(logFile, jobid, tipid, fs);
+        if (task == null) {
+          return null;
+        }
+      }
+      taskHistoryCache.put(key, task);
+      int CACHE_SIZE = 
+        jobTracker.conf.getInt("mapred.job.tracker.jobhistory.lru.cache.size", 5);
+      if (taskHistoryCache.size() > CACHE_SIZE) {
+        Iterator<Map.Entry<String, JobHistory.Task>> it = 
+          taskHistoryCache.entrySet().iterator();
+        it.next();
+        it.remove();
+      }
+      return task;
+    }
+  }
+
   /**
    * Check the access for users to view job-history pages.
    * 
@@ -82,6 +82,11 @@ import org.apache.hadoop.util.StringUtils;
  * Version 1 : Changes the line delimiter to '.'
                Values are now escaped for unambiguous parsing. 
                Added the Meta tag to store version info.
+ *
+ * With mapred.job.history.format set to "binary", the job history files are
+ * written in the format of {@link BinaryJobHistory} instead, which also 
+ * holds a summary of the job for the history web pages. Both formats are 
+ * read by {@link #parseHistoryFromFS(String, Listener, FileSystem)}.
  */
 public class JobHistory {
   
@@ -116,6 +121,9 @@ public class JobHistory {
   private static JobConf jtConf;
   private static Path DONE = null; // folder for completed jobs
   private static boolean aclsEnabled = false;
+  private static boolean binaryHistory = false;
+  private static boolean compressHistory = false;
+  private static int historySummaryLimit = 16 * 1024 * 1024;
   /**
    * A filter for conf files
    */  
@@ -348,6 +356,13 @@ public class JobHistory {
       // queue and job level security is enabled on the mapreduce cluster or not
       aclsEnabled = conf.getBoolean(JobConf.MR_ACLS_ENABLED, false);
 
+      // the format of the history files written from now on
+      binaryHistory = 
+        "binary".equals(conf.get("mapred.job.history.format", "text"));
+      compressHistory = conf.getBoolean("mapred.job.history.compress", false);
+      historySummaryLimit = conf.getInt("mapred.job.history.summary.max.bytes",
+                                        16 * 1024 * 1024);
+
       // initialize the file manager
       fileManager = new JobHistoryFilesManager(conf, jobTracker);
     } catch(IOException e) {
@@ -465,6 +480,14 @@ public class JobHistory {
   public static void parseHistoryFromFS(String path, Listener l, FileSystem fs)
   throws IOException{
     FSDataInputStream in = fs.open(new Path(path));
+    if (BinaryJobHistory.isBinary(in)) {
+      try {
+        BinaryJobHistory.parse(in, l);
+      } finally {
+        in.close();
+      }
+      return;
+    }
     BufferedReader reader = new BufferedReader(new InputStreamReader (in));
     try {
       String line = null; 
@@ -502,6 +525,61 @@ public class JobHistory {
     }
   }
 
+  /**
+   * Parses the summary of a job from its history file: the records of the
+   * job, its tasks and their attempts, but not the counters, splits and 
+   * state strings of the tasks and attempts. Only binary history files 
+   * have a summary, the others are parsed whole.
+   * @param path path to history file
+   * @param l Listener for history events 
+   * @param fs FileSystem where history file is present
+   * @throws IOException
+   */
+  public static void parseHistorySummaryFromFS(String path, Listener l, 
+                                               FileSystem fs)
+  throws IOException {
+    Path historyFile = new Path(path);
+    FSDataInputStream in = fs.open(historyFile);
+    try {
+      if (BinaryJobHistory.isBinary(in)) {
+        BinaryJobHistory.parseSummary(in, 
+            fs.getFileStatus(historyFile).getLen(), l);
+        return;
+      }
+    } finally {
+      in.close();
+    }
+    parseHistoryFromFS(path, l, fs);
+  }
+
+  /**
+   * Parses the records of one task from its job's history file. Binary
+   * history files with an index only have the blocks holding the records 
+   * of the task read, so the listener may also see records of other tasks; 
+   * the others are parsed whole.
+   * @param path path to history file
+   * @param taskId the task
+   * @param l Listener for history events 
+   * @param fs FileSystem where history file is present
+   * @throws IOException
+   */
+  public static void parseTaskHistoryFromFS(String path, String taskId,
+                                            Listener l, FileSystem fs)
+  throws IOException {
+    Path historyFile = new Path(path);
+    FSDataInputStream in = fs.open(historyFile);
+    try {
+      if (BinaryJobHistory.isBinary(in) &&
+          BinaryJobHistory.parseTask(in, 
+              fs.getFileStatus(historyFile).getLen(), taskId, l)) {
+        return;
+      }
+    } finally {
+      in.close();
+    }
+    parseHistoryFromFS(path, l, fs);
+  }
+
   /**
    * Parse a single line of history. 
    * @param line
@@ -544,6 +622,11 @@ public class JobHistory {
   
   static void log(PrintWriter out, RecordTypes recordType, Keys key, 
                   String value){
+    if (out instanceof BinaryJobHistory.Writer) {
+      ((BinaryJobHistory.Writer)out).log(recordType, new Keys[] {key}, 
+                                         new String[] {value});
+      return;
+    }
     value = escapeString(value);
     out.println(recordType.name() + DELIMITER + key + "=\"" + value + "\""
                 + DELIMITER + LINE_DELIMITER_CHAR); 
@@ -560,6 +643,19 @@ public class JobHistory {
   static void log(ArrayList<PrintWriter> writers, RecordTypes recordType, 
                   Keys[] keys, String[] values) {
 
+    // Binary writers take the values as they are
+    boolean textWriters = false;
+    for (PrintWriter out : writers) {
+      if (out instanceof BinaryJobHistory.Writer) {
+        ((BinaryJobHistory.Writer)out).log(recordType, keys, values);
+      } else {
+        textWriters = true;
+      }
+    }
+    if (!textWriters) {
+      return;
+    }
+
     // First up calculate the length of buffer, so that we are performant
     // enough.
     int length = recordType.name().length() + keys.length * 4 + 2;
@@ -582,10 +678,24 @@ public class JobHistory {
     builder.append(LINE_DELIMITER_CHAR);
     
     for (PrintWriter out : writers) {
-      out.println(builder.toString());
+      if (!(out instanceof BinaryJobHistory.Writer)) {
+        out.println(builder.toString());
+      }
     }
   }
   
+  /**
+   * Creates a writer for a new history file, in the configured format.
+   */
+  private static PrintWriter createHistoryWriter(FSDataOutputStream out) 
+  throws IOException {
+    if (binaryHistory) {
+      return new BinaryJobHistory.Writer(out, compressHistory,
+                                         historySummaryLimit);
+    }
+    return new PrintWriter(out);
+  }
+
   /**
    * Returns history disable status. by default history is enabled so this
    * method returns false. 
@@ -1237,7 +1347,7 @@ public class JobHistory {
                             defaultBufferSize, 
                             LOGDIR_FS.getDefaultReplication(), 
                             jobHistoryBlockSize, null);
-            writer = new PrintWriter(out);
+            writer = createHistoryWriter(out);
             fileManager.addWriter(jobId, writer);
 
             // cache it ...
@@ -1254,7 +1364,7 @@ public class JobHistory {
             fs = userLogFile.getFileSystem(jobConf);
  
             out = fs.create(userLogFile, true, 4096);
-            writer = new PrintWriter(out);
+            writer = createHistoryWriter(out);
             fileManager.addWriter(jobId, writer);
           }
           
@@ -119,6 +119,13 @@ public class JobInProgress {
   // speculative tasks separately 
   int speculativeMapTasks = 0;
   int speculativeReduceTasks = 0;
+
+  // The http address of the tracker running an attempt of each reduce, for
+  // the maps that push their outputs. The array is copied on write so that
+  // it can be read without the job's lock; the attempts it is for are kept
+  // under the lock.
+  private volatile String[] reduceLocations = new String[0];
+  private TaskAttemptID[] reduceLocationAttempts = new TaskAttemptID[0];
   
   // Limits on concurrent running tasks per-node and cluster-wide
   private int maxMapsPerNode;
@@ -238,6 +245,11 @@ public class JobInProgress {
     FALLOW_SLOTS_MILLIS_REDUCES
   }
   private Counters jobCounters = new Counters();
+
+  // The sums of the counters of the map and of the reduce tasks, kept up to
+  // date as the tasks report rather than added up again on every request.
+  private final TaskCountersSum mapCountersSum = new TaskCountersSum();
+  private final TaskCountersSum reduceCountersSum = new TaskCountersSum();
   
   private MetricsRecord jobMetrics;
   
@@ -316,6 +328,10 @@ public class JobInProgress {
     this.memoryPerMap = conf.getMemoryForMapTask();
     this.memoryPerReduce = conf.getMemoryForReduceTask();
     this.maxTaskFailuresPerTracker = conf.getMaxTaskFailuresPerTracker();
+    this.maxMapsPerNode = conf.getMaxMapsPerNode();
+    this.maxReducesPerNode = conf.getMaxReducesPerNode();
+    this.runningMapLimit = conf.getRunningMapLimit();
+    this.runningReduceLimit = conf.getRunningReduceLimit();
 
     this.taskCompletionEvents = new ArrayList<TaskCompletionEvent>
       (numMapTasks + numReduceTasks + 10);
@@ -1000,6 +1016,14 @@ public class JobInProgress {
     boolean change = tip.updateStatus(status);
     if (change) {
       TaskStatus.State state = status.getRunState();
+      if (!tip.isMapTask() && !tip.isJobSetupTask() &&
+          !tip.isJobCleanupTask() &&
+          state != TaskStatus.State.RUNNING &&
+          state != TaskStatus.State.UNASSIGNED &&
+          state != TaskStatus.State.COMMIT_PENDING) {
+        // the attempt no longer takes pushed map outputs
+        setReduceLocation(tip.getIdWithinJob(), taskid, null);
+      }
       // get the TaskTrackerStatus where the task ran 
       TaskTracker taskTracker = 
         this.jobtracker.getTaskTracker(tip.machineWhereTaskRan(taskid));
@@ -1160,14 +1184,14 @@ public class JobInProgress {
    *  Returns map phase counters by summing over all map tasks in progress.
    */
   public synchronized Counters getMapCounters() {
-    return incrementTaskCounters(new Counters(), maps);
+    return incrementTaskCounters(new Counters(), maps, mapCountersSum);
   }
     
   /**
    *  Returns map phase counters by summing over all map tasks in progress.
    */
   public synchronized Counters getReduceCounters() {
-    return incrementTaskCounters(new Counters(), reduces);
+    return incrementTaskCounters(new Counters(), reduces, reduceCountersSum);
   }
     
   /**
@@ -1177,24 +1201,65 @@ public class JobInProgress {
   public synchronized Counters getCounters() {
     Counters result = new Counters();
     result.incrAllCounters(getJobCounters());
-    incrementTaskCounters(result, maps);
-    return incrementTaskCounters(result, reduces);
+    incrementTaskCounters(result, maps, mapCountersSum);
+    return incrementTaskCounters(result, reduces, reduceCountersSum);
   }
     
   /**
    * Increments the counters with the counters from each task.
    * @param counters the counters to increment
    * @param tips the tasks to add in to counters
+   * @param sum the running sum of the counters of the tasks
    * @return counters the same object passed in as counters
    */
   private Counters incrementTaskCounters(Counters counters,
-                                         TaskInProgress[] tips) {
-    for (TaskInProgress tip : tips) {
-      counters.incrAllCounters(tip.getCounters());
-    }
+                                         TaskInProgress[] tips,
+                                         TaskCountersSum sum) {
+    counters.incrAllCounters(sum.update(tips));
     return counters;
   }
 
+  /**
+   * The sum of the counters of a set of tasks. A task's counters are 
+   * replaced, never changed, when it reports, so only the tasks whose 
+   * counters are no longer the ones summed are taken off and added again.
+   */
+  private static class TaskCountersSum {
+    private Counters sum = new Counters();
+    private Counters[] summed = new Counters[0];
+
+    Counters update(TaskInProgress[] tips) {
+      if (summed.length != tips.length) {
+        return rebuild(tips);
+      }
+      for (int i = 0; i < tips.length; ++i) {
+        Counters current = tips[i].getCounters();
+        Counters previous = summed[i];
+        if (current == previous) {
+          continue;
+        }
+        // a counter the task no longer has would be left behind in the sum
+        if (!current.containsAll(previous)) {
+          return rebuild(tips);
+        }
+        sum.decrAllCounters(previous);
+        sum.incrAllCounters(current);
+        summed[i] = current;
+      }
+      return sum;
+    }
+
+    private Counters rebuild(TaskInProgress[] tips) {
+      sum = new Counters();
+      summed = new Counters[tips.length];
+      for (int i = 0; i < tips.length; ++i) {
+        summed[i] = tips[i].getCounters();
+        sum.incrAllCounters(summed[i]);
+      }
+      return sum;
+    }
+  }
+
   /////////////////////////////////////////////////////
   // Create/manage tasks
   /////////////////////////////////////////////////////
@@ -1545,6 +1610,12 @@ public class JobInProgress {
       ++runningReduceTasks;
       name = Values.REDUCE.name();
       counter = Counter.TOTAL_LAUNCHED_REDUCES;
+      String host = NetUtils.getStaticResolution(tts.getHost());
+      if (host == null) {
+        host = tts.getHost();
+      }
+      setReduceLocation(tip.getIdWithinJob(), id,
+                        "http://" + host + ":" + tts.getHttpPort());
       if (tip.getActiveTasks().size() > 1)
         speculativeReduceTasks++;
       metrics.launchReduce(id);
@@ -3070,6 +3141,35 @@ public class JobInProgress {
     return taskCompletionEvents.size();
   }
     
+  /**
+   * Get the http address of the tracker running an attempt of each reduce,
+   * or null for the reduces that are not running. This does not take the
+   * job's lock.
+   */
+  String[] getReduceLocations() {
+    return reduceLocations;
+  }
+
+  /**
+   * Set the location of a reduce to that of the given attempt, or clear it
+   * if location is null and it is that of the attempt.
+   */
+  private void setReduceLocation(int reduce, TaskAttemptID id,
+                                 String location) {
+    if (reduceLocationAttempts.length != numReduceTasks) {
+      reduceLocationAttempts = new TaskAttemptID[numReduceTasks];
+    }
+    if (location == null && !id.equals(reduceLocationAttempts[reduce])) {
+      return;
+    }
+    String[] locations = new String[numReduceTasks];
+    System.arraycopy(reduceLocations, 0, locations, 0,
+                     Math.min(reduceLocations.length, numReduceTasks));
+    locations[reduce] = location;
+    reduceLocationAttempts[reduce] = (location == null) ? null : id;
+    reduceLocations = locations;
+  }
+
   synchronized public TaskCompletionEvent[] getTaskCompletionEvents(
                                                                     int fromEventId, int maxEvents) {
     TaskCompletionEvent[] events = TaskCompletionEvent.EMPTY_ARRAY;
@@ -39,6 +39,9 @@ class JobQueueTaskScheduler extends TaskScheduler {
   protected JobQueueJobInProgressListener jobQueueJobInProgressListener;
   protected EagerTaskInitializationListener eagerTaskInitializationListener;
   private float padFraction;
+  // tasks of each kind handed out to a tracker in a single heartbeat
+  private int maxOffSwitchMaps;
+  private int maxReduces;
   
   public JobQueueTaskScheduler() {
     this.jobQueueJobInProgressListener = new JobQueueJobInProgressListener();
@@ -73,6 +76,9 @@ class JobQueueTaskScheduler extends TaskScheduler {
     super.setConf(conf);
     padFraction = conf.getFloat("mapred.jobtracker.taskalloc.capacitypad", 
                                  0.01f);
+    maxOffSwitchMaps = 
+      conf.getInt("mapred.jobtracker.taskalloc.maxoffswitchmaps", 1);
+    maxReduces = conf.getInt("mapred.jobtracker.taskalloc.maxreduces", 1);
     this.eagerTaskInitializationListener =
       new EagerTaskInitializationListener(conf);
   }
@@ -194,10 +200,15 @@ class JobQueueTaskScheduler extends TaskScheduler {
             assignedTasks.add(t);
             ++numNonLocalMaps;
             
-            // We assign at most 1 off-switch or speculative task
+            // We assign few off-switch or speculative tasks, 1 by default
             // This is to prevent TaskTrackers from stealing local-tasks
             // from other TaskTrackers.
-            break scheduleMaps;
+            if (exceededMapPadding || numNonLocalMaps >= maxOffSwitchMaps) {
+              break scheduleMaps;
+            }
+
+            // Try all jobs again for the next Map task 
+            break;
           }
         }
       }
@@ -206,17 +217,21 @@ class JobQueueTaskScheduler extends TaskScheduler {
 
     //
     // Same thing, but for reduce tasks
-    // However we _never_ assign more than 1 reduce task per heartbeat
+    // However we assign only a few reduce tasks per heartbeat, 1 by default
     //
     final int trackerCurrentReduceCapacity = 
       Math.min((int)Math.ceil(reduceLoadFactor * trackerReduceCapacity), 
                trackerReduceCapacity);
     final int availableReduceSlots = 
-      Math.min((trackerCurrentReduceCapacity - trackerRunningReduces), 1);
+      Math.min((trackerCurrentReduceCapacity - trackerRunningReduces), 
+               maxReduces);
     boolean exceededReducePadding = false;
     if (availableReduceSlots > 0) {
       exceededReducePadding = exceededPadding(false, clusterStatus, 
                                               trackerReduceCapacity);
+    }
+    scheduleReduces:
+    for (int i=0; i < availableReduceSlots; ++i) {
       synchronized (jobQueue) {
         for (JobInProgress job : jobQueue) {
           if (job.getStatus().getRunState() != JobStatus.RUNNING ||
@@ -230,6 +245,11 @@ class JobQueueTaskScheduler extends TaskScheduler {
                                     );
           if (t != null) {
             assignedTasks.add(t);
+            if (exceededReducePadding) {
+              break scheduleReduces;
+            }
+
+            // Try all jobs again for the next reduce task
             break;
           }
           
@@ -237,7 +257,7 @@ class JobQueueTaskScheduler extends TaskScheduler {
           // Leave some free slots in the cluster for future task-failures,
           // speculative tasks etc. beyond the highest priority job
           if (exceededReducePadding) {
-            break;
+            break scheduleReduces;
           }
         }
       }
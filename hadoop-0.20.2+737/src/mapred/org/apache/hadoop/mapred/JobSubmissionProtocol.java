@@ -79,8 +79,10 @@ interface JobSubmissionProtocol extends VersionedProtocol {
    * Version 25: Added JobACLs to JobStatus as part of MAPREDUCE-1307
    * Version 26: Added the method getQueueAdmins(queueName) as part of
    *             MAPREDUCE-1664.
+   * Version 27: Counters are written with numbers for the framework's
+   *             groups and counters
    */
-  public static final long versionID = 26L;
+  public static final long versionID = 27L;
 
   /**
    * Allocate a name for the job.
@@ -1914,8 +1914,14 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
     new TreeMap<String, Set<TaskAttemptID>>();
 
   // (trackerID --> last sent HeartBeatResponse)
+  // Read and written by heartbeats under the tracker's heartbeat lock,
+  // without holding the JobTracker lock.
   Map<String, HeartbeatResponse> trackerToHeartbeatResponseMap = 
-    new TreeMap<String, HeartbeatResponse>();
+    new ConcurrentHashMap<String, HeartbeatResponse>();
+
+  // (trackerID --> lock serializing that tracker's heartbeats)
+  private final ConcurrentHashMap<String, Object> trackerToHeartbeatLockMap =
+    new ConcurrentHashMap<String, Object>();
 
   // (hostname --> Node (NetworkTopology))
   Map<String, Node> hostnameToNodeMap = 
@@ -3076,8 +3082,15 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
    * The {@link JobTracker} processes the status information sent by the 
    * {@link TaskTracker} and responds with instructions to start/stop 
    * tasks or jobs, and also 'reset' instructions during contingencies. 
+   * 
+   * Only the ingestion of the task statuses and the assignment of new 
+   * tasks lock the {@link JobTracker}, each for as short as possible; the 
+   * tracker is validated and duplicate heartbeats are answered without it.
+   * The heartbeats of one tracker are serialized on a lock of their own, 
+   * so that a resent heartbeat cannot pass the duplicate check before the 
+   * response to the original one is recorded.
    */
-  public synchronized HeartbeatResponse heartbeat(TaskTrackerStatus status, 
+  public HeartbeatResponse heartbeat(TaskTrackerStatus status, 
                                                   boolean restarted,
                                                   boolean initialContact,
                                                   boolean acceptNewTasks, 
@@ -3096,17 +3109,40 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
       throw new DisallowedTaskTrackerException(status);
     }
 
-    // First check if the last heartbeat response got through
     String trackerName = status.getTrackerName();
-    long now = clock.getTime();
-    boolean isBlacklisted = false;
-    if (restarted) {
-      faultyTrackers.markTrackerHealthy(status.getHost());
-    } else {
-      isBlacklisted = 
-        faultyTrackers.shouldAssignTasksToTracker(status.getHost(), now);
+    synchronized (getHeartbeatLock(trackerName)) {
+      return answerHeartbeat(trackerName, status, restarted, initialContact,
+                             acceptNewTasks, responseId);
     }
-    
+  }
+
+  /**
+   * Get the lock serializing the heartbeats of the given tracker.
+   */
+  private Object getHeartbeatLock(String trackerName) {
+    Object lock = trackerToHeartbeatLockMap.get(trackerName);
+    if (lock == null) {
+      Object newLock = new Object();
+      lock = trackerToHeartbeatLockMap.putIfAbsent(trackerName, newLock);
+      if (lock == null) {
+        lock = newLock;
+      }
+    }
+    return lock;
+  }
+
+  /**
+   * Answer a heartbeat, holding the tracker's heartbeat lock from the 
+   * duplicate check until its response is recorded.
+   */
+  private HeartbeatResponse answerHeartbeat(String trackerName,
+                                            TaskTrackerStatus status,
+                                            boolean restarted,
+                                            boolean initialContact,
+                                            boolean acceptNewTasks,
+                                            short responseId)
+    throws IOException {
+    // First check if the last heartbeat response got through
     HeartbeatResponse prevHeartbeatResponse =
       trackerToHeartbeatResponseMap.get(trackerName);
     boolean addRestartInfo = false;
@@ -3150,45 +3186,96 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
       
     // Process this heartbeat 
     short newResponseId = (short)(responseId + 1);
-    status.setLastSeen(now);
-    if (!processHeartbeat(status, initialContact)) {
-      if (prevHeartbeatResponse != null) {
-        trackerToHeartbeatResponseMap.remove(trackerName);
-      }
-      return new HeartbeatResponse(newResponseId, 
+    long lockRequested = System.currentTimeMillis();
+    synchronized (this) {
+      long lockAcquired = System.currentTimeMillis();
+      try {
+        // Fill in the task reports and counters left out of the heartbeat
+        // as unchanged since the last one
+        if (!status.applyDelta(getTaskTrackerStatus(trackerName))) {
+          LOG.info("Cannot apply the changed status of '" + trackerName +
+                   "'; asking for its full status");
+          HeartbeatResponse response = new HeartbeatResponse(responseId, null);
+          response.setFullStatusRequired(true);
+          return response;
+        }
+        long now = clock.getTime();
+        if (restarted) {
+          faultyTrackers.markTrackerHealthy(status.getHost());
+        } else {
+          faultyTrackers.shouldAssignTasksToTracker(status.getHost(), now);
+        }
+        status.setLastSeen(now);
+        if (!processHeartbeat(status, initialContact)) {
+          if (prevHeartbeatResponse != null) {
+            trackerToHeartbeatResponseMap.remove(trackerName);
+          }
+          return new HeartbeatResponse(newResponseId, 
                    new TaskTrackerAction[] {new ReinitTrackerAction()});
+        }
+      } finally {
+        getInstrumentation().heartbeatStatusLock(
+            lockAcquired - lockRequested,
+            System.currentTimeMillis() - lockAcquired);
+      }
     }
       
     // Initialize the response to be sent for the heartbeat
     HeartbeatResponse response = new HeartbeatResponse(newResponseId, null);
     List<TaskTrackerAction> actions = new ArrayList<TaskTrackerAction>();
-    isBlacklisted = faultyTrackers.isBlacklisted(status.getHost());
-    // Check for new tasks to be executed on the tasktracker
-    if (recoveryManager.shouldSchedule() && acceptNewTasks && !isBlacklisted) {
-      TaskTrackerStatus taskTrackerStatus = getTaskTrackerStatus(trackerName) ;
-      if (taskTrackerStatus == null) {
-        LOG.warn("Unknown task tracker polling; ignoring: " + trackerName);
-      } else {
-        List<Task> tasks = getSetupAndCleanupTasks(taskTrackerStatus);
-        if (tasks == null ) {
-          tasks = taskScheduler.assignTasks(taskTrackers.get(trackerName));
-        }
-        if (tasks != null) {
-          for (Task task : tasks) {
-            expireLaunchingTasks.addNewTask(task.getTaskID());
-            if(LOG.isDebugEnabled()) {
-              LOG.debug(trackerName + " -> LaunchTask: " + task.getTaskID());
+    int nextInterval;
+    lockRequested = System.currentTimeMillis();
+    synchronized (this) {
+      long lockAcquired = System.currentTimeMillis();
+      try {
+        boolean isBlacklisted = faultyTrackers.isBlacklisted(status.getHost());
+        // Check for new tasks to be executed on the tasktracker
+        if (recoveryManager.shouldSchedule() && acceptNewTasks && 
+            !isBlacklisted) {
+          TaskTrackerStatus taskTrackerStatus = 
+            getTaskTrackerStatus(trackerName);
+          if (taskTrackerStatus == null) {
+            LOG.warn("Unknown task tracker polling; ignoring: " + trackerName);
+          } else {
+            List<Task> tasks = getSetupAndCleanupTasks(taskTrackerStatus);
+            if (tasks == null ) {
+              tasks = taskScheduler.assignTasks(taskTrackers.get(trackerName));
+            }
+            if (tasks != null) {
+              for (Task task : tasks) {
+                expireLaunchingTasks.addNewTask(task.getTaskID());
+                if(LOG.isDebugEnabled()) {
+                  LOG.debug(trackerName + " -> LaunchTask: " + 
+                            task.getTaskID());
+                }
+                actions.add(new LaunchTaskAction(task));
+              }
             }
-            actions.add(new LaunchTaskAction(task));
           }
         }
-      }
-    }
       
-    // Check for tasks to be killed
-    List<TaskTrackerAction> killTasksList = getTasksToKill(trackerName);
-    if (killTasksList != null) {
-      actions.addAll(killTasksList);
+        // Check for tasks to be killed
+        List<TaskTrackerAction> killTasksList = getTasksToKill(trackerName);
+        if (killTasksList != null) {
+          actions.addAll(killTasksList);
+        }
+
+        // Check for tasks whose outputs can be saved
+        List<TaskTrackerAction> commitTasksList = getTasksToSave(status);
+        if (commitTasksList != null) {
+          actions.addAll(commitTasksList);
+        }
+
+        // calculate next heartbeat interval
+        nextInterval = getNextHeartbeatInterval();
+
+        // Done assigning, now remove 'marked' tasks
+        removeMarkedTasks(trackerName);
+      } finally {
+        getInstrumentation().heartbeatAssignLock(
+            lockAcquired - lockRequested,
+            System.currentTimeMillis() - lockAcquired);
+      }
     }
      
     // Check for jobs to be killed/cleanedup
@@ -3197,14 +3284,7 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
       actions.addAll(killJobsList);
     }
 
-    // Check for tasks whose outputs can be saved
-    List<TaskTrackerAction> commitTasksList = getTasksToSave(status);
-    if (commitTasksList != null) {
-      actions.addAll(commitTasksList);
-    }
-
-    // calculate next heartbeat interval and put in heartbeat response
-    int nextInterval = getNextHeartbeatInterval();
+    // put the next heartbeat interval in the response
     response.setHeartbeatInterval(nextInterval);
     response.setActions(
                         actions.toArray(new TaskTrackerAction[actions.size()]));
@@ -3217,9 +3297,6 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
     // Update the trackerToHeartbeatResponseMap
     trackerToHeartbeatResponseMap.put(trackerName, response);
 
-    // Done processing the hearbeat, now remove 'marked' tasks
-    removeMarkedTasks(trackerName);
-        
     return response;
   }
   
@@ -4240,6 +4317,21 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
                                                                maxEvents);
   }
 
+  /*
+   * Returns the http address of the tracker running an attempt of each
+   * reduce of the given job, or null for the reduces that are not running.
+   * This is served from the job's snapshot of its reduce locations without
+   * taking the JobTracker's lock, as every map of a pushing job asks for it.
+   * @see org.apache.hadoop.mapred.InterTrackerProtocol#getReduceLocations(JobID)
+   */
+  public String[] getReduceLocations(JobID jobid) {
+    JobInProgress job = jobs.get(jobid);
+    if (job == null) {
+      return new String[0];
+    }
+    return job.getReduceLocations();
+  }
+
   private static final String[] EMPTY_TASK_DIAGNOSTICS = new String[0];
   /**
    * Get the diagnostics for a given task
@@ -4426,9 +4518,14 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
    * be brand-new.  All task-tracker structures have already
    * been updated.  Just process the contained tasks and any
    * jobs that might be affected.
+   * 
+   * The reports are grouped by job and each job is locked once for all of
+   * its reports, rather than once per report.
    */
   void updateTaskStatuses(TaskTrackerStatus status) {
     String trackerName = status.getTrackerName();
+    Map<JobInProgress, List<TaskStatus>> jobReports = 
+      new LinkedHashMap<JobInProgress, List<TaskStatus>>();
     for (TaskStatus report : status.getTaskReports()) {
       report.setTaskTracker(trackerName);
       TaskAttemptID taskId = report.getTaskID();
@@ -4463,54 +4560,80 @@ public class JobTracker implements MRConstants, InterTrackerProtocol,
         continue;
       }
 
-      TaskInProgress tip = taskidToTIPMap.get(taskId);
-      // Check if the tip is known to the jobtracker. In case of a restarted
-      // jt, some tasks might join in later
-      if (tip != null || hasRestarted()) {
-        if (tip == null) {
-          tip = job.getTaskInProgress(taskId.getTaskID());
-          job.addRunningTaskToTIP(tip, taskId, status, false);
-        }
-        
-        // Update the job and inform the listeners if necessary
-        JobStatus prevStatus = (JobStatus)job.getStatus().clone();
-        // Clone TaskStatus object here, because JobInProgress
-        // or TaskInProgress can modify this object and
-        // the changes should not get reflected in TaskTrackerStatus.
-        // An old TaskTrackerStatus is used later in countMapTasks, etc.
-        job.updateTaskStatus(tip, (TaskStatus)report.clone());
-        JobStatus newStatus = (JobStatus)job.getStatus().clone();
-        
-        // Update the listeners if an incomplete job completes
-        if (prevStatus.getRunState() != newStatus.getRunState()) {
-          JobStatusChangeEvent event = 
-            new JobStatusChangeEvent(job, EventType.RUN_STATE_CHANGED, 
-                                     prevStatus, newStatus);
-          updateJobInProgressListeners(event);
-        }
-      } else {
-        LOG.info("Serious problem.  While updating status, cannot find taskid " 
-                 + report.getTaskID());
+      List<TaskStatus> reports = jobReports.get(job);
+      if (reports == null) {
+        reports = new ArrayList<TaskStatus>();
+        jobReports.put(job, reports);
       }
-      
-      // Process 'failed fetch' notifications 
-      List<TaskAttemptID> failedFetchMaps = report.getFetchFailedMaps();
-      if (failedFetchMaps != null) {
-        for (TaskAttemptID mapTaskId : failedFetchMaps) {
-          TaskInProgress failedFetchMap = taskidToTIPMap.get(mapTaskId);
+      reports.add(report);
+    }
+
+    for (Map.Entry<JobInProgress, List<TaskStatus>> entry : 
+           jobReports.entrySet()) {
+      updateJobTaskStatuses(entry.getKey(), entry.getValue(), status);
+    }
+  }
+
+  /**
+   * Apply the reports of one job's tasks sent by a tracker, holding the
+   * job's lock across all of them.
+   */
+  private void updateJobTaskStatuses(JobInProgress job, 
+                                     List<TaskStatus> reports,
+                                     TaskTrackerStatus status) {
+    JobStatus prevStatus;
+    JobStatus newStatus;
+    synchronized (job) {
+      prevStatus = (JobStatus)job.getStatus().clone();
+      for (TaskStatus report : reports) {
+        TaskAttemptID taskId = report.getTaskID();
+        TaskInProgress tip = taskidToTIPMap.get(taskId);
+        // Check if the tip is known to the jobtracker. In case of a restarted
+        // jt, some tasks might join in later
+        if (tip != null || hasRestarted()) {
+          if (tip == null) {
+            tip = job.getTaskInProgress(taskId.getTaskID());
+            job.addRunningTaskToTIP(tip, taskId, status, false);
+          }
           
-          if (failedFetchMap != null) {
-            // Gather information about the map which has to be failed, if need be
-            String failedFetchTrackerName = getAssignedTracker(mapTaskId);
-            if (failedFetchTrackerName == null) {
-              failedFetchTrackerName = "Lost task tracker";
+          // Clone TaskStatus object here, because JobInProgress
+          // or TaskInProgress can modify this object and
+          // the changes should not get reflected in TaskTrackerStatus.
+          // An old TaskTrackerStatus is used later in countMapTasks, etc.
+          job.updateTaskStatus(tip, (TaskStatus)report.clone());
+        } else {
+          LOG.info("Serious problem.  While updating status, cannot find taskid " 
+                   + report.getTaskID());
+        }
+        
+        // Process 'failed fetch' notifications 
+        List<TaskAttemptID> failedFetchMaps = report.getFetchFailedMaps();
+        if (failedFetchMaps != null) {
+          for (TaskAttemptID mapTaskId : failedFetchMaps) {
+            TaskInProgress failedFetchMap = taskidToTIPMap.get(mapTaskId);
+            
+            if (failedFetchMap != null) {
+              // Gather information about the map which has to be failed, if need be
+              String failedFetchTrackerName = getAssignedTracker(mapTaskId);
+              if (failedFetchTrackerName == null) {
+                failedFetchTrackerName = "Lost task tracker";
+              }
+              failedFetchMap.getJob().fetchFailureNotification(failedFetchMap, 
+                                                               mapTaskId, 
+                                                               failedFetchTrackerName);
             }
-            failedFetchMap.getJob().fetchFailureNotification(failedFetchMap, 
-                                                             mapTaskId, 
-                                                             failedFetchTrackerName);
           }
         }
       }
+      newStatus = (JobStatus)job.getStatus().clone();
+    }
+    
+    // Update the listeners if an incomplete job completes
+    if (prevStatus.getRunState() != newStatus.getRunState()) {
+      JobStatusChangeEvent event = 
+        new JobStatusChangeEvent(job, EventType.RUN_STATE_CHANGED, 
+                                 prevStatus, newStatus);
+      updateJobInProgressListeners(event);
     }
   }
 
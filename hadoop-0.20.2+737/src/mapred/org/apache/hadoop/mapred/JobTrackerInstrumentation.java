@@ -162,4 +162,18 @@ class JobTrackerInstrumentation {
 
   public void heartbeat() {
   }
+
+  /**
+   * Time a heartbeat waited for and held the JobTracker lock while its
+   * task statuses were applied.
+   */
+  public void heartbeatStatusLock(long waitMillis, long heldMillis)
+  { }
+
+  /**
+   * Time a heartbeat waited for and held the JobTracker lock while tasks
+   * were assigned to the tracker.
+   */
+  public void heartbeatAssignLock(long waitMillis, long heldMillis)
+  { }
 }
@@ -67,6 +67,12 @@ class JobTrackerMetricsInst extends JobTrackerInstrumentation implements Updater
   // long, because 2^31 could well be only about a month's worth of
   // heartbeats, with reasonable assumptions and JobTracker improvements.
   private long numHeartbeats = 0L;
+
+  // time heartbeats spent waiting for and holding the JobTracker lock
+  private long statusLockWaitMillis = 0L;
+  private long statusLockHeldMillis = 0L;
+  private long assignLockWaitMillis = 0L;
+  private long assignLockHeldMillis = 0L;
   
   public JobTrackerMetricsInst(JobTracker tracker, JobConf conf) {
     super(tracker, conf);
@@ -125,6 +131,14 @@ class JobTrackerMetricsInst extends JobTrackerInstrumentation implements Updater
           numTrackersDecommissioned);
 
       metricsRecord.incrMetric("heartbeats", numHeartbeats);
+      metricsRecord.incrMetric("heartbeat_status_lock_wait_millis",
+          statusLockWaitMillis);
+      metricsRecord.incrMetric("heartbeat_status_lock_held_millis",
+          statusLockHeldMillis);
+      metricsRecord.incrMetric("heartbeat_assign_lock_wait_millis",
+          assignLockWaitMillis);
+      metricsRecord.incrMetric("heartbeat_assign_lock_held_millis",
+          assignLockHeldMillis);
 
       numMapTasksLaunched = 0;
       numMapTasksCompleted = 0;
@@ -160,6 +174,10 @@ class JobTrackerMetricsInst extends JobTrackerInstrumentation implements Updater
       numTrackersBlackListed = 0;
 
       numHeartbeats = 0L;
+      statusLockWaitMillis = 0L;
+      statusLockHeldMillis = 0L;
+      assignLockWaitMillis = 0L;
+      assignLockHeldMillis = 0L;
     }
     metricsRecord.update();
   }
@@ -412,4 +430,18 @@ class JobTrackerMetricsInst extends JobTrackerInstrumentation implements Updater
   public synchronized void heartbeat() {
     ++numHeartbeats;
   }
+
+  @Override
+  public synchronized void heartbeatStatusLock(long waitMillis,
+                                               long heldMillis) {
+    statusLockWaitMillis += waitMillis;
+    statusLockHeldMillis += heldMillis;
+  }
+
+  @Override
+  public synchronized void heartbeatAssignLock(long waitMillis,
+                                               long heldMillis) {
+    assignLockWaitMillis += waitMillis;
+    assignLockHeldMillis += heldMillis;
+  }
 }
@@ -0,0 +1,100 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.mapred;
+
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * Computes a normalized, fixed-width prefix of a serialized key, used by the
+ * map-side sort to resolve most comparisons with a single long compare.
+ *
+ * A prefix is the first {@link #PREFIX_BYTES} bytes of the key payload,
+ * big-endian and zero-padded. It is only defined for comparators that order
+ * keys by the unsigned lexicographic order of their payload, so that if the
+ * prefixes of two keys differ (compared as unsigned longs), the keys compare
+ * the same way. Equal prefixes say nothing; the comparator must decide.
+ */
+abstract class KeyPrefix {
+
+  /** Number of key bytes held in a prefix. */
+  static final int PREFIX_BYTES = 8;
+
+  /**
+   * Get the prefix function for the given comparator.
+   * @return the prefix function, or null if the comparator's ordering is
+   *         not known to agree with the prefix ordering
+   */
+  static KeyPrefix get(RawComparator<?> comparator) {
+    // Only the exact registered comparators qualify; a subclass may
+    // override the ordering.
+    if (comparator.getClass() == Text.Comparator.class) {
+      return TEXT;
+    }
+    if (comparator.getClass() == BytesWritable.Comparator.class) {
+      return BYTES_WRITABLE;
+    }
+    return null;
+  }
+
+  /**
+   * Compare two prefixes as unsigned values.
+   */
+  static int compare(long p1, long p2) {
+    p1 += Long.MIN_VALUE;
+    p2 += Long.MIN_VALUE;
+    return p1 < p2 ? -1 : (p1 == p2 ? 0 : 1);
+  }
+
+  /**
+   * Compute the prefix of the key serialized in <code>b[s, s+l)</code>.
+   */
+  long getPrefix(byte[] b, int s, int l) {
+    final int skip = getHeaderLength(b, s);
+    final int start = s + skip;
+    final int len = Math.min(PREFIX_BYTES, l - skip);
+    long prefix = 0;
+    for (int i = 0; i < PREFIX_BYTES; ++i) {
+      prefix <<= 8;
+      if (i < len) {
+        prefix |= b[start + i] & 0xFF;
+      }
+    }
+    return prefix;
+  }
+
+  /**
+   * Number of bytes preceding the key payload in its serialized form.
+   */
+  abstract int getHeaderLength(byte[] b, int s);
+
+  private static final KeyPrefix TEXT = new KeyPrefix() {
+    int getHeaderLength(byte[] b, int s) {
+      return WritableUtils.decodeVIntSize(b[s]);
+    }
+  };
+
+  private static final KeyPrefix BYTES_WRITABLE = new KeyPrefix() {
+    int getHeaderLength(byte[] b, int s) {
+      return 4;
+    }
+  };
+}
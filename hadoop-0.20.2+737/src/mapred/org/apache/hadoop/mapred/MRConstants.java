@@ -55,5 +55,11 @@ interface MRConstants {
    */
   public static final String FOR_REDUCE_TASK = "for-reduce-task";
   
+  /**
+   * The number of map outputs in a batched response, each of which is
+   * preceded by a {@link ShuffleHeader}
+   */
+  public static final String MAP_OUTPUT_BATCH = "Map-Output-Batch";
+  
   public static final String WORKDIR = "work";
 }
@@ -0,0 +1,132 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.mapred;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.nativeio.NativeIO;
+
+/**
+ * Advises the OS about the use of map output files, so that the range of a
+ * map output being served is read ahead of the shuffle and dropped from the
+ * page cache once it was sent. Without the native library every call does
+ * nothing.
+ */
+class MapOutputCacheManager {
+  private static final Log LOG =
+    LogFactory.getLog(MapOutputCacheManager.class);
+
+  static final String MANAGE_CACHE_KEY = "mapred.tasktracker.shuffle.fadvise";
+  static final String READAHEAD_KEY =
+    "mapred.tasktracker.shuffle.readahead.bytes";
+  static final String DROP_MAP_OUTPUT_KEY = "mapred.map.output.fadvise.dontneed";
+  static final int DEFAULT_READAHEAD = 4 * 1024 * 1024;
+
+  private final boolean manageCache;
+  private final long readaheadLength;
+
+  MapOutputCacheManager(Configuration conf) {
+    this.manageCache = conf.getBoolean(MANAGE_CACHE_KEY, true) &&
+      NativeIO.isAvailable();
+    this.readaheadLength = conf.getLong(READAHEAD_KEY, DEFAULT_READAHEAD);
+  }
+
+  /**
+   * Read ahead of a map output being sent. The next window is requested
+   * once less than half of the current one is left ahead of the position.
+   * @param mapId the map, for logging
+   * @param fd the open map output file
+   * @param pos the offset about to be sent
+   * @param end the end of the range being sent
+   * @param readaheadEnd the end of what was read ahead so far
+   * @return the new end of what was read ahead
+   */
+  long readahead(String mapId, FileDescriptor fd, long pos, long end,
+                 long readaheadEnd) {
+    if (!manageCache || readaheadLength <= 0 ||
+        readaheadEnd - pos >= readaheadLength / 2) {
+      return readaheadEnd;
+    }
+    long from = Math.max(pos, readaheadEnd);
+    long to = Math.min(end, pos + readaheadLength);
+    if (to <= from) {
+      return readaheadEnd;
+    }
+    try {
+      NativeIO.posixFadviseIfPossible(fd, from, to - from,
+                                      NativeIO.POSIX_FADV_WILLNEED);
+    } catch (IOException ie) {
+      LOG.warn("Failed readahead on the output of " + mapId + ": " + ie);
+      // don't try again for this range
+    }
+    return to;
+  }
+
+  /**
+   * Drop a range of a map output that was sent from the page cache; each
+   * range is fetched by a single reduce.
+   */
+  void dropCache(String mapId, FileDescriptor fd, long offset, long len) {
+    if (!manageCache || len <= 0) {
+      return;
+    }
+    try {
+      NativeIO.posixFadviseIfPossible(fd, offset, len,
+                                      NativeIO.POSIX_FADV_DONTNEED);
+    } catch (IOException ie) {
+      LOG.warn("Failed to drop the output of " + mapId +
+               " from the page cache: " + ie);
+    }
+  }
+
+  /**
+   * Write the final output of a map to disk and drop it from the page
+   * cache, if the job asks for it. The spills merged into it were already
+   * deleted, which frees their pages, and the small index is kept for the
+   * tracker to read.
+   */
+  static void dropMapOutput(JobConf conf, MapOutputFile mapOutputFile)
+      throws IOException {
+    if (!conf.getBoolean(DROP_MAP_OUTPUT_KEY, false) ||
+        !NativeIO.isAvailable()) {
+      return;
+    }
+    Path file = mapOutputFile.getOutputFile();
+    FileInputStream in = null;
+    try {
+      in = new FileInputStream(new File(file.toUri().getPath()));
+      // dirty pages are not dropped, so write them out first
+      in.getFD().sync();
+      NativeIO.posixFadviseIfPossible(in.getFD(), 0, 0,
+                                      NativeIO.POSIX_FADV_DONTNEED);
+    } catch (IOException ie) {
+      LOG.warn("Failed to drop " + file + " from the page cache: " + ie);
+    } finally {
+      IOUtils.closeStream(in);
+    }
+  }
+}
@@ -0,0 +1,250 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.mapred;
+
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import javax.crypto.SecretKey;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.SecureIOUtils;
+import org.apache.hadoop.mapreduce.security.SecureShuffleUtils;
+
+/**
+ * Pushes the outputs of the maps that finish on a tracker to the trackers
+ * running the reduces of their jobs, so that the reduces find them locally
+ * instead of fetching them. The pushes start once the map has reported
+ * that it is done, so they never hold the map up. Pushing is best effort:
+ * an output that is not pushed, because its reduce was not yet running, its
+ * tracker does not take pushes or the push failed, is fetched as usual.
+ * Each push first asks the receiving tracker whether it takes the output,
+ * so that the data is only sent to trackers that will keep it.
+ * <p>
+ * Up to mapred.shuffle.push.parallel partitions are pushed at a time, and
+ * the partitions still waiting mapred.shuffle.push.total.timeout after
+ * their map finished are left to be fetched.
+ */
+class MapOutputPusher {
+  private static final Log LOG = LogFactory.getLog(MapOutputPusher.class);
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final int DEFAULT_TIMEOUT = 30 * 1000;
+  private static final int DEFAULT_TOTAL_TIMEOUT = 60 * 1000;
+
+  private final TaskTracker tracker;
+  private final ExecutorService pushers;
+
+  MapOutputPusher(TaskTracker tracker, Configuration conf) {
+    this.tracker = tracker;
+    int parallel = Math.max(1, conf.getInt("mapred.shuffle.push.parallel", 5));
+    pushers = Executors.newFixedThreadPool(parallel, new ThreadFactory() {
+      private int count = 0;
+      public synchronized Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "MapOutputPusher-" + (count++));
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  /**
+   * Whether the maps of a job push their outputs to its reduces.
+   */
+  static boolean isEnabled(JobConf conf) {
+    return conf.getNumReduceTasks() > 0 &&
+      conf.getBoolean("mapred.shuffle.push", false);
+  }
+
+  /**
+   * Start pushing the output of a map that is done to the trackers running
+   * its reduces. Returns without waiting for the pushes.
+   */
+  void push(final JobConf jobConf, final TaskAttemptID mapId) {
+    final long deadline = System.currentTimeMillis() +
+      jobConf.getInt("mapred.shuffle.push.total.timeout",
+                     DEFAULT_TOTAL_TIMEOUT);
+    execute(new Runnable() {
+      public void run() {
+        try {
+          pushPartitions(jobConf, mapId, deadline);
+        } catch (IOException ie) {
+          LOG.warn("Not pushing the output of " + mapId + ", it will be " +
+                   "fetched: " + ie);
+        }
+      }
+    });
+  }
+
+  /**
+   * Stop pushing. The outputs not pushed yet are fetched.
+   */
+  void shutdown() {
+    pushers.shutdownNow();
+  }
+
+  private void execute(Runnable push) {
+    try {
+      pushers.execute(push);
+    } catch (RejectedExecutionException e) {
+      // the tracker is shutting down
+    }
+  }
+
+  private void pushPartitions(JobConf jobConf, final TaskAttemptID mapId,
+                              final long deadline) throws IOException {
+    final String[] locations =
+      tracker.getJobClient().getReduceLocations(mapId.getJobID());
+    if (locations == null) {
+      return;
+    }
+    final SecretKey jobTokenSecret = tracker.getJobTokenSecretManager()
+      .retrieveTokenSecret(mapId.getJobID().toString());
+    final int timeout = jobConf.getInt("mapred.shuffle.push.timeout",
+                                       DEFAULT_TIMEOUT);
+    int numReduces = Math.min(locations.length, jobConf.getNumReduceTasks());
+    for (int i = 0; i < numReduces; i++) {
+      if (locations[i] == null) {
+        continue;
+      }
+      final int reduce = i;
+      execute(new Runnable() {
+        public void run() {
+          if (System.currentTimeMillis() >= deadline) {
+            LOG.debug("Not pushing the output of " + mapId + " for reduce " +
+                      reduce + " after the push timeout");
+            return;
+          }
+          try {
+            if (pushOutput(new URL(locations[reduce]), mapId, reduce,
+                           jobTokenSecret, timeout)) {
+              LOG.info("Pushed the output of " + mapId + " for reduce " +
+                       reduce + " to " + locations[reduce]);
+            }
+          } catch (IOException ie) {
+            LOG.warn("Failed to push the output of " + mapId +
+                     " for reduce " + reduce + " to " + locations[reduce] +
+                     ", it will be fetched: " + ie);
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Push one partition of a map output, if the tracker takes it.
+   * @return whether the partition was pushed
+   */
+  private boolean pushOutput(URL tracker, TaskAttemptID mapId, int reduce,
+                             SecretKey jobTokenSecret, int timeout)
+      throws IOException {
+    URL url = new URL(tracker, "/pushMapOutput?job=" + mapId.getJobID() +
+                      "&map=" + mapId + "&reduce=" + reduce);
+    String encHash = SecureShuffleUtils.hashFromString(
+        SecureShuffleUtils.buildMsgFrom(url), jobTokenSecret);
+
+    // ask first, so a refused push costs no data
+    HttpURLConnection connection = openConnection(url, encHash, timeout);
+    int rc = connection.getResponseCode();
+    if (rc == HttpURLConnection.HTTP_NOT_FOUND) {
+      LOG.debug(url + " does not take the output of " + mapId + ": " +
+                connection.getResponseMessage());
+      connection.disconnect();
+      return false;
+    }
+    checkResponse(connection, rc, url, encHash, jobTokenSecret);
+
+    TaskTracker.MapOutputSegment segment = this.tracker.getMapOutputSegment(
+        mapId.getJobID().toString(), mapId.toString(), reduce);
+    IndexRecord info = segment.index;
+    connection = openConnection(url, encHash, timeout);
+    connection.setRequestMethod("POST");
+    // not a form, so the servlet leaves the body alone
+    connection.setRequestProperty("Content-Type", "application/octet-stream");
+    connection.setDoOutput(true);
+    connection.setChunkedStreamingMode(BUFFER_SIZE);
+
+    FileInputStream in = SecureIOUtils.openForRead(
+        new File(segment.file.toUri().getPath()), segment.runAsUser, null);
+    DataOutputStream out = null;
+    try {
+      out = new DataOutputStream(connection.getOutputStream());
+      new ShuffleHeader(mapId.toString(), info.rawLength, info.partLength,
+                        reduce).write(out);
+      IOUtils.skipFully(in, info.startOffset);
+      byte[] buffer = new byte[BUFFER_SIZE];
+      long rem = info.partLength;
+      while (rem > 0) {
+        int len = in.read(buffer, 0, (int)Math.min(rem, BUFFER_SIZE));
+        if (len < 0) {
+          throw new EOFException("Map output of " + mapId + " ended " +
+                                 rem + " bytes early");
+        }
+        out.write(buffer, 0, len);
+        rem -= len;
+      }
+      out.close();
+      out = null;
+    } finally {
+      IOUtils.closeStream(out);
+      in.close();
+    }
+    checkResponse(connection, connection.getResponseCode(), url, encHash,
+                  jobTokenSecret);
+    return true;
+  }
+
+  private HttpURLConnection openConnection(URL url, String encHash,
+                                           int timeout) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    connection.addRequestProperty(SecureShuffleUtils.HTTP_HEADER_URL_HASH,
+                                  encHash);
+    connection.setConnectTimeout(timeout);
+    connection.setReadTimeout(timeout);
+    return connection;
+  }
+
+  private void checkResponse(HttpURLConnection connection, int rc, URL url,
+                             String encHash, SecretKey jobTokenSecret)
+      throws IOException {
+    if (rc != HttpURLConnection.HTTP_OK) {
+      throw new IOException("Got " + rc + " " +
+                            connection.getResponseMessage() + " from " + url);
+    }
+    String replyHash = connection.getHeaderField(
+        SecureShuffleUtils.HTTP_HEADER_REPLY_URL_HASH);
+    if (replyHash == null) {
+      throw new IOException("security validation of the push to " + url +
+                            " failed");
+    }
+    SecureShuffleUtils.verifyReply(replyHash, encHash, jobTokenSecret);
+    connection.getInputStream().close();
+  }
+}
@@ -29,11 +29,20 @@ import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -724,6 +733,8 @@ class MapTask extends Task {
     private int kvindex = 0;           // marks end of collected
     private final int[] kvoffsets;     // indices into kvindices
     private final int[] kvindices;     // partition, k/v offsets into kvbuffer
+    private final long[] kvprefixes;   // normalized key prefixes, or null
+    private final KeyPrefix keyPrefix; // computes kvprefixes, or null
     private volatile int bufstart = 0; // marks beginning of spill
     private volatile int bufend = 0;   // marks beginning of collectable
     private volatile int bufvoid = 0;  // marks the point where we should stop
@@ -737,6 +748,7 @@ class MapTask extends Task {
     private static final int ACCTSIZE = 3;  // total #fields in acct
     private static final int RECSIZE =
                        (ACCTSIZE + 1) * 4;  // acct bytes per record
+    private static final int PREFIXSIZE = 8;  // prefix bytes per record
 
     // spill accounting
     private volatile int numSpills = 0;
@@ -752,6 +764,20 @@ class MapTask extends Task {
     private volatile boolean spillThreadRunning = false;
     private final SpillThread spillThread = new SpillThread();
 
+    // parallel spill; spillPool is null if spills are written serially
+    private final int spillThreads;
+    private final boolean spillDirect;
+    private final ExecutorService spillPool;
+    private final BlockingQueue<SpillContext> spillContexts;
+    private final BlockingQueue<SpillBuffer> spillBuffers;
+    private final int[] kvscratch;     // kvoffsets grouped by partition
+    private final int spillBufferLimit; // max bytes staged per partition
+    private static final int SPILL_BUFFER_SIZE = 64 * 1024;
+    // the spill file and the partition that may write through to it
+    private final Object spillTurnLock = new Object();
+    private FSDataOutputStream spillOut;
+    private int spillTurn;
+
     private final FileSystem localFs;
     private final FileSystem rfs;
    
@@ -792,21 +818,54 @@ class MapTask extends Task {
       sorter = ReflectionUtils.newInstance(
             job.getClass("map.sort.class", QuickSort.class, IndexedSorter.class), job);
       LOG.info("io.sort.mb = " + sortmb);
+      comparator = job.getOutputKeyComparator();
+      keyPrefix = job.getBoolean("map.sort.key.prefix", false)
+        ? KeyPrefix.get(comparator)
+        : null;
+      if (keyPrefix != null) {
+        LOG.info("Sorting with normalized key prefixes");
+      }
+      spillThreads = job.getInt("io.sort.spill.threads", 1);
+      if (spillThreads < 1) {
+        throw new IOException("Invalid \"io.sort.spill.threads\": " +
+                              spillThreads);
+      }
+      spillDirect = job.getBoolean("io.sort.spill.direct", false);
       // buffers and accounting
+      int recsize = keyPrefix != null ? RECSIZE + PREFIXSIZE : RECSIZE;
+      if (spillThreads > 1) {
+        recsize += 4;
+      }
       int maxMemUsage = sortmb << 20;
+      if (spillThreads > 1) {
+        // the partitions staged by the spill threads are charged to
+        // io.sort.mb, at most two per thread
+        final float stageper =
+          job.getFloat("io.sort.spill.buffer.percent", (float)0.1);
+        if (stageper > (float)0.5 || stageper <= (float)0.0) {
+          throw new IOException("Invalid \"io.sort.spill.buffer.percent\": " +
+                                stageper);
+        }
+        final int staging = (int)(maxMemUsage * stageper);
+        spillBufferLimit = Math.max(1, staging / (2 * spillThreads));
+        maxMemUsage -= staging;
+      } else {
+        spillBufferLimit = 0;
+      }
       int recordCapacity = (int)(maxMemUsage * recper);
-      recordCapacity -= recordCapacity % RECSIZE;
+      recordCapacity -= recordCapacity % recsize;
       kvbuffer = new byte[maxMemUsage - recordCapacity];
       bufvoid = kvbuffer.length;
-      recordCapacity /= RECSIZE;
+      recordCapacity /= recsize;
       kvoffsets = new int[recordCapacity];
       kvindices = new int[recordCapacity * ACCTSIZE];
+      kvprefixes = keyPrefix != null ? new long[recordCapacity] : null;
+      kvscratch = spillThreads > 1 ? new int[recordCapacity] : null;
       softBufferLimit = (int)(kvbuffer.length * spillper);
       softRecordLimit = (int)(kvoffsets.length * spillper);
       LOG.info("data buffer = " + softBufferLimit + "/" + kvbuffer.length);
       LOG.info("record buffer = " + softRecordLimit + "/" + kvoffsets.length);
       // k/v serialization
-      comparator = job.getOutputKeyComparator();
       keyClass = (Class<K>)job.getMapOutputKeyClass();
       valClass = (Class<V>)job.getMapOutputValueClass();
       serializationFactory = new SerializationFactory(job);
@@ -836,6 +895,33 @@ class MapTask extends Task {
         combineCollector = null;
       }
       minSpillsForCombine = job.getInt("min.num.spills.for.combine", 3);
+      if (spillThreads > 1) {
+        LOG.info("Spilling partitions with " + spillThreads + " threads");
+        // each worker needs its own comparator, sorter and combiner
+        spillContexts = new LinkedBlockingQueue<SpillContext>();
+        for (int i = 0; i < spillThreads; ++i) {
+          spillContexts.add(new SpillContext(
+              (RawComparator<K>)job.getOutputKeyComparator(),
+              ReflectionUtils.newInstance(sorter.getClass(), job),
+              CombinerRunner.create(job, getTaskID(), combineInputCounter,
+                                    reporter, null),
+              combineOutputCounter));
+        }
+        spillBuffers = new LinkedBlockingQueue<SpillBuffer>();
+        spillPool = Executors.newFixedThreadPool(spillThreads,
+            new ThreadFactory() {
+              private int count = 0;
+              public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "SpillThread-" + (count++));
+                t.setDaemon(true);
+                return t;
+              }
+            });
+      } else {
+        spillContexts = null;
+        spillBuffers = null;
+        spillPool = null;
+      }
       spillThread.setDaemon(true);
       spillThread.setName("SpillThread");
       spillLock.lock();
@@ -934,6 +1020,11 @@ class MapTask extends Task {
         kvindices[ind + PARTITION] = partition;
         kvindices[ind + KEYSTART] = keystart;
         kvindices[ind + VALSTART] = valstart;
+        if (kvprefixes != null) {
+          // the key is contiguous in kvbuffer, see bb.reset() above
+          kvprefixes[kvindex] =
+            keyPrefix.getPrefix(kvbuffer, keystart, valstart - keystart);
+        }
         kvindex = kvnext;
       } catch (MapBufferTooSmallException e) {
         LOG.info("Record too large for in-memory buffer: " + e.getMessage());
@@ -946,16 +1037,29 @@ class MapTask extends Task {
 
     /**
      * Compare logical range, st i, j MOD offset capacity.
-     * Compare by partition, then by key.
+     * Compare by partition, then by key. If normalized key prefixes are
+     * kept, the comparator is only consulted when the prefixes are equal.
      * @see IndexedSortable#compare
      */
     public int compare(int i, int j) {
+      return compare(i, j, comparator);
+    }
+
+    private int compare(int i, int j, RawComparator<K> comparator) {
       final int ii = kvoffsets[i % kvoffsets.length];
       final int ij = kvoffsets[j % kvoffsets.length];
       // sort by partition
       if (kvindices[ii + PARTITION] != kvindices[ij + PARTITION]) {
         return kvindices[ii + PARTITION] - kvindices[ij + PARTITION];
       }
+      // sort by key prefix
+      if (kvprefixes != null) {
+        final int cmp = KeyPrefix.compare(kvprefixes[ii / ACCTSIZE],
+                                          kvprefixes[ij / ACCTSIZE]);
+        if (cmp != 0) {
+          return cmp;
+        }
+      }
       // sort by key
       return comparator.compare(kvbuffer,
           kvindices[ii + KEYSTART],
@@ -1167,9 +1271,14 @@ class MapTask extends Task {
         throw (IOException)new IOException("Spill failed"
             ).initCause(e);
       }
+      if (spillPool != null) {
+        spillPool.shutdown();
+        spillBuffers.clear();
+      }
       // release sort buffer before the merge
       kvbuffer = null;
       mergeParts();
+      MapOutputCacheManager.dropMapOutput(job, mapOutputFile);
     }
 
     public void close() { }
@@ -1243,59 +1352,40 @@ class MapTask extends Task {
         final int endPosition = (kvend > kvstart)
           ? kvend
           : kvoffsets.length + kvend;
-        sorter.sort(MapOutputBuffer.this, kvstart, endPosition, reporter);
-        int spindex = kvstart;
-        IndexRecord rec = new IndexRecord();
-        InMemValBytes value = new InMemValBytes();
-        for (int i = 0; i < partitions; ++i) {
-          IFile.Writer<K, V> writer = null;
-          try {
-            long segmentStart = out.getPos();
-            writer = new Writer<K, V>(job, out, keyClass, valClass, codec,
-                                      spilledRecordsCounter);
-            if (combinerRunner == null) {
-              // spill directly
-              DataInputBuffer key = new DataInputBuffer();
-              while (spindex < endPosition &&
-                  kvindices[kvoffsets[spindex % kvoffsets.length]
-                            + PARTITION] == i) {
-                final int kvoff = kvoffsets[spindex % kvoffsets.length];
-                getVBytesForOffset(kvoff, value);
-                key.reset(kvbuffer, kvindices[kvoff + KEYSTART],
-                          (kvindices[kvoff + VALSTART] - 
-                           kvindices[kvoff + KEYSTART]));
-                writer.append(key, value);
-                ++spindex;
-              }
-            } else {
-              int spstart = spindex;
+        if (spillPool != null && partitions > 1) {
+          spillPartitions(out, spillRec, endPosition);
+        } else {
+          sorter.sort(MapOutputBuffer.this, kvstart, endPosition, reporter);
+          int spindex = kvstart;
+          IndexRecord rec = new IndexRecord();
+          for (int i = 0; i < partitions; ++i) {
+            IFile.Writer<K, V> writer = null;
+            try {
+              long segmentStart = out.getPos();
+              writer = new Writer<K, V>(job, out, keyClass, valClass, codec,
+                                        spilledRecordsCounter);
+              final int spstart = spindex;
               while (spindex < endPosition &&
                   kvindices[kvoffsets[spindex % kvoffsets.length]
                             + PARTITION] == i) {
                 ++spindex;
               }
-              // Note: we would like to avoid the combiner if we've fewer
-              // than some threshold of records for a partition
-              if (spstart != spindex) {
-                combineCollector.setWriter(writer);
-                RawKeyValueIterator kvIter =
-                  new MRResultIterator(spstart, spindex);
-                combinerRunner.combine(kvIter, combineCollector);
-              }
-            }
+              writePartition(spstart, spindex, writer, combinerRunner,
+                             combineCollector);
 
-            // close the writer
-            writer.close();
+              // close the writer
+              writer.close();
 
-            // record offsets
-            rec.startOffset = segmentStart;
-            rec.rawLength = writer.getRawLength();
-            rec.partLength = writer.getCompressedLength();
-            spillRec.putIndex(rec, i);
+              // record offsets
+              rec.startOffset = segmentStart;
+              rec.rawLength = writer.getRawLength();
+              rec.partLength = writer.getCompressedLength();
+              spillRec.putIndex(rec, i);
 
-            writer = null;
-          } finally {
-            if (null != writer) writer.close();
+              writer = null;
+            } finally {
+              if (null != writer) writer.close();
+            }
           }
         }
 
@@ -1317,6 +1407,249 @@ class MapTask extends Task {
       }
     }
 
+    /**
+     * Write the sorted records in the logical range [start, end), all from
+     * one partition, running the combiner over them if there is one.
+     */
+    private void writePartition(int start, int end, Writer<K, V> writer,
+                                CombinerRunner<K, V> combiner,
+                                CombineOutputCollector<K, V> collector
+                                ) throws IOException, InterruptedException,
+                                         ClassNotFoundException {
+      if (combiner == null) {
+        // spill directly
+        DataInputBuffer key = new DataInputBuffer();
+        InMemValBytes value = new InMemValBytes();
+        for (int spindex = start; spindex < end; ++spindex) {
+          final int kvoff = kvoffsets[spindex % kvoffsets.length];
+          getVBytesForOffset(kvoff, value);
+          key.reset(kvbuffer, kvindices[kvoff + KEYSTART],
+                    (kvindices[kvoff + VALSTART] - 
+                     kvindices[kvoff + KEYSTART]));
+          writer.append(key, value);
+        }
+      } else if (start != end) {
+        // Note: we would like to avoid the combiner if we've fewer
+        // than some threshold of records for a partition
+        collector.setWriter(writer);
+        RawKeyValueIterator kvIter = new MRResultIterator(start, end);
+        combiner.combine(kvIter, collector);
+      }
+    }
+
+    /**
+     * Sort, combine and serialize the partitions of the current spill on
+     * the spill pool, appending each to the spill file in partition order
+     * as it completes. At most two segments per thread are buffered, each
+     * of at most spillBufferLimit bytes; a partition that does not fit waits
+     * for its turn and is written straight to the spill file.
+     */
+    private void spillPartitions(FSDataOutputStream out, SpillRecord spillRec,
+                                 int endPosition
+                                 ) throws IOException, InterruptedException {
+      final int[] bounds = groupByPartition(kvstart, endPosition);
+      final int window = 2 * spillThreads;
+      final List<Future<SpillSegment>> pending =
+        new ArrayList<Future<SpillSegment>>(partitions);
+      final IndexRecord rec = new IndexRecord();
+      final byte[] tmp = new byte[SPILL_BUFFER_SIZE];
+      synchronized (spillTurnLock) {
+        spillOut = out;
+        spillTurn = -1;
+      }
+      boolean success = false;
+      try {
+        for (int i = 0; i < partitions; ++i) {
+          while (pending.size() < partitions &&
+                 pending.size() < i + window) {
+            final int p = pending.size();
+            pending.add(spillPool.submit(
+                new PartitionSpill(p, bounds[p], bounds[p + 1])));
+          }
+          rec.startOffset = out.getPos();
+          synchronized (spillTurnLock) {
+            spillTurn = i;
+            spillTurnLock.notifyAll();
+          }
+          final SpillSegment segment = getSegment(pending.get(i));
+          if (!segment.buffer.isOverflowed()) {
+            segment.buffer.writeTo(out, tmp);
+          }
+          rec.rawLength = segment.rawLength;
+          rec.partLength = segment.partLength;
+          spillRec.putIndex(rec, i);
+          segment.buffer.reset();
+          spillBuffers.offer(segment.buffer);
+        }
+        success = true;
+      } finally {
+        if (!success) {
+          for (Future<SpillSegment> f : pending) {
+            f.cancel(true);
+          }
+        }
+        synchronized (spillTurnLock) {
+          spillOut = null;
+        }
+      }
+    }
+
+    private SpillSegment getSegment(Future<SpillSegment> f
+                                    ) throws IOException, InterruptedException {
+      try {
+        return f.get();
+      } catch (ExecutionException e) {
+        final Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+          throw (IOException)cause;
+        }
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException)cause;
+        }
+        if (cause instanceof Error) {
+          throw (Error)cause;
+        }
+        throw (IOException)new IOException("Spill failed").initCause(cause);
+      }
+    }
+
+    /**
+     * Reorder the logical range [start, end) of kvoffsets so that records
+     * are grouped by partition, keeping their relative order.
+     * @return the logical start of each partition, followed by end
+     */
+    private int[] groupByPartition(int start, int end) {
+      final int[] bounds = new int[partitions + 1];
+      for (int i = start; i < end; ++i) {
+        ++bounds[kvindices[kvoffsets[i % kvoffsets.length] + PARTITION] + 1];
+      }
+      bounds[0] = start;
+      for (int p = 0; p < partitions; ++p) {
+        bounds[p + 1] += bounds[p];
+      }
+      final int[] next = new int[partitions];
+      System.arraycopy(bounds, 0, next, 0, partitions);
+      for (int i = start; i < end; ++i) {
+        final int kvoff = kvoffsets[i % kvoffsets.length];
+        kvscratch[next[kvindices[kvoff + PARTITION]]++ - start] = kvoff;
+      }
+      for (int i = start; i < end; ++i) {
+        kvoffsets[i % kvoffsets.length] = kvscratch[i - start];
+      }
+      return bounds;
+    }
+
+    /**
+     * Per-thread state for sorting and combining a partition of a spill.
+     */
+    private class SpillContext implements IndexedSortable {
+      private final RawComparator<K> comparator;
+      private final IndexedSorter sorter;
+      private final CombinerRunner<K, V> combinerRunner;
+      private final CombineOutputCollector<K, V> combineCollector;
+
+      SpillContext(RawComparator<K> comparator, IndexedSorter sorter,
+                   CombinerRunner<K, V> combinerRunner,
+                   Counters.Counter combineOutputCounter) {
+        this.comparator = comparator;
+        this.sorter = sorter;
+        this.combinerRunner = combinerRunner;
+        this.combineCollector = combinerRunner == null
+          ? null
+          : new CombineOutputCollector<K, V>(combineOutputCounter);
+      }
+
+      public int compare(int i, int j) {
+        return MapOutputBuffer.this.compare(i, j, comparator);
+      }
+
+      public void swap(int i, int j) {
+        MapOutputBuffer.this.swap(i, j);
+      }
+    }
+
+    /**
+     * A serialized partition of a spill, waiting to be written.
+     */
+    private class SpillSegment {
+      final SpillBuffer buffer;
+      final long rawLength;
+      final long partLength;
+
+      SpillSegment(SpillBuffer buffer, long rawLength, long partLength) {
+        this.buffer = buffer;
+        this.rawLength = rawLength;
+        this.partLength = partLength;
+      }
+    }
+
+    /**
+     * Sorts one partition of a spill and serializes it into a SpillBuffer,
+     * or through it to the spill file if the partition does not fit.
+     */
+    private class PartitionSpill
+        implements Callable<SpillSegment>, SpillBuffer.Overflow {
+      private final int partition;
+      private final int start;
+      private final int end;
+
+      PartitionSpill(int partition, int start, int end) {
+        this.partition = partition;
+        this.start = start;
+        this.end = end;
+      }
+
+      /**
+       * Wait until the partitions before this one have been appended to
+       * the spill file, then return it.
+       */
+      public OutputStream open() throws IOException {
+        synchronized (spillTurnLock) {
+          try {
+            while (spillOut != null && spillTurn != partition) {
+              spillTurnLock.wait();
+            }
+          } catch (InterruptedException e) {
+            throw (IOException)new InterruptedIOException(
+                "Interrupted waiting to spill partition " + partition
+                ).initCause(e);
+          }
+          if (spillOut == null) {
+            throw new IOException("Spill of partition " + partition +
+                                  " was abandoned");
+          }
+          return spillOut;
+        }
+      }
+
+      public SpillSegment call() throws Exception {
+        final SpillContext ctx = spillContexts.take();
+        try {
+          ctx.sorter.sort(ctx, start, end, reporter);
+          SpillBuffer buffer = spillBuffers.poll();
+          if (buffer == null) {
+            buffer = new SpillBuffer(SPILL_BUFFER_SIZE, spillBufferLimit,
+                                     spillDirect);
+          }
+          buffer.setOverflow(this);
+          Writer<K, V> writer =
+            new Writer<K, V>(job, new FSDataOutputStream(buffer, null),
+                             keyClass, valClass, codec,
+                             spilledRecordsCounter);
+          try {
+            writePartition(start, end, writer, ctx.combinerRunner,
+                           ctx.combineCollector);
+          } finally {
+            writer.close();
+          }
+          return new SpillSegment(buffer, writer.getRawLength(),
+                                  writer.getCompressedLength());
+        } finally {
+          spillContexts.put(ctx);
+        }
+      }
+    }
+
     /**
      * Handles the degenerate case where serialization fails to fit in
      * the in-memory buffer, so we must spill the record from collect
@@ -18,15 +18,19 @@
 
 package org.apache.hadoop.mapred;
 
+import java.io.BufferedInputStream;
 import java.io.DataInput;
+import java.io.DataInputStream;
 import java.io.DataOutput;
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.Math;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URL;
 import java.net.URLClassLoader;
@@ -36,7 +40,6 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -47,6 +50,11 @@ import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.crypto.SecretKey;
 
@@ -57,6 +65,7 @@ import org.apache.hadoop.fs.ChecksumFileSystem;
 import org.apache.hadoop.fs.FSError;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalDirAllocator;
 import org.apache.hadoop.fs.LocalFileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.DataInputBuffer;
@@ -125,6 +134,8 @@ class ReduceTask extends Task {
     getCounters().findCounter(Counter.REDUCE_OUTPUT_RECORDS);
   private Counters.Counter reduceCombineOutputCounter =
     getCounters().findCounter(Counter.COMBINE_OUTPUT_RECORDS);
+  private Counters.Counter reducePushedOutputs =
+    getCounters().findCounter(Counter.REDUCE_PUSHED_OUTPUTS);
 
   // A custom comparator for map output files. Here the ordering is determined
   // by the file's size and path. In case of files with same size and different
@@ -574,9 +585,84 @@ class ReduceTask extends Task {
   private static enum CopyOutputErrorType {
     NO_ERROR,
     READ_ERROR,
+    BUSY,
     OTHER_ERROR
   };
 
+  /**
+   * Thrown when a host turns a fetch away because it already serves as many
+   * fetches as it allows.
+   */
+  @SuppressWarnings("serial")
+  private static class HostBusyException extends IOException {
+    HostBusyException(String s) {
+      super(s);
+    }
+  }
+
+  /**
+   * A map output within a batched response, which ends with the map
+   * output and leaves the response open when it is closed.
+   */
+  private static class SegmentInputStream extends FilterInputStream {
+    private long remaining;
+    
+    SegmentInputStream(InputStream in, long length) {
+      super(in);
+      this.remaining = length;
+    }
+    
+    long getRemaining() {
+      return remaining;
+    }
+    
+    @Override
+    public int read() throws IOException {
+      if (remaining <= 0) {
+        return -1;
+      }
+      int b = in.read();
+      if (b >= 0) {
+        --remaining;
+      }
+      return b;
+    }
+    
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (remaining <= 0) {
+        return -1;
+      }
+      int n = in.read(b, off, (int)Math.min(len, remaining));
+      if (n > 0) {
+        remaining -= n;
+      }
+      return n;
+    }
+    
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = in.skip(Math.min(n, remaining));
+      remaining -= skipped;
+      return skipped;
+    }
+    
+    @Override
+    public int available() throws IOException {
+      return (int)Math.min(in.available(), remaining);
+    }
+    
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+    
+    @Override
+    public void close() {
+      // the rest of the response is still to be read
+    }
+  }
+
   class ReduceCopier<K, V> implements MRConstants {
 
     /** Reference to the umbilical object */
@@ -597,9 +683,10 @@ class ReduceTask extends Task {
     private ReduceTask reduceTask;
     
     /**
-     * the list of map outputs currently being copied
+     * the fetches scheduled for the copiers, each of the outputs of one or
+     * more maps from one host
      */
-    private List<MapOutputLocation> scheduledCopies;
+    private List<List<MapOutputLocation>> scheduledCopies;
     
     /**
      *  the results of dispatched copy attempts
@@ -607,9 +694,61 @@ class ReduceTask extends Task {
     private List<CopyResult> copyResults;
     
     /**
-     *  the number of outputs to copy in parallel
+     *  the number of copiers running
+     */
+    private volatile int numCopiers;
+    
+    /**
+     * the bounds of the pool of copiers, which grows while fetches wait for
+     * a copier and the shuffle throughput keeps up with the copiers
+     */
+    private int minCopiers;
+    private int maxCopiers;
+    
+    /**
+     * the number of copiers to stop once they finish their current fetch
+     */
+    private int copiersToRetire = 0;
+    
+    /**
+     * the interval between adjustments of the pool of copiers
      */
-    private int numCopiers;
+    private static final long COPIER_ADJUST_INTERVAL = 5000;
+    
+    /**
+     * the state of the last adjustment of the pool of copiers: its time, the
+     * bytes shuffled then, and the best throughput of a copier so far, in
+     * bytes per ms
+     */
+    private long lastAdjustTime;
+    private long lastAdjustBytes;
+    private float bestCopierRate = 0;
+    
+    /**
+     * whether a host turned a fetch away as busy since the last adjustment
+     */
+    private boolean busyHosts = false;
+    
+    /**
+     * the maximum number of fetches in flight from one host
+     */
+    private int maxFetchesPerHost;
+    
+    /**
+     * the port of the TaskTrackers' NIO shuffle servers, or -1 to fetch the
+     * map outputs from their http servers
+     */
+    private int nioShufflePort;
+    
+    /**
+     * the maximum number of map outputs fetched from a host in one request
+     */
+    private int maxMapsPerFetch;
+    
+    /**
+     * the limit on maxMapsPerFetch, which keeps the request url short
+     */
+    private static final int MAX_MAPS_PER_FETCH = 64;
     
     /**
      *  a number that is set to the max #fetches we'd schedule and then
@@ -630,9 +769,15 @@ class ReduceTask extends Task {
     private Map<String, Long> penaltyBox;
     
     /**
-     * the set of unique hosts from which we are copying
+     * hosts that have turned every fetch away as busy since some time
+     * Map of host -> time of the first busy response
      */
-    private Set<String> uniqueHosts;
+    private Map<String, Long> busyHostsSince;
+    
+    /**
+     * the number of fetches in flight from each host we are copying from
+     */
+    private Map<String, Integer> hostFetches;
     
     /**
      * A reference to the RamManager for writing the map outputs to.
@@ -682,6 +827,22 @@ class ReduceTask extends Task {
      */
     private final long maxInMemReduce;
 
+    /**
+     * Number of threads merging in-memory map outputs to disk.
+     */
+    private final int numInMemMergers;
+
+    /**
+     * Whether maps push their outputs to this reduce's tracker.
+     */
+    private final boolean pushedOutputs;
+
+    /**
+     * Finds the outputs pushed to this reduce in the tracker's directories.
+     */
+    private final LocalDirAllocator pushedDirAlloc =
+      new LocalDirAllocator(TaskTracker.PUSHED_OUTPUT_LOCAL_DIR);
+
     /**
      * The threads for fetching the files.
      */
@@ -786,6 +947,12 @@ class ReduceTask extends Task {
      */
     private static final int BACKOFF_INIT = 4000; 
     
+    /**
+     * Backoff interval for a host that turned a fetch away as busy
+     * (milliseconds)
+     */
+    private static final int BUSY_BACKOFF = 1000;
+    
     /**
      * The interval for logging in the shuffle
      */
@@ -811,22 +978,48 @@ class ReduceTask extends Task {
      * ShuffleClientMetrics.
      */
     class ShuffleClientMetrics implements Updater {
+      private final JobConf conf;
+      private final MetricsContext metricsContext;
       private MetricsRecord shuffleMetrics = null;
       private int numFailedFetches = 0;
       private int numSuccessFetches = 0;
       private long numBytes = 0;
       private int numThreadsBusy = 0;
+      private int numMemoryStalls = 0;
+      private long memoryStallTime = 0;
+      private final Map<String, HostMetrics> hostMetrics =
+        new HashMap<String, HostMetrics>();
+
+      /** The fetches from one host since the last update. */
+      private class HostMetrics {
+        final MetricsRecord record;
+        int fetches = 0;
+        int failedFetches = 0;
+        long bytes = 0;
+        long fetchTime = 0;
+
+        HostMetrics(String host) {
+          record = MetricsUtil.createRecord(metricsContext, "shuffleInputHost");
+          setTags(record);
+          record.setTag("host", host);
+        }
+      }
+
       ShuffleClientMetrics(JobConf conf) {
-        MetricsContext metricsContext = MetricsUtil.getContext("mapred");
+        this.conf = conf;
+        this.metricsContext = MetricsUtil.getContext("mapred");
         this.shuffleMetrics = 
           MetricsUtil.createRecord(metricsContext, "shuffleInput");
-        this.shuffleMetrics.setTag("user", conf.getUser());
-        this.shuffleMetrics.setTag("jobName", conf.getJobName());
-        this.shuffleMetrics.setTag("jobId", ReduceTask.this.getJobID().toString());
-        this.shuffleMetrics.setTag("taskId", getTaskID().toString());
-        this.shuffleMetrics.setTag("sessionId", conf.getSessionId());
+        setTags(shuffleMetrics);
         metricsContext.registerUpdater(this);
       }
+      private void setTags(MetricsRecord record) {
+        record.setTag("user", conf.getUser());
+        record.setTag("jobName", conf.getJobName());
+        record.setTag("jobId", ReduceTask.this.getJobID().toString());
+        record.setTag("taskId", getTaskID().toString());
+        record.setTag("sessionId", conf.getSessionId());
+      }
       public synchronized void inputBytes(long numBytes) {
         this.numBytes += numBytes;
       }
@@ -842,9 +1035,33 @@ class ReduceTask extends Task {
       public synchronized void threadFree() {
         --numThreadsBusy;
       }
+      public synchronized void memoryStall(long millis) {
+        ++numMemoryStalls;
+        memoryStallTime += millis;
+      }
+      /**
+       * Note a fetch of one or more map outputs from a host.
+       */
+      public synchronized void hostFetch(String host, long bytes, long millis,
+                                         boolean success) {
+        HostMetrics metrics = hostMetrics.get(host);
+        if (metrics == null) {
+          metrics = new HostMetrics(host);
+          hostMetrics.put(host, metrics);
+        }
+        ++metrics.fetches;
+        if (!success) {
+          ++metrics.failedFetches;
+        }
+        metrics.bytes += bytes;
+        metrics.fetchTime += millis;
+      }
       public void doUpdates(MetricsContext unused) {
         synchronized (this) {
           shuffleMetrics.incrMetric("shuffle_input_bytes", numBytes);
+          shuffleMetrics.incrMetric("shuffle_memory_stalls", numMemoryStalls);
+          shuffleMetrics.incrMetric("shuffle_memory_stall_millis",
+                                    memoryStallTime);
           shuffleMetrics.incrMetric("shuffle_failed_fetches", 
                                     numFailedFetches);
           shuffleMetrics.incrMetric("shuffle_success_fetches", 
@@ -858,6 +1075,23 @@ class ReduceTask extends Task {
           numBytes = 0;
           numSuccessFetches = 0;
           numFailedFetches = 0;
+          numMemoryStalls = 0;
+          memoryStallTime = 0;
+          for (HostMetrics host : hostMetrics.values()) {
+            host.record.incrMetric("shuffle_host_fetches", host.fetches);
+            host.record.incrMetric("shuffle_host_failed_fetches",
+                                   host.failedFetches);
+            host.record.incrMetric("shuffle_host_input_bytes", host.bytes);
+            host.record.incrMetric("shuffle_host_fetch_millis",
+                                   host.fetchTime);
+            host.record.setMetric("shuffle_host_avg_fetch_millis",
+                host.fetches == 0 ? 0 : host.fetchTime / host.fetches);
+            host.record.update();
+            host.fetches = 0;
+            host.failedFetches = 0;
+            host.bytes = 0;
+            host.fetchTime = 0;
+          }
         }
         shuffleMetrics.update();
       }
@@ -876,15 +1110,21 @@ class ReduceTask extends Task {
       private static final int OBSOLETE = -2;
       
       private CopyOutputErrorType error = CopyOutputErrorType.NO_ERROR;
+      
+      // whether this is the last result of a fetch from the host
+      private boolean lastOfFetch = true;
+      
       CopyResult(MapOutputLocation loc, long size) {
         this.loc = loc;
         this.size = size;
       }
 
-      CopyResult(MapOutputLocation loc, long size, CopyOutputErrorType error) {
+      CopyResult(MapOutputLocation loc, long size, CopyOutputErrorType error,
+                 boolean lastOfFetch) {
         this.loc = loc;
         this.size = size;
         this.error = error;
+        this.lastOfFetch = lastOfFetch;
       }
 
       public boolean getSuccess() { return size >= 0; }
@@ -895,6 +1135,7 @@ class ReduceTask extends Task {
       public String getHost() { return loc.getHost(); }
       public MapOutputLocation getLocation() { return loc; }
       public CopyOutputErrorType getError() { return error; }
+      public boolean isLastOfFetch() { return lastOfFetch; }
     }
     
     private int nextMapOutputCopierId = 0;
@@ -944,7 +1185,13 @@ class ReduceTask extends Task {
       
       byte[] data;
       final boolean inMemory;
+      // whether data is held as fetched, compressed and with its checksum
+      final boolean compressed;
       long compressedSize;
+      // for an in-memory output, its decompressed size, and the memory
+      // reserved for it, which includes that needed to decompress it
+      final long rawSize;
+      final int reserved;
       
       public MapOutput(TaskID mapId, TaskAttemptID mapAttemptId, 
                        Configuration conf, Path file, long size) {
@@ -956,11 +1203,16 @@ class ReduceTask extends Task {
         this.compressedSize = size;
         
         this.data = null;
+        this.rawSize = 0;
+        this.reserved = 0;
         
         this.inMemory = false;
+        this.compressed = false;
       }
       
-      public MapOutput(TaskID mapId, TaskAttemptID mapAttemptId, byte[] data, int compressedLength) {
+      public MapOutput(TaskID mapId, TaskAttemptID mapAttemptId, byte[] data,
+                       int compressedLength, long rawSize, int reserved,
+                       boolean compressed) {
         this.mapId = mapId;
         this.mapAttemptId = mapAttemptId;
         
@@ -969,13 +1221,23 @@ class ReduceTask extends Task {
         
         this.data = data;
         this.compressedSize = compressedLength;
+        this.rawSize = rawSize;
+        this.reserved = reserved;
         
         this.inMemory = true;
+        this.compressed = compressed;
       }
       
+      /**
+       * Discard a map output that will not be merged. An in-memory output
+       * returns its reservation to the ShuffleRamManager.
+       */
       public void discard() throws IOException {
         if (inMemory) {
-          data = null;
+          if (data != null) {
+            ramManager.unreserve(reserved);
+            data = null;
+          }
         } else {
           FileSystem fs = file.getFileSystem(conf);
           fs.delete(file, true);
@@ -983,6 +1245,16 @@ class ReduceTask extends Task {
       }
     }
     
+    /**
+     * Accounts for the memory holding map outputs during the shuffle, and
+     * decides when in-memory outputs should be merged to disk.
+     *
+     * Reservations are made with a compare-and-set on the reserved size, so
+     * copiers only take a lock when they must wait for memory. Outputs count
+     * towards the merge thresholds from the time they are added to
+     * mapOutputsFilesInMemory until a merge takes them, which lets several
+     * merges run at once, each over different outputs.
+     */
     class ShuffleRamManager implements RamManager {
       /* Maximum percentage of the in-memory limit that a single shuffle can 
        * consume*/ 
@@ -992,18 +1264,28 @@ class ReduceTask extends Task {
        * simultaneously after which a merge is triggered. */ 
       private static final float MAX_STALLED_SHUFFLE_THREADS_FRACTION = 0.75f;
       
+      /* Interval (ms) at which a waiting merger re-checks for work */
+      private static final long MERGE_CHECK_INTERVAL = 1000;
+      
       private final long maxSize;
       private final long maxSingleShuffleLimit;
       
-      private long size = 0;
+      private final AtomicLong size = new AtomicLong(0);
+      private final AtomicInteger numPendingRequests = new AtomicInteger(0);
       
-      private Object dataAvailable = new Object();
-      private long fullSize = 0;
-      private int numPendingRequests = 0;
+      private final ReentrantLock lock = new ReentrantLock();
+      private final Condition spaceAvailable = lock.newCondition();
+      private final Condition dataAvailable = lock.newCondition();
+      // the following are guarded by lock
+      private long unmergedSize = 0;
+      private int numUnmerged = 0;
       private int numRequiredMapOutputs = 0;
-      private int numClosed = 0;
+      private boolean mergePending = false;
       private boolean closed = false;
       
+      private final AtomicInteger numStalls = new AtomicInteger(0);
+      private final AtomicLong stallTime = new AtomicLong(0);
+      
       public ShuffleRamManager(Configuration conf) throws IOException {
         final float maxInMemCopyUse =
           conf.getFloat("mapred.job.shuffle.input.buffer.percent", 0.70f);
@@ -1020,113 +1302,177 @@ class ReduceTask extends Task {
                  ", MaxSingleShuffleLimit=" + maxSingleShuffleLimit);
       }
       
-      public synchronized boolean reserve(int requestedSize, InputStream in) 
+      public boolean reserve(int requestedSize, InputStream in) 
       throws InterruptedException {
-        // Wait till the request can be fulfilled...
-        while ((size + requestedSize) > maxSize) {
-          
-          // Close the input...
-          if (in != null) {
-            try {
-              in.close();
-            } catch (IOException ie) {
-              LOG.info("Failed to close connection with: " + ie);
-            } finally {
-              in = null;
-            }
-          } 
-
-          // Track pending requests
-          synchronized (dataAvailable) {
-            ++numPendingRequests;
-            dataAvailable.notify();
-          }
-
-          // Wait for memory to free up
-          wait();
-          
-          // Track pending requests
-          synchronized (dataAvailable) {
-            --numPendingRequests;
+        if (tryReserve(requestedSize)) {
+          return (in != null);
+        }
+        
+        // Close the input...
+        if (in != null) {
+          try {
+            in.close();
+          } catch (IOException ie) {
+            LOG.info("Failed to close connection with: " + ie);
+          } finally {
+            in = null;
           }
         }
         
-        size += requestedSize;
+        // Wait for memory to free up
+        final long start = System.currentTimeMillis();
+        lock.lock();
+        try {
+          // Track pending requests; unreserve only signals if there are any
+          numPendingRequests.incrementAndGet();
+          dataAvailable.signal();
+          try {
+            while (!tryReserve(requestedSize)) {
+              spaceAvailable.await();
+            }
+          } finally {
+            numPendingRequests.decrementAndGet();
+          }
+        } finally {
+          lock.unlock();
+        }
+        final long stalled = System.currentTimeMillis() - start;
+        numStalls.incrementAndGet();
+        stallTime.addAndGet(stalled);
+        shuffleClientMetrics.memoryStall(stalled);
         
-        return (in != null);
+        return false;
       }
       
-      public synchronized void unreserve(int requestedSize) {
-        size -= requestedSize;
-        
-        synchronized (dataAvailable) {
-          fullSize -= requestedSize;
-          --numClosed;
+      /**
+       * Reserve memory only if it is available now, without waiting.
+       * @return whether the memory was reserved
+       */
+      public boolean tryReserve(int requestedSize) {
+        while (true) {
+          final long current = size.get();
+          if (current + requestedSize > maxSize) {
+            return false;
+          }
+          if (size.compareAndSet(current, current + requestedSize)) {
+            return true;
+          }
         }
+      }
+      
+      public void unreserve(int requestedSize) {
+        size.addAndGet(-requestedSize);
         
         // Notify the threads blocked on RamManager.reserve
-        notifyAll();
+        if (numPendingRequests.get() > 0) {
+          lock.lock();
+          try {
+            spaceAvailable.signalAll();
+          } finally {
+            lock.unlock();
+          }
+        }
       }
       
+      /**
+       * Wait until the in-memory outputs not yet being merged should be
+       * merged, and claim that merge for the caller, who must then call
+       * {@link #noteMergeStarted(int, long)}.
+       * @return true if the manager has been closed
+       */
       public boolean waitForDataToMerge() throws InterruptedException {
-        boolean done = false;
-        synchronized (dataAvailable) {
-                 // Start in-memory merge if manager has been closed or...
-          while (!closed
-                 &&
-                 // In-memory threshold exceeded and at least two segments
-                 // have been fetched
-                 (getPercentUsed() < maxInMemCopyPer || numClosed < 2)
-                 &&
-                 // More than "mapred.inmem.merge.threshold" map outputs
-                 // have been fetched into memory
-                 (maxInMemOutputs <= 0 || numClosed < maxInMemOutputs)
-                 && 
-                 // More than MAX... threads are blocked on the RamManager
-                 // or the blocked threads are the last map outputs to be
-                 // fetched. If numRequiredMapOutputs is zero, either
-                 // setNumCopiedMapOutputs has not been called (no map ouputs
-                 // have been fetched, so there is nothing to merge) or the
-                 // last map outputs being transferred without
-                 // contention, so a merge would be premature.
-                 (numPendingRequests < 
-                      numCopiers*MAX_STALLED_SHUFFLE_THREADS_FRACTION && 
-                  (0 == numRequiredMapOutputs ||
-                   numPendingRequests < numRequiredMapOutputs))) {
-            dataAvailable.wait();
+        lock.lock();
+        try {
+          while (!closed && (mergePending || !shouldMerge())) {
+            // Re-check periodically; pending requests are counted outside
+            // the lock, so a wakeup may race with the check
+            dataAvailable.await(MERGE_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
           }
-          done = closed;
+          mergePending = !closed;
+          return closed;
+        } finally {
+          lock.unlock();
+        }
+      }
+      
+      private boolean shouldMerge() {
+        final int numPending = numPendingRequests.get();
+        return numUnmerged > 0 && (
+            // In-memory threshold exceeded and at least two segments
+            // have been fetched
+            ((float)unmergedSize/maxSize >= maxInMemCopyPer &&
+             numUnmerged >= 2)
+            ||
+            // More than "mapred.inmem.merge.threshold" map outputs
+            // have been fetched into memory
+            (maxInMemOutputs > 0 && numUnmerged >= maxInMemOutputs)
+            ||
+            // More than MAX... threads are blocked on the RamManager
+            // or the blocked threads are the last map outputs to be
+            // fetched. If numRequiredMapOutputs is zero, either
+            // setNumCopiedMapOutputs has not been called (no map ouputs
+            // have been fetched, so there is nothing to merge) or the
+            // last map outputs being transferred without
+            // contention, so a merge would be premature.
+            numPending >= numCopiers*MAX_STALLED_SHUFFLE_THREADS_FRACTION
+            ||
+            (0 != numRequiredMapOutputs &&
+             numPending >= numRequiredMapOutputs));
+      }
+      
+      /**
+       * Note that a merge claimed by {@link #waitForDataToMerge()} has taken
+       * the given in-memory outputs.
+       */
+      public void noteMergeStarted(int numOutputs, long bytes) {
+        lock.lock();
+        try {
+          numUnmerged -= numOutputs;
+          unmergedSize -= bytes;
+          mergePending = false;
+          dataAvailable.signal();
+        } finally {
+          lock.unlock();
         }
-        return done;
       }
       
+      /**
+       * Note that an output of the given size was added to the in-memory
+       * outputs waiting to be merged.
+       */
       public void closeInMemoryFile(int requestedSize) {
-        synchronized (dataAvailable) {
-          fullSize += requestedSize;
-          ++numClosed;
-          dataAvailable.notify();
+        lock.lock();
+        try {
+          unmergedSize += requestedSize;
+          ++numUnmerged;
+          dataAvailable.signal();
+        } finally {
+          lock.unlock();
         }
       }
       
       public void setNumCopiedMapOutputs(int numRequiredMapOutputs) {
-        synchronized (dataAvailable) {
+        lock.lock();
+        try {
           this.numRequiredMapOutputs = numRequiredMapOutputs;
-          dataAvailable.notify();
+          dataAvailable.signal();
+        } finally {
+          lock.unlock();
         }
       }
       
       public void close() {
-        synchronized (dataAvailable) {
+        lock.lock();
+        try {
           closed = true;
-          LOG.info("Closed ram manager");
-          dataAvailable.notify();
+          LOG.info("Closed ram manager; copiers waited for memory " +
+                   numStalls.get() + " times, " + stallTime.get() + " ms");
+          dataAvailable.signalAll();
+        } finally {
+          lock.unlock();
         }
       }
       
-      private float getPercentUsed() {
-        return (float)fullSize/maxSize;
-      }
-
       boolean canFitInMemory(long requestedSize) {
         return (requestedSize < Integer.MAX_VALUE && 
                 requestedSize < maxSingleShuffleLimit);
@@ -1150,6 +1496,11 @@ class ReduceTask extends Task {
       // Decompression of map-outputs
       private CompressionCodec codec = null;
       private Decompressor decompressor = null;
+      // Whether compressed map-outputs are kept compressed in memory and
+      // only decompressed by the merge
+      private final boolean keepCompressed;
+      // Memory needed to decompress an output kept compressed while merging
+      private final int compressedReaderOverhead;
       
       private final SecretKey jobTokenSecret;
       
@@ -1171,6 +1522,11 @@ class ReduceTask extends Task {
           codec = ReflectionUtils.newInstance(codecClass, job);
           decompressor = CodecPool.getDecompressor(codec);
         }
+        keepCompressed = codec != null &&
+          job.getBoolean("mapred.job.shuffle.keep.compressed", false);
+        compressedReaderOverhead = keepCompressed
+          ? CompressedInMemoryReader.getMemoryOverhead(job)
+          : 0;
       }
       
       /**
@@ -1179,7 +1535,7 @@ class ReduceTask extends Task {
        */
       public synchronized boolean fail() {
         if (currentLocation != null) {
-          finish(-1, CopyOutputErrorType.OTHER_ERROR);
+          finish(-1, CopyOutputErrorType.OTHER_ERROR, true);
           return true;
         } else {
           return false;
@@ -1197,11 +1553,13 @@ class ReduceTask extends Task {
         currentLocation = loc;
       }
       
-      private synchronized void finish(long size, CopyOutputErrorType error) {
+      private synchronized void finish(long size, CopyOutputErrorType error,
+                                       boolean lastOfFetch) {
         if (currentLocation != null) {
           LOG.debug(getName() + " finishing " + currentLocation + " =" + size);
           synchronized (copyResults) {
-            copyResults.add(new CopyResult(currentLocation, size, error));
+            copyResults.add(new CopyResult(currentLocation, size, error,
+                                           lastOfFetch));
             copyResults.notify();
           }
           currentLocation = null;
@@ -1215,23 +1573,44 @@ class ReduceTask extends Task {
       public void run() {
         while (true) {        
           try {
-            MapOutputLocation loc = null;
+            List<MapOutputLocation> locs = null;
             long size = -1;
             
+            if (retireCopier(this)) {
+              break;
+            }
             synchronized (scheduledCopies) {
               while (scheduledCopies.isEmpty()) {
                 scheduledCopies.wait();
               }
-              loc = scheduledCopies.remove(0);
+              locs = scheduledCopies.remove(0);
             }
+            if (pushedOutputs) {
+              locs = copyPushedOutputs(locs);
+              if (locs.isEmpty()) {
+                continue;
+              }
+            }
+            if (locs.size() > 1) {
+              copyOutputs(locs);
+              continue;
+            }
+            MapOutputLocation loc = locs.get(0);
             CopyOutputErrorType error = CopyOutputErrorType.OTHER_ERROR;
             readError = false;
+            long fetchStart = System.currentTimeMillis();
             try {
               shuffleClientMetrics.threadBusy();
               start(loc);
               size = copyOutput(loc);
               shuffleClientMetrics.successFetch();
               error = CopyOutputErrorType.NO_ERROR;
+            } catch (HostBusyException e) {
+              LOG.info(reduceTask.getTaskID() + " " + loc.getHost() +
+                       " is busy, will fetch " + loc.getTaskAttemptId() +
+                       " later");
+              error = CopyOutputErrorType.BUSY;
+              size = -1;
             } catch (IOException e) {
               LOG.warn(reduceTask.getTaskID() + " copy failed: " +
                        loc.getTaskAttemptId() + " from " + loc.getHost());
@@ -1244,7 +1623,10 @@ class ReduceTask extends Task {
               size = -1;
             } finally {
               shuffleClientMetrics.threadFree();
-              finish(size, error);
+              shuffleClientMetrics.hostFetch(loc.getHost(), Math.max(size, 0),
+                  System.currentTimeMillis() - fetchStart,
+                  error == CopyOutputErrorType.NO_ERROR);
+              finish(size, error, true);
             }
           } catch (InterruptedException e) { 
             break; // ALL DONE
@@ -1288,10 +1670,7 @@ class ReduceTask extends Task {
         // else, we will check the localFS to find a suitable final location
         // for this path
         TaskAttemptID reduceId = reduceTask.getTaskID();
-        Path filename =
-            new Path(String.format(
-                MapOutputFile.REDUCE_INPUT_FILE_FORMAT_STRING,
-                TaskTracker.OUTPUT, loc.getTaskId().getId()));
+        Path filename = getMapOutputFilename(loc);
 
         // Copy the map output to a temp file whose name is unique to this attempt 
         Path tmpMapOutput = new Path(filename+"-"+id);
@@ -1305,6 +1684,283 @@ class ReduceTask extends Task {
                                 loc.getHost());
         }
         
+        return commitMapOutput(loc, mapOutput, filename);
+      }
+      
+      /**
+       * Copies the outputs of several maps from one host with a single
+       * request, in which each map output is preceded by a 
+       * {@link ShuffleHeader}. A result is reported for each map. If the
+       * response breaks off, the maps not yet copied fail as well.
+       */
+      private void copyOutputs(List<MapOutputLocation> locs)
+      throws InterruptedException {
+        int done = 0;
+        InputStream input = null;
+        long fetchStart = System.currentTimeMillis();
+        long bytes = 0;
+        boolean success = false;
+        shuffleClientMetrics.threadBusy();
+        try {
+          readError = false;
+          URLConnection connection = getBatchLocation(locs).openConnection();
+          input = setupSecureConnection(locs.get(0), connection);
+          int count = getIntHeader(connection, MAP_OUTPUT_BATCH);
+          int forReduce = getIntHeader(connection, FOR_REDUCE_TASK);
+          if (count != locs.size() || forReduce != getPartition()) {
+            throw new IOException("Batch of " + count + " map outputs for " +
+                "reduce " + forReduce + " arrived to reduce task " +
+                getPartition() + ", where as " + locs.size() +
+                " map outputs were requested");
+          }
+          DataInputStream in = new DataInputStream(input);
+          while (done < locs.size()) {
+            MapOutputLocation loc = locs.get(done);
+            long size = -1;
+            CopyOutputErrorType error = CopyOutputErrorType.OTHER_ERROR;
+            start(loc);
+            try {
+              size = copyOutput(loc, in);
+              if (size != -1) {
+                shuffleClientMetrics.successFetch();
+                error = CopyOutputErrorType.NO_ERROR;
+                bytes += Math.max(size, 0);
+              } else {
+                shuffleClientMetrics.failedFetch();
+              }
+            } catch (IOException ie) {
+              shuffleClientMetrics.failedFetch();
+              if (readError) {
+                error = CopyOutputErrorType.READ_ERROR;
+              }
+              throw ie;
+            } finally {
+              ++done;
+              finish(size, error, done == locs.size());
+            }
+          }
+          success = true;
+        } catch (HostBusyException e) {
+          LOG.info(reduceTask.getTaskID() + " " + locs.get(0).getHost() +
+                   " is busy, will fetch " + locs.size() + " maps later");
+          while (done < locs.size()) {
+            start(locs.get(done));
+            ++done;
+            finish(-1, CopyOutputErrorType.BUSY, done == locs.size());
+          }
+        } catch (IOException e) {
+          LOG.warn(reduceTask.getTaskID() + " copy failed: " +
+                   (done < locs.size() ? locs.get(done) : locs.get(done - 1))
+                   .getTaskAttemptId() + " from " + locs.get(0).getHost());
+          LOG.warn(StringUtils.stringifyException(e));
+          // the maps that were not reached are failed too
+          while (done < locs.size()) {
+            start(locs.get(done));
+            shuffleClientMetrics.failedFetch();
+            ++done;
+            finish(-1, CopyOutputErrorType.OTHER_ERROR, done == locs.size());
+          }
+        } finally {
+          IOUtils.cleanup(LOG, input);
+          shuffleClientMetrics.threadFree();
+          shuffleClientMetrics.hostFetch(locs.get(0).getHost(), bytes,
+              System.currentTimeMillis() - fetchStart, success);
+        }
+      }
+      
+      /**
+       * Get an integer header of a batch response. A server that does not
+       * know batches, or an error page, leaves it out, which fails the
+       * batch like any other bad response.
+       */
+      private int getIntHeader(URLConnection connection, String name)
+      throws IOException {
+        String value = connection.getHeaderField(name);
+        if (value == null) {
+          throw new IOException("Missing " + name + " header in the response" +
+                                " from " + connection.getURL().getHost());
+        }
+        try {
+          return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+          throw new IOException("Invalid " + name + " header '" + value +
+                                "' in the response from " +
+                                connection.getURL().getHost());
+        }
+      }
+      
+      /**
+       * Copies the map outputs that were pushed to this tracker, instead of
+       * fetching them. A result is reported for each map copied.
+       * @return the maps that must still be fetched
+       */
+      private List<MapOutputLocation> copyPushedOutputs(
+          List<MapOutputLocation> locs) throws InterruptedException {
+        List<MapOutputLocation> rest = new ArrayList<MapOutputLocation>();
+        for (int i = 0; i < locs.size(); ++i) {
+          MapOutputLocation loc = locs.get(i);
+          Path pushed;
+          try {
+            pushed = pushedDirAlloc.getLocalPathToRead(
+                TaskTracker.getPushedMapOutputFile(getPartition(),
+                    loc.getTaskAttemptId().toString()), conf);
+          } catch (IOException ie) {
+            // not pushed
+            rest.add(loc);
+            continue;
+          }
+          long size = -1;
+          shuffleClientMetrics.threadBusy();
+          start(loc);
+          try {
+            DataInputStream in = new DataInputStream(
+                new BufferedInputStream(rfs.open(pushed), 64 * 1024));
+            try {
+              size = copyOutput(loc, in);
+            } finally {
+              in.close();
+            }
+          } catch (IOException ie) {
+            LOG.warn(getName() + " failed to read the pushed output of " +
+                     loc.getTaskAttemptId() + ", it will be fetched: " +
+                     StringUtils.stringifyException(ie));
+          } finally {
+            shuffleClientMetrics.threadFree();
+            try {
+              rfs.delete(pushed, false);
+            } catch (IOException ie) {
+              LOG.warn("Failed to delete " + pushed, ie);
+            }
+          }
+          if (size == -1) {
+            start(null);
+            rest.add(loc);
+            continue;
+          }
+          if (size != CopyResult.OBSOLETE) {
+            reducePushedOutputs.increment(1);
+          }
+          shuffleClientMetrics.successFetch();
+          // the host is done with once the last map is reported
+          finish(size, CopyOutputErrorType.NO_ERROR,
+                 rest.isEmpty() && i == locs.size() - 1);
+        }
+        return rest;
+      }
+
+      /**
+       * Get the url for fetching the outputs of several maps from one host.
+       */
+      private URL getBatchLocation(List<MapOutputLocation> locs)
+      throws IOException {
+        StringBuilder maps = new StringBuilder();
+        for (MapOutputLocation loc : locs) {
+          if (maps.length() > 0) {
+            maps.append(',');
+          }
+          maps.append(loc.getTaskAttemptId());
+        }
+        return new URL(locs.get(0).getOutputLocation(),
+                       "/mapOutput?job=" + getJobID() + "&map=" + maps +
+                       "&reduce=" + getPartition());
+      }
+      
+      /**
+       * Copies the next map output of a batched response.
+       * @return the size of the map output, -1 if the host could not serve
+       *         it or CopyResult.OBSOLETE if it is no longer needed
+       * @throws IOException if the rest of the response can not be read
+       */
+      private long copyOutput(MapOutputLocation loc, DataInputStream in)
+      throws IOException, InterruptedException {
+        ShuffleHeader header = new ShuffleHeader();
+        try {
+          header.readFields(in);
+        } catch (IOException ioe) {
+          readError = true;
+          throw ioe;
+        }
+        if (!loc.getTaskAttemptId().toString().equals(header.mapId) ||
+            header.forReduce != getPartition()) {
+          throw new IOException("data for reduce " + header.forReduce +
+              " from map " + header.mapId + " arrived to reduce task " +
+              getPartition() + ", where as expected map output should be " +
+              "from " + loc.getTaskAttemptId());
+        }
+        if (!header.isAvailable()) {
+          LOG.warn(getName() + " map output of " + loc.getTaskAttemptId() +
+                   " is not available from " + loc.getHost());
+          return -1;
+        }
+        SegmentInputStream segmentIn =
+          new SegmentInputStream(in, header.compressedLength);
+        
+        // skip outputs we no longer need
+        if (copiedMapOutputs.contains(loc.getTaskId()) || 
+            obsoleteMapIds.contains(loc.getTaskAttemptId())) {
+          IOUtils.skipFully(segmentIn, header.compressedLength);
+          return CopyResult.OBSOLETE;
+        }
+        
+        Path filename = getMapOutputFilename(loc);
+        Path tmpMapOutput = new Path(filename+"-"+id);
+        LOG.info("header: " + header.mapId + ", compressed len: " +
+                 header.compressedLength + ", decompressed len: " +
+                 header.uncompressedLength);
+        
+        // Memory is not waited for as the connection would be held up, so
+        // the map output goes to disk if it can not be reserved at once
+        MapOutput mapOutput;
+        long inMemorySize = getInMemorySize(header.uncompressedLength,
+                                            header.compressedLength);
+        if (ramManager.canFitInMemory(inMemorySize) &&
+            ramManager.tryReserve((int)inMemorySize)) {
+          mapOutput = readInMemory(loc, segmentIn, (int)inMemorySize,
+                                   (int)header.compressedLength,
+                                   header.uncompressedLength);
+        } else {
+          mapOutput = shuffleToDisk(loc, segmentIn, tmpMapOutput,
+                                    header.compressedLength);
+        }
+        if (segmentIn.getRemaining() != 0) {
+          mapOutput.discard();
+          throw new IOException(segmentIn.getRemaining() + " bytes of the " +
+              "map output of " + loc.getTaskAttemptId() + " were not read");
+        }
+        return commitMapOutput(loc, mapOutput, filename);
+      }
+      
+      /**
+       * Get the memory a map output takes when it is shuffled into memory.
+       * One kept compressed also needs the buffers to decompress it while
+       * it is merged.
+       */
+      private long getInMemorySize(long decompressedLength,
+                                   long compressedLength) {
+        return keepCompressed
+          ? compressedLength + compressedReaderOverhead
+          : decompressedLength;
+      }
+
+      /**
+       * Get the name of the file a map output is copied to, which is made
+       * unique to the copier while it is being copied.
+       */
+      private Path getMapOutputFilename(MapOutputLocation loc) {
+        return new Path(String.format(
+            MapOutputFile.REDUCE_INPUT_FILE_FORMAT_STRING,
+            TaskTracker.OUTPUT, loc.getTaskId().getId()));
+      }
+      
+      /**
+       * Add a copied map output to those to be merged.
+       * @return the size of the map output, or CopyResult.OBSOLETE if it had
+       *         already been copied
+       */
+      private long commitMapOutput(MapOutputLocation loc, MapOutput mapOutput,
+                                   Path filename) throws IOException {
+        Path tmpMapOutput;
+        
         // The size of the map-output
         long bytes = mapOutput.compressedSize;
         
@@ -1331,8 +1987,12 @@ class ReduceTask extends Task {
           
           // Process map-output
           if (mapOutput.inMemory) {
-            // Save it in the synchronized list of map-outputs
-            mapOutputsFilesInMemory.add(mapOutput);
+            // Save it in the synchronized list of map-outputs, and let the
+            // ram-manager know it is waiting to be merged
+            synchronized (mapOutputsFilesInMemory) {
+              mapOutputsFilesInMemory.add(mapOutput);
+              ramManager.closeInMemoryFile(mapOutput.reserved);
+            }
           } else {
             // Rename the temporary file to the final file; 
             // ensure it is on the same partition
@@ -1435,7 +2095,9 @@ class ReduceTask extends Task {
         //2. There is space available in the inmem fs
         
         // Check if this map-output can be saved in-memory
-        boolean shuffleInMemory = ramManager.canFitInMemory(decompressedLength); 
+        long inMemorySize = getInMemorySize(decompressedLength,
+                                            compressedLength);
+        boolean shuffleInMemory = ramManager.canFitInMemory(inMemorySize); 
 
         // Shuffle
         MapOutput mapOutput = null;
@@ -1445,8 +2107,9 @@ class ReduceTask extends Task {
               "into RAM from " + mapOutputLoc.getTaskAttemptId());
 
           mapOutput = shuffleInMemory(mapOutputLoc, connection, input,
-                                      (int)decompressedLength,
-                                      (int)compressedLength);
+                                      (int)inMemorySize,
+                                      (int)compressedLength,
+                                      decompressedLength);
         } else {
           LOG.info("Shuffling " + decompressedLength + " bytes (" + 
               compressedLength + " raw bytes) " + 
@@ -1538,16 +2201,34 @@ class ReduceTask extends Task {
         try {
           return connection.getInputStream();
         } catch (IOException ioe) {
+          if (isBusy(connection)) {
+            throw new HostBusyException(connection.getURL() +
+                                        " is serving too many fetches");
+          }
           readError = true;
           throw ioe;
         }
       }
 
+      /**
+       * Whether the host turned the request away because it is busy.
+       */
+      private boolean isBusy(URLConnection connection) {
+        try {
+          return connection instanceof HttpURLConnection &&
+            ((HttpURLConnection) connection).getResponseCode() ==
+              HttpURLConnection.HTTP_UNAVAILABLE;
+        } catch (IOException ioe) {
+          return false;
+        }
+      }
+
       private MapOutput shuffleInMemory(MapOutputLocation mapOutputLoc,
                                         URLConnection connection, 
                                         InputStream input,
                                         int mapOutputLength,
-                                        int compressedLength)
+                                        int compressedLength,
+                                        long decompressedLength)
       throws IOException, InterruptedException {
         // Reserve ram for the map-output
         boolean createdNow = ramManager.reserve(mapOutputLength, input);
@@ -1563,41 +2244,59 @@ class ReduceTask extends Task {
                      mapOutputLoc.getHost());
             
             // Inform the ram-manager
-            ramManager.closeInMemoryFile(mapOutputLength);
             ramManager.unreserve(mapOutputLength);
             
             throw ioe;
           }
         }
 
+        return readInMemory(mapOutputLoc, input, mapOutputLength,
+                            compressedLength, decompressedLength);
+      }
+      
+      /**
+       * Read a map output into memory, for which reserved bytes have been
+       * reserved. The output is decompressed, unless it is kept compressed.
+       */
+      private MapOutput readInMemory(MapOutputLocation mapOutputLoc,
+                                     InputStream input,
+                                     int reserved,
+                                     int compressedLength,
+                                     long decompressedLength)
+      throws IOException {
         IFileInputStream checksumIn = 
           new IFileInputStream(input,compressedLength);
 
         input = checksumIn;       
       
         // Are map-outputs compressed?
-        if (codec != null) {
+        if (codec != null && !keepCompressed) {
           decompressor.reset();
           input = codec.createInputStream(input, decompressor);
         }
       
         // Copy map-output into an in-memory buffer
+        final int mapOutputLength =
+          keepCompressed ? compressedLength : (int)decompressedLength;
         byte[] shuffleData = new byte[mapOutputLength];
         MapOutput mapOutput = 
           new MapOutput(mapOutputLoc.getTaskId(), 
-                        mapOutputLoc.getTaskAttemptId(), shuffleData, compressedLength);
+                        mapOutputLoc.getTaskAttemptId(), shuffleData,
+                        compressedLength, decompressedLength, reserved,
+                        keepCompressed);
         
         int bytesRead = 0;
         try {
-          int n = input.read(shuffleData, 0, shuffleData.length);
+          int n = readShuffleData(checksumIn, input, shuffleData, 0,
+                                  shuffleData.length);
           while (n > 0) {
             bytesRead += n;
             shuffleClientMetrics.inputBytes(n);
 
             // indicate we're making progress
             reporter.progress();
-            n = input.read(shuffleData, bytesRead, 
-                           (shuffleData.length-bytesRead));
+            n = readShuffleData(checksumIn, input, shuffleData, bytesRead,
+                                (shuffleData.length-bytesRead));
           }
 
           LOG.info("Read " + bytesRead + " bytes from map-output for " +
@@ -1608,11 +2307,7 @@ class ReduceTask extends Task {
           LOG.info("Failed to shuffle from " + mapOutputLoc.getTaskAttemptId(), 
                    ioe);
 
-          // Inform the ram-manager
-          ramManager.closeInMemoryFile(mapOutputLength);
-          ramManager.unreserve(mapOutputLength);
-          
-          // Discard the map-output
+          // Discard the map-output, returning its memory
           try {
             mapOutput.discard();
           } catch (IOException ignored) {
@@ -1629,15 +2324,9 @@ class ReduceTask extends Task {
           throw ioe;
         }
 
-        // Close the in-memory file
-        ramManager.closeInMemoryFile(mapOutputLength);
-
         // Sanity check
         if (bytesRead != mapOutputLength) {
-          // Inform the ram-manager
-          ramManager.unreserve(mapOutputLength);
-          
-          // Discard the map-output
+          // Discard the map-output, returning its memory
           try {
             mapOutput.discard();
           } catch (IOException ignored) {
@@ -1656,7 +2345,7 @@ class ReduceTask extends Task {
         }
 
         // TODO: Remove this after a 'fix' for HADOOP-3647
-        if (mapOutputLength > 0) {
+        if (mapOutputLength > 0 && !keepCompressed) {
           DataInputBuffer dib = new DataInputBuffer();
           dib.reset(shuffleData, 0, shuffleData.length);
           LOG.info("Rec #1 from " + mapOutputLoc.getTaskAttemptId() + " -> (" + 
@@ -1668,6 +2357,18 @@ class ReduceTask extends Task {
         return mapOutput;
       }
       
+      /**
+       * Read from a map output being shuffled into memory. An output kept
+       * compressed is read with its checksum, which is verified on the way.
+       */
+      private int readShuffleData(IFileInputStream checksumIn,
+                                  InputStream input, byte[] buf, int off,
+                                  int len) throws IOException {
+        return keepCompressed
+          ? checksumIn.readWithChecksum(buf, off, len)
+          : input.read(buf, off, len);
+      }
+
       private MapOutput shuffleToDisk(MapOutputLocation mapOutputLoc,
                                       InputStream input,
                                       Path filename,
@@ -1813,10 +2514,18 @@ class ReduceTask extends Task {
       this.umbilical = umbilical;      
       this.reduceTask = ReduceTask.this;
 
-      this.scheduledCopies = new ArrayList<MapOutputLocation>(100);
+      this.scheduledCopies = new ArrayList<List<MapOutputLocation>>(100);
       this.copyResults = new ArrayList<CopyResult>(100);    
-      this.numCopiers = conf.getInt("mapred.reduce.parallel.copies", 5);
-      this.maxInFlight = 4 * numCopiers;
+      this.minCopiers = conf.getInt("mapred.reduce.parallel.copies", 5);
+      this.maxCopiers = Math.max(minCopiers,
+          conf.getInt("mapred.reduce.parallel.copies.max", minCopiers));
+      this.maxFetchesPerHost =
+        Math.max(1, conf.getInt("mapred.reduce.copy.max.per.host", 1));
+      this.nioShufflePort = ShuffleServer.isEnabled(conf)
+                            ? ShuffleServer.getPort(conf) : -1;
+      this.maxMapsPerFetch = Math.max(1, Math.min(MAX_MAPS_PER_FETCH,
+          conf.getInt("mapred.reduce.copy.maps.per.fetch", 1)));
+      this.maxInFlight = 4 * maxCopiers * maxMapsPerFetch;
       this.maxBackoff = conf.getInt("mapred.reduce.copy.backoff", 300);
       Counters.Counter combineInputCounter = 
         reporter.getCounter(Task.Counter.COMBINE_INPUT_RECORDS);
@@ -1852,21 +2561,25 @@ class ReduceTask extends Task {
         throw new IOException("mapred.job.reduce.input.buffer.percent" +
                               maxRedPer);
       }
-      this.maxInMemReduce = (int)Math.min(
-          Runtime.getRuntime().maxMemory() * maxRedPer, Integer.MAX_VALUE);
-
       // Setup the RamManager
       ramManager = new ShuffleRamManager(conf);
 
+      this.maxInMemReduce = (int)Math.min(
+          Runtime.getRuntime().maxMemory() * maxRedPer, Integer.MAX_VALUE);
+      this.numInMemMergers =
+        Math.max(1, conf.getInt("mapred.inmem.merge.threads", 1));
+      this.pushedOutputs = MapOutputPusher.isEnabled(conf);
+
       localFileSys = FileSystem.getLocal(conf);
 
       rfs = ((LocalFileSystem)localFileSys).getRaw();
 
       // hosts -> next contact time
       this.penaltyBox = new LinkedHashMap<String, Long>();
+      this.busyHostsSince = new HashMap<String, Long>();
       
-      // hostnames
-      this.uniqueHosts = new HashSet<String>();
+      // hostnames -> fetches in flight
+      this.hostFetches = new HashMap<String, Integer>();
       
       // Seed the random number generator with a reasonably globally unique seed
       long randomSeed = System.nanoTime() + 
@@ -1883,6 +2596,107 @@ class ReduceTask extends Task {
       return numInFlight > maxInFlight;
     }
     
+    /**
+     * Take the next fetch from the outputs known on a host: up to
+     * maxMapsPerFetch outputs served by the same tasktracker.
+     */
+    private List<MapOutputLocation> nextFetch(
+        List<MapOutputLocation> knownOutputsByLoc) {
+      Iterator<MapOutputLocation> locItr = knownOutputsByLoc.iterator();
+      List<MapOutputLocation> fetch =
+        new ArrayList<MapOutputLocation>(maxMapsPerFetch);
+      
+      while (locItr.hasNext() && fetch.size() < maxMapsPerFetch) {
+        
+        MapOutputLocation loc = locItr.next();
+        
+        // Do not schedule fetches from OBSOLETE maps
+        if (obsoleteMapIds.contains(loc.getTaskAttemptId())) {
+          locItr.remove();
+          continue;
+        }
+        
+        // a fetch goes to a single tasktracker on the host
+        if (!fetch.isEmpty() &&
+            fetch.get(0).getOutputLocation().getPort() !=
+              loc.getOutputLocation().getPort()) {
+          continue;
+        }
+        
+        fetch.add(loc);
+        locItr.remove();  // remove from knownOutputs
+      }
+      return fetch;
+    }
+    
+    private void addCopier() {
+      MapOutputCopier copier = new MapOutputCopier(conf, reporter, 
+          reduceTask.getJobTokenSecret());
+      synchronized (copiers) {
+        copiers.add(copier);
+        numCopiers = copiers.size();
+      }
+      copier.start();
+    }
+    
+    /**
+     * Stop a copier if the pool of copiers is being shrunk.
+     * @return whether the copier should exit
+     */
+    private boolean retireCopier(MapOutputCopier copier) {
+      synchronized (copiers) {
+        if (copiersToRetire > 0 && copiers.remove(copier)) {
+          --copiersToRetire;
+          numCopiers = copiers.size();
+          return true;
+        }
+      }
+      return false;
+    }
+    
+    /**
+     * Resize the pool of copiers by the shuffle throughput. A copier is
+     * added while fetches wait for a free copier, no host turned a fetch
+     * away as busy, and each copier still gets at least half of the best
+     * throughput per copier seen so far. Once a copier gets less than a
+     * quarter of it, the copiers saturate the network or the hosts, and
+     * one is retired.
+     */
+    private void adjustCopiers(long now) {
+      if (minCopiers == maxCopiers ||
+          now - lastAdjustTime < COPIER_ADJUST_INTERVAL) {
+        return;
+      }
+      long bytes = reduceShuffleBytes.getCounter();
+      int waiting;
+      synchronized (scheduledCopies) {
+        waiting = scheduledCopies.size();
+      }
+      int running;
+      synchronized (copiers) {
+        running = copiers.size() - copiersToRetire;
+      }
+      float rate = (float)(bytes - lastAdjustBytes) /
+        (now - lastAdjustTime) / running;
+      bestCopierRate = Math.max(bestCopierRate, rate);
+      if (waiting > 0 && !busyHosts && running < maxCopiers &&
+          rate >= bestCopierRate / 2) {
+        addCopier();
+        LOG.info(reduceTask.getTaskID() + " Added a copier for " + waiting +
+                 " waiting fetches, " + numCopiers + " copiers running");
+      } else if (waiting > 0 && running > minCopiers &&
+                 rate < bestCopierRate / 4) {
+        synchronized (copiers) {
+          ++copiersToRetire;
+        }
+        LOG.info(reduceTask.getTaskID() + " Retiring a copier, " +
+                 (running - 1) + " copiers left");
+      }
+      busyHosts = false;
+      lastAdjustTime = now;
+      lastAdjustBytes = bytes;
+    }
+    
     
     public boolean fetchOutputs() throws IOException {
       int totalFailures = 0;
@@ -1891,29 +2705,35 @@ class ReduceTask extends Task {
       final Progress copyPhase = 
         reduceTask.getProgress().phase();
       LocalFSMerger localFSMergerThread = null;
-      InMemFSMergeThread inMemFSMergeThread = null;
+      List<InMemFSMergeThread> inMemFSMergeThreads =
+        new ArrayList<InMemFSMergeThread>(numInMemMergers);
       GetMapEventsThread getMapEventsThread = null;
       
       for (int i = 0; i < numMaps; i++) {
         copyPhase.addPhase();       // add sub-phase per file
       }
       
-      copiers = new ArrayList<MapOutputCopier>(numCopiers);
+      copiers = new ArrayList<MapOutputCopier>(maxCopiers);
       
-      // start all the copying threads
-      for (int i=0; i < numCopiers; i++) {
-        MapOutputCopier copier = new MapOutputCopier(conf, reporter, 
-            reduceTask.getJobTokenSecret());
-        copiers.add(copier);
-        copier.start();
+      // start the copying threads; more are added as needed
+      for (int i=0; i < minCopiers; i++) {
+        addCopier();
       }
       
       //start the on-disk-merge thread
       localFSMergerThread = new LocalFSMerger((LocalFileSystem)localFileSys);
-      //start the in memory merger thread
-      inMemFSMergeThread = new InMemFSMergeThread();
+      //start the in memory merger threads
+      try {
+        for (int i = 0; i < numInMemMergers; ++i) {
+          inMemFSMergeThreads.add(new InMemFSMergeThread(i));
+        }
+      } catch (ClassNotFoundException e) {
+        throw new IOException("Failed to create the combiner", e);
+      }
       localFSMergerThread.start();
-      inMemFSMergeThread.start();
+      for (InMemFSMergeThread inMemFSMergeThread : inMemFSMergeThreads) {
+        inMemFSMergeThread.start();
+      }
       
       // start the map events thread
       getMapEventsThread = new GetMapEventsThread();
@@ -1924,6 +2744,7 @@ class ReduceTask extends Task {
       long currentTime = startTime;
       long lastProgressTime = startTime;
       long lastOutputTime = 0;
+      lastAdjustTime = startTime;
       
         // loop until we get all required outputs
         while (copiedMapOutputs.size() < numMaps && mergeThrowable == null) {
@@ -1939,6 +2760,7 @@ class ReduceTask extends Task {
                    + (numMaps - copiedMapOutputs.size()) + " map output(s) "
                    + "where " + numInFlight + " is already in progress");
           }
+          adjustCopiers(currentTime);
 
           // Put the hash entries for the failed fetches.
           Iterator<MapOutputLocation> locItr = retryFetches.iterator();
@@ -2001,8 +2823,10 @@ class ReduceTask extends Task {
                 continue;
               }
               
-              //Identify duplicate hosts here
-              if (uniqueHosts.contains(host)) {
+              //Identify hosts with as many fetches as they may have here
+              Integer fetching = hostFetches.get(host);
+              int hostFetching = (fetching == null) ? 0 : fetching;
+              if (hostFetching >= maxFetchesPerHost) {
                  numDups += knownOutputsByLoc.size(); 
                  continue;
               }
@@ -2022,25 +2846,15 @@ class ReduceTask extends Task {
                 continue;
 
               synchronized (knownOutputsByLoc) {
-              
-                locItr = knownOutputsByLoc.iterator();
-            
-                while (locItr.hasNext()) {
-              
-                  MapOutputLocation loc = locItr.next();
-              
-                  // Do not schedule fetches from OBSOLETE maps
-                  if (obsoleteMapIds.contains(loc.getTaskAttemptId())) {
-                    locItr.remove();
-                    continue;
+                while (hostFetching < maxFetchesPerHost) {
+                  List<MapOutputLocation> fetch = nextFetch(knownOutputsByLoc);
+                  if (fetch.isEmpty()) {
+                    break;
                   }
-
-                  uniqueHosts.add(host);
-                  scheduledCopies.add(loc);
-                  locItr.remove();  // remove from knownOutputs
-                  numInFlight++; numScheduled++;
-
-                  break; //we have a map from this host
+                  numInFlight += fetch.size();
+                  numScheduled += fetch.size();
+                  scheduledCopies.add(fetch);
+                  hostFetches.put(host, ++hostFetching);
                 }
               }
             }
@@ -2108,6 +2922,12 @@ class ReduceTask extends Task {
               // Note successful fetch for this mapId to invalidate
               // (possibly) old fetch-failures
               fetchFailedMaps.remove(cr.getLocation().getTaskId());
+              busyHostsSince.remove(cr.getHost());
+            } else if (cr.getError() == CopyOutputErrorType.BUSY &&
+                       backOffBusyHost(cr.getHost())) {
+              // try the host again later, without counting a failure
+              retryFetches.add(cr.getLocation());
+              busyHosts = true;
             } else if (cr.isObsolete()) {
               //ignore
               LOG.info(reduceTask.getTaskID() + 
@@ -2239,7 +3059,14 @@ class ReduceTask extends Task {
                        cr.getHost() + " to penalty box, next contact in " +
                        (currentBackOff/1000) + " seconds");
             }
-            uniqueHosts.remove(cr.getHost());
+            if (cr.isLastOfFetch()) {
+              Integer fetching = hostFetches.get(cr.getHost());
+              if (fetching == null || fetching <= 1) {
+                hostFetches.remove(cr.getHost());
+              } else {
+                hostFetches.put(cr.getHost(), fetching - 1);
+              }
+            }
             numInFlight--;
           }
         }
@@ -2279,8 +3106,10 @@ class ReduceTask extends Task {
             LOG.info("Interleaved on-disk merge complete: " + 
                      mapOutputFilesOnDisk.size() + " files left.");
             
-            //wait for an ongoing merge (if it is in flight) to complete
-            inMemFSMergeThread.join();
+            //wait for ongoing merges (if they are in flight) to complete
+            for (InMemFSMergeThread inMemFSMergeThread : inMemFSMergeThreads) {
+              inMemFSMergeThread.join();
+            }
             LOG.info("In-memory merge complete: " + 
                      mapOutputsFilesInMemory.size() + " files left.");
             } catch (InterruptedException ie) {
@@ -2297,6 +3126,11 @@ class ReduceTask extends Task {
         return mergeThrowable == null && copiedMapOutputs.size() == numMaps;
     }
     
+    /**
+     * Create segments for the in-memory map outputs, leaving outputs
+     * holding leaveBytes of memory in memory.
+     * @return the decompressed size of the outputs taken
+     */
     private long createInMemorySegments(
         List<Segment<K, V>> inMemorySegments, long leaveBytes)
         throws IOException {
@@ -2306,15 +3140,17 @@ class ReduceTask extends Task {
         // closed but not yet present in mapOutputsFilesInMemory
         long fullSize = 0L;
         for (MapOutput mo : mapOutputsFilesInMemory) {
-          fullSize += mo.data.length;
+          fullSize += mo.reserved;
         }
         while(fullSize > leaveBytes) {
           MapOutput mo = mapOutputsFilesInMemory.remove(0);
-          totalSize += mo.data.length;
-          fullSize -= mo.data.length;
-          Reader<K, V> reader = 
-            new InMemoryReader<K, V>(ramManager, mo.mapAttemptId,
-                                     mo.data, 0, mo.data.length);
+          totalSize += mo.rawSize;
+          fullSize -= mo.reserved;
+          Reader<K, V> reader = mo.compressed
+            ? new CompressedInMemoryReader<K, V>(conf, ramManager, mo.data,
+                                                 mo.reserved, codec)
+            : new InMemoryReader<K, V>(ramManager, mo.mapAttemptId,
+                                       mo.data, 0, mo.data.length);
           Segment<K, V> segment = 
             new Segment<K, V>(reader, true);
           inMemorySegments.add(segment);
@@ -2500,6 +3336,30 @@ class ReduceTask extends Task {
     
     
     
+    /**
+     * Put a host that turned a fetch away as busy in the penalty box, for
+     * as long as it has been busy so far and at least BUSY_BACKOFF.
+     * @return false if the host has been busy for longer than the copy
+     *         backoff, and the fetch is to be failed instead
+     */
+    private boolean backOffBusyHost(String host) {
+      long now = System.currentTimeMillis();
+      Long since = busyHostsSince.get(host);
+      if (since == null) {
+        since = now;
+        busyHostsSince.put(host, since);
+      }
+      long busyTime = now - since;
+      if (busyTime >= maxBackoff * 1000L) {
+        LOG.warn(reduceTask.getTaskID() + " " + host + " has been busy for " +
+                 (busyTime / 1000) + " seconds, failing the fetch");
+        busyHostsSince.remove(host);
+        return false;
+      }
+      penaltyBox.put(host, now + Math.max(BUSY_BACKOFF, busyTime));
+      return true;
+    }
+    
     /** Starts merging the local copy (on disk) of the map's output so that
      * most of the reducer's input is sorted i.e overlapping shuffle
      * and merge phases.
@@ -2613,9 +3473,25 @@ class ReduceTask extends Task {
 
     private class InMemFSMergeThread extends Thread {
       
-      public InMemFSMergeThread() {
-        setName("Thread for merging in memory files");
+      // each merge thread combines with its own runner and collector
+      private final CombinerRunner combinerRunner;
+      private final CombineOutputCollector combineCollector;
+      
+      public InMemFSMergeThread(int id) throws ClassNotFoundException {
+        setName("Thread for merging in memory files" +
+                (numInMemMergers > 1 ? " " + id : ""));
         setDaemon(true);
+        if (id == 0) {
+          combinerRunner = ReduceCopier.this.combinerRunner;
+          combineCollector = ReduceCopier.this.combineCollector;
+        } else {
+          combinerRunner = CombinerRunner.create(conf, getTaskID(),
+              reporter.getCounter(Task.Counter.COMBINE_INPUT_RECORDS),
+              reporter, null);
+          combineCollector = combinerRunner == null
+            ? null
+            : new CombineOutputCollector(reduceCombineOutputCounter);
+        }
       }
       
       public void run() {
@@ -2642,10 +3518,6 @@ class ReduceTask extends Task {
       
       @SuppressWarnings("unchecked")
       private void doInMemMerge() throws IOException{
-        if (mapOutputsFilesInMemory.size() == 0) {
-          return;
-        }
-        
         //name this output file same as the name of the first file that is 
         //there in the current list of inmem files (this is guaranteed to
         //be absent on the disk currently. So we don't overwrite a prev. 
@@ -2654,11 +3526,25 @@ class ReduceTask extends Task {
         //is called (we delete empty files as soon as we see them
         //in the merge method)
 
-        //figure out the mapId 
-        TaskID mapId = mapOutputsFilesInMemory.get(0).mapId;
-
+        //figure out the mapId, and take the outputs to merge
+        TaskID mapId;
         List<Segment<K, V>> inMemorySegments = new ArrayList<Segment<K,V>>();
-        long mergeOutputSize = createInMemorySegments(inMemorySegments, 0);
+        long mergeOutputSize;
+        synchronized (mapOutputsFilesInMemory) {
+          if (mapOutputsFilesInMemory.size() == 0) {
+            ramManager.noteMergeStarted(0, 0);
+            return;
+          }
+          mapId = mapOutputsFilesInMemory.get(0).mapId;
+          long reserved = 0;
+          for (MapOutput mo : mapOutputsFilesInMemory) {
+            reserved += mo.reserved;
+          }
+          // the disk space is reserved for the decompressed outputs, which
+          // bounds the merged output however it compresses
+          mergeOutputSize = createInMemorySegments(inMemorySegments, 0);
+          ramManager.noteMergeStarted(inMemorySegments.size(), reserved);
+        }
         int noInMemorySegments = inMemorySegments.size();
 
         Path outputPath =
@@ -2803,7 +3689,11 @@ class ReduceTask extends Task {
                 maxFetchRetriesPerMap = Math.max(MIN_FETCH_RETRIES_PER_MAP, 
                   getClosestPowerOf2((maxMapRuntime / BACKOFF_INIT) + 1));
               }
-              URL mapOutputLocation = new URL(event.getTaskTrackerHttp() + 
+              String shuffleHttp = event.getTaskTrackerHttp();
+              if (nioShufflePort >= 0) {
+                shuffleHttp = "http://" + host + ":" + nioShufflePort;
+              }
+              URL mapOutputLocation = new URL(shuffleHttp + 
                                       "/mapOutput?job=" + taskId.getJobID() +
                                       "&map=" + taskId + 
                                       "&reduce=" + getPartition());
@@ -0,0 +1,71 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.mapred;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * The header that precedes each map output in a batched shuffle response,
+ * carrying what the http headers carry for a single map output. A map
+ * output that could not be served is sent as a header with negative
+ * lengths and no data.
+ */
+class ShuffleHeader implements Writable {
+  String mapId;
+  long uncompressedLength;
+  long compressedLength;
+  int forReduce;
+
+  ShuffleHeader() { }
+
+  ShuffleHeader(String mapId, long uncompressedLength, long compressedLength,
+                int forReduce) {
+    this.mapId = mapId;
+    this.uncompressedLength = uncompressedLength;
+    this.compressedLength = compressedLength;
+    this.forReduce = forReduce;
+  }
+
+  /**
+   * Whether the map output follows this header.
+   */
+  boolean isAvailable() {
+    return uncompressedLength >= 0 && compressedLength >= 0;
+  }
+
+  public void write(DataOutput out) throws IOException {
+    Text.writeString(out, mapId);
+    WritableUtils.writeVLong(out, uncompressedLength);
+    WritableUtils.writeVLong(out, compressedLength);
+    WritableUtils.writeVInt(out, forReduce);
+  }
+
+  public void readFields(DataInput in) throws IOException {
+    mapId = Text.readString(in);
+    uncompressedLength = WritableUtils.readVLong(in);
+    compressedLength = WritableUtils.readVLong(in);
+    forReduce = WritableUtils.readVInt(in);
+  }
+}
@@ -0,0 +1,861 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.mapred;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import javax.crypto.SecretKey;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.SecureIOUtils;
+import org.apache.hadoop.mapreduce.security.SecureShuffleUtils;
+import org.apache.hadoop.net.NetUtils;
+import org.apache.hadoop.util.StringUtils;
+
+/**
+ * A shuffle server for the TaskTracker built directly on NIO selectors,
+ * which may be used instead of the {@link TaskTracker.MapOutputServlet} in
+ * Jetty. It is started when mapred.shuffle.server is "nio", and listens on
+ * mapred.shuffle.nio.address next to the TaskTracker's http server.
+ *
+ * The server speaks the subset of HTTP/1.1 that the reduce side of the
+ * shuffle needs: it answers GET requests for /mapOutput with the same
+ * parameters, security checks and response headers as the servlet, so
+ * ReduceTask fetches from it with the same code, including batched
+ * requests for the outputs of several maps. Unlike the servlet it
+ * keeps connections alive between requests, so that a reduce fetching
+ * several map outputs from one host does not reconnect for each, and it
+ * sends each segment of the map output file with
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}
+ * rather than copying it through a buffer, as the DataNode's BlockSender
+ * does.
+ *
+ * An acceptor thread hands new connections to a fixed number of handler
+ * threads (mapred.shuffle.nio.handlers), each of which serves all the
+ * requests on its connections from a single selector. Looking up and
+ * opening the map outputs of a request may block on the disks, and telling
+ * the TaskTracker of a lost output on its locks, so this is done by a pool
+ * of mapred.shuffle.nio.workers threads, which hand the opened outputs back
+ * to the connection's handler to send. Connections that stay idle for
+ * mapred.shuffle.nio.idle.timeout milliseconds are closed.
+ */
+class ShuffleServer {
+  private static final Log LOG = LogFactory.getLog(ShuffleServer.class);
+
+  static final String SERVER_KEY = "mapred.shuffle.server";
+  static final String ADDRESS_KEY = "mapred.shuffle.nio.address";
+  static final String DEFAULT_ADDRESS = "0.0.0.0:50062";
+
+  private static final String MAP_OUTPUT_PATH = "/mapOutput";
+  private static final int MAX_REQUEST_SIZE = 8 * 1024;
+
+  private final TaskTracker tracker;
+  private final JobConf conf;
+  private final TaskTracker.ShuffleServerMetrics shuffleMetrics;
+  private final MapOutputCacheManager mapOutputCache;
+  private final long idleTimeout;
+
+  private ServerSocketChannel acceptChannel;
+  private Acceptor acceptor;
+  private Handler[] handlers;
+  private final int numWorkers;
+  private ExecutorService workers;
+  private volatile boolean running = false;
+
+  /**
+   * Check whether a configuration selects the NIO shuffle server.
+   */
+  static boolean isEnabled(JobConf conf) {
+    return "nio".equals(conf.get(SERVER_KEY, "jetty"));
+  }
+
+  /**
+   * Get the port that the NIO shuffle server listens on in a cluster with
+   * the given configuration.
+   */
+  static int getPort(JobConf conf) {
+    return NetUtils.createSocketAddr(
+        conf.get(ADDRESS_KEY, DEFAULT_ADDRESS)).getPort();
+  }
+
+  ShuffleServer(TaskTracker tracker, JobConf conf,
+      TaskTracker.ShuffleServerMetrics shuffleMetrics) {
+    this.tracker = tracker;
+    this.conf = conf;
+    this.shuffleMetrics = shuffleMetrics;
+    this.mapOutputCache = tracker.getMapOutputCache();
+    this.idleTimeout = conf.getLong("mapred.shuffle.nio.idle.timeout", 60000);
+    this.handlers = new Handler[conf.getInt("mapred.shuffle.nio.handlers", 8)];
+    this.numWorkers = conf.getInt("mapred.shuffle.nio.workers", 8);
+  }
+
+  /**
+   * Bind the server and start its threads.
+   */
+  synchronized void start() throws IOException {
+    InetSocketAddress addr = NetUtils.createSocketAddr(
+        conf.get(ADDRESS_KEY, DEFAULT_ADDRESS));
+    acceptChannel = ServerSocketChannel.open();
+    acceptChannel.socket().setReuseAddress(true);
+    acceptChannel.socket().bind(addr, 128);
+    running = true;
+    workers = Executors.newFixedThreadPool(numWorkers, new ThreadFactory() {
+      private int count = 0;
+      public synchronized Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "NIO shuffle server worker " + (count++));
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    for (int i = 0; i < handlers.length; i++) {
+      handlers[i] = new Handler(i);
+      handlers[i].start();
+    }
+    acceptor = new Acceptor();
+    acceptor.start();
+    LOG.info("NIO shuffle server listening on " +
+        acceptChannel.socket().getLocalSocketAddress() + " with " +
+        handlers.length + " handlers and " + numWorkers + " workers");
+  }
+
+  /**
+   * Get the port the server is bound to.
+   */
+  int getLocalPort() {
+    return acceptChannel.socket().getLocalPort();
+  }
+
+  /**
+   * Stop the server, closing all its connections.
+   */
+  synchronized void stop() {
+    if (!running) {
+      return;
+    }
+    running = false;
+    IOUtils.closeStream(acceptChannel);
+    try {
+      acceptor.join();
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+    }
+    for (Handler handler: handlers) {
+      handler.selector.wakeup();
+      try {
+        handler.join();
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    // outputs opened after their handler stopped are closed by it
+    workers.shutdownNow();
+  }
+
+  /**
+   * Accepts connections and hands them to the handlers in turn.
+   */
+  private class Acceptor extends Thread {
+    Acceptor() {
+      super("NIO shuffle server acceptor");
+      setDaemon(true);
+    }
+
+    public void run() {
+      int next = 0;
+      while (running) {
+        try {
+          SocketChannel channel = acceptChannel.accept();
+          channel.configureBlocking(false);
+          channel.socket().setTcpNoDelay(true);
+          handlers[next].add(channel);
+          next = (next + 1) % handlers.length;
+        } catch (ClosedChannelException e) {
+          // stopped
+        } catch (IOException e) {
+          if (running) {
+            LOG.warn("Error accepting shuffle connection: " +
+                StringUtils.stringifyException(e));
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Serves the requests on a set of connections from one selector.
+   */
+  private class Handler extends Thread {
+    private final Selector selector;
+    private final LinkedList<SocketChannel> pending =
+      new LinkedList<SocketChannel>();
+    // Requests whose map outputs the workers have opened, guarded by pending
+    private final LinkedList<OpenedOutputs> opened =
+      new LinkedList<OpenedOutputs>();
+
+    Handler(int id) throws IOException {
+      super("NIO shuffle server handler " + id);
+      setDaemon(true);
+      selector = Selector.open();
+    }
+
+    void add(SocketChannel channel) {
+      synchronized (pending) {
+        pending.add(channel);
+      }
+      selector.wakeup();
+    }
+
+    /**
+     * Hand the opened map outputs of a request back to the handler, to be
+     * sent from its selector thread.
+     */
+    void opened(OpenedOutputs outputs) {
+      synchronized (pending) {
+        if (!running) {
+          outputs.close();
+          return;
+        }
+        opened.add(outputs);
+      }
+      selector.wakeup();
+    }
+
+    public void run() {
+      long lastIdleCheck = System.currentTimeMillis();
+      while (running) {
+        try {
+          registerPending();
+          respondOpened();
+          selector.select(1000);
+          Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+          while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            Connection conn = (Connection) key.attachment();
+            try {
+              if (key.isValid() && key.isReadable()) {
+                conn.doRead();
+              }
+              if (key.isValid() && key.isWritable()) {
+                conn.doWrite();
+              }
+            } catch (IOException e) {
+              LOG.debug("Closing shuffle connection to " + conn.remote, e);
+              conn.close();
+            }
+          }
+          long now = System.currentTimeMillis();
+          if (now - lastIdleCheck >= 1000) {
+            closeIdle(now);
+            lastIdleCheck = now;
+          }
+        } catch (Throwable t) {
+          LOG.warn("Error in NIO shuffle server handler: " +
+              StringUtils.stringifyException(t));
+        }
+      }
+      for (SelectionKey key: selector.keys()) {
+        ((Connection) key.attachment()).close();
+      }
+      synchronized (pending) {
+        for (SocketChannel channel: pending) {
+          IOUtils.closeStream(channel);
+        }
+        pending.clear();
+        for (OpenedOutputs outputs: opened) {
+          outputs.close();
+        }
+        opened.clear();
+      }
+      IOUtils.closeStream(selector);
+    }
+
+    private void registerPending() {
+      synchronized (pending) {
+        while (!pending.isEmpty()) {
+          SocketChannel channel = pending.removeFirst();
+          try {
+            Connection conn = new Connection(channel, this);
+            conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+          } catch (IOException e) {
+            IOUtils.closeStream(channel);
+          }
+        }
+      }
+    }
+
+    private void respondOpened() {
+      List<OpenedOutputs> ready;
+      synchronized (pending) {
+        if (opened.isEmpty()) {
+          return;
+        }
+        ready = new ArrayList<OpenedOutputs>(opened);
+        opened.clear();
+      }
+      for (OpenedOutputs outputs: ready) {
+        try {
+          outputs.conn.respond(outputs);
+        } catch (IOException e) {
+          LOG.debug("Closing shuffle connection to " + outputs.conn.remote, e);
+          outputs.conn.close();
+        } catch (RuntimeException e) {
+          // do not let one bad response strand the others of this pass
+          LOG.warn("Error responding to shuffle request from " +
+              outputs.conn.remote + ": " + StringUtils.stringifyException(e));
+          outputs.close();
+          outputs.conn.close();
+        }
+      }
+    }
+
+    private void closeIdle(long now) {
+      for (SelectionKey key: selector.keys()) {
+        Connection conn = (Connection) key.attachment();
+        if (conn.isIdle() && now - conn.lastActive > idleTimeout) {
+          conn.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * One map output in a response. In a batched response it is preceded by
+   * its {@link ShuffleHeader}, and it has no data if it could not be found.
+   */
+  private class Segment {
+    final String mapId;
+    ByteBuffer frame;
+    FileInputStream in;
+    FileChannel file;
+    long start;
+    long position;
+    long remaining;
+    long readaheadEnd;
+
+    Segment(String mapId) {
+      this.mapId = mapId;
+    }
+
+    void close() {
+      IOUtils.closeStream(in);
+      in = null;
+      file = null;
+    }
+  }
+
+  /**
+   * Looks up and opens the map outputs of a request on a worker thread and
+   * hands them back to the connection's handler.
+   */
+  private class OpenedOutputs implements Runnable {
+    final Connection conn;
+    final String jobId;
+    final String[] maps;
+    final int reduce;
+    final LinkedList<Segment> segments = new LinkedList<Segment>();
+    long contentLength = 0;
+    long rawLength = 0;
+    // the map output of an unbatched request, if it could not be opened
+    String lost = null;
+
+    OpenedOutputs(Connection conn, String jobId, String[] maps, int reduce) {
+      this.conn = conn;
+      this.jobId = jobId;
+      this.maps = maps;
+      this.reduce = reduce;
+    }
+
+    public void run() {
+      boolean batch = maps.length > 1;
+      try {
+        for (String mapId: maps) {
+          Segment segment = new Segment(mapId);
+          IndexRecord info = null;
+          try {
+            TaskTracker.MapOutputSegment found =
+              tracker.getMapOutputSegment(jobId, mapId, reduce);
+            info = found.index;
+            segment.in = SecureIOUtils.openForRead(
+                new File(found.file.toUri().getPath()), found.runAsUser, null);
+            segment.file = segment.in.getChannel();
+            if (info.startOffset + info.partLength > segment.file.size()) {
+              throw new IOException("Map output " + found.file +
+                  " is truncated: segment for reduce " + reduce + " ends at " +
+                  (info.startOffset + info.partLength) + " but file is " +
+                  segment.file.size() + " bytes");
+            }
+            segment.start = info.startOffset;
+            segment.position = info.startOffset;
+            segment.readaheadEnd = info.startOffset;
+            segment.remaining = info.partLength;
+          } catch (IOException e) {
+            segment.close();
+            failed(mapId, reduce, "reading", e, true);
+            if (!batch) {
+              lost = mapId;
+              return;
+            }
+            // the rest of the batch is still sent
+            info = null;
+          }
+          if (batch) {
+            ShuffleHeader sh = (info == null)
+              ? new ShuffleHeader(mapId, -1, -1, reduce)
+              : new ShuffleHeader(mapId, info.rawLength, info.partLength,
+                                  reduce);
+            DataOutputBuffer frame = new DataOutputBuffer();
+            sh.write(frame);
+            segment.frame = ByteBuffer.wrap(frame.getData(), 0,
+                                            frame.getLength());
+            contentLength += frame.getLength();
+          } else {
+            rawLength = info.rawLength;
+          }
+          contentLength += segment.remaining;
+          segments.add(segment);
+        }
+      } catch (Throwable t) {
+        LOG.warn("Error opening map outputs " + conn.mapIds + " for reduce " +
+            reduce + ": " + StringUtils.stringifyException(t));
+        close();
+        lost = conn.mapIds;
+      } finally {
+        conn.handler.opened(this);
+      }
+    }
+
+    void close() {
+      for (Segment segment: segments) {
+        segment.close();
+      }
+      segments.clear();
+    }
+  }
+
+  /**
+   * Record the failure of a map output. If it could not be read, the
+   * TaskTracker is told that it is lost.
+   */
+  private void failed(String mapId, int reduce, String what, IOException e,
+                      boolean isInput) {
+    String errorMsg = "getMapOutput(" + mapId + "," + reduce +
+      ") failed " + what + " map output :\n" +
+      StringUtils.stringifyException(e);
+    LOG.warn(errorMsg);
+    if (isInput) {
+      try {
+        tracker.mapOutputLost(TaskAttemptID.forName(mapId), errorMsg);
+      } catch (IOException ioe) {
+        LOG.warn("Failed to report lost map output " + mapId + ": " +
+            StringUtils.stringifyException(ioe));
+      }
+    }
+    shuffleMetrics.failedOutput();
+  }
+
+  /**
+   * A client connection, which reads a request, writes its response and
+   * then reads the next request if the connection is kept alive.
+   */
+  private class Connection {
+    private final SocketChannel channel;
+    private final Handler handler;
+    private final String remote;
+    private SelectionKey key;
+    private long lastActive = System.currentTimeMillis();
+    private final ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+
+    // The response being written, if any: the http header and then the
+    // map outputs
+    private ByteBuffer header;
+    private final LinkedList<Segment> segments = new LinkedList<Segment>();
+    private boolean keepAlive;
+    private boolean busy;
+    private boolean closed;
+
+    // For the log of the current response
+    private String mapIds;
+    private String reply;
+    private int reduce;
+    private long sent;
+    private long startTime;
+
+    Connection(SocketChannel channel, Handler handler) {
+      this.channel = channel;
+      this.handler = handler;
+      this.remote = String.valueOf(channel.socket().getRemoteSocketAddress());
+    }
+
+    boolean isIdle() {
+      // a busy connection without a header is waiting for a worker
+      return header == null && !busy;
+    }
+
+    void doRead() throws IOException {
+      int n = channel.read(request);
+      if (n < 0) {
+        close();
+        return;
+      }
+      lastActive = System.currentTimeMillis();
+      int end = findEndOfHeaders();
+      if (end < 0) {
+        if (!request.hasRemaining()) {
+          sendError(400, "Request too large");
+        }
+        return;
+      }
+      String text = new String(request.array(), 0, end, "ISO-8859-1");
+      // Keep any bytes after this request for the next one
+      request.flip();
+      request.position(end);
+      request.compact();
+      handleRequest(text);
+    }
+
+    void doWrite() throws IOException {
+      lastActive = System.currentTimeMillis();
+      if (header.hasRemaining()) {
+        channel.write(header);
+        if (header.hasRemaining()) {
+          return;
+        }
+      }
+      while (!segments.isEmpty()) {
+        Segment segment = segments.getFirst();
+        if (segment.frame != null && segment.frame.hasRemaining()) {
+          channel.write(segment.frame);
+          if (segment.frame.hasRemaining()) {
+            return;
+          }
+        }
+        while (segment.remaining > 0) {
+          long n;
+          try {
+            segment.readaheadEnd = mapOutputCache.readahead(segment.mapId,
+                segment.in.getFD(), segment.position,
+                segment.position + segment.remaining, segment.readaheadEnd);
+            n = segment.file.transferTo(segment.position, segment.remaining,
+                                        channel);
+          } catch (IOException e) {
+            failed(segment.mapId, reduce, "sending", e, false);
+            throw e;
+          }
+          if (n <= 0) {
+            return;
+          }
+          segment.position += n;
+          segment.remaining -= n;
+          sent += n;
+          shuffleMetrics.outputBytes(n);
+        }
+        if (segment.in != null) {
+          mapOutputCache.dropCache(segment.mapId, segment.in.getFD(),
+                                   segment.start,
+                                   segment.position - segment.start);
+          segment.close();
+          shuffleMetrics.successOutput();
+        }
+        segments.removeFirst();
+      }
+      finishResponse();
+    }
+
+    /**
+     * Find the end of the request headers in the buffer, returning the
+     * offset just past the blank line or -1.
+     */
+    private int findEndOfHeaders() {
+      byte[] buf = request.array();
+      for (int i = 3; i < request.position(); i++) {
+        if (buf[i] == '\n' && buf[i - 1] == '\r' &&
+            buf[i - 2] == '\n' && buf[i - 3] == '\r') {
+          return i + 1;
+        }
+      }
+      return -1;
+    }
+
+    private void handleRequest(String text) throws IOException {
+      String[] lines = text.split("\r\n");
+      String[] requestLine = lines[0].split(" ");
+      if (requestLine.length != 3 || !"GET".equals(requestLine[0])) {
+        sendError(400, "Bad request");
+        return;
+      }
+      Map<String, String> headers = new HashMap<String, String>();
+      for (int i = 1; i < lines.length; i++) {
+        int colon = lines[i].indexOf(':');
+        if (colon > 0) {
+          headers.put(lines[i].substring(0, colon).trim().toLowerCase(),
+                      lines[i].substring(colon + 1).trim());
+        }
+      }
+      String connection = headers.get("connection");
+      if ("HTTP/1.1".equals(requestLine[2])) {
+        keepAlive = !"close".equalsIgnoreCase(connection);
+      } else {
+        keepAlive = "keep-alive".equalsIgnoreCase(connection);
+      }
+
+      String uri = requestLine[1];
+      int q = uri.indexOf('?');
+      String path = (q < 0 ? uri : uri.substring(0, q));
+      String query = (q < 0 ? null : uri.substring(q + 1));
+      if (!MAP_OUTPUT_PATH.equals(path) || query == null) {
+        sendError(404, "Not found");
+        return;
+      }
+      Map<String, String> params = parseQuery(query);
+      String jobId = params.get("job");
+      mapIds = params.get("map");
+      String reduceId = params.get("reduce");
+      if (jobId == null || mapIds == null || reduceId == null) {
+        sendError(400, "job, map and reduce parameters are required");
+        return;
+      }
+      try {
+        reduce = Integer.parseInt(reduceId);
+      } catch (NumberFormatException e) {
+        sendError(400, "Bad reduce parameter " + reduceId);
+        return;
+      }
+      String[] maps = mapIds.split(",");
+      if (maps.length == 0) {
+        sendError(400, "Bad map parameter " + mapIds);
+        return;
+      }
+      for (String mapId: maps) {
+        if (mapId.trim().length() == 0) {
+          sendError(400, "Bad map parameter " + mapIds);
+          return;
+        }
+      }
+
+      // Verify the hash of the url as the servlet does
+      String urlHash = headers.get(
+          SecureShuffleUtils.HTTP_HEADER_URL_HASH.toLowerCase());
+      try {
+        SecretKey tokenSecret =
+          tracker.getJobTokenSecretManager().retrieveTokenSecret(jobId);
+        if (urlHash == null) {
+          throw new IOException("fetcher cannot be authenticated " + remote);
+        }
+        String encStr = String.valueOf(getLocalPort()) + path + "?" + query;
+        SecureShuffleUtils.verifyReply(urlHash, encStr, tokenSecret);
+        reply = SecureShuffleUtils.generateHash(urlHash.getBytes(),
+                                                tokenSecret);
+      } catch (Exception e) {
+        LOG.warn("Shuffle request from " + remote + " for " + mapIds +
+            " failed authentication: " + e.getMessage());
+        sendError(401, "Unauthorized");
+        return;
+      }
+
+      // the reduce backs off and tries again
+      if (!tracker.startShuffleRequest()) {
+        sendError(503, "Too many map output fetches");
+        return;
+      }
+      shuffleMetrics.serverHandlerBusy();
+      busy = true;
+      startTime = System.nanoTime();
+      sent = 0;
+      // stop reading until the response has been sent
+      key.interestOps(0);
+      try {
+        workers.execute(new OpenedOutputs(this, jobId, maps, reduce));
+      } catch (RejectedExecutionException e) {
+        sendError(503, "Shuffle server is stopping");
+      }
+    }
+
+    /**
+     * Send the response to a request whose map outputs have been opened.
+     */
+    void respond(OpenedOutputs outputs) throws IOException {
+      if (closed) {
+        outputs.close();
+        return;
+      }
+      segments.addAll(outputs.segments);
+      outputs.segments.clear();
+      if (outputs.lost != null) {
+        sendError(410, "Map output " + outputs.lost + " is gone");
+        return;
+      }
+      StringBuilder sb = new StringBuilder();
+      sb.append("HTTP/1.1 200 OK\r\n");
+      if (outputs.maps.length > 1) {
+        appendHeader(sb, MRConstants.FOR_REDUCE_TASK, Integer.toString(reduce));
+        appendHeader(sb, MRConstants.MAP_OUTPUT_BATCH,
+                     Integer.toString(outputs.maps.length));
+      } else {
+        Segment segment = segments.getFirst();
+        appendHeader(sb, MRConstants.FROM_MAP_TASK, segment.mapId);
+        appendHeader(sb, MRConstants.RAW_MAP_OUTPUT_LENGTH,
+                     Long.toString(outputs.rawLength));
+        appendHeader(sb, MRConstants.MAP_OUTPUT_LENGTH,
+                     Long.toString(segment.remaining));
+        appendHeader(sb, MRConstants.FOR_REDUCE_TASK, Integer.toString(reduce));
+      }
+      appendHeader(sb, SecureShuffleUtils.HTTP_HEADER_REPLY_URL_HASH, reply);
+      appendHeader(sb, "Content-Type", "application/octet-stream");
+      appendHeader(sb, "Content-Length",
+                   Long.toString(outputs.contentLength));
+      appendHeader(sb, "Connection", keepAlive ? "keep-alive" : "close");
+      sb.append("\r\n");
+      header = ByteBuffer.wrap(sb.toString().getBytes("ISO-8859-1"));
+      key.interestOps(SelectionKey.OP_WRITE);
+      doWrite();
+    }
+
+    private void finishResponse() throws IOException {
+      if (busy) {
+        LOG.info("Sent out " + sent + " bytes for reduce: " + reduce +
+                 " from map: " + mapIds);
+        busy = false;
+        shuffleMetrics.serverHandlerFree();
+        tracker.endShuffleRequest();
+        logClientTrace();
+      }
+      header = null;
+      if (!keepAlive) {
+        close();
+      } else {
+        key.interestOps(SelectionKey.OP_READ);
+        // Serve a request that arrived with the last one, if any
+        if (request.position() > 0) {
+          doRead();
+        }
+      }
+    }
+
+    private void logClientTrace() {
+      if (TaskTracker.ClientTraceLog.isInfoEnabled()) {
+        TaskTracker.ClientTraceLog.info(String.format(
+            TaskTracker.MR_CLIENTTRACE_FORMAT,
+            channel.socket().getLocalSocketAddress(), remote, sent,
+            "MAPRED_SHUFFLE", mapIds, System.nanoTime() - startTime));
+      }
+    }
+
+    /**
+     * Send an error response and close the connection after it.
+     */
+    private void sendError(int code, String message) throws IOException {
+      closeSegments();
+      if (busy) {
+        busy = false;
+        shuffleMetrics.serverHandlerFree();
+        tracker.endShuffleRequest();
+        logClientTrace();
+      }
+      byte[] body = message.getBytes("UTF-8");
+      StringBuilder sb = new StringBuilder();
+      sb.append("HTTP/1.1 ").append(code).append(' ').append(message)
+        .append("\r\n");
+      appendHeader(sb, "Content-Type", "text/plain; charset=utf-8");
+      appendHeader(sb, "Content-Length", Integer.toString(body.length));
+      appendHeader(sb, "Connection", "close");
+      sb.append("\r\n");
+      byte[] head = sb.toString().getBytes("UTF-8");
+      header = ByteBuffer.allocate(head.length + body.length);
+      header.put(head).put(body).flip();
+      keepAlive = false;
+      key.interestOps(SelectionKey.OP_WRITE);
+      doWrite();
+    }
+
+    private void closeSegments() {
+      for (Segment segment: segments) {
+        segment.close();
+      }
+      segments.clear();
+    }
+
+    void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      if (busy) {
+        // the response was cut short
+        for (Segment segment: segments) {
+          if (segment.in != null) {
+            shuffleMetrics.failedOutput();
+          }
+        }
+        busy = false;
+        shuffleMetrics.serverHandlerFree();
+        tracker.endShuffleRequest();
+        logClientTrace();
+      }
+      closeSegments();
+      if (key != null) {
+        key.cancel();
+      }
+      IOUtils.closeStream(channel);
+    }
+  }
+
+  private static void appendHeader(StringBuilder sb, String name,
+                                   String value) {
+    sb.append(name).append(": ").append(value).append("\r\n");
+  }
+
+  private static Map<String, String> parseQuery(String query)
+      throws UnsupportedEncodingException {
+    Map<String, String> params = new HashMap<String, String>();
+    for (String param: query.split("&")) {
+      int eq = param.indexOf('=');
+      if (eq > 0) {
+        params.put(URLDecoder.decode(param.substring(0, eq), "UTF-8"),
+                   URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+      }
+    }
+    return params;
+  }
+}
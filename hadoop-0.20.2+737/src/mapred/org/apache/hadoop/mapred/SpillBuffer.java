@@ -0,0 +1,142 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.mapred;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A growable in-memory buffer holding one serialized spill segment until
+ * it can be appended to the spill file. The buffer is reused across spills,
+ * and may be allocated outside the Java heap. It never grows past its
+ * limit: a segment that does not fit is written through to the stream
+ * given by its {@link Overflow} instead, after the bytes buffered so far.
+ */
+class SpillBuffer extends OutputStream {
+  /**
+   * Provides the stream that a segment too large for the buffer continues
+   * on, blocking until it may be written to.
+   */
+  interface Overflow {
+    OutputStream open() throws IOException;
+  }
+
+  private final boolean direct;
+  private final int limit;
+  private final byte[] scratch = new byte[1];
+  private ByteBuffer buf;
+  private Overflow overflow;
+  private OutputStream sink;
+
+  SpillBuffer(int capacity, int limit, boolean direct) {
+    this.direct = direct;
+    this.limit = limit;
+    buf = allocate(Math.min(capacity, limit));
+  }
+
+  private ByteBuffer allocate(int capacity) {
+    return direct
+      ? ByteBuffer.allocateDirect(capacity)
+      : ByteBuffer.allocate(capacity);
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    scratch[0] = (byte)b;
+    write(scratch, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (sink != null) {
+      sink.write(b, off, len);
+      return;
+    }
+    if (buf.remaining() < len) {
+      final long needed = (long)buf.position() + len;
+      if (needed > limit) {
+        if (overflow == null) {
+          throw new IOException("Spill segment exceeds " + limit + " bytes");
+        }
+        sink = overflow.open();
+        writeTo(sink, new byte[Math.min(buf.position() + 1, 64 * 1024)]);
+        buf.clear();
+        sink.write(b, off, len);
+        return;
+      }
+      ByteBuffer grown =
+        allocate((int)Math.max(needed, Math.min(limit, 2L * buf.capacity())));
+      buf.flip();
+      grown.put(buf);
+      buf = grown;
+    }
+    buf.put(b, off, len);
+  }
+
+  /**
+   * Set the source of the stream that the current segment is written
+   * through to if it outgrows the buffer.
+   */
+  void setOverflow(Overflow overflow) {
+    this.overflow = overflow;
+  }
+
+  /**
+   * Whether the current segment outgrew the buffer and was written through
+   * to its overflow stream rather than buffered.
+   */
+  boolean isOverflowed() {
+    return sink != null;
+  }
+
+  /**
+   * Number of bytes buffered since the last {@link #reset()}.
+   */
+  int getLength() {
+    return buf.position();
+  }
+
+  /**
+   * Copy the buffered bytes to the given stream.
+   * @param tmp scratch space used to copy out of a direct buffer
+   */
+  void writeTo(OutputStream out, byte[] tmp) throws IOException {
+    if (buf.hasArray()) {
+      out.write(buf.array(), buf.arrayOffset(), buf.position());
+      return;
+    }
+    ByteBuffer data = buf.duplicate();
+    data.flip();
+    while (data.hasRemaining()) {
+      final int n = Math.min(tmp.length, data.remaining());
+      data.get(tmp, 0, n);
+      out.write(tmp, 0, n);
+    }
+  }
+
+  /**
+   * Discard the buffered bytes, keeping the allocated capacity.
+   */
+  void reset() {
+    buf.clear();
+    overflow = null;
+    sink = null;
+  }
+}
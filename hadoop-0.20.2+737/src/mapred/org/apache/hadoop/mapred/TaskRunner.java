@@ -620,6 +620,15 @@ abstract class TaskRunner extends Thread {
     }
     LOG.debug("mapred.local.dir for child : " + childMapredLocalDir);
     conf.set("mapred.local.dir", childMapredLocalDir.toString());
+
+    // reduces read the outputs pushed to them from the tracker's directory
+    StringBuffer pushedOutputDir = new StringBuffer(localDirs[0] +
+        Path.SEPARATOR + TaskTracker.getPushedOutputDir(jobId));
+    for (int i = 1; i < localDirs.length; i++) {
+      pushedOutputDir.append("," + localDirs[i] + Path.SEPARATOR
+          + TaskTracker.getPushedOutputDir(jobId));
+    }
+    conf.set(TaskTracker.PUSHED_OUTPUT_LOCAL_DIR, pushedOutputDir.toString());
   }
 
   /** Creates the working directory pathname for a task attempt. */ 
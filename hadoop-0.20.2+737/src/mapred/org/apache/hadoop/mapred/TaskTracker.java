@@ -17,7 +17,11 @@
  */
 package org.apache.hadoop.mapred;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -44,6 +48,7 @@ import java.util.TreeMap;
 import java.util.Vector;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 import javax.crypto.SecretKey;
@@ -69,6 +74,7 @@ import org.apache.hadoop.fs.LocalDirAllocator;
 import org.apache.hadoop.fs.LocalFileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.http.HttpServer;
+import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.SecureIOUtils;
 import org.apache.hadoop.ipc.RPC;
@@ -192,6 +198,13 @@ public class TaskTracker
    * again.
    */
   TaskTrackerStatus status = null;
+
+  /*
+   * The task reports of the last status the JobTracker acknowledged, which
+   * the next heartbeat only sends the changes against; null to send the
+   * full status.
+   */
+  private Map<TaskAttemptID, TaskStatus> acknowledgedReports = null;
   
   // The system-directory on HDFS where job files are stored 
   Path systemDirectory = null;
@@ -200,6 +213,7 @@ public class TaskTracker
   FileSystem systemFS = null;
   private FileSystem localFs = null;
   private final HttpServer server;
+  private ShuffleServer nioShuffleServer = null;
     
   volatile boolean shuttingDown = false;
     
@@ -244,11 +258,14 @@ public class TaskTracker
   static final String DISTCACHEDIR = "distcache";
   static final String JOBCACHE = "jobcache";
   static final String OUTPUT = "output";
+  static final String PUSHED_OUTPUT = "pushed";
   private static final String JARSDIR = "jars";
   static final String LOCAL_SPLIT_FILE = "split.info";
   static final String JOBFILE = "job.xml";
 
   static final String JOB_LOCAL_DIR = "job.local.dir";
+  // the pushed output directories of the job, as seen by its tasks
+  static final String PUSHED_OUTPUT_LOCAL_DIR = "mapred.shuffle.push.local.dir";
   static final String JOB_TOKEN_FILE="jobToken"; //localized file
 
   private JobConf fConf;
@@ -265,6 +282,11 @@ public class TaskTracker
   static final String TT_OUTOFBAND_HEARBEAT =
     "mapreduce.tasktracker.outofband.heartbeat";
   private volatile boolean oobHeartbeatOnTaskCompletion;
+  // Out-of-band heartbeats are sent at most once in this many milliseconds,
+  // so that a burst of short tasks finishing does not flood the JobTracker
+  static final String TT_OUTOFBAND_HEARTBEAT_MIN_INTERVAL =
+    "mapreduce.tasktracker.outofband.heartbeat.min.interval";
+  private volatile long oobHeartbeatMinInterval;
   
   // Track number of completed tasks to send an out-of-band heartbeat
   private IntWritable finishedCount = new IntWritable(0);
@@ -299,6 +321,13 @@ public class TaskTracker
   private int probe_sample_size = 500;
 
   private IndexCache indexCache;
+  /**
+   * Page cache readahead and eviction for the map outputs this tracker
+   * serves, shared by the shuffle servlets and the NIO shuffle server.
+   */
+  private final MapOutputCacheManager mapOutputCache;
+  // pushes the outputs of the maps done here to the trackers of the reduces
+  private final MapOutputPusher mapOutputPusher;
 
   /**
   * Handle to the specific instance of the {@link TaskController} class
@@ -317,16 +346,27 @@ public class TaskTracker
             Collections.synchronizedList(new ArrayList<TaskAttemptID>());
 
   private ShuffleServerMetrics shuffleServerMetrics;
+  /**
+   * The map output requests being served to all reduces, and the limit on
+   * them; 0 for no limit.
+   */
+  private final AtomicInteger shuffleRequests = new AtomicInteger();
+  private int maxShuffleRequests;
   /** This class contains the methods that should be used for metrics-reporting
    * the specific metrics for shuffle. The TaskTracker is actually a server for
    * the shuffle and hence the name ShuffleServerMetrics.
    */
-  private class ShuffleServerMetrics implements Updater {
+  class ShuffleServerMetrics implements Updater {
     private MetricsRecord shuffleMetricsRecord = null;
     private int serverHandlerBusy = 0;
     private long outputBytes = 0;
     private int failedOutputs = 0;
     private int successOutputs = 0;
+    private int indexCacheHits = 0;
+    private int indexCacheMisses = 0;
+    private int indexCacheEvictions = 0;
+    private int indexCachePrefetches = 0;
+    private int busyRejections = 0;
     ShuffleServerMetrics(JobConf conf) {
       MetricsContext context = MetricsUtil.getContext("mapred");
       shuffleMetricsRecord = 
@@ -349,6 +389,21 @@ public class TaskTracker
     synchronized void successOutput() {
       ++successOutputs;
     }
+    synchronized void indexCacheHit() {
+      ++indexCacheHits;
+    }
+    synchronized void indexCacheMiss() {
+      ++indexCacheMisses;
+    }
+    synchronized void indexCacheEviction() {
+      ++indexCacheEvictions;
+    }
+    synchronized void indexCachePrefetch() {
+      ++indexCachePrefetches;
+    }
+    synchronized void busyRejection() {
+      ++busyRejections;
+    }
     public void doUpdates(MetricsContext unused) {
       synchronized (this) {
         if (workerThreads != 0) {
@@ -363,9 +418,24 @@ public class TaskTracker
                                         failedOutputs);
         shuffleMetricsRecord.incrMetric("shuffle_success_outputs", 
                                         successOutputs);
+        shuffleMetricsRecord.incrMetric("shuffle_index_cache_hits",
+                                        indexCacheHits);
+        shuffleMetricsRecord.incrMetric("shuffle_index_cache_misses",
+                                        indexCacheMisses);
+        shuffleMetricsRecord.incrMetric("shuffle_index_cache_evictions",
+                                        indexCacheEvictions);
+        shuffleMetricsRecord.incrMetric("shuffle_index_cache_prefetches",
+                                        indexCachePrefetches);
+        shuffleMetricsRecord.incrMetric("shuffle_busy_rejections",
+                                        busyRejections);
         outputBytes = 0;
         failedOutputs = 0;
         successOutputs = 0;
+        indexCacheHits = 0;
+        indexCacheMisses = 0;
+        indexCacheEvictions = 0;
+        indexCachePrefetches = 0;
+        busyRejections = 0;
       }
       shuffleMetricsRecord.update();
     }
@@ -534,6 +604,23 @@ public class TaskTracker
   static String getLocalTaskDir(String user, String jobid, String taskid) {
     return getLocalTaskDir(user, jobid, taskid, false);
   }
+
+  /**
+   * The directory, owned by the tracker, that the map outputs pushed to the
+   * reduces of a job running here are stored in.
+   */
+  static String getPushedOutputDir(String jobid) {
+    return TaskTracker.SUBDIR + Path.SEPARATOR + PUSHED_OUTPUT +
+      Path.SEPARATOR + jobid;
+  }
+
+  /**
+   * The file a map output pushed to a reduce is stored in, relative to the
+   * pushed output directory of the job.
+   */
+  static String getPushedMapOutputFile(int reduce, String mapId) {
+    return reduce + Path.SEPARATOR + mapId + ".out";
+  }
   
   public static String getLocalTaskDir(String user, String jobid, String taskid,
       boolean isCleanupAttempt) {
@@ -626,6 +713,7 @@ public class TaskTracker
     this.reduceTotal = 0;
     this.acceptNewTasks = true;
     this.status = null;
+    this.acknowledgedReports = null;
 
     this.minSpaceStart = this.fConf.getLong("mapred.local.dir.minspacestart", 0L);
     this.minSpaceKill = this.fConf.getLong("mapred.local.dir.minspacekill", 0L);
@@ -729,6 +817,7 @@ public class TaskTracker
     getUserLogManager().clearOldUserLogs(fConf);
 
     setIndexCache(new IndexCache(this.fConf));
+    indexCache.setMetrics(shuffleServerMetrics);
 
     mapLauncher = new TaskLauncher(TaskType.MAP, maxMapSlots);
     reduceLauncher = new TaskLauncher(TaskType.REDUCE, maxReduceSlots);
@@ -745,6 +834,8 @@ public class TaskTracker
     
     oobHeartbeatOnTaskCompletion = 
       fConf.getBoolean(TT_OUTOFBAND_HEARBEAT, false);
+    oobHeartbeatMinInterval = 
+      fConf.getLong(TT_OUTOFBAND_HEARTBEAT_MIN_INTERVAL, 500);
   }
 
   UserGroupInformation getMROwner() {
@@ -1226,6 +1317,11 @@ public class TaskTracker
         LOG.warn("Exception shutting down TaskTracker", e);
       }
     }
+    if (nioShuffleServer != null) {
+      LOG.info("Shutting down NIO shuffle server");
+      nioShuffleServer.stop();
+    }
+    mapOutputPusher.shutdown();
   }
   /**
    * Close down the TaskTracker and all its components.  We must also shutdown
@@ -1268,6 +1364,8 @@ public class TaskTracker
     // Shutdown the fetcher thread
     this.mapEventsFetcher.interrupt();
     
+    indexCache.close();
+    
     //stop the launchers
     this.mapLauncher.interrupt();
     this.reduceLauncher.interrupt();
@@ -1302,6 +1400,8 @@ public class TaskTracker
    */
   TaskTracker() {
     server = null;
+    mapOutputCache = null;
+    mapOutputPusher = null;
   }
 
   void setConf(JobConf conf) {
@@ -1331,6 +1431,10 @@ public class TaskTracker
         httpPort == 0, conf, aclsManager.getAdminsAcl());
     workerThreads = conf.getInt("tasktracker.http.threads", 40);
     this.shuffleServerMetrics = new ShuffleServerMetrics(conf);
+    maxShuffleRequests = conf.getInt("mapred.tasktracker.shuffle.max.fetches",
+                                     0);
+    mapOutputCache = new MapOutputCacheManager(conf);
+    mapOutputPusher = new MapOutputPusher(this, conf);
     server.setThreads(1, workerThreads);
     // let the jsp pages get to the task tracker, config, and other relevant
     // objects
@@ -1343,10 +1447,17 @@ public class TaskTracker
     server.setAttribute("localDirAllocator", localDirAllocator);
     server.setAttribute("shuffleServerMetrics", shuffleServerMetrics);
     server.addInternalServlet("mapOutput", "/mapOutput", MapOutputServlet.class);
+    server.addInternalServlet("pushMapOutput", "/pushMapOutput",
+                              PushMapOutputServlet.class);
     server.addServlet("taskLog", "/tasklog", TaskLogServlet.class);
     server.start();
     this.httpPort = server.getPort();
     checkJettyPort(httpPort);
+    // the map outputs are also served by the NIO shuffle server if enabled
+    if (ShuffleServer.isEnabled(conf)) {
+      nioShuffleServer = new ShuffleServer(this, conf, shuffleServerMetrics);
+      nioShuffleServer.start();
+    }
     // create user log manager
     setUserLogManager(new UserLogManager(conf));
 
@@ -1380,6 +1491,10 @@ public class TaskTracker
     return directoryCleanupThread;
   }
 
+  MapOutputCacheManager getMapOutputCache() {
+    return mapOutputCache;
+  }
+
   /**
    * The connection to the JobTracker, used by the TaskRunner 
    * for locating remote files.
@@ -1442,6 +1557,14 @@ public class TaskTracker
             }
             finishedCount.set(0);
           }
+          // rate-limit the out-of-band heartbeats; tasks finishing 
+          // meanwhile are reported by the same heartbeat
+          long oobWaitTime = oobHeartbeatMinInterval - 
+            (System.currentTimeMillis() - lastHeartbeat);
+          if (oobWaitTime > 0) {
+            Thread.sleep(oobWaitTime);
+          }
+          now = System.currentTimeMillis();
         }
 
         // If the TaskTracker is just starting up:
@@ -1582,6 +1705,29 @@ public class TaskTracker
 
   private long previousUpdate = 0;
 
+  /**
+   * Start serving a map output request, unless the tracker already serves
+   * as many as it allows, in which case the request should be turned away
+   * as busy. Each request started must be ended with
+   * {@link #endShuffleRequest()}.
+   * @return whether the request can be served
+   */
+  boolean startShuffleRequest() {
+    if (maxShuffleRequests > 0 &&
+        shuffleRequests.incrementAndGet() > maxShuffleRequests) {
+      shuffleRequests.decrementAndGet();
+      shuffleServerMetrics.busyRejection();
+      return false;
+    }
+    return true;
+  }
+
+  void endShuffleRequest() {
+    if (maxShuffleRequests > 0) {
+      shuffleRequests.decrementAndGet();
+    }
+  }
+
   void setIndexCache(IndexCache cache) {
     this.indexCache = cache;
   }
@@ -1663,9 +1809,13 @@ public class TaskTracker
       }
     }
     //
-    // Xmit the heartbeat
+    // Xmit the heartbeat, with only the task statuses and counters that 
+    // changed since the last acknowledged one
     //
-    HeartbeatResponse heartbeatResponse = jobClient.heartbeat(status, 
+    TaskTrackerStatus sentStatus = 
+      (acknowledgedReports == null || justInited) 
+      ? status : status.getDelta(acknowledgedReports);
+    HeartbeatResponse heartbeatResponse = jobClient.heartbeat(sentStatus, 
                                                               justStarted,
                                                               justInited,
                                                               askForNewTask, 
@@ -1675,6 +1825,15 @@ public class TaskTracker
     // The heartbeat got through successfully!
     //
     heartbeatResponseId = heartbeatResponse.getResponseId();
+    if (heartbeatResponse.isFullStatusRequired()) {
+      // the JobTracker did not process the changes, so keep 'status' 
+      // and resend it in full
+      LOG.info("Resending the full 'status' to '" + 
+               jobTrackAddr.getHostName() + "' on its request");
+      acknowledgedReports = null;
+      return heartbeatResponse;
+    }
+    acknowledgedReports = status.getAcknowledgedReports(acknowledgedReports);
       
     synchronized (this) {
       for (TaskStatus taskStatus : status.getTaskReports()) {
@@ -1917,6 +2076,8 @@ public class TaskTracker
       buildTaskControllerJobPathDeletionContexts(localFs, 
           getLocalFiles(fConf, ""), jobId, user, taskController);
     directoryCleanupThread.addToQueue(contexts);
+    directoryCleanupThread.addToQueue(buildPathDeletionContexts(localFs,
+        getLocalFiles(fConf, getPushedOutputDir(jobId.toString()))));
   }
 
   /**
@@ -3261,12 +3422,54 @@ public class TaskTracker
     commitResponses.remove(taskid);
     if (tip != null) {
       tip.reportDone();
+      prefetchMapOutputIndex(tip);
+      pushMapOutput(tip);
     } else {
       LOG.warn("Unknown child task done: "+taskid+". Ignored.");
     }
   }
 
 
+  /**
+   * Load the index of a finished map's output into the index cache, ahead
+   * of the reduces asking for it.
+   */
+  private void prefetchMapOutputIndex(TaskInProgress tip) {
+    final Task task = tip.getTask();
+    final JobConf jobConf = tip.getJobConf();
+    if (!task.isMapTask() || task.isJobSetupTask() ||
+        task.isJobCleanupTask() || task.isTaskCleanupTask() ||
+        jobConf == null || jobConf.getNumReduceTasks() == 0) {
+      return;
+    }
+    final String mapId = task.getTaskID().toString();
+    try {
+      Path indexFileName = localDirAllocator.getLocalPathToRead(
+          getIntermediateOutputDir(jobConf.getUser(),
+              task.getJobID().toString(), mapId) + "/file.out.index", fConf);
+      indexCache.prefetchIndexInformation(mapId, indexFileName,
+          getTaskController().getRunAsUser(jobConf));
+    } catch (IOException e) {
+      LOG.debug("Not prefetching the index of " + mapId + ": " + e);
+    }
+  }
+
+  /**
+   * Start pushing the output of a map that succeeded to the trackers
+   * running the reduces of its job, if the job asks for it.
+   */
+  private void pushMapOutput(TaskInProgress tip) {
+    Task task = tip.getTask();
+    JobConf jobConf = tip.getJobConf();
+    if (!task.isMapTask() || task.isJobSetupTask() ||
+        task.isJobCleanupTask() || task.isTaskCleanupTask() ||
+        jobConf == null || !MapOutputPusher.isEnabled(jobConf) ||
+        tip.getStatus().getRunState() != TaskStatus.State.SUCCEEDED) {
+      return;
+    }
+    mapOutputPusher.push(jobConf, task.getTaskID());
+  }
+
   /** 
    * A reduce-task failed to shuffle the map-outputs. Kill the task.
    */  
@@ -3336,6 +3539,22 @@ public class TaskTracker
     }
     return new MapTaskCompletionEventsUpdate(mapEvents, false);
   }
+
+  /**
+   * Get an attempt of the given reduce that is running on this tracker.
+   * @return the attempt, or null if there is none
+   */
+  synchronized TaskAttemptID getRunningReduce(JobID jobId, int partition) {
+    for (Map.Entry<TaskAttemptID, TaskInProgress> e : runningTasks.entrySet()) {
+      TaskAttemptID id = e.getKey();
+      if (!id.isMap() && id.getTaskID().getId() == partition &&
+          id.getJobID().equals(jobId) &&
+          !e.getValue().getTask().isTaskCleanupTask()) {
+        return id;
+      }
+    }
+    return null;
+  }
     
   /////////////////////////////////////////////////////
   //  Called by TaskTracker thread after task process ends
@@ -3551,13 +3770,33 @@ public class TaskTracker
     public void doGet(HttpServletRequest request, 
                       HttpServletResponse response
                       ) throws ServletException, IOException {
-      String mapId = request.getParameter("map");
-      String reduceId = request.getParameter("reduce");
+      TaskTracker tracker = 
+        (TaskTracker) getServletContext().getAttribute("task.tracker");
       String jobId = request.getParameter("job");
-
       if (jobId == null) {
         throw new IOException("job parameter is required");
       }
+      // only fetchers of the job count against the limit
+      verifyRequest(request, response, tracker, jobId);
+      // the reduce backs off and tries again
+      if (!tracker.startShuffleRequest()) {
+        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                           "Too many map output fetches");
+        return;
+      }
+      try {
+        sendMapOutput(request, response, tracker, jobId);
+      } finally {
+        tracker.endShuffleRequest();
+      }
+    }
+
+    private void sendMapOutput(HttpServletRequest request,
+                               HttpServletResponse response,
+                               TaskTracker tracker, String jobId
+                               ) throws ServletException, IOException {
+      String mapId = request.getParameter("map");
+      String reduceId = request.getParameter("reduce");
 
       if (mapId == null || reduceId == null) {
         throw new IOException("map and reduce parameters are required");
@@ -3573,10 +3812,13 @@ public class TaskTracker
       long totalRead = 0;
       ShuffleServerMetrics shuffleMetrics =
         (ShuffleServerMetrics) context.getAttribute("shuffleServerMetrics");
-      TaskTracker tracker = 
-        (TaskTracker) context.getAttribute("task.tracker");
 
-      verifyRequest(request, response, tracker, jobId);
+      // several maps are sent in one response, each with its own header
+      if (mapId.indexOf(',') >= 0) {
+        sendMapOutputBatch(request, response, tracker, jobId,
+                           mapId.split(","), reduce);
+        return;
+      }
 
       long startTime = 0;
       try {
@@ -3651,11 +3893,17 @@ public class TaskTracker
 
         //seek to the correct offset for the reduce
         mapOutputIn.skip(info.startOffset);
+        FileDescriptor fd = mapOutputIn.getFD();
+        long end = info.startOffset + info.partLength;
+        long readaheadEnd = tracker.getMapOutputCache().readahead(mapId, fd,
+            info.startOffset, end, info.startOffset);
         long rem = info.partLength;
         int len =
           mapOutputIn.read(buffer, 0, (int)Math.min(rem, MAX_BYTES_TO_READ));
         while (rem > 0 && len >= 0) {
           rem -= len;
+          readaheadEnd = tracker.getMapOutputCache().readahead(mapId, fd,
+              end - rem, end, readaheadEnd);
           try {
             shuffleMetrics.outputBytes(len);
             outStream.write(buffer, 0, len);
@@ -3669,6 +3917,8 @@ public class TaskTracker
             mapOutputIn.read(buffer, 0, (int)Math.min(rem, MAX_BYTES_TO_READ));
         }
 
+        tracker.getMapOutputCache().dropCache(mapId, fd, info.startOffset,
+                                              info.partLength);
         LOG.info("Sent out " + totalRead + " bytes for reduce: " + reduce + 
                  " from map: " + mapId + " given " + info.partLength + "/" + 
                  info.rawLength);
@@ -3701,6 +3951,116 @@ public class TaskTracker
       shuffleMetrics.successOutput();
     }
     
+    /**
+     * Send the outputs of several maps for one reduce in a single response,
+     * each preceded by a {@link ShuffleHeader}. A map output that cannot be
+     * found is reported lost and sent as a header without data, so that the
+     * reduce can go on with the others.
+     */
+    private void sendMapOutputBatch(HttpServletRequest request,
+        HttpServletResponse response, TaskTracker tracker, String jobId,
+        String[] mapIds, int reduce) throws IOException {
+      ServletContext context = getServletContext();
+      ShuffleServerMetrics shuffleMetrics =
+        (ShuffleServerMetrics) context.getAttribute("shuffleServerMetrics");
+      Log log = (Log) context.getAttribute("log");
+      byte[] buffer = new byte[MAX_BYTES_TO_READ];
+      long totalRead = 0;
+      long startTime = 0;
+      String mapId = null;
+      FileInputStream mapOutputIn = null;
+      boolean isInputException = false;
+      try {
+        shuffleMetrics.serverHandlerBusy();
+        if (ClientTraceLog.isInfoEnabled()) {
+          startTime = System.nanoTime();
+        }
+        response.setHeader(FOR_REDUCE_TASK, Integer.toString(reduce));
+        response.setHeader(MAP_OUTPUT_BATCH, Integer.toString(mapIds.length));
+        response.setBufferSize(MAX_BYTES_TO_READ);
+        DataOutputStream out =
+          new DataOutputStream(response.getOutputStream());
+        for (int i = 0; i < mapIds.length; i++) {
+          mapId = mapIds[i];
+          MapOutputSegment segment;
+          try {
+            segment = tracker.getMapOutputSegment(jobId, mapId, reduce);
+            mapOutputIn = SecureIOUtils.openForRead(
+                new File(segment.file.toUri().getPath()), segment.runAsUser,
+                null);
+          } catch (IOException ie) {
+            String errorMsg = ("getMapOutput(" + mapId + "," + reduce +
+                               ") failed :\n" +
+                               StringUtils.stringifyException(ie));
+            log.warn(errorMsg);
+            tracker.mapOutputLost(TaskAttemptID.forName(mapId), errorMsg);
+            shuffleMetrics.failedOutput();
+            IOUtils.closeStream(mapOutputIn);
+            mapOutputIn = null;
+            new ShuffleHeader(mapId, -1, -1, reduce).write(out);
+            continue;
+          }
+          IndexRecord info = segment.index;
+          new ShuffleHeader(mapId, info.rawLength, info.partLength,
+                            reduce).write(out);
+          isInputException = true;
+          mapOutputIn.skip(info.startOffset);
+          FileDescriptor fd = mapOutputIn.getFD();
+          long end = info.startOffset + info.partLength;
+          long readaheadEnd = info.startOffset;
+          long rem = info.partLength;
+          while (rem > 0) {
+            isInputException = true;
+            readaheadEnd = tracker.getMapOutputCache().readahead(mapId, fd,
+                end - rem, end, readaheadEnd);
+            int len =
+              mapOutputIn.read(buffer, 0, (int)Math.min(rem, MAX_BYTES_TO_READ));
+            if (len < 0) {
+              throw new EOFException("Map output of " + mapId + " ended " +
+                                     rem + " bytes early");
+            }
+            isInputException = false;
+            shuffleMetrics.outputBytes(len);
+            out.write(buffer, 0, len);
+            rem -= len;
+            totalRead += len;
+          }
+          isInputException = false;
+          out.flush();
+          tracker.getMapOutputCache().dropCache(mapId, fd,
+                                                info.startOffset,
+                                                info.partLength);
+          mapOutputIn.close();
+          mapOutputIn = null;
+          shuffleMetrics.successOutput();
+        }
+        LOG.info("Sent out " + totalRead + " bytes for reduce: " + reduce +
+                 " from " + mapIds.length + " maps");
+        out.close();
+      } catch (IOException ie) {
+        // the response can not be completed once a map output was started
+        String errorMsg = ("getMapOutput(" + mapId + "," + reduce +
+                           ") failed :\n" +
+                           StringUtils.stringifyException(ie));
+        log.warn(errorMsg);
+        if (isInputException) {
+          tracker.mapOutputLost(TaskAttemptID.forName(mapId), errorMsg);
+        }
+        shuffleMetrics.failedOutput();
+        throw ie;
+      } finally {
+        IOUtils.closeStream(mapOutputIn);
+        shuffleMetrics.serverHandlerFree();
+        if (ClientTraceLog.isInfoEnabled()) {
+          ClientTraceLog.info(String.format(MR_CLIENTTRACE_FORMAT,
+                request.getLocalAddr() + ":" + request.getLocalPort(),
+                request.getRemoteAddr() + ":" + request.getRemotePort(),
+                totalRead, "MAPRED_SHUFFLE", jobId,
+                System.nanoTime() - startTime));
+        }
+      }
+    }
+
     /**
      * verify that request has correct HASH for the url
      * and also add a field to reply header with hash of the HASH
@@ -3709,7 +4069,7 @@ public class TaskTracker
      * @param jt the job token
      * @throws IOException
      */
-    private void verifyRequest(HttpServletRequest request, 
+    static void verifyRequest(HttpServletRequest request, 
         HttpServletResponse response, TaskTracker tracker, String jobId) 
     throws IOException {
       SecretKey tokenSecret = tracker.getJobTokenSecretManager()
@@ -3747,6 +4107,197 @@ public class TaskTracker
   }
   
 
+  /**
+   * This class is used in TaskTracker's Jetty to receive the map outputs
+   * that the maps of a job push to its reduces running here. Each output
+   * arrives as a {@link ShuffleHeader} followed by the data, and is stored
+   * in the job's pushed output directory, which belongs to the tracker and
+   * is placed by its LocalDirAllocator, where the reduce looks for it before
+   * fetching it. The reduce reads the file directly, so pushes are only
+   * accepted for jobs whose tasks run as the tracker's user; with the
+   * LinuxTaskController the outputs are fetched as usual. A GET of the same
+   * url answers whether a push would be accepted, without any data.
+   */
+  public static class PushMapOutputServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+    private static final int MAX_BYTES_TO_READ = 64 * 1024;
+
+    @Override
+    public void doGet(HttpServletRequest request,
+                      HttpServletResponse response
+                      ) throws ServletException, IOException {
+      if (acceptPush(request, response) != null) {
+        response.setStatus(HttpServletResponse.SC_OK);
+      }
+    }
+
+    @Override
+    public void doPost(HttpServletRequest request,
+                       HttpServletResponse response
+                       ) throws ServletException, IOException {
+      TaskAttemptID reduceAttempt = acceptPush(request, response);
+      if (reduceAttempt == null) {
+        return;
+      }
+      String mapId = request.getParameter("map");
+      String jobId = request.getParameter("job");
+      int reduce = reduceAttempt.getTaskID().getId();
+      ServletContext context = getServletContext();
+      JobConf conf = (JobConf) context.getAttribute("conf");
+      LocalDirAllocator lDirAlloc =
+        (LocalDirAllocator)context.getAttribute("localDirAllocator");
+      FileSystem rfs = ((LocalFileSystem)
+          context.getAttribute("local.file.system")).getRaw();
+
+      DataInputStream in = new DataInputStream(request.getInputStream());
+      ShuffleHeader header = new ShuffleHeader();
+      header.readFields(in);
+      if (!mapId.equals(header.mapId) || header.forReduce != reduce ||
+          !header.isAvailable()) {
+        throw new IOException("data for reduce " + header.forReduce +
+            " from map " + header.mapId + " was pushed as the output of " +
+            mapId + " for reduce " + reduce);
+      }
+
+      // write to a temporary file first, so the reduce never sees a
+      // partial output
+      String file = getPushedOutputDir(jobId) + Path.SEPARATOR +
+        getPushedMapOutputFile(reduce, mapId);
+      Path tmp;
+      try {
+        tmp = lDirAlloc.getLocalPathForWrite(file + ".tmp",
+                                             header.compressedLength, conf);
+      } catch (DiskErrorException e) {
+        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                           "No space for the pushed output of " + mapId);
+        return;
+      }
+      Path dst = new Path(tmp.getParent(), new Path(file).getName());
+      byte[] buffer = new byte[MAX_BYTES_TO_READ];
+      boolean done = false;
+      DataOutputStream out = rfs.create(tmp);
+      try {
+        header.write(out);
+        long rem = header.compressedLength;
+        while (rem > 0) {
+          int len = in.read(buffer, 0, (int)Math.min(rem, MAX_BYTES_TO_READ));
+          if (len < 0) {
+            throw new EOFException("Pushed output of " + mapId + " ended " +
+                                   rem + " bytes early");
+          }
+          out.write(buffer, 0, len);
+          rem -= len;
+        }
+        out.close();
+        out = null;
+        if (!rfs.rename(tmp, dst)) {
+          throw new IOException("Could not rename " + tmp + " to " + dst);
+        }
+        done = true;
+      } finally {
+        IOUtils.closeStream(out);
+        if (!done) {
+          rfs.delete(tmp, false);
+        }
+      }
+      LOG.info("Received " + header.compressedLength + " bytes pushed " +
+               "from map: " + mapId + " for reduce: " + reduceAttempt);
+      response.setStatus(HttpServletResponse.SC_OK);
+    }
+
+    /**
+     * Check that a push is authentic and that its reduce runs here and can
+     * read it.
+     * @return the attempt of the reduce running here, or null if the push
+     *         has been refused
+     */
+    private TaskAttemptID acceptPush(HttpServletRequest request,
+                                     HttpServletResponse response
+                                     ) throws IOException {
+      String mapId = request.getParameter("map");
+      String reduceId = request.getParameter("reduce");
+      String jobId = request.getParameter("job");
+
+      if (jobId == null || mapId == null || reduceId == null) {
+        throw new IOException("job, map and reduce parameters are required");
+      }
+      TaskTracker tracker =
+        (TaskTracker) getServletContext().getAttribute("task.tracker");
+
+      MapOutputServlet.verifyRequest(request, response, tracker, jobId);
+
+      // the map id names the file, so it must be an attempt of the job
+      JobID job = JobID.forName(jobId);
+      if (!TaskAttemptID.forName(mapId).getJobID().equals(job)) {
+        throw new IOException("Map " + mapId + " is not part of " + jobId);
+      }
+      int reduce = Integer.parseInt(reduceId);
+
+      String runAsUser = null;
+      synchronized (tracker.runningJobs) {
+        RunningJob rjob = tracker.runningJobs.get(job);
+        if (rjob == null) {
+          throw new IOException("Unknown job " + jobId + "!!");
+        }
+        runAsUser = tracker.getTaskController().getRunAsUser(rjob.jobConf);
+      }
+      if (!System.getProperty("user.name").equals(runAsUser)) {
+        response.sendError(HttpServletResponse.SC_NOT_FOUND, "Tasks of " +
+            jobId + " run as " + runAsUser + " and can not read pushed " +
+            "outputs");
+        return null;
+      }
+      TaskAttemptID reduceAttempt = tracker.getRunningReduce(job, reduce);
+      if (reduceAttempt == null) {
+        response.sendError(HttpServletResponse.SC_NOT_FOUND, "Reduce " +
+                           reduce + " of " + jobId + " is not running here");
+      }
+      return reduceAttempt;
+    }
+  }
+
+  /**
+   * The segment of a map output that belongs to one reduce.
+   */
+  static class MapOutputSegment {
+    final Path file;
+    final IndexRecord index;
+    final String runAsUser;
+
+    MapOutputSegment(Path file, IndexRecord index, String runAsUser) {
+      this.file = file;
+      this.index = index;
+      this.runAsUser = runAsUser;
+    }
+  }
+
+  /**
+   * Find the segment of a map output on the local disks for a reduce.
+   * @throws IOException if the job is not known or the map output or its
+   *         index can not be read
+   */
+  MapOutputSegment getMapOutputSegment(String jobId, String mapId,
+                                       int reduce) throws IOException {
+    String userName = null;
+    String runAsUserName = null;
+    synchronized (runningJobs) {
+      RunningJob rjob = runningJobs.get(JobID.forName(jobId));
+      if (rjob == null) {
+        throw new IOException("Unknown job " + jobId + "!!");
+      }
+      userName = rjob.jobConf.getUser();
+      runAsUserName = getTaskController().getRunAsUser(rjob.jobConf);
+    }
+    String outputDir = getIntermediateOutputDir(userName, jobId, mapId);
+    Path indexFileName = localDirAllocator.getLocalPathToRead(
+        outputDir + "/file.out.index", fConf);
+    Path mapOutputFileName = localDirAllocator.getLocalPathToRead(
+        outputDir + "/file.out", fConf);
+    IndexRecord info = indexCache.getIndexInformation(mapId, reduce,
+        indexFileName, runAsUserName);
+    return new MapOutputSegment(mapOutputFileName, info, runAsUserName);
+  }
+
   // get the full paths of the directory in all the local disks.
   Path[] getLocalFiles(JobConf conf, String subdir) throws IOException{
     String[] localDirs = conf.getLocalDirs();
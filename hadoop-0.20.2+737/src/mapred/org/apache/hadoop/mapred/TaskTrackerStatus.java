@@ -49,6 +49,10 @@ public class TaskTrackerStatus implements Writable {
   int httpPort;
   int failures;
   List<TaskStatus> taskReports;
+  // Set when taskReports only holds the reports that changed since the
+  // last acknowledged heartbeat; the other tasks are listed here
+  private boolean delta = false;
+  private List<TaskAttemptID> unchangedTasks = new ArrayList<TaskAttemptID>();
     
   volatile long lastSeen;
   private int maxMapTasks;
@@ -498,6 +502,152 @@ public class TaskTrackerStatus implements Writable {
     
   }
   
+  /**
+   * Whether this status only carries the changes since the last 
+   * acknowledged heartbeat.
+   */
+  boolean isDelta() {
+    return delta;
+  }
+
+  /**
+   * Get the status to send in place of this one, holding only the task 
+   * reports and counters that changed since the reports the 
+   * {@link JobTracker} acknowledged last.
+   * @param previous the acknowledged reports by task, as returned by
+   *                 {@link #getAcknowledgedReports(Map)}
+   * @return the status to send
+   * @throws IOException
+   */
+  TaskTrackerStatus getDelta(Map<TaskAttemptID, TaskStatus> previous) 
+  throws IOException {
+    TaskTrackerStatus result = 
+      new TaskTrackerStatus(trackerName, host, httpPort, 
+                            new ArrayList<TaskStatus>(), failures, 
+                            maxMapTasks, maxReduceTasks);
+    result.resStatus = resStatus;
+    result.healthStatus = healthStatus;
+    result.delta = true;
+    for (TaskStatus report : taskReports) {
+      TaskStatus previousReport = previous.get(report.getTaskID());
+      if (previousReport == null) {
+        result.taskReports.add(report);
+        continue;
+      }
+      Counters changedCounters = report.getIncludeCounters() 
+        ? report.getCounters().getChangedCounters(
+            previousReport.getCounters())
+        : null;
+      if (sameReport(report, previousReport) && 
+          (changedCounters == null || changedCounters.size() == 0)) {
+        result.unchangedTasks.add(report.getTaskID());
+      } else {
+        TaskStatus changedReport = (TaskStatus)report.clone();
+        if (changedCounters != null) {
+          changedReport.setCounters(changedCounters);
+        }
+        result.taskReports.add(changedReport);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Get the reports of this status as the {@link JobTracker} keeps them 
+   * once it was acknowledged, to compute the next delta against.
+   * @param previous the reports acknowledged before this status, by task
+   * @return the reports by task
+   */
+  Map<TaskAttemptID, TaskStatus> getAcknowledgedReports(
+      Map<TaskAttemptID, TaskStatus> previous) {
+    Map<TaskAttemptID, TaskStatus> result = 
+      new HashMap<TaskAttemptID, TaskStatus>();
+    for (TaskStatus report : taskReports) {
+      TaskStatus acknowledged = (TaskStatus)report.clone();
+      acknowledged.clearStatus();
+      TaskStatus previousReport = 
+        (previous == null) ? null : previous.get(report.getTaskID());
+      Counters counters = new Counters();
+      if (previousReport != null) {
+        counters.incrAllCounters(previousReport.getCounters());
+      }
+      if (report.getIncludeCounters()) {
+        counters.setAllCounters(report.getCounters());
+      }
+      acknowledged.setCounters(counters);
+      result.put(report.getTaskID(), acknowledged);
+    }
+    return result;
+  }
+
+  /**
+   * Rebuild the full status from a delta, taking the unchanged reports and 
+   * counters from the last status of the tracker.
+   * @param previous the last status of the tracker, if any
+   * @return false if the previous status does not hold every unchanged 
+   *         task, so that the tracker has to send its full status
+   */
+  boolean applyDelta(TaskTrackerStatus previous) {
+    if (!delta) {
+      return true;
+    }
+    if (previous == null) {
+      return false;
+    }
+    Map<TaskAttemptID, TaskStatus> previousReports = 
+      new HashMap<TaskAttemptID, TaskStatus>();
+    for (TaskStatus report : previous.taskReports) {
+      previousReports.put(report.getTaskID(), report);
+    }
+    List<TaskStatus> reports = 
+      new ArrayList<TaskStatus>(taskReports.size() + unchangedTasks.size());
+    for (TaskAttemptID taskId : unchangedTasks) {
+      TaskStatus previousReport = previousReports.get(taskId);
+      if (previousReport == null) {
+        return false;
+      }
+      TaskStatus report = (TaskStatus)previousReport.clone();
+      // diagnostics and failed fetches are sent only once
+      report.clearStatus();
+      report.setIncludeCounters(false);
+      reports.add(report);
+    }
+    for (TaskStatus report : taskReports) {
+      TaskStatus previousReport = previousReports.get(report.getTaskID());
+      if (previousReport != null) {
+        Counters counters = new Counters();
+        counters.incrAllCounters(previousReport.getCounters());
+        if (report.getIncludeCounters()) {
+          counters.setAllCounters(report.getCounters());
+        }
+        report.setCounters(counters);
+      }
+      reports.add(report);
+    }
+    taskReports = reports;
+    unchangedTasks.clear();
+    delta = false;
+    return true;
+  }
+
+  /**
+   * Whether two reports of a task agree on everything but their counters.
+   */
+  private static boolean sameReport(TaskStatus report, TaskStatus previous) 
+  throws IOException {
+    return Arrays.equals(serializeWithoutCounters(report),
+                         serializeWithoutCounters(previous));
+  }
+
+  private static byte[] serializeWithoutCounters(TaskStatus report) 
+  throws IOException {
+    TaskStatus copy = (TaskStatus)report.clone();
+    copy.setIncludeCounters(false);
+    DataOutputBuffer out = new DataOutputBuffer();
+    TaskStatus.writeTaskStatus(out, copy);
+    return Arrays.copyOf(out.getData(), out.getLength());
+  }
+
   ///////////////////////////////////////////
   // Writable
   ///////////////////////////////////////////
@@ -514,6 +664,13 @@ public class TaskTrackerStatus implements Writable {
     for (TaskStatus taskStatus : taskReports) {
       TaskStatus.writeTaskStatus(out, taskStatus);
     }
+    out.writeBoolean(delta);
+    if (delta) {
+      WritableUtils.writeVInt(out, unchangedTasks.size());
+      for (TaskAttemptID taskId : unchangedTasks) {
+        taskId.write(out);
+      }
+    }
     getHealthStatus().write(out);
   }
 
@@ -531,6 +688,16 @@ public class TaskTrackerStatus implements Writable {
     for (int i = 0; i < numTasks; i++) {
       taskReports.add(TaskStatus.readTaskStatus(in));
     }
+    delta = in.readBoolean();
+    unchangedTasks.clear();
+    if (delta) {
+      int numUnchanged = WritableUtils.readVInt(in);
+      for (int i = 0; i < numUnchanged; i++) {
+        TaskAttemptID taskId = new TaskAttemptID();
+        taskId.readFields(in);
+        unchangedTasks.add(taskId);
+      }
+    }
     getHealthStatus().readFields(in);
   }
 }
@@ -59,9 +59,14 @@ public interface TaskUmbilicalProtocol extends VersionedProtocol {
    * Version 16 Added fatalError for child to communicate fatal errors to TT
    *            Added numRequiredSlots to TaskStatus for MAPREDUCE-516
    * Version 17 Change in signature of getTask() for HADOOP-5488
+   * Version 18 Added getReduceLocations for pushing map outputs to reduces
+   * Version 19 Counters are written with numbers for the framework's groups
+   *            and counters
+   * Version 20 Removed getReduceLocations, the tasktracker pushes the map
+   *            outputs
    * */
 
-  public static final long versionID = 17L;
+  public static final long versionID = 20L;
   
   /**
    * Called when a child task process starts, to get its task.
@@ -21,6 +21,7 @@ package org.apache.hadoop.mapreduce;
 import java.io.IOException;
 import java.io.DataInput;
 import java.io.DataOutput;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Writable;
@@ -38,9 +39,13 @@ import org.apache.hadoop.io.WritableUtils;
  */
 public class Counter implements Writable {
 
+  // updates the value without locking the counter
+  private static final AtomicLongFieldUpdater<Counter> VALUE =
+    AtomicLongFieldUpdater.newUpdater(Counter.class, "value");
+
   private String name;
   private String displayName;
-  private long value = 0;
+  private volatile long value = 0;
     
   protected Counter() { 
   }
@@ -99,7 +104,7 @@ public class Counter implements Writable {
    * What is the current value of this counter?
    * @return the current value
    */
-  public synchronized long getValue() {
+  public long getValue() {
     return value;
   }
     
@@ -107,8 +112,8 @@ public class Counter implements Writable {
    * Increment this counter by the given value
    * @param incr the value to increase this counter by
    */
-  public synchronized void increment(long incr) {
-    value += incr;
+  public void increment(long incr) {
+    VALUE.addAndGet(this, incr);
   }
 
   @Override
@@ -217,6 +217,32 @@ cleanup:
   return ret;
 }
 
+/*
+ * public static native void posix_fadvise(
+ *   FileDescriptor fd, long offset, long len, int flags);
+ */
+JNIEXPORT void JNICALL
+Java_org_apache_hadoop_io_nativeio_NativeIO_posix_1fadvise(
+  JNIEnv *env, jclass clazz,
+  jobject fd_object, jlong offset, jlong len, jint flags)
+{
+#ifndef POSIX_FADV_WILLNEED
+  // configure does not check for posix_fadvise, so go by the advice
+  // constants fcntl.h defines alongside it
+  THROW(env, "java/lang/UnsupportedOperationException",
+        "fadvise support not available");
+#else
+  int fd = fd_get(env, fd_object);
+  PASS_EXCEPTIONS(env);
+
+  // posix_fadvise returns the error rather than setting errno
+  int err = posix_fadvise(fd, (off_t)offset, (off_t)len, flags);
+  if (err != 0) {
+    throw_ioe(env, err);
+  }
+#endif
+}
+
 /*
  * Throw a java.IO.IOException, generating the message from errno.
  */
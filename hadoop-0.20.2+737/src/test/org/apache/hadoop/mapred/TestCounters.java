@@ -21,6 +21,9 @@ import junit.framework.TestCase;
 import java.io.IOException;
 import java.text.ParseException;
 
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.WritableUtils;
+
 /**
  * TestCounters checks the sanity and recoverability of {@code Counters}
  */
@@ -90,6 +93,39 @@ public class TestCounters extends TestCase {
     }
   }
   
+  public void testWritable() throws IOException {
+    Counters counters = getEnumCounters(new Enum[] {
+        Task.Counter.MAP_INPUT_BYTES, JobInProgress.Counter.TOTAL_LAUNCHED_MAPS,
+        myCounters.TEST1});
+    counters.incrCounter(Task.FILESYSTEM_COUNTER_GROUP, "HDFS_BYTES_READ", 7);
+    counters.incrCounter("group{}()[]", "counter{}()[]", 3);
+    counters.getGroup("group{}()[]").setDisplayName("custom group");
+    counters.findCounter(myCounters.TEST1).setDisplayName("custom counter");
+
+    Counters recovered = WritableUtils.clone(counters, new Configuration());
+    assertEquals(counters, recovered);
+    assertEquals(counters.makeEscapedCompactString(),
+                 recovered.makeEscapedCompactString());
+    assertEquals("custom counter",
+                 recovered.findCounter(myCounters.TEST1).getDisplayName());
+    assertEquals("custom group",
+                 recovered.getGroup("group{}()[]").getDisplayName());
+    // the names of the framework counters are shared, not read again
+    assertSame(counters.findCounter(Task.Counter.MAP_INPUT_BYTES).getName(),
+               recovered.findCounter(Task.Counter.MAP_INPUT_BYTES).getName());
+  }
+
+  public void testDecrAllCounters() {
+    Counters a = getEnumCounters(new Enum[] {Task.Counter.MAP_INPUT_BYTES});
+    Counters b = getEnumCounters(new Enum[] {Task.Counter.MAP_INPUT_BYTES,
+                                             myCounters.TEST1});
+    assertTrue(b.containsAll(a));
+    assertFalse(a.containsAll(b));
+    Counters sum = Counters.sum(a, b);
+    sum.decrAllCounters(a);
+    assertEquals(b, sum);
+  }
+
   public static void main(String[] args) throws IOException {
     new TestCounters().testCounters();
   }
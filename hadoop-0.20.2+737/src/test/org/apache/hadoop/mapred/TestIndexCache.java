@@ -111,6 +111,73 @@ public class TestIndexCache extends TestCase {
     checkRecord(rec, totalsize);
   }
 
+  public void testSpentEvictedFirst() throws Exception {
+    JobConf conf = new JobConf();
+    FileSystem fs = FileSystem.getLocal(conf).getRaw();
+    Path p = new Path(System.getProperty("test.build.data", "/tmp"),
+        "cache").makeQualified(fs);
+    fs.delete(p, true);
+    conf.setInt("mapred.tasktracker.indexcache.mb", 1);
+    final int partsPerMap = 1000;
+    final int bytesPerFile = partsPerMap * 24;
+    final String user =
+      UserGroupInformation.getCurrentUser().getShortUserName();
+    IndexCache cache = new IndexCache(conf);
+
+    // fill cache
+    int totalsize = bytesPerFile;
+    for (; totalsize < 1024 * 1024; totalsize += bytesPerFile) {
+      Path f = new Path(p, Integer.toString(totalsize, 36));
+      writeFile(fs, f, totalsize, partsPerMap);
+      checkRecord(cache.getIndexInformation(Integer.toString(totalsize, 36),
+          0, f, user), totalsize);
+    }
+
+    // read one of the newest entries by all its reduces
+    final int spent = totalsize - bytesPerFile;
+    for (int i = 1; i < partsPerMap; ++i) {
+      checkRecord(cache.getIndexInformation(Integer.toString(spent, 36), i,
+          new Path(p, Integer.toString(spent, 36)), user), spent);
+    }
+    for (FileStatus stat : fs.listStatus(p)) {
+      fs.delete(stat.getPath(), true);
+    }
+
+    // the next entry pushes out the spent one, not the oldest
+    Path f = new Path(p, Integer.toString(totalsize, 36));
+    writeFile(fs, f, totalsize, partsPerMap);
+    cache.getIndexInformation(Integer.toString(totalsize, 36), 0, f, user);
+    assertFalse(cache.isCached(Integer.toString(spent, 36)));
+    for (int i = bytesPerFile; i < spent; i += bytesPerFile) {
+      checkRecord(cache.getIndexInformation(Integer.toString(i, 36), 0,
+          new Path(p, Integer.toString(i, 36)), user), i);
+    }
+  }
+
+  public void testPrefetch() throws Exception {
+    JobConf conf = new JobConf();
+    FileSystem fs = FileSystem.getLocal(conf).getRaw();
+    Path p = new Path(System.getProperty("test.build.data", "/tmp"),
+        "cache").makeQualified(fs);
+    fs.delete(p, true);
+    final String user =
+      UserGroupInformation.getCurrentUser().getShortUserName();
+    IndexCache cache = new IndexCache(conf);
+    try {
+      Path f = new Path(p, "prefetched");
+      writeFile(fs, f, 42, 10);
+      cache.prefetchIndexInformation("prefetched", f, user);
+      for (int i = 0; i < 100 && !cache.isCached("prefetched"); ++i) {
+        Thread.sleep(100);
+      }
+      assertTrue("Index was not prefetched", cache.isCached("prefetched"));
+      fs.delete(f, false);
+      checkRecord(cache.getIndexInformation("prefetched", 3, f, user), 42);
+    } finally {
+      cache.close();
+    }
+  }
+
   public void testBadIndex() throws Exception {
     final int parts = 30;
     JobConf conf = new JobConf();
@@ -23,6 +23,8 @@ import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Map;
 
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.mapred.JobHistory.*;
@@ -111,4 +113,255 @@ public class TestJobHistoryParsing  extends TestCase {
     assertEquals(value5, job.get(Keys.USER));
     assertEquals(value6, job.get(Keys.SPLITS));
   }
+
+  public void testBinaryHistoryParsing() throws IOException {
+    checkBinaryHistory(false);
+    checkBinaryHistory(true);
+  }
+
+  private void checkBinaryHistory(boolean compress) throws IOException {
+    Path historyDir = new Path(System.getProperty("test.build.data", "."), 
+                                "history");
+    FileSystem fs = FileSystem.getLocal(new JobConf());
+    Path historyLog = new Path(historyDir, "testlog.binary");
+    PrintWriter out = 
+      new BinaryJobHistory.Writer(fs.create(historyLog), compress, 1 << 20);
+    historyWriter.add(out);
+    String jobId = "job_200809171136_0001";
+    String taskId = "task_200809171136_0001_m_000000";
+    String otherTaskId = "task_200809171136_0001_m_000001";
+    String attemptId = "attempt_200809171136_0001_m_000000_0";
+    String odd = "Value has equal=to, \"quotes\" and \n new lines.\n";
+    String counters = "{(group)(group)[(counter)(counter)(10)]}";
+
+    JobHistory.MetaInfoManager.logMetaInfo(historyWriter);
+    JobHistory.log(historyWriter, RecordTypes.Job, 
+        new Keys[] {Keys.JOBID, Keys.JOBNAME, Keys.SUBMIT_TIME}, 
+        new String[] {jobId, odd, "1221614184623"});
+    for (String id : new String[] {taskId, otherTaskId}) {
+      JobHistory.log(historyWriter, RecordTypes.Task, 
+          new Keys[] {Keys.TASKID, Keys.TASK_TYPE, Keys.START_TIME, 
+                      Keys.SPLITS}, 
+          new String[] {id, "MAP", "-01", "host1,host2"});
+    }
+    JobHistory.log(historyWriter, RecordTypes.MapAttempt, 
+        new Keys[] {Keys.TASK_TYPE, Keys.TASKID, Keys.TASK_ATTEMPT_ID, 
+                    Keys.TASK_STATUS, Keys.HOSTNAME, Keys.COUNTERS}, 
+        new String[] {"MAP", taskId, attemptId, "SUCCESS", "host1", 
+                      counters});
+    JobHistory.log(historyWriter, RecordTypes.Job, 
+        new Keys[] {Keys.JOBID, Keys.JOB_STATUS, Keys.COUNTERS}, 
+        new String[] {jobId, "SUCCESS", counters});
+    out.close();
+    historyWriter.remove(out);
+    assertFalse(out.checkError());
+
+    // all the events
+    JobHistory.JobInfo job = new JobHistory.JobInfo(jobId);
+    DefaultJobHistoryParser.parseJobTasks(historyLog.toString(), job, fs);
+    assertEquals(odd, job.get(Keys.JOBNAME));
+    assertEquals(1221614184623L, job.getLong(Keys.SUBMIT_TIME));
+    assertEquals("SUCCESS", job.get(Keys.JOB_STATUS));
+    assertEquals(counters, job.get(Keys.COUNTERS));
+    assertEquals(2, job.getAllTasks().size());
+    JobHistory.Task task = job.getAllTasks().get(taskId);
+    assertEquals("MAP", task.get(Keys.TASK_TYPE));
+    assertEquals("-01", task.get(Keys.START_TIME));
+    assertEquals("host1,host2", task.get(Keys.SPLITS));
+    JobHistory.TaskAttempt attempt = task.getTaskAttempts().get(attemptId);
+    assertEquals("host1", attempt.get(Keys.HOSTNAME));
+    assertEquals(counters, attempt.get(Keys.COUNTERS));
+
+    // the summary leaves out the details of the tasks and attempts
+    job = new JobHistory.JobInfo(jobId);
+    DefaultJobHistoryParser.parseJobTasksSummary(historyLog.toString(), job,
+                                                 fs);
+    assertEquals(odd, job.get(Keys.JOBNAME));
+    assertEquals(counters, job.get(Keys.COUNTERS));
+    assertEquals(2, job.getAllTasks().size());
+    task = job.getAllTasks().get(otherTaskId);
+    assertEquals("MAP", task.get(Keys.TASK_TYPE));
+    assertEquals("", task.get(Keys.SPLITS));
+    attempt = job.getAllTasks().get(taskId).getTaskAttempts().get(attemptId);
+    assertEquals("SUCCESS", attempt.get(Keys.TASK_STATUS));
+    assertEquals("", attempt.get(Keys.COUNTERS));
+
+    // which are read for one task at a time
+    task = DefaultJobHistoryParser.parseTask(historyLog.toString(), jobId, 
+                                             taskId, fs);
+    assertEquals("host1,host2", task.get(Keys.SPLITS));
+    assertEquals(counters, 
+        task.getTaskAttempts().get(attemptId).get(Keys.COUNTERS));
+
+    // a file without its trailer is read from its events
+    long length = fs.getFileStatus(historyLog).getLen();
+    Path truncatedLog = truncate(fs, historyLog, length - 1);
+    job = new JobHistory.JobInfo(jobId);
+    DefaultJobHistoryParser.parseJobTasksSummary(truncatedLog.toString(), job,
+                                                 fs);
+    assertEquals("SUCCESS", job.get(Keys.JOB_STATUS));
+    assertEquals(counters, job.getAllTasks().get(taskId).getTaskAttempts()
+                             .get(attemptId).get(Keys.COUNTERS));
+
+    // and a file that was not closed as far as it goes
+    truncatedLog = truncate(fs, historyLog, length / 2);
+    job = new JobHistory.JobInfo(jobId);
+    DefaultJobHistoryParser.parseJobTasksSummary(truncatedLog.toString(), job,
+                                                 fs);
+    if (!compress) {
+      assertEquals(odd, job.get(Keys.JOBNAME));
+    }
+  }
+
+  public void testBinaryHistoryWithoutSummary() throws IOException {
+    Path historyDir = new Path(System.getProperty("test.build.data", "."), 
+                                "history");
+    FileSystem fs = FileSystem.getLocal(new JobConf());
+    Path historyLog = new Path(historyDir, "testlog.nosummary");
+    // too small a limit for any summary
+    PrintWriter out = 
+      new BinaryJobHistory.Writer(fs.create(historyLog), true, 1);
+    historyWriter.add(out);
+    String jobId = "job_200809171136_0001";
+    String taskId = "task_200809171136_0001_m_000000";
+    JobHistory.log(historyWriter, RecordTypes.Job, 
+        new Keys[] {Keys.JOBID, Keys.JOB_STATUS}, 
+        new String[] {jobId, "SUCCESS"});
+    JobHistory.log(historyWriter, RecordTypes.Task, 
+        new Keys[] {Keys.TASKID, Keys.TASK_TYPE, Keys.SPLITS}, 
+        new String[] {taskId, "MAP", "host1"});
+    out.close();
+    historyWriter.remove(out);
+    assertFalse(out.checkError());
+
+    // the summary is read from the events, with the details
+    JobHistory.JobInfo job = new JobHistory.JobInfo(jobId);
+    DefaultJobHistoryParser.parseJobTasksSummary(historyLog.toString(), job,
+                                                 fs);
+    assertEquals("SUCCESS", job.get(Keys.JOB_STATUS));
+    assertEquals("host1", job.getAllTasks().get(taskId).get(Keys.SPLITS));
+  }
+
+  public void testCorruptBinaryHistory() throws IOException {
+    Path historyDir = new Path(System.getProperty("test.build.data", "."), 
+                                "history");
+    FileSystem fs = FileSystem.getLocal(new JobConf());
+    byte[] header = {'H', 'J', 'B', BinaryJobHistory.VERSION, 0};
+    // an unknown record type, and an unknown key in a Job record
+    byte[][] records = {{(byte) 200}, 
+                        {(byte) (RecordTypes.Job.ordinal() + 1), 1, 
+                         (byte) 250}};
+    for (byte[] record : records) {
+      Path historyLog = new Path(historyDir, "testlog.corrupt");
+      FSDataOutputStream out = fs.create(historyLog);
+      out.write(header);
+      out.write(record);
+      out.close();
+      try {
+        JobHistory.parseHistoryFromFS(historyLog.toString(), 
+            new TestListener(new JobHistory.JobInfo("job_0_0")), fs);
+        fail("Read a corrupt history file");
+      } catch (IOException e) {
+        // expected
+      }
+    }
+  }
+
+  public void testBinaryHistoryIndex() throws IOException {
+    checkBinaryHistoryIndex(false);
+    checkBinaryHistoryIndex(true);
+  }
+
+  private void checkBinaryHistoryIndex(boolean compress) throws IOException {
+    Path historyDir = new Path(System.getProperty("test.build.data", "."), 
+                                "history");
+    FileSystem fs = FileSystem.getLocal(new JobConf());
+    Path historyLog = new Path(historyDir, "testlog.index");
+    // small blocks, so the events of the tasks span many of them
+    PrintWriter out = new BinaryJobHistory.Writer(fs.create(historyLog),
+                                                  compress, 1 << 20, 1024);
+    historyWriter.add(out);
+    String jobId = "job_200809171136_0001";
+    int numTasks = 100;
+    JobHistory.log(historyWriter, RecordTypes.Job, 
+        new Keys[] {Keys.JOBID, Keys.SUBMIT_TIME}, 
+        new String[] {jobId, "1221614184623"});
+    for (int i = 0; i < numTasks; ++i) {
+      JobHistory.log(historyWriter, RecordTypes.Task, 
+          new Keys[] {Keys.TASKID, Keys.TASK_TYPE, Keys.SPLITS}, 
+          new String[] {taskId(i), "MAP", "host" + i});
+    }
+    for (int i = 0; i < numTasks; ++i) {
+      JobHistory.log(historyWriter, RecordTypes.Task, 
+          new Keys[] {Keys.TASKID, Keys.TASK_STATUS, Keys.COUNTERS}, 
+          new String[] {taskId(i), "SUCCESS", "{(counter)(" + i + ")}"});
+    }
+    JobHistory.log(historyWriter, RecordTypes.Job, 
+        new Keys[] {Keys.JOBID, Keys.JOB_STATUS}, 
+        new String[] {jobId, "SUCCESS"});
+    out.close();
+    historyWriter.remove(out);
+    assertFalse(out.checkError());
+
+    // the events are read across the blocks
+    JobHistory.JobInfo job = new JobHistory.JobInfo(jobId);
+    DefaultJobHistoryParser.parseJobTasks(historyLog.toString(), job, fs);
+    assertEquals("SUCCESS", job.get(Keys.JOB_STATUS));
+    assertEquals(numTasks, job.getAllTasks().size());
+    job = new JobHistory.JobInfo(jobId);
+    DefaultJobHistoryParser.parseJobTasksSummary(historyLog.toString(), job,
+                                                 fs);
+    assertEquals(numTasks, job.getAllTasks().size());
+
+    // a task is read from the few blocks holding its records
+    for (int i : new int[] {0, numTasks / 2, numTasks - 1}) {
+      JobHistory.Task task = DefaultJobHistoryParser.parseTask(
+          historyLog.toString(), jobId, taskId(i), fs);
+      assertEquals("host" + i, task.get(Keys.SPLITS));
+      assertEquals("{(counter)(" + i + ")}", task.get(Keys.COUNTERS));
+
+      final int[] records = {0};
+      FSDataInputStream in = fs.open(historyLog);
+      try {
+        assertTrue(BinaryJobHistory.parseTask(in, 
+            fs.getFileStatus(historyLog).getLen(), taskId(i), 
+            new Listener() {
+              public void handle(RecordTypes recType, 
+                                 Map<JobHistory.Keys, String> values) {
+                ++records[0];
+              }
+            }));
+      } finally {
+        in.close();
+      }
+      assertTrue("Read " + records[0] + " records for one task", 
+                 records[0] > 0 && records[0] < numTasks);
+    }
+    assertNull(DefaultJobHistoryParser.parseTask(historyLog.toString(), 
+        jobId, taskId(numTasks), fs));
+
+    // a file that was not closed has no index, and is read whole
+    Path truncatedLog = truncate(fs, historyLog, 
+                                 fs.getFileStatus(historyLog).getLen() - 1);
+    JobHistory.Task task = DefaultJobHistoryParser.parseTask(
+        truncatedLog.toString(), jobId, taskId(1), fs);
+    assertEquals("{(counter)(1)}", task.get(Keys.COUNTERS));
+  }
+
+  private static String taskId(int i) {
+    return String.format("task_200809171136_0001_m_%06d", i);
+  }
+
+  private static Path truncate(FileSystem fs, Path file, long length) 
+  throws IOException {
+    Path truncated = new Path(file.getParent(), file.getName() + ".part");
+    FSDataInputStream in = fs.open(file);
+    FSDataOutputStream out = fs.create(truncated);
+    byte[] buffer = new byte[(int)length];
+    in.readFully(buffer);
+    out.write(buffer);
+    in.close();
+    out.close();
+    return truncated;
+  }
 }
@@ -313,6 +313,24 @@ public class TestJobQueueTaskScheduler extends TestCase {
     checkAssignment(scheduler, tracker(taskTrackerManager, "tt2"), new String[] {});
   }
 
+  public void testMultipleReducesPerHeartbeat() throws IOException {
+    scheduler.terminate();
+    jobConf.setInt("mapred.jobtracker.taskalloc.maxreduces", 2);
+    scheduler = createTaskScheduler();
+    scheduler.setConf(jobConf);
+    scheduler.setTaskTrackerManager(taskTrackerManager);
+    scheduler.start();
+
+    submitJobs(taskTrackerManager, jobConf, 2, JobStatus.RUNNING);
+    // All slots are filled in a single heartbeat
+    checkAssignment(scheduler, tracker(taskTrackerManager, "tt1"), 
+                    new String[] {"attempt_test_0001_m_000001_0 on tt1", 
+                                  "attempt_test_0001_m_000002_0 on tt1", 
+                                  "attempt_test_0001_r_000003_0 on tt1",
+                                  "attempt_test_0001_r_000004_0 on tt1"});
+    checkAssignment(scheduler, tracker(taskTrackerManager, "tt1"), new String[] {});
+  }
+
   static TaskTracker tracker(FakeTaskTrackerManager taskTrackerManager,
                                       String taskTrackerName) {
     return taskTrackerManager.getTaskTracker(taskTrackerName);
@@ -63,6 +63,11 @@ public class TestJobTrackerInstrumentation extends TestCase {
         assertTrue(instr.incrOccupiedReduceSlots > 0);
         assertTrue(instr.incrRunningMaps > 0);
         assertTrue(instr.incrRunningReduces > 0);
+
+        //every heartbeat took the lock to apply its statuses and to assign
+        assertTrue(instr.statusLocks > 0);
+        assertTrue(instr.assignLocks > 0);
+        assertTrue(instr.statusLocks >= instr.assignLocks);
       }
     } finally {
       if (mr != null) {
@@ -88,6 +93,8 @@ public class TestJobTrackerInstrumentation extends TestCase {
     private int decrRunningMaps = 0;
     private int incrRunningReduces = 0;
     private int decrRunningReduces = 0;
+    private int statusLocks = 0;
+    private int assignLocks = 0;
 
     @Override
     public synchronized void addReservedMapSlots(int slots)
@@ -160,5 +167,19 @@ public class TestJobTrackerInstrumentation extends TestCase {
     {
       decrRunningReduces += task;
     }
+
+    @Override
+    public synchronized void heartbeatStatusLock(long waitMillis,
+                                                 long heldMillis)
+    {
+      ++statusLocks;
+    }
+
+    @Override
+    public synchronized void heartbeatAssignLock(long waitMillis,
+                                                 long heldMillis)
+    {
+      ++assignLocks;
+    }
   }
 }
@@ -0,0 +1,195 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.mapred;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapred.TestMapCollection.FakeIF;
+import org.apache.hadoop.mapred.lib.NullOutputFormat;
+
+/**
+ * Test the map-side sort with normalized key prefixes.
+ */
+public class TestKeyPrefixSort extends TestCase {
+
+  private static final int RECORDS = 20000;
+
+  public void testPrefixSupport() {
+    assertNotNull(KeyPrefix.get(WritableComparator.get(Text.class)));
+    assertNotNull(KeyPrefix.get(WritableComparator.get(BytesWritable.class)));
+    assertNull(KeyPrefix.get(WritableComparator.get(NullWritable.class)));
+  }
+
+  public void testPrefixOrdering() throws IOException {
+    Random r = new Random();
+    long seed = r.nextLong();
+    r.setSeed(seed);
+    System.out.println("seed: " + seed);
+    for (int i = 0; i < 10000; ++i) {
+      byte[] b1 = randomKey(r);
+      byte[] b2 = r.nextBoolean() ? randomKey(r) : mutate(r, b1);
+      checkOrdering(new BytesWritable(b1), new BytesWritable(b2));
+      checkOrdering(new Text(b1), new Text(b2));
+    }
+  }
+
+  public void testSortText() throws Exception {
+    runJob(Text.class);
+  }
+
+  public void testSortBytesWritable() throws Exception {
+    runJob(BytesWritable.class);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static void checkOrdering(WritableComparable k1,
+      WritableComparable k2) throws IOException {
+    RawComparator cmp = WritableComparator.get(k1.getClass());
+    KeyPrefix prefix = KeyPrefix.get(cmp);
+    DataOutputBuffer out1 = new DataOutputBuffer();
+    DataOutputBuffer out2 = new DataOutputBuffer();
+    k1.write(out1);
+    k2.write(out2);
+    int pc = KeyPrefix.compare(
+        prefix.getPrefix(out1.getData(), 0, out1.getLength()),
+        prefix.getPrefix(out2.getData(), 0, out2.getLength()));
+    int kc = cmp.compare(out1.getData(), 0, out1.getLength(),
+                         out2.getData(), 0, out2.getLength());
+    if (pc != 0) {
+      assertEquals(k1 + " vs " + k2, Integer.signum(kc), pc);
+    }
+  }
+
+  /** Short keys over a small alphabet, so prefixes often tie. */
+  private static byte[] randomKey(Random r) {
+    byte[] b = new byte[r.nextInt(16)];
+    for (int i = 0; i < b.length; ++i) {
+      switch (r.nextInt(4)) {
+        case 0: b[i] = 0; break;
+        case 1: b[i] = (byte)0xFF; break;
+        default: b[i] = (byte)('a' + r.nextInt(3)); break;
+      }
+    }
+    return b;
+  }
+
+  private static byte[] mutate(Random r, byte[] b) {
+    byte[] m = new byte[b.length + r.nextInt(3)];
+    System.arraycopy(b, 0, m, 0, b.length);
+    if (b.length > 0 && r.nextBoolean()) {
+      m[r.nextInt(b.length)] ^= 1;
+    }
+    return m;
+  }
+
+  /**
+   * Emits random keys; the single map spills several times with 1MB of
+   * io.sort.mb.
+   */
+  public static class PrefixMapper<K extends Writable>
+      implements Mapper<NullWritable,NullWritable,K,NullWritable> {
+    private Class<K> keyClass;
+
+    @SuppressWarnings("unchecked")
+    public void configure(JobConf job) {
+      keyClass = (Class<K>)job.getMapOutputKeyClass();
+    }
+
+    @SuppressWarnings("unchecked")
+    public void map(NullWritable nk, NullWritable nv,
+        OutputCollector<K,NullWritable> out, Reporter reporter)
+        throws IOException {
+      Random r = new Random();
+      for (int i = 0; i < RECORDS; ++i) {
+        byte[] b = new byte[r.nextInt(32)];
+        for (int j = 0; j < b.length; ++j) {
+          // a narrow range keeps many keys tied on the prefix
+          b[j] = (byte)(j < 6 ? 'a' + r.nextInt(2) : r.nextInt(256));
+        }
+        out.collect((K)(keyClass == Text.class
+                        ? new Text(b) : new BytesWritable(b)),
+                    NullWritable.get());
+      }
+    }
+
+    public void close() { }
+  }
+
+  /** Checks that keys arrive in order and none are lost. */
+  public static class OrderReducer<K extends WritableComparable>
+      implements Reducer<K,NullWritable,NullWritable,NullWritable> {
+    private K last = null;
+    private int count = 0;
+    private JobConf job;
+
+    public void configure(JobConf job) {
+      this.job = job;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void reduce(K key, Iterator<NullWritable> values,
+        OutputCollector<NullWritable,NullWritable> out, Reporter reporter) {
+      if (last != null && last.compareTo(key) >= 0) {
+        fail("Out of order: " + last + " >= " + key);
+      }
+      last = WritableUtils.clone(key, job);
+      while (values.hasNext()) {
+        values.next();
+        ++count;
+      }
+    }
+
+    public void close() {
+      assertEquals(RECORDS, count);
+    }
+  }
+
+  private static void runJob(Class<? extends WritableComparable> keyClass)
+      throws Exception {
+    JobConf conf = new JobConf(new Configuration(), PrefixMapper.class);
+    conf.setBoolean("map.sort.key.prefix", true);
+    conf.setInt("io.sort.mb", 1);
+    conf.setNumMapTasks(1);
+    conf.setNumReduceTasks(1);
+    conf.setInputFormat(FakeIF.class);
+    conf.setOutputFormat(NullOutputFormat.class);
+    conf.setMapperClass(PrefixMapper.class);
+    conf.setReducerClass(OrderReducer.class);
+    conf.setMapOutputKeyClass(keyClass);
+    conf.setMapOutputValueClass(NullWritable.class);
+    RunningJob rj = JobClient.runJob(conf);
+    assertTrue(rj.isSuccessful());
+    assertTrue(rj.getCounters().findCounter(
+        Task.Counter.SPILLED_RECORDS).getCounter() > RECORDS);
+  }
+}
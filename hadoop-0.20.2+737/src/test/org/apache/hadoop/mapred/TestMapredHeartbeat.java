@@ -18,6 +18,9 @@
 package org.apache.hadoop.mapred;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 import junit.framework.TestCase;
 
@@ -102,6 +105,74 @@ public class TestMapredHeartbeat extends TestCase {
     }
   }
 
-}
+  /**
+   * Scheduler counting its calls, and slow enough to let a resent 
+   * heartbeat arrive while the original one is still being answered.
+   */
+  static class SlowTaskScheduler extends JobQueueTaskScheduler {
+    final CountDownLatch assigning = new CountDownLatch(1);
+    volatile int assignCalls;
+
+    @Override
+    public List<Task> assignTasks(
+        org.apache.hadoop.mapreduce.server.jobtracker.TaskTracker tt)
+        throws IOException {
+      assignCalls++;
+      assigning.countDown();
+      UtilsForTests.waitFor(1000);
+      return new ArrayList<Task>();
+    }
+  }
+
+  public void testDuplicateHeartbeats() throws Exception {
+    MiniMRCluster mr = null;
+    try {
+      JobConf conf = new JobConf();
+      conf.setClass("mapred.jobtracker.taskScheduler",
+                    SlowTaskScheduler.class, TaskScheduler.class);
+      mr = new MiniMRCluster(0, 0, 0, "file:///", 1, null, null, null, conf);
+      final JobTracker jt = mr.getJobTrackerRunner().getJobTracker();
+      SlowTaskScheduler scheduler = 
+        (SlowTaskScheduler) jt.getTaskScheduler();
 
+      final String tracker = "tracker_tracker1:1000";
+      final TaskTrackerStatus status = new TaskTrackerStatus(tracker,
+          JobInProgress.convertTrackerNameToHostName(tracker));
+      jt.heartbeat(status, false, true, false, (short) 0);
 
+      // send the same heartbeat twice, the second while the first is 
+      // being assigned tasks
+      final HeartbeatResponse[] responses = new HeartbeatResponse[2];
+      final Exception[] errors = new Exception[2];
+      Thread[] senders = new Thread[2];
+      for (int i = 0; i < senders.length; i++) {
+        final int sender = i;
+        senders[i] = new Thread() {
+          public void run() {
+            try {
+              responses[sender] = 
+                jt.heartbeat(status, false, false, true, (short) 1);
+            } catch (Exception e) {
+              errors[sender] = e;
+            }
+          }
+        };
+      }
+      senders[0].start();
+      scheduler.assigning.await();
+      senders[1].start();
+      for (Thread sender : senders) {
+        sender.join();
+      }
+
+      assertNull(errors[0]);
+      assertNull(errors[1]);
+      assertEquals("Duplicate heartbeat was assigned tasks",
+                   1, scheduler.assignCalls);
+      assertEquals(2, responses[0].getResponseId());
+      assertSame(responses[0], responses[1]);
+    } finally {
+      if (mr != null) { mr.shutdown(); }
+    }
+  }
+}
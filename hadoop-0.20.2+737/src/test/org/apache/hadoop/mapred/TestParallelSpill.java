@@ -0,0 +1,144 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.mapred;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.TestMapCollection.FakeIF;
+
+/**
+ * Test that map outputs spilled by several threads are sorted, combined
+ * and indexed correctly.
+ */
+public class TestParallelSpill extends TestCase {
+  private static final Path TEST_DIR =
+    new Path(new File(System.getProperty("test.build.data", "/tmp"),
+                      "test-parallel-spill").getAbsolutePath());
+  private static final int RECORDS = 50000;
+  private static final int MAPS = 2;
+
+  /** Emits random keys, each with a count of one. */
+  public static class CountMapper extends MapReduceBase
+      implements Mapper<NullWritable,NullWritable,Text,IntWritable> {
+    public void map(NullWritable nk, NullWritable nv,
+        OutputCollector<Text,IntWritable> out, Reporter reporter)
+        throws IOException {
+      final Random r = new Random();
+      final Text key = new Text();
+      final IntWritable one = new IntWritable(1);
+      for (int i = 0; i < RECORDS; ++i) {
+        key.set(String.format("key%06d", r.nextInt(RECORDS)));
+        out.collect(key, one);
+      }
+    }
+  }
+
+  /** Sums the counts; also checks that keys arrive in order. */
+  public static class SumReducer extends MapReduceBase
+      implements Reducer<Text,IntWritable,Text,IntWritable> {
+    private Text last = null;
+
+    public void reduce(Text key, Iterator<IntWritable> values,
+        OutputCollector<Text,IntWritable> out, Reporter reporter)
+        throws IOException {
+      if (last != null && last.compareTo(key) >= 0) {
+        throw new IOException("Out of order: " + last + " >= " + key);
+      }
+      last = new Text(key);
+      int sum = 0;
+      while (values.hasNext()) {
+        sum += values.next().get();
+      }
+      out.collect(key, new IntWritable(sum));
+    }
+  }
+
+  /** Checks key order, then counts the records seen by the reduces. */
+  public static class CheckReducer extends SumReducer {
+    public void reduce(Text key, Iterator<IntWritable> values,
+        OutputCollector<Text,IntWritable> out, final Reporter reporter)
+        throws IOException {
+      final OutputCollector<Text,IntWritable> sum =
+        new OutputCollector<Text,IntWritable>() {
+          public void collect(Text k, IntWritable v) {
+            reporter.incrCounter("test", "sum", v.get());
+          }
+        };
+      super.reduce(key, values, sum, reporter);
+    }
+  }
+
+  public void testParallelSpill() throws Exception {
+    MiniMRCluster mr = null;
+    try {
+      mr = new MiniMRCluster(1, "file:///", 1);
+      JobConf job = mr.createJobConf();
+      runJob(job);
+
+      // partitions larger than their staging buffer go to the spill file
+      job = mr.createJobConf();
+      job.setFloat("io.sort.spill.buffer.percent", (float)0.01);
+      runJob(job);
+
+      job = mr.createJobConf();
+      job.setCombinerClass(SumReducer.class);
+      job.setCompressMapOutput(true);
+      job.setBoolean("io.sort.spill.direct", true);
+      runJob(job);
+    } finally {
+      if (mr != null) {
+        mr.shutdown();
+      }
+      FileSystem.getLocal(new JobConf()).delete(TEST_DIR, true);
+    }
+  }
+
+  private static void runJob(JobConf job) throws Exception {
+    job.setInt("io.sort.spill.threads", 3);
+    job.setInt("io.sort.mb", 1);
+    job.setMapperClass(CountMapper.class);
+    job.setReducerClass(CheckReducer.class);
+    job.setOutputKeyClass(Text.class);
+    job.setOutputValueClass(IntWritable.class);
+    job.setInputFormat(FakeIF.class);
+    job.setNumMapTasks(MAPS);
+    job.setNumReduceTasks(5);
+    FileInputFormat.setInputPaths(job, new Path(TEST_DIR, "in"));
+    Path outDir = new Path(TEST_DIR, "out");
+    FileSystem.getLocal(job).delete(outDir, true);
+    FileOutputFormat.setOutputPath(job, outDir);
+    RunningJob rj = JobClient.runJob(job);
+    assertTrue(rj.isSuccessful());
+    Counters c = rj.getCounters();
+    assertEquals(MAPS * RECORDS, c.findCounter("test", "sum").getCounter());
+    // more records were spilled than collected, so maps spilled repeatedly
+    assertTrue(c.findCounter(Task.Counter.SPILLED_RECORDS).getCounter() >
+               c.findCounter(Task.Counter.MAP_OUTPUT_RECORDS).getCounter());
+  }
+}
@@ -100,6 +100,62 @@ public class TestReduceFetch extends TestCase {
     return job.getCounters();
   }
 
+  public void testBatchedFetch() throws Exception {
+    final int MAP_TASKS = 9;
+    JobConf job = mrCluster.createJobConf();
+    job.setNumMapTasks(MAP_TASKS);
+    job.setInt("mapred.reduce.copy.maps.per.fetch", 4);
+    job.setInt("mapred.reduce.parallel.copies", 2);
+    job.setInt("mapred.job.reduce.total.mem.bytes", 128 << 20);
+    job.set("mapred.job.shuffle.input.buffer.percent", "0.14");
+    Counters c = runJob(job);
+    final long out = c.findCounter(Task.Counter.MAP_OUTPUT_RECORDS).getCounter();
+    final long in = c.findCounter(Task.Counter.REDUCE_INPUT_RECORDS).getCounter();
+    assertEquals("Expected all map outputs to be fetched", out, in);
+  }
+
+  public void testPushedOutputs() throws Exception {
+    final int MAP_TASKS = 12;
+    JobConf job = mrCluster.createJobConf();
+    job.setNumMapTasks(MAP_TASKS);
+    job.setBoolean("mapred.shuffle.push", true);
+    // schedule the reduce right away, so that maps find it running
+    job.set("mapred.reduce.slowstart.completed.maps", "0.0");
+    job.setInt("mapred.job.reduce.total.mem.bytes", 128 << 20);
+    Counters c = runJob(job);
+    final long out = c.findCounter(Task.Counter.MAP_OUTPUT_RECORDS).getCounter();
+    final long in = c.findCounter(Task.Counter.REDUCE_INPUT_RECORDS).getCounter();
+    final long pushed =
+      c.findCounter(Task.Counter.REDUCE_PUSHED_OUTPUTS).getCounter();
+    assertEquals("Expected all map outputs to be merged", out, in);
+    assertTrue("Expected some map outputs to be pushed", pushed > 0);
+  }
+
+  public void testBusyTracker() throws Exception {
+    final int MAP_TASKS = 8;
+    // the tracker serves one fetch at a time, turning the others away
+    JobConf conf = new JobConf();
+    conf.setInt("mapred.tasktracker.shuffle.max.fetches", 1);
+    MiniMRCluster mr = new MiniMRCluster(1,
+        dfsCluster.getFileSystem().getUri().toString(), 1, null, null, conf);
+    try {
+      JobConf job = mr.createJobConf();
+      job.setNumMapTasks(MAP_TASKS);
+      job.setInt("mapred.reduce.parallel.copies", 2);
+      job.setInt("mapred.reduce.parallel.copies.max", 4);
+      job.setInt("mapred.reduce.copy.max.per.host", 4);
+      job.setInt("mapred.job.reduce.total.mem.bytes", 128 << 20);
+      Counters c = runJob(job);
+      final long out =
+        c.findCounter(Task.Counter.MAP_OUTPUT_RECORDS).getCounter();
+      final long in =
+        c.findCounter(Task.Counter.REDUCE_INPUT_RECORDS).getCounter();
+      assertEquals("Expected all map outputs to be merged", out, in);
+    } finally {
+      mr.shutdown();
+    }
+  }
+
   public void testReduceFromDisk() throws Exception {
     final int MAP_TASKS = 8;
     JobConf job = mrCluster.createJobConf();
@@ -151,4 +207,52 @@ public class TestReduceFetch extends TestCase {
     assertEquals("Spilled records: " + spill, out, spill); // no reduce spill
   }
 
+  public void testConcurrentInMemMerges() throws Exception {
+    final int MAP_TASKS = 8;
+    JobConf job = mrCluster.createJobConf();
+    job.setNumMapTasks(MAP_TASKS);
+    job.setInt("mapred.inmem.merge.threads", 3);
+    job.setInt("mapred.inmem.merge.threshold", 2);
+    job.setInt("mapred.reduce.parallel.copies", 4);
+    job.setInt("mapred.job.reduce.total.mem.bytes", 128 << 20);
+    job.set("mapred.job.shuffle.input.buffer.percent", "0.14");
+    Counters c = runJob(job);
+    final long out = c.findCounter(Task.Counter.MAP_OUTPUT_RECORDS).getCounter();
+    final long in = c.findCounter(Task.Counter.REDUCE_INPUT_RECORDS).getCounter();
+    final long spill = c.findCounter(Task.Counter.SPILLED_RECORDS).getCounter();
+    assertEquals("Expected all map outputs to be merged", out, in);
+    assertTrue("Expected in-memory merges (" + spill + ")",
+        spill > out); // spilled map records, some merged at the reduce
+  }
+
+  public void testCompressedInMemory() throws Exception {
+    final int MAP_TASKS = 3;
+    JobConf job = mrCluster.createJobConf();
+    job.setCompressMapOutput(true);
+    job.setBoolean("mapred.job.shuffle.keep.compressed", true);
+    job.set("mapred.job.reduce.input.buffer.percent", "1.0");
+    job.set("mapred.job.shuffle.input.buffer.percent", "1.0");
+    job.setInt("mapred.job.reduce.total.mem.bytes", 128 << 20);
+    job.setNumMapTasks(MAP_TASKS);
+    Counters c = runJob(job);
+    long spill = c.findCounter(Task.Counter.SPILLED_RECORDS).getCounter();
+    long out = c.findCounter(Task.Counter.MAP_OUTPUT_RECORDS).getCounter();
+    assertEquals("Spilled records: " + spill, out, spill); // no reduce spill
+
+    // compressed outputs merged in memory
+    job = mrCluster.createJobConf();
+    job.setCompressMapOutput(true);
+    job.setBoolean("mapred.job.shuffle.keep.compressed", true);
+    job.setNumMapTasks(8);
+    job.setInt("mapred.inmem.merge.threshold", 2);
+    job.setInt("mapred.job.reduce.total.mem.bytes", 128 << 20);
+    job.set("mapred.job.shuffle.input.buffer.percent", "0.14");
+    c = runJob(job);
+    out = c.findCounter(Task.Counter.MAP_OUTPUT_RECORDS).getCounter();
+    final long in = c.findCounter(Task.Counter.REDUCE_INPUT_RECORDS).getCounter();
+    spill = c.findCounter(Task.Counter.SPILLED_RECORDS).getCounter();
+    assertEquals("Expected all map outputs to be merged", out, in);
+    assertTrue("Expected in-memory merges (" + spill + ")", spill > out);
+  }
+
 }
@@ -0,0 +1,135 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.mapred;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.TestMapCollection.FakeIF;
+import org.apache.hadoop.mapred.TestReduceFetch.MapMB;
+import org.apache.hadoop.mapred.lib.IdentityReducer;
+import org.apache.hadoop.io.Text;
+
+/**
+ * Test that reduces can fetch map outputs from the NIO shuffle server.
+ */
+public class TestShuffleServer extends TestCase {
+  private static final Path TEST_DIR =
+    new Path(new File(System.getProperty("test.build.data", "/tmp"),
+                      "test-shuffle-server").getAbsolutePath());
+
+  private MiniMRCluster mr = null;
+  private int shufflePort;
+
+  @Override
+  protected void setUp() throws Exception {
+    ServerSocket s = new ServerSocket(0);
+    shufflePort = s.getLocalPort();
+    s.close();
+    JobConf conf = new JobConf();
+    conf.set("mapred.shuffle.server", "nio");
+    conf.set("mapred.shuffle.nio.address", "0.0.0.0:" + shufflePort);
+    conf.setInt("mapred.shuffle.nio.handlers", 2);
+    mr = new MiniMRCluster(1, "file:///", 1, null, null, conf);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    if (mr != null) {
+      mr.shutdown();
+    }
+    FileSystem.getLocal(new JobConf()).delete(TEST_DIR, true);
+  }
+
+  public void testFetchFromNioServer() throws Exception {
+    runJob(mr.createJobConf());
+  }
+
+  public void testBatchedFetchFromNioServer() throws Exception {
+    JobConf job = mr.createJobConf();
+    job.setInt("mapred.reduce.copy.maps.per.fetch", 3);
+    runJob(job);
+  }
+
+  private void runJob(JobConf job) throws Exception {
+    job.set("mapred.shuffle.server", "nio");
+    job.set("mapred.shuffle.nio.address", "0.0.0.0:" + shufflePort);
+    job.setMapperClass(MapMB.class);
+    job.setReducerClass(IdentityReducer.class);
+    job.setOutputKeyClass(Text.class);
+    job.setOutputValueClass(Text.class);
+    job.setInputFormat(FakeIF.class);
+    job.setNumMapTasks(4);
+    job.setNumReduceTasks(2);
+    // a single copier fetches all the outputs over one connection
+    job.setInt("mapred.reduce.parallel.copies", 1);
+    FileInputFormat.setInputPaths(job, new Path(TEST_DIR, "in"));
+    Path outDir = new Path(TEST_DIR, "out");
+    FileSystem.getLocal(job).delete(outDir, true);
+    FileOutputFormat.setOutputPath(job, outDir);
+    RunningJob rj = JobClient.runJob(job);
+    assertTrue(rj.isSuccessful());
+    Counters c = rj.getCounters();
+    assertEquals(c.findCounter(Task.Counter.MAP_OUTPUT_RECORDS).getCounter(),
+        c.findCounter(Task.Counter.REDUCE_INPUT_RECORDS).getCounter());
+  }
+
+  public void testBadRequests() throws Exception {
+    // unknown paths and unauthenticated fetches are refused
+    assertEquals("HTTP/1.1 404 Not found",
+        request("GET /foo HTTP/1.1\r\n\r\n"));
+    assertEquals("HTTP/1.1 401 Unauthorized",
+        request("GET /mapOutput?job=job_1_0001&map=" +
+                "attempt_1_0001_m_000000_0&reduce=0 HTTP/1.1\r\n\r\n"));
+    assertEquals("HTTP/1.1 400 Bad request",
+        request("POST /mapOutput HTTP/1.1\r\n\r\n"));
+    // requests naming no map outputs are refused before any is opened
+    assertEquals("HTTP/1.1 400 Bad map parameter ,",
+        request("GET /mapOutput?job=job_1_0001&map=,&reduce=0 " +
+                "HTTP/1.1\r\n\r\n"));
+    assertEquals("HTTP/1.1 400 Bad map parameter " +
+                 "attempt_1_0001_m_000000_0,,attempt_1_0001_m_000001_0",
+        request("GET /mapOutput?job=job_1_0001&map=" +
+                "attempt_1_0001_m_000000_0,,attempt_1_0001_m_000001_0" +
+                "&reduce=0 HTTP/1.1\r\n\r\n"));
+  }
+
+  private String request(String req) throws IOException {
+    Socket sock = new Socket("localhost", shufflePort);
+    try {
+      OutputStream out = sock.getOutputStream();
+      out.write(req.getBytes("ISO-8859-1"));
+      out.flush();
+      BufferedReader in = new BufferedReader(
+          new InputStreamReader(sock.getInputStream(), "ISO-8859-1"));
+      return in.readLine();
+    } finally {
+      sock.close();
+    }
+  }
+}
@@ -0,0 +1,137 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.mapred;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.WritableUtils;
+
+public class TestTaskTrackerStatus extends TestCase {
+
+  private final Configuration conf = new Configuration();
+
+  private static final TaskAttemptID IDLE =
+    TaskAttemptID.forName("attempt_test_0001_m_000001_0");
+  private static final TaskAttemptID BUSY =
+    TaskAttemptID.forName("attempt_test_0001_m_000002_0");
+  private static final TaskAttemptID FAILING =
+    TaskAttemptID.forName("attempt_test_0001_m_000003_0");
+
+  private static TaskStatus report(TaskAttemptID taskId, float progress,
+                                   long records, long bytes) {
+    Counters counters = new Counters();
+    counters.incrCounter(Task.Counter.MAP_INPUT_RECORDS, records);
+    counters.incrCounter(Task.Counter.MAP_INPUT_BYTES, bytes);
+    return new MapTaskStatus(taskId, progress, 1, TaskStatus.State.RUNNING,
+                             "", "running", "tt1", TaskStatus.Phase.MAP,
+                             counters);
+  }
+
+  private static TaskTrackerStatus status(TaskStatus... reports) {
+    List<TaskStatus> list = new ArrayList<TaskStatus>();
+    for (TaskStatus report : reports) {
+      list.add(report);
+    }
+    return new TaskTrackerStatus("tt1", "host1", 50060, list, 0, 2, 2);
+  }
+
+  private static TaskStatus find(TaskTrackerStatus status,
+                                 TaskAttemptID taskId) {
+    for (TaskStatus report : status.getTaskReports()) {
+      if (report.getTaskID().equals(taskId)) {
+        return report;
+      }
+    }
+    fail("No report of " + taskId);
+    return null;
+  }
+
+  public void testDeltaHeartbeats() throws IOException {
+    // first heartbeat, sent in full
+    TaskTrackerStatus first = status(report(IDLE, 0.5f, 10, 100),
+                                     report(BUSY, 0.1f, 20, 200));
+    TaskTrackerStatus received = WritableUtils.clone(first, conf);
+    assertTrue(received.applyDelta(null));
+    Map<TaskAttemptID, TaskStatus> acknowledged =
+      first.getAcknowledgedReports(null);
+
+    // second heartbeat: one task is unchanged, the other read more bytes,
+    // and a new one failed
+    TaskStatus failing = report(FAILING, 0.0f, 0, 0);
+    failing.setRunState(TaskStatus.State.FAILED);
+    failing.setDiagnosticInfo("failed");
+    TaskTrackerStatus second = status(report(IDLE, 0.5f, 10, 100),
+                                      report(BUSY, 0.2f, 20, 400),
+                                      failing);
+    TaskTrackerStatus delta = second.getDelta(acknowledged);
+    assertTrue(delta.isDelta());
+    assertEquals(2, delta.getTaskReports().size());
+    TaskStatus busyChange = find(delta, BUSY);
+    assertEquals(1, busyChange.getCounters().size());
+    assertEquals(400,
+        busyChange.getCounters().getCounter(Task.Counter.MAP_INPUT_BYTES));
+
+    TaskTrackerStatus next = WritableUtils.clone(delta, conf);
+    assertTrue(next.applyDelta(received));
+    assertFalse(next.isDelta());
+    assertEquals(3, next.getTaskReports().size());
+    TaskStatus idle = find(next, IDLE);
+    assertEquals(0.5f, idle.getProgress());
+    assertEquals(10, idle.getCounters().getCounter(
+        Task.Counter.MAP_INPUT_RECORDS));
+    TaskStatus busy = find(next, BUSY);
+    assertEquals(0.2f, busy.getProgress());
+    assertEquals(20, busy.getCounters().getCounter(
+        Task.Counter.MAP_INPUT_RECORDS));
+    assertEquals(400, busy.getCounters().getCounter(
+        Task.Counter.MAP_INPUT_BYTES));
+    assertEquals("failed", find(next, FAILING).getDiagnosticInfo());
+
+    // the diagnostics are sent once, and not repeated for unchanged tasks
+    acknowledged = second.getAcknowledgedReports(acknowledged);
+    failing = (TaskStatus)failing.clone();
+    failing.clearStatus();
+    TaskTrackerStatus third = status(report(IDLE, 0.5f, 10, 100),
+                                     report(BUSY, 0.2f, 20, 400),
+                                     failing);
+    delta = WritableUtils.clone(third.getDelta(acknowledged), conf);
+    assertEquals(0, delta.getTaskReports().size());
+    assertTrue(delta.applyDelta(next));
+    assertEquals(3, delta.getTaskReports().size());
+    assertEquals("", find(delta, FAILING).getDiagnosticInfo());
+    assertEquals(400, find(delta, BUSY).getCounters().getCounter(
+        Task.Counter.MAP_INPUT_BYTES));
+  }
+
+  public void testDeltaWithoutPreviousStatus() throws IOException {
+    TaskTrackerStatus first = status(report(IDLE, 0.5f, 10, 100));
+    Map<TaskAttemptID, TaskStatus> acknowledged =
+      first.getAcknowledgedReports(null);
+    TaskTrackerStatus delta =
+      WritableUtils.clone(first.getDelta(acknowledged), conf);
+    // e.g. a restarted JobTracker has to ask for the full status
+    assertFalse(delta.applyDelta(null));
+    assertFalse(delta.applyDelta(status()));
+  }
+}
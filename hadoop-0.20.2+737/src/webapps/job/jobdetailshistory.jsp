@@ -278,7 +278,7 @@ Hadoop Job <%=jobid %> on History Viewer
  <%
     DefaultJobHistoryParser.FailedOnNodesFilter filter = 
                  new DefaultJobHistoryParser.FailedOnNodesFilter();
-    JobHistory.parseHistoryFromFS(logFile, filter, fs); 
+    JobHistory.parseHistorySummaryFromFS(logFile, filter, fs); 
     Map<String, Set<String>> badNodes = filter.getValues(); 
     if (badNodes.size() > 0) {
  %>
@@ -312,7 +312,7 @@ Hadoop Job <%=jobid %> on History Viewer
  <%
     DefaultJobHistoryParser.KilledOnNodesFilter killedFilter =
                  new DefaultJobHistoryParser.KilledOnNodesFilter();
-    JobHistory.parseHistoryFromFS(logFile, filter, fs); 
+    JobHistory.parseHistorySummaryFromFS(logFile, killedFilter, fs); 
     badNodes = killedFilter.getValues(); 
     if (badNodes.size() > 0) {
  %>
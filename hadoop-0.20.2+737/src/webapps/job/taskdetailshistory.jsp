@@ -31,7 +31,8 @@
   if (job == null) {
     return;
   }
-  JobHistory.Task task = job.getAllTasks().get(tipid); 
+  JobHistory.Task task = 
+    JSPUtil.getTaskInfo(logFile, jobid, tipid, fs, jobTracker); 
   String type = task.get(Keys.TASK_TYPE);
 %>
 <html>
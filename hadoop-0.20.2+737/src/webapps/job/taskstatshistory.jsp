@@ -54,7 +54,8 @@
     return;
   }
 
-  JobHistory.Task task = job.getAllTasks().get(tipid.toString());
+  JobHistory.Task task = JSPUtil.getTaskInfo(logFile, jobid,
+      tipid.toString(), fs, jobTracker);
   JobHistory.TaskAttempt attempt = task.getTaskAttempts().get(attemptid);
 
   Counters counters = 